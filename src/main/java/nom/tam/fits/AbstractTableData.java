@@ -0,0 +1,67 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.lang.reflect.Array;
+
+import nom.tam.util.ArrayFuncs;
+import nom.tam.util.ColumnStatistics;
+
+/**
+ * A base class for table data, with implementations of the methods that were
+ * not part of the original {@link TableData} interface. Tables extending this
+ * class rather than only implementing the interface keep working as methods are
+ * added.
+ */
+public abstract class AbstractTableData extends Data implements TableData {
+
+    /**
+     * Get the statistics of the stored values of a numeric column. This
+     * implementation reads the whole column with {@link #getColumn(int)}.
+     * 
+     * @return the statistics, or null if the column is not numeric.
+     */
+    public ColumnStatistics getColumnStatistics(int col) throws FitsException {
+        Object column = getColumn(col);
+        if (column == null || !column.getClass().isArray()) {
+            return null;
+        }
+        Class<?> base = ArrayFuncs.getBaseClass(column);
+        if (!base.isPrimitive() || base == boolean.class || base == char.class) {
+            return null;
+        }
+        Object flat = ArrayFuncs.flatten(column);
+        ColumnStatistics stats = new ColumnStatistics();
+        stats.add(flat, 0, Array.getLength(flat));
+        return stats;
+    }
+}
@@ -40,13 +40,14 @@ import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.ArrayFuncs;
 import nom.tam.util.ByteFormatter;
 import nom.tam.util.ByteParser;
+import nom.tam.util.ColumnStatistics;
 import nom.tam.util.Cursor;
 import nom.tam.util.FormatException;
 import nom.tam.util.RandomAccess;
 import nom.tam.util.TruncationException;
 
 /** This class represents the data in an ASCII table */
-public class AsciiTable extends Data implements TableData {
+public class AsciiTable extends AbstractTableData {
 
     /** The number of rows in the table */
     private int nRows;
@@ -553,6 +554,31 @@ public class AsciiTable extends Data implements TableData {
         return this.data[col];
     }
 
+    /**
+     * Get the statistics of a numeric column. Null entries are counted as
+     * undefined values.
+     */
+    @Override
+    public ColumnStatistics getColumnStatistics(int col) throws FitsException {
+        Object column = getColumn(col);
+        if (column instanceof String[]) {
+            return null;
+        }
+        ColumnStatistics stats = new ColumnStatistics();
+        if (this.isNull == null) {
+            stats.add(column, 0, this.nRows);
+        } else {
+            for (int row = 0; row < this.nRows; row += 1) {
+                if (isNull(row, col)) {
+                    stats.addNull();
+                } else {
+                    stats.add(column, row, 1);
+                }
+            }
+        }
+        return stats;
+    }
+
     /**
      * Get the ASCII table information. This will actually do the read if it had
      * previously been deferred
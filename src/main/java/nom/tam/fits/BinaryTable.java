@@ -34,12 +34,15 @@ package nom.tam.fits;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.ArrayFuncs;
+import nom.tam.util.ColumnStatistics;
 import nom.tam.util.ColumnTable;
 import nom.tam.util.Cursor;
 import nom.tam.util.RandomAccess;
@@ -48,10 +51,16 @@ import nom.tam.util.TableException;
 /**
  * This class defines the methods for accessing FITS binary table data.
  */
-public class BinaryTable extends Data implements TableData {
+public class BinaryTable extends AbstractTableData {
 
     private static final Logger LOG = Logger.getLogger(BinaryTable.class.getName());
 
+    /**
+     * The number of bytes of rows read at a time when only some columns of a
+     * deferred table are read.
+     */
+    private static final int PROJECTION_BUFFER_SIZE = 1024 * 1024;
+
     final static int COL_CONSTANT = 0;
 
     final static int COL_VARYING = 1;
@@ -185,12 +194,6 @@ public class BinaryTable extends Data implements TableData {
     /** Info about column */
     int[] flags;
 
-    /**
-     * Flag indicating that we've given Variable length conversion warning. We
-     * only want to do that once per HDU.
-     */
-    private boolean warnedOnVariableConversion = false;
-
     /**
      * The number of rows in the table.
      */
@@ -306,16 +309,8 @@ public class BinaryTable extends Data implements TableData {
      */
     public BinaryTable(Header myHeader) throws FitsException {
 
-        long heapSizeL = myHeader.getLongValue("PCOUNT");
+        long heapSize = myHeader.getLongValue("PCOUNT");
         long heapOffsetL = myHeader.getLongValue("THEAP");
-        if (heapOffsetL > Integer.MAX_VALUE) {
-            throw new FitsException("Heap Offset > 2GB");
-        }
-        this.heapOffset = (int) heapOffsetL;
-        if (heapSizeL > Integer.MAX_VALUE) {
-            throw new FitsException("Heap size > 2 GB");
-        }
-        int heapSize = (int) heapSizeL;
 
         int rwsz = myHeader.getIntValue("NAXIS1");
         this.nRow = myHeader.getIntValue("NAXIS2");
@@ -323,17 +318,17 @@ public class BinaryTable extends Data implements TableData {
         // Subtract out the size of the regular table from
         // the heap offset.
 
-        if (this.heapOffset > 0) {
-            this.heapOffset -= this.nRow * rwsz;
+        if (heapOffsetL > 0) {
+            heapOffsetL -= (long) this.nRow * rwsz;
         }
 
-        if (this.heapOffset < 0 || this.heapOffset > heapSize) {
+        if (heapOffsetL < 0 || heapOffsetL > heapSize) {
             throw new FitsException("Inconsistent THEAP and PCOUNT");
         }
-
-        if (heapSize - this.heapOffset > Integer.MAX_VALUE) {
-            throw new FitsException("Unable to allocate heap > 2GB");
+        if (heapOffsetL > Integer.MAX_VALUE) {
+            throw new FitsException("Gap between table and heap > 2GB");
         }
+        this.heapOffset = (int) heapOffsetL;
 
         this.heap = new FitsHeap(heapSize - this.heapOffset);
         this.nCol = myHeader.getIntValue("TFIELDS");
@@ -556,7 +551,7 @@ public class BinaryTable extends Data implements TableData {
      * Transformation include boolean -> T/F, Strings -> byte arrays, variable
      * length arrays -> pointers (after writing data to heap).
      */
-    private Object arrayToColumn(int col, Object o) throws FitsException {
+    Object arrayToColumn(int col, Object o) throws FitsException {
 
         if (this.flags[col] == 0) {
             return o;
@@ -607,11 +602,6 @@ public class BinaryTable extends Data implements TableData {
                 o = xo;
             }
 
-            // Write all rows of data onto the heap.
-            int offset = this.heap.putData(o);
-
-            int blen = ArrayFuncs.getBaseLength(o);
-
             // Handle an addRow of a variable length element.
             // In this case we only get a one-d array, but we just
             // make is 1 x n to get the second dimension.
@@ -621,22 +611,25 @@ public class BinaryTable extends Data implements TableData {
                 };
             }
 
-            // Create the array descriptors
-            int nrow = Array.getLength(o);
-            int factor = 1;
-            if (isComplex(col)) {
-                factor = 2;
+            // Check that 'P' descriptors can address the data before it is
+            // added to the heap.
+            if (!isLongVary(col) && this.heap.getSize() + FitsHeap.encodedSize(o) > Integer.MAX_VALUE) {
+                throw new FitsException("Heap > 2GB requires 'Q' descriptors for column " + col);
             }
+
+            // Write all rows of data onto the heap.
+            long[] offsets = this.heap.putData((Object[]) o);
+
+            // Create the array descriptors
+            int nrow = offsets.length;
             if (isLongVary(col)) {
                 long[] descrip = new long[2 * nrow];
 
                 Object[] x = (Object[]) o;
                 // Fill the descriptor for each row.
                 for (int i = 0; i < nrow; i += 1) {
-                    int len = Array.getLength(x[i]);
-                    descrip[2 * i] = len;
-                    descrip[2 * i + 1] = offset;
-                    offset += len * blen * factor;
+                    descrip[2 * i] = Array.getLength(x[i]);
+                    descrip[2 * i + 1] = offsets[i];
                 }
                 o = descrip;
             } else {
@@ -646,10 +639,8 @@ public class BinaryTable extends Data implements TableData {
 
                 // Fill the descriptor for each row.
                 for (int i = 0; i < nrow; i += 1) {
-                    int len = Array.getLength(x[i]);
-                    descrip[2 * i] = len;
-                    descrip[2 * i + 1] = offset;
-                    offset += len * blen * factor;
+                    descrip[2 * i] = Array.getLength(x[i]);
+                    descrip[2 * i + 1] = (int) offsets[i];
                 }
                 o = descrip;
             }
@@ -722,20 +713,19 @@ public class BinaryTable extends Data implements TableData {
                 readHeap(this.currInput);
             }
 
-            int[] descrip;
+            // 'Q' descriptors hold long offsets which address the heap
+            // directly.
+            long[] longDescrip = null;
+            int[] descrip = null;
+            int nrow;
             if (isLongVary(col)) {
-                // Convert longs to int's. This is dangerous.
-                if (!this.warnedOnVariableConversion) {
-                    System.err.println("Warning: converting long variable array pointers to int's");
-                    this.warnedOnVariableConversion = true;
-                }
-                descrip = (int[]) ArrayFuncs.convertArray(o, int.class);
+                longDescrip = (long[]) o;
+                nrow = longDescrip.length / 2;
             } else {
                 descrip = (int[]) o;
+                nrow = descrip.length / 2;
             }
 
-            int nrow = descrip.length / 2;
-
             Object[] res; // Res will be the result of extracting from the heap.
             int[] dims; // Used to create result arrays.
 
@@ -774,8 +764,15 @@ public class BinaryTable extends Data implements TableData {
             // Now read in each requested row.
             for (int i = 0; i < nrow; i += 1) {
                 Object row;
-                int offset = descrip[2 * i + 1];
-                int dim = descrip[2 * i];
+                long offset;
+                int dim;
+                if (longDescrip != null) {
+                    offset = longDescrip[2 * i + 1];
+                    dim = (int) longDescrip[2 * i];
+                } else {
+                    offset = descrip[2 * i + 1];
+                    dim = descrip[2 * i];
+                }
 
                 if (isComplex(col)) {
                     dims[0] = dim;
@@ -1050,7 +1047,7 @@ public class BinaryTable extends Data implements TableData {
             h.setNaxes(2);
             h.setNaxis(1, this.rowLen);
             h.setNaxis(2, this.nRow);
-            h.addValue("PCOUNT", this.heap.size(), "ntf::binarytable:pcount:1");
+            h.addValue("PCOUNT", this.heap.getSize(), "ntf::binarytable:pcount:1");
             h.addValue("GCOUNT", 1, "ntf::binarytable:gcount:1");
             Cursor iter = h.iterator();
             iter.setKey("GCOUNT");
@@ -1068,6 +1065,19 @@ public class BinaryTable extends Data implements TableData {
         }
     }
 
+    /**
+     * Find the rows which satisfy all of a set of predicates. Only the columns
+     * the predicates test are read, a block of rows at a time, so a deferred
+     * table stays deferred.
+     * 
+     * @param predicates
+     *            The predicates, each on a scalar numeric column.
+     * @return the indices of the matching rows in ascending order.
+     */
+    public int[] findRows(ColumnPredicate... predicates) throws FitsException {
+        return scan(predicates, null, null);
+    }
+
     public Class[] getBases() {
         return this.table.getBases();
     }
@@ -1086,6 +1096,49 @@ public class BinaryTable extends Data implements TableData {
         return res;
     }
 
+    /**
+     * Get the statistics of the stored values of a numeric column with fixed
+     * length rows. A deferred table is scanned a block of rows at a time
+     * without being read into memory.
+     * 
+     * @return the statistics, or null for string, logical, complex and variable
+     *         length columns.
+     */
+    @Override
+    public ColumnStatistics getColumnStatistics(int col) throws FitsException {
+        if (!validColumn(col)) {
+            throw new FitsException("Invalid column");
+        }
+        if (this.flags[col] != 0 || !this.bases[col].isPrimitive() || this.bases[col] == char.class) {
+            return null;
+        }
+        ColumnStatistics stats = new ColumnStatistics();
+        if (this.table != null) {
+            stats.add(this.table.getColumn(col), 0, this.nRow * this.sizes[col]);
+        } else {
+            RowBatchIterator iter = new RowBatchIterator(this, null, Math.max(1, BinaryTable.PROJECTION_BUFFER_SIZE / Math.max(1, this.rowLen)), col);
+            while (iter.hasNext()) {
+                stats.add(iter.next()[0], 0, iter.getRowCount() * this.sizes[col]);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Get several columns in the same format as {@link #getColumn(int)}.
+     * 
+     * @param cols
+     *            The indices of the columns.
+     * @see #getFlattenedColumns(int...)
+     */
+    public Object[] getColumns(int... cols) throws FitsException {
+        Object[] res = getFlattenedColumns(cols);
+        for (int i = 0; i < cols.length; i += 1) {
+            res[i] = encurl(res[i], cols[i], this.nRow);
+        }
+        return res;
+    }
+
     private void ensureData() throws FitsException {
         getData();
     }
@@ -1189,6 +1242,49 @@ public class BinaryTable extends Data implements TableData {
         return data;
     }
 
+    /**
+     * @return the byte offset of each column within a row.
+     */
+    int[] getColumnOffsets() {
+        int[] colOffsets = new int[this.nCol];
+        int offset = 0;
+        for (int col = 0; col < this.nCol; col += 1) {
+            colOffsets[col] = offset;
+            offset += this.sizes[col] * ArrayFuncs.getBaseLength(this.modelRow[col]);
+        }
+        return colOffsets;
+    }
+
+    /**
+     * Fill the given flattened columns from the rows in the file.
+     */
+    private void readFileColumns(int[] cols, Object[] res) throws FitsException {
+        int[] colOffsets = getColumnOffsets();
+        if (this.nRow == 0 || this.rowLen == 0) {
+            return;
+        }
+
+        int blockRows = Math.min(this.nRow, Math.max(1, BinaryTable.PROJECTION_BUFFER_SIZE / this.rowLen));
+        byte[] block = new byte[blockRows * this.rowLen];
+        ByteBuffer rows = ByteBuffer.wrap(block);
+
+        long currentOffset = FitsUtil.findOffset(this.currInput);
+        FitsUtil.reposition(this.currInput, this.fileOffset);
+        try {
+            for (int row = 0; row < this.nRow; row += blockRows) {
+                int n = Math.min(blockRows, this.nRow - row);
+                this.currInput.readFully(block, 0, n * this.rowLen);
+                for (int i = 0; i < cols.length; i += 1) {
+                    int size = this.sizes[cols[i]];
+                    ColumnTable.extractColumn(rows, this.rowLen, n, colOffsets[cols[i]], size, res[i], row * size);
+                }
+            }
+        } catch (IOException e) {
+            throw new FitsException("Error in deferred column read:" + e);
+        }
+        FitsUtil.reposition(this.currInput, currentOffset);
+    }
+
     public Object[] getFlatColumns() {
         ensureDataSilent();
         return this.table.getColumns();
@@ -1211,6 +1307,48 @@ public class BinaryTable extends Data implements TableData {
         return columnToArray(col, res, this.nRow);
     }
 
+    /**
+     * Get several columns in flattened format. If the table has been deferred
+     * and not read yet, the rows are read a block at a time and only the
+     * requested columns are extracted, so that the memory needed scales with
+     * the selected columns rather than with the whole table. The table itself
+     * stays deferred. Variable length columns still need the heap to be read.
+     * 
+     * @param cols
+     *            The indices of the columns.
+     */
+    public Object[] getFlattenedColumns(int... cols) throws FitsException {
+        for (int col : cols) {
+            if (!validColumn(col)) {
+                throw new FitsException("Invalid column");
+            }
+        }
+        Object[] res = new Object[cols.length];
+        if (this.table != null || !(this.currInput instanceof RandomAccess)) {
+            for (int i = 0; i < cols.length; i += 1) {
+                res[i] = getFlattenedColumn(cols[i]);
+            }
+            return res;
+        }
+
+        for (int i = 0; i < cols.length; i += 1) {
+            res[i] = ArrayFuncs.newInstance(ArrayFuncs.getBaseClass(this.modelRow[cols[i]]), this.sizes[cols[i]] * this.nRow);
+        }
+        readFileColumns(cols, res);
+        for (int i = 0; i < cols.length; i += 1) {
+            res[i] = columnToArray(cols[i], res[i], this.nRow);
+        }
+        return res;
+    }
+
+    /**
+     * Get the number of bytes allocated for the heap in memory, which may
+     * exceed the size of the heap while the table is being built.
+     */
+    public long getHeapCapacity() {
+        return this.heap.getCapacity();
+    }
+
     /** What is the offset to the heap */
     public int getHeapOffset() {
         return this.heapOffset;
@@ -1219,9 +1357,13 @@ public class BinaryTable extends Data implements TableData {
     /**
      * What is the size of the heap -- including the offset from the end of the
      * table data.
+     * 
+     * @deprecated May silently underestimate the size if the heap is larger
+     *             than 2 GB. Use {@link #getLHeapSize()}.
      */
+    @Deprecated
     public int getHeapSize() {
-        return this.heapOffset + this.heap.size();
+        return (int) getLHeapSize();
     }
 
     /**
@@ -1243,6 +1385,14 @@ public class BinaryTable extends Data implements TableData {
 
     }
 
+    /**
+     * What is the size of the heap -- including the offset from the end of the
+     * table data.
+     */
+    public long getLHeapSize() {
+        return this.heapOffset + this.heap.getSize();
+    }
+
     /**
      * Return a row that may be used for direct i/o to the table.
      */
@@ -1304,6 +1454,20 @@ public class BinaryTable extends Data implements TableData {
         return res;
     }
 
+    /**
+     * Get an iterator over the rows of the table in batches. The rows are taken
+     * from memory if the table has been read and otherwise from the file.
+     * 
+     * @param batchRows
+     *            The maximum number of rows in a batch.
+     * @param cols
+     *            The indices of the columns to return (all columns if none are
+     *            given).
+     */
+    public RowBatchIterator getRowBatchIterator(int batchRows, int... cols) throws FitsException {
+        return new RowBatchIterator(this, null, batchRows, cols);
+    }
+
     public int[] getSizes() {
         return this.sizes;
     }
@@ -1353,8 +1517,8 @@ public class BinaryTable extends Data implements TableData {
     @Override
     public long getTrueSize() {
         long len = (long) this.nRow * this.rowLen;
-        if (this.heap.size() > 0) {
-            len += this.heap.size() + this.heapOffset;
+        if (this.heap.getSize() > 0) {
+            len += this.heap.getSize() + this.heapOffset;
         }
         return len;
     }
@@ -1394,6 +1558,13 @@ public class BinaryTable extends Data implements TableData {
         return (this.flags[col] & BinaryTable.COL_LONGVARY) != 0;
     }
 
+    /**
+     * Is this a valid column holding a single number in each row?
+     */
+    boolean isScalarNumeric(int col) {
+        return validColumn(col) && this.sizes[col] == 1 && this.flags[col] == 0 && this.bases[col].isPrimitive() && this.bases[col] != char.class;
+    }
+
     /** Is this column a string column */
     private boolean isString(int col) {
         return (this.flags[col] & BinaryTable.COL_STRING) != 0;
@@ -1658,7 +1829,7 @@ public class BinaryTable extends Data implements TableData {
      * initializes the heap as necessary.
      */
     protected void readHeap(ArrayDataInput input) throws FitsException {
-        FitsUtil.reposition(input, this.fileOffset + this.nRow * this.rowLen + this.heapOffset);
+        FitsUtil.reposition(input, this.fileOffset + (long) this.nRow * this.rowLen + this.heapOffset);
         this.heap.read(input);
         this.heapReadFromStream = true;
     }
@@ -1666,7 +1837,7 @@ public class BinaryTable extends Data implements TableData {
     /** Read table, heap and padding */
     protected void readTrueData(ArrayDataInput i) throws FitsException {
         try {
-            this.table.read(i);
+            this.table.read(i, FitsFactory.getTableExecutor());
             i.skipBytes(this.heapOffset);
             this.heap.read(i);
             this.heapReadFromStream = true;
@@ -1683,6 +1854,108 @@ public class BinaryTable extends Data implements TableData {
         }
     }
 
+    /**
+     * Scan the table a block of rows at a time. The predicates are evaluated on
+     * their columns alone and the projected columns are copied only for the
+     * rows which match.
+     * 
+     * @param cols
+     *            The projected columns, or null.
+     * @param out
+     *            Receives the flattened projected columns of the matching rows.
+     * @return the indices of the matching rows.
+     */
+    private int[] scan(ColumnPredicate[] predicates, int[] cols, Object[] out) throws FitsException {
+        if (predicates.length == 0) {
+            throw new FitsException("No predicates given for table scan");
+        }
+        int[] testCols = new int[predicates.length];
+        for (int i = 0; i < predicates.length; i += 1) {
+            int col = predicates[i].getColumn();
+            if (!isScalarNumeric(col)) {
+                throw new FitsException("Predicate column " + col + " is not a scalar numeric column");
+            }
+            testCols[i] = col;
+        }
+        if (cols != null) {
+            for (int i = 0; i < cols.length; i += 1) {
+                if (!validColumn(cols[i])) {
+                    throw new FitsException("Invalid column");
+                }
+                out[i] = ArrayFuncs.newInstance(ArrayFuncs.getBaseClass(this.modelRow[cols[i]]), 0);
+            }
+        }
+
+        int blockRows = Math.max(1, BinaryTable.PROJECTION_BUFFER_SIZE / Math.max(1, this.rowLen));
+        RowBatchIterator iter = new RowBatchIterator(this, null, blockRows, testCols);
+        boolean[] match = new boolean[blockRows];
+        int[] rows = new int[0];
+        int count = 0;
+        while (iter.hasNext()) {
+            Object[] batch = iter.next();
+            int n = iter.getRowCount();
+            Arrays.fill(match, 0, n, true);
+            for (int i = 0; i < predicates.length; i += 1) {
+                predicates[i].apply(batch[i], n, match);
+            }
+            for (int row = 0; row < n; row += 1) {
+                if (!match[row]) {
+                    continue;
+                }
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, Math.max(16, 2 * count));
+                    if (cols != null) {
+                        for (int i = 0; i < cols.length; i += 1) {
+                            out[i] = BinaryTable.resize(out[i], rows.length * this.sizes[cols[i]]);
+                        }
+                    }
+                }
+                rows[count] = iter.getFirstRow() + row;
+                if (cols != null) {
+                    for (int i = 0; i < cols.length; i += 1) {
+                        iter.copyRow(row, cols[i], out[i], count * this.sizes[cols[i]]);
+                    }
+                }
+                count += 1;
+            }
+        }
+        if (cols != null) {
+            for (int i = 0; i < cols.length; i += 1) {
+                out[i] = BinaryTable.resize(out[i], count * this.sizes[cols[i]]);
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Copy a flattened column into a new array of a different length.
+     */
+    private static Object resize(Object array, int length) {
+        Object res = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, res, 0, Math.min(length, Array.getLength(array)));
+        return res;
+    }
+
+    /**
+     * Create a new table holding some of the columns for the rows which satisfy
+     * all of a set of predicates. The predicates are evaluated on their columns
+     * a block of rows at a time, and the projected columns are extracted only
+     * for the matching rows.
+     * 
+     * @param cols
+     *            The columns of the new table.
+     * @param predicates
+     *            The predicates, each on a scalar numeric column.
+     */
+    public BinaryTable select(int[] cols, ColumnPredicate... predicates) throws FitsException {
+        Object[] columns = new Object[cols.length];
+        int nrow = scan(predicates, cols, columns).length;
+        for (int i = 0; i < cols.length; i += 1) {
+            columns[i] = encurl(columnToArray(cols[i], columns[i], nrow), cols[i], nrow);
+        }
+        return new BinaryTable(columns);
+    }
+
     /**
      * Replace a column in the table.
      * 
@@ -1776,10 +2049,12 @@ public class BinaryTable extends Data implements TableData {
             if (isVarCol(j)) {
 
                 int size = Array.getLength(o);
+                if (!isLongVary(j) && this.heap.getSize() + FitsHeap.encodedSize(o) > Integer.MAX_VALUE) {
+                    throw new FitsException("Heap > 2GB requires 'Q' descriptors for column " + j);
+                }
                 // The offset for the row is the offset to the heap plus the
                 // offset within the heap.
-                int offset = (int) this.heap.getSize();
-                this.heap.putData(o);
+                long offset = this.heap.putData(o);
                 if (isLongVary(j)) {
                     this.table.setElement(i, j, new long[]{
                         size,
@@ -1788,7 +2063,7 @@ public class BinaryTable extends Data implements TableData {
                 } else {
                     this.table.setElement(i, j, new int[]{
                         size,
-                        offset
+                        (int) offset
                     });
                 }
 
@@ -1893,7 +2168,7 @@ public class BinaryTable extends Data implements TableData {
         ensureData();
         try {
 
-            this.table.write(os);
+            this.table.write(os, FitsFactory.getTableExecutor());
             if (this.heapOffset > 0) {
                 int off = this.heapOffset;
                 // Minimize memory usage. This also accommodates
@@ -1912,7 +2187,7 @@ public class BinaryTable extends Data implements TableData {
             }
 
             // Now check if we need to write the heap
-            if (this.heap.size() > 0) {
+            if (this.heap.getSize() > 0) {
                 this.heap.write(os);
             }
 
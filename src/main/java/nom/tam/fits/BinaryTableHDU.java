@@ -162,6 +162,60 @@ public class BinaryTableHDU extends TableHDU {
         return col;
     }
 
+    /**
+     * Get several columns of the table using 0-based column indexing. Only
+     * these columns are read if the table data has been deferred.
+     * 
+     * @param cols
+     *            The indices of the columns.
+     */
+    public Object[] getColumns(int... cols) throws FitsException {
+        return this.table.getColumns(cols);
+    }
+
+    /**
+     * Build a sorted index of a scalar numeric column for point and range
+     * lookups. See {@link ColumnIndex#open} to keep the index with the file.
+     */
+    public ColumnIndex createIndex(int col) throws FitsException {
+        return new ColumnIndex(this.table, col);
+    }
+
+    /**
+     * Build a spatial index of the sky positions in two angular columns, in
+     * degrees, for cone and box searches.
+     * 
+     * @param raCol
+     *            The column with the longitudes.
+     * @param decCol
+     *            The column with the latitudes.
+     */
+    public SkyIndex createSkyIndex(int raCol, int decCol) throws FitsException {
+        return new SkyIndex(this.table, raCol, decCol);
+    }
+
+    /**
+     * Find the rows of the table which satisfy all of a set of predicates,
+     * reading only the columns they test.
+     */
+    public int[] findRows(ColumnPredicate... predicates) throws FitsException {
+        return this.table.findRows(predicates);
+    }
+
+    /**
+     * Get an iterator over the rows of the table in batches of reused column
+     * arrays.
+     * 
+     * @param batchRows
+     *            The maximum number of rows in a batch.
+     * @param cols
+     *            The indices of the columns to return (all columns if none are
+     *            given).
+     */
+    public RowBatchIterator getRowBatchIterator(int batchRows, int... cols) throws FitsException {
+        return this.table.getRowBatchIterator(batchRows, cols);
+    }
+
     /**
      * What are the standard column stems for a binary table?
      */
@@ -199,15 +253,15 @@ public class BinaryTableHDU extends TableHDU {
         stream.println("      Data Information:");
         if (myData == null || this.table.getNRows() == 0 || this.table.getNCols() == 0) {
             stream.println("         No data present");
-            if (this.table.getHeapSize() > 0) {
-                stream.println("         Heap size is: " + this.table.getHeapSize() + " bytes");
+            if (this.table.getLHeapSize() > 0) {
+                stream.println("         Heap size is: " + this.table.getLHeapSize() + " bytes");
             }
         } else {
 
             stream.println("          Number of rows=" + this.table.getNRows());
             stream.println("          Number of columns=" + this.table.getNCols());
-            if (this.table.getHeapSize() > 0) {
-                stream.println("          Heap size is: " + this.table.getHeapSize() + " bytes");
+            if (this.table.getLHeapSize() > 0) {
+                stream.println("          Heap size is: " + this.table.getLHeapSize() + " bytes");
             }
             Object[] cols = this.table.getFlatColumns();
             for (int i = 0; i < cols.length; i += 1) {
@@ -237,6 +291,15 @@ public class BinaryTableHDU extends TableHDU {
         }
     }
 
+    /**
+     * Create a new table holding the given columns for the rows which satisfy
+     * all of a set of predicates. The other columns are only extracted for the
+     * matching rows.
+     */
+    public BinaryTable select(int[] cols, ColumnPredicate... predicates) throws FitsException {
+        return this.table.select(cols, predicates);
+    }
+
     /**
      * Convert a column in the table to complex. Only tables with appropriate
      * types and dimensionalities can be converted. It is legal to call this on
@@ -307,16 +370,16 @@ public class BinaryTableHDU extends TableHDU {
     @Override
     public void write(ArrayDataOutput ado) throws FitsException {
 
-        int oldSize = this.myHeader.getIntValue("PCOUNT");
-        if (oldSize != this.table.getHeapSize()) {
-            this.myHeader.addValue("PCOUNT", this.table.getHeapSize(), "ntf::binarytablehdu:pcount:1");
+        long oldSize = this.myHeader.getLongValue("PCOUNT");
+        if (oldSize != this.table.getLHeapSize()) {
+            this.myHeader.addValue("PCOUNT", this.table.getLHeapSize(), "ntf::binarytablehdu:pcount:1");
         }
 
-        if (this.myHeader.getIntValue("PCOUNT") == 0) {
+        if (this.myHeader.getLongValue("PCOUNT") == 0) {
             this.myHeader.deleteKey("THEAP");
         } else {
             this.myHeader.getIntValue("TFIELDS");
-            int offset = this.myHeader.getIntValue("NAXIS1") * this.myHeader.getIntValue("NAXIS2") + this.table.getHeapOffset();
+            long offset = (long) this.myHeader.getIntValue("NAXIS1") * this.myHeader.getIntValue("NAXIS2") + this.table.getHeapOffset();
             this.myHeader.addValue("THEAP", offset, "ntf::binarytablehdu:theap:1");
         }
 
@@ -0,0 +1,291 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+
+import nom.tam.util.ArrayFuncs;
+import nom.tam.util.BufferedDataOutputStream;
+import nom.tam.util.BufferedFile;
+import nom.tam.util.ColumnStatistics;
+import nom.tam.util.ColumnTable;
+import nom.tam.util.TableException;
+
+/**
+ * Writes a binary table HDU to a file as its rows are generated, without ever
+ * holding the whole table in memory. The header is written first with no rows,
+ * the rows are then appended in batches and the variable length data is spilled
+ * to a temporary file which is copied after the rows when the writer is closed.
+ * Finally NAXIS2, PCOUNT and THEAP are updated in the header in place.
+ * <p>
+ * A suitable header can be built from a sample of the data, e.g.
+ * <code>BinaryTableHDU.manufactureHeader(new BinaryTable(sampleColumns))</code>
+ * . String columns are padded or truncated to the width given in the header.
+ * <p>
+ * Optionally the ranges of the numeric columns are gathered as the rows are
+ * encoded and written as TDMINn and TDMAXn cards when the writer is closed.
+ */
+public class BinaryTableWriter implements Closeable {
+
+    /** The size of the buffer used to copy the heap */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final BufferedFile out;
+
+    private final Header header;
+
+    /** A table describing the columns, used to convert the batches */
+    private final BinaryTable model;
+
+    /** The temporary file holding the heap */
+    private final File heapFile;
+
+    private final BufferedDataOutputStream heapOut;
+
+    /** The number of rows written so far */
+    private long nRows;
+
+    /** The size of the heap written so far */
+    private long heapSize;
+
+    private boolean closed;
+
+    /** The statistics gathered for each column, or null */
+    private final ColumnStatistics[] statistics;
+
+    /**
+     * Start writing a binary table. The header is written at the current
+     * position of the file, which must follow a primary HDU or an earlier
+     * extension.
+     * 
+     * @param out
+     *            The file to write to.
+     * @param header
+     *            The header of the table. The number of rows and the heap size
+     *            in it are ignored.
+     */
+    public BinaryTableWriter(BufferedFile out, Header header) throws FitsException, IOException {
+        this(out, header, false);
+    }
+
+    /**
+     * Start writing a binary table, optionally recording the ranges of its
+     * numeric columns.
+     * 
+     * @param out
+     *            The file to write to.
+     * @param header
+     *            The header of the table.
+     * @param columnLimits
+     *            Should TDMINn and TDMAXn cards be written for the numeric
+     *            columns with fixed length rows?
+     */
+    public BinaryTableWriter(BufferedFile out, Header header, boolean columnLimits) throws FitsException, IOException {
+        this.out = out;
+        this.header = header;
+        header.addValue("NAXIS2", 0, "ntf::tablehdu:naxis2:1");
+        header.addValue("PCOUNT", 0, "ntf::binarytablehdu:pcount:1");
+        header.addValue("THEAP", 0, "ntf::binarytablehdu:theap:1");
+        this.model = new BinaryTable(header);
+
+        if (columnLimits) {
+            // Reserve the cards now so that the header can be rewritten in
+            // place.
+            this.statistics = new ColumnStatistics[this.model.getNCols()];
+            for (int col = 0; col < this.statistics.length; col += 1) {
+                if (this.model.getColumnStatistics(col) != null) {
+                    this.statistics[col] = new ColumnStatistics();
+                    header.addValue("TDMIN" + (col + 1), 0, TableHDU.TDMIN_COMMENT);
+                    header.addValue("TDMAX" + (col + 1), 0, TableHDU.TDMAX_COMMENT);
+                }
+            }
+        } else {
+            this.statistics = null;
+        }
+
+        header.write(out);
+        header.setRewriteFile(out);
+
+        this.heapFile = File.createTempFile("fitsheap", ".tmp");
+        this.heapOut = new BufferedDataOutputStream(new FileOutputStream(this.heapFile));
+    }
+
+    /**
+     * @return the number of rows written so far.
+     */
+    public long getNRows() {
+        return this.nRows;
+    }
+
+    /**
+     * Append a batch of rows to the table.
+     * 
+     * @param columns
+     *            The columns of the batch in the same form as for
+     *            {@link BinaryTable#BinaryTable(Object[])}, each with the same
+     *            number of rows.
+     */
+    public void writeRows(Object[] columns) throws FitsException, IOException {
+        if (this.closed) {
+            throw new FitsException("Table writer is closed");
+        }
+        if (columns.length != this.model.getNCols()) {
+            throw new FitsException("Batch has " + columns.length + " columns rather than " + this.model.getNCols());
+        }
+        int nrow = Array.getLength(columns[0]);
+        int[] sizes = this.model.getSizes();
+        Object[] modelRow = this.model.getModelRow();
+
+        // Each batch gets its own heap with descriptors shifted to follow the
+        // heap already written.
+        this.model.heap = new FitsHeap(0);
+        Object[] flat = new Object[columns.length];
+        for (int col = 0; col < columns.length; col += 1) {
+            Object o = ArrayFuncs.flatten(this.model.arrayToColumn(col, columns[col]));
+            if (ArrayFuncs.getBaseClass(o) != ArrayFuncs.getBaseClass(modelRow[col]) || Array.getLength(o) != sizes[col] * nrow) {
+                throw new FitsException("Column " + col + " of batch does not match the table");
+            }
+            if (this.model.isVarCol(col)) {
+                shiftDescriptors(o);
+            }
+            flat[col] = o;
+        }
+
+        try {
+            ColumnTable table = new ColumnTable(flat, sizes);
+            table.setStatistics(this.statistics);
+            table.write(this.out, FitsFactory.getTableExecutor());
+        } catch (TableException e) {
+            throw new FitsException("Unable to write rows:" + e);
+        }
+        this.model.heap.write(this.heapOut);
+        this.heapSize += this.model.heap.getSize();
+        this.nRows += nrow;
+    }
+
+    /**
+     * Finish the table: copy the heap after the rows, pad the data and update
+     * the header. The file is left positioned after the table.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.heapOut.close();
+        try {
+            InputStream in = new FileInputStream(this.heapFile);
+            try {
+                byte[] buffer = new byte[BinaryTableWriter.COPY_BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    this.out.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+            long rowSize = this.nRows * this.model.rowLen;
+            FitsUtil.pad(this.out, rowSize + this.heapSize);
+            long end = FitsUtil.findOffset(this.out);
+
+            this.header.findCard("NAXIS2").setValue(String.valueOf(this.nRows));
+            this.header.findCard("PCOUNT").setValue(String.valueOf(this.heapSize));
+            this.header.findCard("THEAP").setValue(String.valueOf(rowSize));
+            if (this.statistics != null) {
+                setColumnLimits();
+            }
+            this.header.rewrite();
+            FitsUtil.reposition(this.out, end);
+        } catch (FitsException e) {
+            throw new IOException("Unable to complete binary table", e);
+        } finally {
+            if (!this.heapFile.delete()) {
+                this.heapFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Fill in the reserved TDMINn and TDMAXn cards. Columns without any defined
+     * values are left with keywords but no values.
+     */
+    private void setColumnLimits() {
+        for (int col = 0; col < this.statistics.length; col += 1) {
+            ColumnStatistics stats = this.statistics[col];
+            if (stats == null) {
+                continue;
+            }
+            HeaderCard min = this.header.findCard("TDMIN" + (col + 1));
+            HeaderCard max = this.header.findCard("TDMAX" + (col + 1));
+            if (stats.getCount() == 0) {
+                min.setValue(null);
+                max.setValue(null);
+            } else {
+                double[] range = TableHDU.physicalRange(this.header, col, stats);
+                if (TableHDU.isIntegralRange(this.header, col, stats)) {
+                    min.setValue(String.valueOf((long) range[0]));
+                    max.setValue(String.valueOf((long) range[1]));
+                } else {
+                    min.setValue(String.valueOf(range[0]));
+                    max.setValue(String.valueOf(range[1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Shift heap offsets in descriptors from the batch heap to the table heap.
+     */
+    private void shiftDescriptors(Object descriptors) throws FitsException {
+        if (descriptors instanceof long[]) {
+            long[] d = (long[]) descriptors;
+            for (int i = 1; i < d.length; i += 2) {
+                d[i] += this.heapSize;
+            }
+        } else {
+            int[] d = (int[]) descriptors;
+            if (this.heapSize + this.model.heap.getSize() > Integer.MAX_VALUE) {
+                throw new FitsException("Heap too large for 32 bit descriptors");
+            }
+            for (int i = 1; i < d.length; i += 2) {
+                d[i] += (int) this.heapSize;
+            }
+        }
+    }
+}
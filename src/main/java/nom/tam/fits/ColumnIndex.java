@@ -0,0 +1,526 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sorted index of the values of a scalar numeric column of a binary table.
+ * The index holds the values of the column in ascending order with the rows
+ * they come from, as primitive arrays, and finds the rows holding a value or a
+ * range of values by binary search. The row numbers can be used with
+ * {@link BinaryTable#getRow(int)} or to select rows read by other means. Rows
+ * with NaN values are not indexed. The values of integer columns are kept as
+ * longs, so 64 bit identifiers are matched exactly by find(long); those of
+ * floating point columns are kept as doubles. Bytes are unsigned, as in FITS
+ * tables.
+ * <p>
+ * The index is serializable. The open() method keeps the index of a column in a
+ * sidecar file which is used as long as the length and modification time of the
+ * FITS file are unchanged. Sidecar files use a simple versioned binary format
+ * rather than Java serialization.
+ */
+public class ColumnIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = Logger.getLogger(ColumnIndex.class.getName());
+
+    /** The suffix of index sidecar files */
+    public static final String SIDECAR_SUFFIX = ".cidx";
+
+    /** The first bytes of a sidecar file, "CIDX" */
+    private static final int SIDECAR_MAGIC = 0x43494458;
+
+    /** The version of the sidecar format */
+    private static final int SIDECAR_VERSION = 1;
+
+    /** Ranges smaller than this are sorted by insertion */
+    private static final int INSERTION_SORT_SIZE = 16;
+
+    /**
+     * Get the sidecar file in which the index of a column of an HDU of a FITS
+     * file is saved.
+     */
+    public static File getSidecar(File file, int hdu, int col) {
+        return new File(file.getPath() + "." + hdu + "." + col + ColumnIndex.SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Get the index of a column, using the index saved in its sidecar file if
+     * that is still valid. Otherwise the index is built and saved. Failures to
+     * read or write the sidecar file are logged but otherwise ignored.
+     * 
+     * @param file
+     *            The FITS file.
+     * @param hdu
+     *            The number of the HDU in the file.
+     * @param table
+     *            The table of the HDU.
+     * @param col
+     *            The column to index.
+     */
+    public static ColumnIndex open(File file, int hdu, BinaryTableHDU table, int col) throws FitsException {
+        File sidecar = ColumnIndex.getSidecar(file, hdu, col);
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        ColumnIndex index = ColumnIndex.readSidecar(sidecar, table.getNRows());
+        if (index != null && index.fileLength == length && index.lastModified == lastModified && index.column == col) {
+            return index;
+        }
+
+        index = table.createIndex(col);
+        index.fileLength = length;
+        index.lastModified = lastModified;
+        ColumnIndex.writeSidecar(index, sidecar);
+        return index;
+    }
+
+    /** Are the values of a column of this type kept as longs? */
+    private static boolean isIntegral(Class<?> base) {
+        return base != double.class && base != float.class;
+    }
+
+    /**
+     * Read a saved index of a table with the given number of rows, or return
+     * null if it cannot be read or is not consistent with the table.
+     */
+    private static ColumnIndex readSidecar(File sidecar, int nRows) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            try {
+                if (in.readInt() != ColumnIndex.SIDECAR_MAGIC || in.readInt() != ColumnIndex.SIDECAR_VERSION) {
+                    throw new IOException("Not a column index of version " + ColumnIndex.SIDECAR_VERSION);
+                }
+                long fileLength = in.readLong();
+                long lastModified = in.readLong();
+                int column = in.readInt();
+                if (in.readInt() != nRows) {
+                    throw new IOException("Column index is for a different number of rows");
+                }
+                boolean integral = in.readBoolean();
+                int count = in.readInt();
+                if (count < 0 || count > nRows) {
+                    throw new IOException("Invalid size of column index: " + count);
+                }
+                double[] keys = integral ? null : new double[count];
+                long[] longKeys = integral ? new long[count] : null;
+                int[] rows = new int[count];
+                for (int i = 0; i < count; i += 1) {
+                    if (integral) {
+                        longKeys[i] = in.readLong();
+                    } else {
+                        keys[i] = in.readDouble();
+                    }
+                    rows[i] = in.readInt();
+                    if (rows[i] < 0 || rows[i] >= nRows) {
+                        throw new IOException("Invalid row in column index: " + rows[i]);
+                    }
+                }
+                if (in.read() >= 0) {
+                    throw new IOException("Unexpected data after column index");
+                }
+                ColumnIndex index = new ColumnIndex(column, nRows, keys, longKeys, rows);
+                for (int i = 1; i < count; i += 1) {
+                    if (index.compare(i - 1, i) > 0) {
+                        throw new IOException("Column index is not sorted");
+                    }
+                }
+                index.fileLength = fileLength;
+                index.lastModified = lastModified;
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            ColumnIndex.LOG.log(Level.WARNING, "Ignoring unreadable column index " + sidecar, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save an index. It is written to a temporary file first so that readers
+     * never see a partial index.
+     */
+    private static void writeSidecar(ColumnIndex index, File sidecar) {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(ColumnIndex.SIDECAR_MAGIC);
+                out.writeInt(ColumnIndex.SIDECAR_VERSION);
+                out.writeLong(index.fileLength);
+                out.writeLong(index.lastModified);
+                out.writeInt(index.column);
+                out.writeInt(index.nRows);
+                out.writeBoolean(index.isIntegral());
+                out.writeInt(index.rows.length);
+                for (int i = 0; i < index.rows.length; i += 1) {
+                    if (index.isIntegral()) {
+                        out.writeLong(index.longKeys[i]);
+                    } else {
+                        out.writeDouble(index.keys[i]);
+                    }
+                    out.writeInt(index.rows[i]);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            ColumnIndex.LOG.log(Level.WARNING, "Unable to save column index " + sidecar, e);
+            tmp.delete();
+        }
+    }
+
+    /** The indexed column */
+    private final int column;
+
+    /** The number of rows in the table */
+    private final int nRows;
+
+    /**
+     * The values of a floating point column in ascending order, or null for an
+     * integer column
+     */
+    private final double[] keys;
+
+    /**
+     * The values of an integer column in ascending order, or null for a
+     * floating point column
+     */
+    private final long[] longKeys;
+
+    /** The row holding each value */
+    private final int[] rows;
+
+    private long fileLength = -1;
+
+    private long lastModified = -1;
+
+    /**
+     * Build the index of a column. The column is read a block of rows at a
+     * time, so a deferred table is not read into memory.
+     * 
+     * @param table
+     *            The table.
+     * @param col
+     *            A scalar numeric column of the table.
+     */
+    public ColumnIndex(BinaryTable table, int col) throws FitsException {
+        if (!table.isScalarNumeric(col)) {
+            throw new FitsException("Column " + col + " is not a scalar numeric column");
+        }
+        this.column = col;
+        this.nRows = table.getNRows();
+        boolean integral = ColumnIndex.isIntegral(table.bases[col]);
+        double[] values = integral ? null : new double[this.nRows];
+        long[] longValues = integral ? new long[this.nRows] : null;
+        int[] index = new int[this.nRows];
+        int count = 0;
+        RowBatchIterator iter = table.getRowBatchIterator(Math.max(1, 1024 * 1024 / Math.max(1, table.rowLen)), col);
+        while (iter.hasNext()) {
+            Object batch = iter.next()[0];
+            for (int i = 0; i < iter.getRowCount(); i += 1) {
+                if (integral) {
+                    longValues[count] = ColumnIndex.longValue(batch, i);
+                } else {
+                    double value = ColumnIndex.value(batch, i);
+                    if (value != value) {
+                        continue;
+                    }
+                    values[count] = value;
+                }
+                index[count] = iter.getFirstRow() + i;
+                count += 1;
+            }
+        }
+        this.keys = integral ? null : Arrays.copyOf(values, count);
+        this.longKeys = integral ? Arrays.copyOf(longValues, count) : null;
+        this.rows = Arrays.copyOf(index, count);
+        sort(0, count - 1);
+    }
+
+    /** Create an index from its saved parts */
+    private ColumnIndex(int column, int nRows, double[] keys, long[] longKeys, int[] rows) {
+        this.column = column;
+        this.nRows = nRows;
+        this.keys = keys;
+        this.longKeys = longKeys;
+        this.rows = rows;
+    }
+
+    /** Get an element of a primitive integer array as a long */
+    static long longValue(Object array, int i) {
+        if (array instanceof long[]) {
+            return ((long[]) array)[i];
+        } else if (array instanceof int[]) {
+            return ((int[]) array)[i];
+        } else if (array instanceof short[]) {
+            return ((short[]) array)[i];
+        } else {
+            return ((byte[]) array)[i] & 0xFF;
+        }
+    }
+
+    /** Get an element of a primitive numeric array as a double */
+    static double value(Object array, int i) {
+        if (array instanceof double[]) {
+            return ((double[]) array)[i];
+        } else if (array instanceof float[]) {
+            return ((float[]) array)[i];
+        } else {
+            return ColumnIndex.longValue(array, i);
+        }
+    }
+
+    /**
+     * Find the rows holding a value.
+     * 
+     * @return the rows in ascending order.
+     */
+    public int[] find(double value) {
+        return findRange(value, value);
+    }
+
+    /**
+     * Find the rows holding an integer value. The values of integer columns are
+     * compared exactly.
+     * 
+     * @return the rows in ascending order.
+     */
+    public int[] find(long value) {
+        return findRange(value, value);
+    }
+
+    /**
+     * Find the rows holding values in an inclusive range.
+     * 
+     * @return the rows in ascending order of their values, and of row for equal
+     *         values.
+     */
+    public int[] findRange(double low, double high) {
+        if (!isIntegral()) {
+            return range(lowerBound(low), upperBound(high));
+        }
+        if (!(low <= high) || low > Long.MAX_VALUE || high < Long.MIN_VALUE) {
+            return new int[0];
+        }
+        // Converting to long saturates at the ends of the range of longs.
+        return findRange((long) Math.ceil(low), (long) Math.floor(high));
+    }
+
+    /**
+     * Find the rows holding integer values in an inclusive range. The values of
+     * integer columns are compared exactly.
+     * 
+     * @return the rows in ascending order of their values, and of row for equal
+     *         values.
+     */
+    public int[] findRange(long low, long high) {
+        if (!isIntegral()) {
+            return findRange((double) low, (double) high);
+        }
+        return range(lowerBound(low), upperBound(high));
+    }
+
+    /**
+     * @return the indexed column.
+     */
+    public int getColumn() {
+        return this.column;
+    }
+
+    /**
+     * @return true if the values are kept as longs, i.e., the column holds
+     *         integers.
+     */
+    public boolean isIntegral() {
+        return this.longKeys != null;
+    }
+
+    /**
+     * @return the number of rows indexed, i.e., those without NaN values.
+     */
+    public int size() {
+        return this.rows.length;
+    }
+
+    /** The rows between two positions */
+    private int[] range(int start, int end) {
+        return Arrays.copyOfRange(this.rows, start, Math.max(start, end));
+    }
+
+    /** The first position with a value not less than the given one */
+    private int lowerBound(double value) {
+        int low = 0;
+        int high = this.keys.length;
+        while (low < high) {
+            int mid = low + high >>> 1;
+            if (this.keys[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** The first position with a value not less than the given one */
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = this.longKeys.length;
+        while (low < high) {
+            int mid = low + high >>> 1;
+            if (this.longKeys[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** The first position with a value greater than the given one */
+    private int upperBound(double value) {
+        int low = 0;
+        int high = this.keys.length;
+        while (low < high) {
+            int mid = low + high >>> 1;
+            if (this.keys[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** The first position with a value greater than the given one */
+    private int upperBound(long value) {
+        int low = 0;
+        int high = this.longKeys.length;
+        while (low < high) {
+            int mid = low + high >>> 1;
+            if (this.longKeys[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Compare two entries by value and then by row */
+    private int compare(int i, int j) {
+        int c;
+        if (isIntegral()) {
+            c = this.longKeys[i] < this.longKeys[j] ? -1 : this.longKeys[i] == this.longKeys[j] ? 0 : 1;
+        } else {
+            c = Double.compare(this.keys[i], this.keys[j]);
+        }
+        return c != 0 ? c : this.rows[i] - this.rows[j];
+    }
+
+    private void swap(int i, int j) {
+        if (isIntegral()) {
+            long key = this.longKeys[i];
+            this.longKeys[i] = this.longKeys[j];
+            this.longKeys[j] = key;
+        } else {
+            double key = this.keys[i];
+            this.keys[i] = this.keys[j];
+            this.keys[j] = key;
+        }
+        int row = this.rows[i];
+        this.rows[i] = this.rows[j];
+        this.rows[j] = row;
+    }
+
+    /**
+     * Sort the entries between two positions inclusive. This is a quicksort
+     * which recurses only into the smaller part so the stack stays shallow.
+     */
+    private void sort(int from, int to) {
+        while (to - from >= ColumnIndex.INSERTION_SORT_SIZE) {
+            // Median of three pivot, moved to the end.
+            int mid = from + to >>> 1;
+            if (compare(mid, from) < 0) {
+                swap(mid, from);
+            }
+            if (compare(to, from) < 0) {
+                swap(to, from);
+            }
+            if (compare(to, mid) < 0) {
+                swap(to, mid);
+            }
+            swap(mid, to);
+            int store = from;
+            for (int i = from; i < to; i += 1) {
+                if (compare(i, to) < 0) {
+                    swap(i, store);
+                    store += 1;
+                }
+            }
+            swap(store, to);
+            if (store - from < to - store) {
+                sort(from, store - 1);
+                from = store + 1;
+            } else {
+                sort(store + 1, to);
+                to = store - 1;
+            }
+        }
+        for (int i = from + 1; i <= to; i += 1) {
+            for (int j = i; j > from && compare(j, j - 1) < 0; j -= 1) {
+                swap(j, j - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * A comparison of the values of a scalar numeric column of a binary table with
+ * constants. Predicates are used to select rows of a table with
+ * {@link BinaryTable#findRows(ColumnPredicate...)} and
+ * {@link BinaryTable#select(int[], ColumnPredicate...)}. They are evaluated
+ * directly on the primitive column arrays. Bytes are unsigned, as in FITS
+ * tables. Values are compared as doubles, so long values beyond 2^53 are
+ * compared approximately.
+ */
+public final class ColumnPredicate {
+
+    private static final int LESS = 0;
+
+    private static final int LESS_OR_EQUAL = 1;
+
+    private static final int GREATER = 2;
+
+    private static final int GREATER_OR_EQUAL = 3;
+
+    private static final int EQUAL = 4;
+
+    private static final int NOT_EQUAL = 5;
+
+    private static final int BETWEEN = 6;
+
+    /**
+     * Select rows where a column lies within an inclusive range.
+     */
+    public static ColumnPredicate between(int column, double low, double high) {
+        return new ColumnPredicate(column, ColumnPredicate.BETWEEN, low, high);
+    }
+
+    /**
+     * Select rows where a column equals a value.
+     */
+    public static ColumnPredicate equal(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.EQUAL, value, value);
+    }
+
+    /**
+     * Select rows where a column is greater than a value.
+     */
+    public static ColumnPredicate greater(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.GREATER, value, value);
+    }
+
+    /**
+     * Select rows where a column is greater than or equal to a value.
+     */
+    public static ColumnPredicate greaterOrEqual(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.GREATER_OR_EQUAL, value, value);
+    }
+
+    /**
+     * Select rows where a column is less than a value.
+     */
+    public static ColumnPredicate less(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.LESS, value, value);
+    }
+
+    /**
+     * Select rows where a column is less than or equal to a value.
+     */
+    public static ColumnPredicate lessOrEqual(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.LESS_OR_EQUAL, value, value);
+    }
+
+    /**
+     * Select rows where a column does not equal a value.
+     */
+    public static ColumnPredicate notEqual(int column, double value) {
+        return new ColumnPredicate(column, ColumnPredicate.NOT_EQUAL, value, value);
+    }
+
+    private final int column;
+
+    private final int op;
+
+    private final double low;
+
+    private final double high;
+
+    private ColumnPredicate(int column, int op, double low, double high) {
+        this.column = column;
+        this.op = op;
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Test a value against the predicate.
+     */
+    private boolean accept(double value) {
+        switch (this.op) {
+            case LESS:
+                return value < this.low;
+            case LESS_OR_EQUAL:
+                return value <= this.low;
+            case GREATER:
+                return value > this.low;
+            case GREATER_OR_EQUAL:
+                return value >= this.low;
+            case EQUAL:
+                return value == this.low;
+            case NOT_EQUAL:
+                return value != this.low;
+            default:
+                return value >= this.low && value <= this.high;
+        }
+    }
+
+    /**
+     * Evaluate the predicate on the start of a flattened scalar column,
+     * clearing the entries of the match array for rows which fail it.
+     */
+    void apply(Object values, int nrow, boolean[] match) {
+        if (values instanceof byte[]) {
+            byte[] a = (byte[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i] & 0xFF);
+            }
+        } else if (values instanceof short[]) {
+            short[] a = (short[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i]);
+            }
+        } else if (values instanceof int[]) {
+            int[] a = (int[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i]);
+            }
+        } else if (values instanceof long[]) {
+            long[] a = (long[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i]);
+            }
+        } else if (values instanceof float[]) {
+            float[] a = (float[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i]);
+            }
+        } else if (values instanceof double[]) {
+            double[] a = (double[]) values;
+            for (int i = 0; i < nrow; i += 1) {
+                match[i] = match[i] && accept(a[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the column tested.
+     */
+    public int getColumn() {
+        return this.column;
+    }
+}
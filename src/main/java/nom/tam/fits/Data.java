@@ -31,10 +31,13 @@ package nom.tam.fits;
  * #L%
  */
 
+import java.io.File;
 import java.io.IOException;
 
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
+import nom.tam.util.BufferedFile;
+import nom.tam.util.MappedFile;
 import nom.tam.util.RandomAccess;
 
 /**
@@ -80,6 +83,35 @@ public abstract class Data implements FitsElement {
         return this.fileOffset;
     }
 
+    /**
+     * Get a key identifying the data in the file it was read from, for caches
+     * shared by several Fits objects such as nom.tam.image.TileCache. The key
+     * holds the path and modification time of the file and the offset of the
+     * data, so it changes if the file is rewritten.
+     * 
+     * @return the key, or null if the data was not read from a file.
+     */
+    public String getSourceKey() {
+        File file = getInputFile();
+        if (file == null || this.fileOffset < 0) {
+            return null;
+        }
+        return file.getAbsolutePath() + ":" + file.lastModified() + ":" + this.fileOffset;
+    }
+
+    /**
+     * @return the file the data was read from, or null if it was not read from
+     *         a file.
+     */
+    File getInputFile() {
+        if (this.input instanceof BufferedFile) {
+            return ((BufferedFile) this.input).getFile();
+        } else if (this.input instanceof MappedFile) {
+            return ((MappedFile) this.input).getFile();
+        }
+        return null;
+    }
+
     /** Return the non-FITS data object */
     public Object getKernel() throws FitsException {
         return getData();
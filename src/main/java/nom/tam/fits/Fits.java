@@ -31,7 +31,6 @@ package nom.tam.fits;
  * #L%
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -40,9 +39,18 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 import nom.tam.fits.compress.CompressionManager;
 import nom.tam.fits.header.Checksum;
@@ -52,6 +60,9 @@ import nom.tam.util.AsciiFuncs;
 import nom.tam.util.BufferedDataInputStream;
 import nom.tam.util.BufferedDataOutputStream;
 import nom.tam.util.BufferedFile;
+import nom.tam.util.ChecksumOutputStream;
+import nom.tam.util.FitsChecksum;
+import nom.tam.util.MappedFile;
 import nom.tam.util.RandomAccess;
 
 /**
@@ -104,69 +115,33 @@ import nom.tam.util.RandomAccess;
  */
 public class Fits {
 
+    private static final Logger LOG = Logger.getLogger(Fits.class.getName());
+
+    /** The size of a FITS logical record */
+    private static final int BLOCK_SIZE = 2880;
+
+    /** Regions smaller than this are summed in a single thread */
+    private static final long CHECKSUM_MINIMUM = 64L * Fits.BLOCK_SIZE;
+
+    /** The largest region summed by one task when computing checksums */
+    private static final long CHECKSUM_CHUNK = 8192L * Fits.BLOCK_SIZE;
+
     /**
      * Calculate the Seaman-Pence 32-bit 1's complement checksum over the byte
-     * stream. The option to start from an intermediate checksum accumulated
-     * over another previous byte stream is not implemented. The implementation
-     * accumulates in two 64-bit integer values the two low-order and the two
-     * high-order bytes of adjacent 4-byte groups. A carry-over of bits is never
-     * done within the main loop (only once at the end at reduction to a 32-bit
-     * positive integer) since an overflow of a 64-bit value (signed, with
-     * maximum at 2^63-1) by summation of 16-bit values could only occur after
-     * adding approximately 140G short values (=2^47) (280GBytes) or more. We
-     * assume for now that this routine here is never called to swallow FITS
-     * files of that size or larger. by R J Mathar
+     * stream. Use a FitsChecksum to accumulate a checksum over data that is not
+     * available as a single array. by R J Mathar
      * 
      * @param data
      *            the byte sequence
      * @return the 32bit checksum in the range from 0 to 2^32-1
      * @see Checksum#CHECKSUM
+     * @see FitsChecksum
      * @since 2005-10-05
      */
     public static long checksum(final byte[] data) {
-        long hi = 0;
-        long lo = 0;
-        final int len = 2 * (data.length / 4);
-        // System.out.println(data.length + " bytes") ;
-        final int remain = data.length % 4;
-        /*
-         * a write(2) on Sparc/PA-RISC would write the MSB first, on Linux the
-         * LSB; by some kind of coincidence, we can stay with the byte order
-         * known from the original C version of the algorithm.
-         */
-        for (int i = 0; i < len; i += 2) {
-            /*
-             * The four bytes in this block handled by a single 'i' are each
-             * signed (-128 to 127) in Java and need to be masked indivdually to
-             * avoid sign extension /propagation.
-             */
-            hi += data[2 * i] << 8 & 0xff00L | data[2 * i + 1] & 0xffL;
-            lo += data[2 * i + 2] << 8 & 0xff00L | data[2 * i + 3] & 0xffL;
-        }
-
-        /*
-         * The following three cases actually cannot happen since FITS records
-         * are multiples of 2880 bytes.
-         */
-        if (remain >= 1) {
-            hi += data[2 * len] << 8 & 0xff00L;
-        }
-        if (remain >= 2) {
-            hi += data[2 * len + 1] & 0xffL;
-        }
-        if (remain >= 3) {
-            lo += data[2 * len + 2] << 8 & 0xff00L;
-        }
-
-        long hicarry = hi >>> 16;
-        long locarry = lo >>> 16;
-        while (hicarry != 0 || locarry != 0) {
-            hi = (hi & 0xffffL) + locarry;
-            lo = (lo & 0xffffL) + hicarry;
-            hicarry = hi >>> 16;
-            locarry = lo >>> 16;
-        }
-        return (hi << 16) + lo;
+        FitsChecksum sum = new FitsChecksum();
+        sum.update(data);
+        return sum.getValue();
     }
 
     /**
@@ -251,6 +226,96 @@ public class Fits {
         }
     }
 
+    /**
+     * Compute the checksum of a region of a file, e.g., the DATASUM of an HDU.
+     * If the file is a BufferedFile or MappedFile and an executor is given the
+     * region is split into 2880 byte aligned chunks which are mapped and summed
+     * in parallel and the partial sums combined. Otherwise the region is read
+     * serially. The file pointer is not changed.
+     * 
+     * @param in
+     *            The file.
+     * @param offset
+     *            The offset of the region in the file.
+     * @param length
+     *            The length of the region in bytes.
+     * @param executor
+     *            The executor which sums the chunks, or null to sum in the
+     *            calling thread. The library does not shut it down.
+     * @return The 32-bit checksum of the region.
+     */
+    public static long computeDatasum(RandomAccess in, final long offset, final long length, ExecutorService executor) throws IOException {
+        final FileChannel channel = getChannel(in);
+        if (executor == null || channel == null || length <= Fits.CHECKSUM_MINIMUM) {
+            return checksumRegion(in, offset, length).getValue();
+        }
+        // Seeking flushes any buffered writes so the channel sees them.
+        in.seek(in.getFilePointer());
+
+        // Use at least one chunk per processor.
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        long chunk = (length / parallelism + Fits.BLOCK_SIZE - 1) / Fits.BLOCK_SIZE * Fits.BLOCK_SIZE;
+        chunk = Math.min(chunk, Fits.CHECKSUM_CHUNK);
+
+        List<Callable<FitsChecksum>> tasks = new ArrayList<Callable<FitsChecksum>>();
+        for (long start = 0; start < length; start += chunk) {
+            final long first = offset + start;
+            final long size = Math.min(chunk, length - start);
+            tasks.add(new Callable<FitsChecksum>() {
+
+                @Override
+                public FitsChecksum call() throws IOException {
+                    FitsChecksum sum = new FitsChecksum();
+                    sum.update(channel.map(FileChannel.MapMode.READ_ONLY, first, size));
+                    return sum;
+                }
+            });
+        }
+
+        FitsChecksum sum = new FitsChecksum();
+        try {
+            for (Future<FitsChecksum> future : executor.invokeAll(tasks)) {
+                sum.combine(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted computing checksum", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error computing checksum", e.getCause());
+        }
+        return sum.getValue();
+    }
+
+    /** Compute the checksum of a file region by reading it serially */
+    private static FitsChecksum checksumRegion(RandomAccess in, long offset, long length) throws IOException {
+        FitsChecksum sum = new FitsChecksum();
+        long currentOffset = in.getFilePointer();
+        byte[] buf = new byte[(int) Math.min(length, 64 * Fits.BLOCK_SIZE)];
+        in.seek(offset);
+        long remaining = length;
+        while (remaining > 0) {
+            int n = (int) Math.min(buf.length, remaining);
+            in.readFully(buf, 0, n);
+            sum.update(buf, 0, n);
+            remaining -= n;
+        }
+        in.seek(currentOffset);
+        return sum;
+    }
+
+    /** Get the channel of a file, or null if it does not have one */
+    private static FileChannel getChannel(RandomAccess in) {
+        if (in instanceof MappedFile) {
+            return ((MappedFile) in).getChannel();
+        } else if (in instanceof BufferedFile) {
+            return ((BufferedFile) in).getChannel();
+        }
+        return null;
+    }
+
     /**
      * Create an HDU from the given Data.
      * 
@@ -312,39 +377,29 @@ public class Fits {
         hdr.addValue("CHECKSUM", "0000000000000000", doneAt);
 
         /*
-         * Convert the entire sequence of 2880 byte header cards into a byte
-         * array. The main benefit compared to the C implementations is that we
-         * do not need to worry about the particular byte order on machines
-         * (Linux/VAX/MIPS vs Hp-UX, Sparc...) supposed that the correct
-         * implementation is in the write() interface.
+         * The data and then the header are written through a checksum filter,
+         * so that the HDU is never copied into memory. The main benefit
+         * compared to the C implementations is that we do not need to worry
+         * about the particular byte order on machines (Linux/VAX/MIPS vs Hp-UX,
+         * Sparc...) supposed that the correct implementation is in the write()
+         * interface.
          */
-        ByteArrayOutputStream hduByteImage = new ByteArrayOutputStream();
-        BufferedDataOutputStream bdos = new BufferedDataOutputStream(hduByteImage);
-
-        // DATASUM keyword.
+        FitsChecksum datasum = new FitsChecksum();
+        BufferedDataOutputStream bdos = new BufferedDataOutputStream(new ChecksumOutputStream(datasum));
         hdu.getData().write(bdos);
         bdos.flush();
-        byte[] data = hduByteImage.toByteArray();
-        checksum(data);
-        hdu.write(new BufferedDataOutputStream(hduByteImage));
-        long csd = checksum(data);
-        hdu.getHeader().addValue("DATASUM", "" + csd, "Checksum of data");
-
-        // We already have the checsum of the data. Lets compute it for
-        // the header.
-        hduByteImage.reset();
-        hdu.getHeader().write(bdos);
+        long csd = datasum.getValue();
+        hdr.addValue("DATASUM", "" + csd, "Checksum of data");
+
+        // We already have the checksum of the data. Compute it for
+        // the header and add in the data.
+        FitsChecksum hdusum = new FitsChecksum();
+        bdos = new BufferedDataOutputStream(new ChecksumOutputStream(hdusum));
+        hdr.write(bdos);
         bdos.flush();
-        data = hduByteImage.toByteArray();
-
-        long csh = checksum(data);
+        hdusum.combine(datasum);
+        long cshdu = hdusum.getValue();
 
-        long cshdu = csh + csd;
-        // If we had a carry it should go into the
-        // beginning.
-        while ((cshdu & 0xFFFFFFFF00000000L) != 0) {
-            cshdu = (cshdu & 0xFFFFFFFFL) + 1;
-        }
         /*
          * This time we do not use a deleteKey() to ensure that the keyword is
          * replaced "in place". Note that the value of the checksum is actually
@@ -354,6 +409,57 @@ public class Fits {
         hdr.addValue("CHECKSUM", checksumEnc(cshdu, true), doneAt);
     }
 
+    /**
+     * Verify the CHECKSUM and DATASUM keywords of all the HDUs in a file. The
+     * data of each HDU is summed in parallel. HDUs without the keywords are not
+     * checked.
+     * 
+     * @param file
+     *            The FITS file.
+     * @return true if all of the checksums are valid.
+     */
+    public static boolean verifyChecksums(File file) throws FitsException, IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        BufferedFile in = new BufferedFile(file, "r");
+        try {
+            boolean valid = true;
+            for (int hdu = 0;; hdu += 1) {
+                long offset = in.getFilePointer();
+                Header hdr = Header.readHeader(in);
+                if (hdr == null) {
+                    return valid;
+                }
+                long headerSize = in.getFilePointer() - offset;
+                long dataSize = hdr.getDataSize();
+                long datasum = computeDatasum(in, offset + headerSize, dataSize, executor);
+
+                String expected = hdr.getStringValue("DATASUM");
+                if (expected != null) {
+                    try {
+                        if (Long.parseLong(expected.trim()) != datasum) {
+                            Fits.LOG.warning("DATASUM of HDU " + hdu + " is " + datasum + " not " + expected.trim());
+                            valid = false;
+                        }
+                    } catch (NumberFormatException e) {
+                        Fits.LOG.warning("DATASUM of HDU " + hdu + " is not a number: " + expected);
+                        valid = false;
+                    }
+                }
+                if (hdr.containsKey("CHECKSUM")) {
+                    long checksum = FitsChecksum.add(checksumRegion(in, offset, headerSize).getValue(), datasum);
+                    if (checksum != 0xFFFFFFFFL) {
+                        Fits.LOG.warning("CHECKSUM of HDU " + hdu + " is not valid");
+                        valid = false;
+                    }
+                }
+                in.seek(offset + headerSize + dataSize);
+            }
+        } finally {
+            executor.shutdown();
+            in.close();
+        }
+    }
+
     /** Indicate the version of these classes */
     public static String version() {
         Properties props = new Properties();
@@ -717,9 +823,13 @@ public class Fits {
             permissions += "w";
         }
         try {
-            this.dataStr = new BufferedFile(f, permissions);
+            if (FitsFactory.getUseMappedFiles()) {
+                this.dataStr = new MappedFile(f, permissions);
+            } else {
+                this.dataStr = new BufferedFile(f, permissions);
+            }
 
-            ((BufferedFile) this.dataStr).seek(0);
+            ((RandomAccess) this.dataStr).seek(0);
         } catch (IOException e) {
             throw new FitsException("Unable to open file " + f.getPath());
         }
@@ -977,6 +1087,8 @@ public class Fits {
         try {
             if (obs instanceof BufferedFile) {
                 ((BufferedFile) obs).setLength(((BufferedFile) obs).getFilePointer());
+            } else if (obs instanceof MappedFile) {
+                ((MappedFile) obs).setLength(((MappedFile) obs).getFilePointer());
             }
         } catch (IOException e) {
             // Ignore problems...
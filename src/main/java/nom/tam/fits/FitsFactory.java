@@ -31,6 +31,10 @@ package nom.tam.fits;
  * #L%
  */
 
+import java.util.concurrent.ExecutorService;
+
+import nom.tam.image.TileCache;
+
 /**
  * This class contains the code which associates particular FITS types with
  * header and data configurations. It comprises a set of Factory methods which
@@ -51,6 +55,14 @@ public class FitsFactory {
 
     private static boolean longStringsEnabled = false;
 
+    private static boolean useMappedFiles = false;
+
+    private static boolean useBufferKernels = false;
+
+    private static ExecutorService tableExecutor = null;
+
+    private static TileCache tileCache = null;
+
     /**
      * Given a Header return an appropriate datum.
      */
@@ -91,11 +103,31 @@ public class FitsFactory {
         return FitsFactory.useAsciiTables;
     }
 
+    /** The executor used to transpose binary table rows, or null */
+    public static ExecutorService getTableExecutor() {
+        return FitsFactory.tableExecutor;
+    }
+
+    /** The cache of image blocks used by tilers, or null */
+    public static TileCache getTileCache() {
+        return FitsFactory.tileCache;
+    }
+
+    /** Do images return a flat java.nio.Buffer as their kernel */
+    public static boolean getUseBufferKernels() {
+        return FitsFactory.useBufferKernels;
+    }
+
     /** Are we processing HIERARCH style keywords */
     public static boolean getUseHierarch() {
         return FitsFactory.useHierarch;
     }
 
+    /** Are files opened by name memory mapped rather than buffered */
+    public static boolean getUseMappedFiles() {
+        return FitsFactory.useMappedFiles;
+    }
+
     /**
      * Given Header and data objects return the appropriate type of HDU.
      */
@@ -186,8 +218,44 @@ public class FitsFactory {
         FitsFactory.useAsciiTables = flag;
     }
 
+    /**
+     * Set an executor used to convert between the rows and columns of large
+     * binary tables in parallel when they are read and written. The library
+     * does not shut it down. A null executor, the default, does the work in the
+     * calling thread.
+     */
+    public static void setTableExecutor(ExecutorService executor) {
+        FitsFactory.tableExecutor = executor;
+    }
+
+    /**
+     * Set a cache of decoded image blocks shared by the tilers of images, and
+     * of tile-compressed images, read from files afterwards. A null cache, the
+     * default, disables caching.
+     */
+    public static void setTileCache(TileCache cache) {
+        FitsFactory.tileCache = cache;
+    }
+
+    /**
+     * Enable/Disable returning images as flat, typed java.nio.Buffers (see
+     * ImageData.getBuffer()) rather than multi-dimensional arrays from
+     * getData() and getKernel(). Disabled by default.
+     */
+    public static void setUseBufferKernels(boolean flag) {
+        FitsFactory.useBufferKernels = flag;
+    }
+
     /** Enable/Disable hierarchical keyword processing. */
     public static void setUseHierarch(boolean flag) {
         FitsFactory.useHierarch = flag;
     }
+
+    /**
+     * Enable/Disable the use of memory mapped files (MappedFile) rather than
+     * BufferedFile when a Fits object is opened on a file. Disabled by default.
+     */
+    public static void setUseMappedFiles(boolean flag) {
+        FitsFactory.useMappedFiles = flag;
+    }
 }
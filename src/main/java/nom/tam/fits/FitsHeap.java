@@ -31,32 +31,44 @@ package nom.tam.fits;
  * #L%
  */
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
-import nom.tam.util.ArrayFuncs;
-import nom.tam.util.BufferedDataInputStream;
-import nom.tam.util.BufferedDataOutputStream;
 import nom.tam.util.RandomAccess;
 
 /**
  * This class supports the FITS heap. This is currently used for variable length
- * columns in binary tables.
+ * columns in binary tables. The heap is held in segments of at most
+ * {@link #SEGMENT_SIZE} bytes addressed by long offsets, so it can grow beyond
+ * 2 GB without ever copying what is already stored. Data is decoded straight
+ * from the segments at the requested offset.
  */
 public class FitsHeap implements FitsElement {
 
+    /** The log2 of the size of a full segment */
+    private static final int SEGMENT_SHIFT = 20;
+
+    /** The size of a full segment */
+    static final int SEGMENT_SIZE = 1 << FitsHeap.SEGMENT_SHIFT;
+
+    private static final int SEGMENT_MASK = FitsHeap.SEGMENT_SIZE - 1;
+
+    /** The smallest segment allocated */
+    private static final int MIN_SEGMENT_SIZE = 16384;
+
     /**
-     * The storage buffer
+     * The storage segments. All but the last are full sized, the last one may
+     * be smaller and is replaced when it needs to grow.
      */
-    private byte[] heap;
+    private ByteBuffer[] segments = new ByteBuffer[0];
 
     /**
-     * The current used size of the buffer <= heap.length
+     * The current used size of the heap
      */
-    private int heapSize;
+    private long heapSize;
 
     /**
      * The offset within a file where the heap begins
@@ -73,23 +85,10 @@ public class FitsHeap implements FitsElement {
      */
     private ArrayDataInput input;
 
-    /**
-     * Our current offset into the heap. When we read from the heap we use a
-     * byte array input stream. So long as we continue to read further into the
-     * heap, we can continue to use the same stream, but we need to recreate the
-     * stream whenever we skip backwards.
-     */
-    private int heapOffset = 0;
-
-    /**
-     * A stream used to read the heap data
-     */
-    private BufferedDataInputStream bstr;
-
     /**
      * Create a heap of a given size.
      */
-    FitsHeap(int size) {
+    FitsHeap(long size) {
         this.heapSize = size;
         if (size < 0) {
             throw new IllegalArgumentException("Illegal size for FITS heap:" + size);
@@ -97,30 +96,48 @@ public class FitsHeap implements FitsElement {
     }
 
     private void allocate() {
-        if (this.heap == null) {
-            this.heap = new byte[this.heapSize];
+        ensureCapacity(this.heapSize);
+    }
+
+    /**
+     * Make sure there are segments for the given number of bytes.
+     */
+    private void ensureCapacity(long capacity) {
+        int count = (int) (capacity + FitsHeap.SEGMENT_MASK >>> FitsHeap.SEGMENT_SHIFT);
+        int last = this.segments.length - 1;
+        if (last >= 0 && this.segments[last].capacity() < FitsHeap.SEGMENT_SIZE
+                && (count > this.segments.length || capacity > ((long) last << FitsHeap.SEGMENT_SHIFT) + this.segments[last].capacity())) {
+            // grow the short last segment, the only one ever copied
+            long need = Math.min(capacity - ((long) last << FitsHeap.SEGMENT_SHIFT), FitsHeap.SEGMENT_SIZE);
+            ByteBuffer grown = newSegment((int) Math.max(need, Math.min(2L * this.segments[last].capacity(), FitsHeap.SEGMENT_SIZE)));
+            System.arraycopy(this.segments[last].array(), 0, grown.array(), 0, this.segments[last].capacity());
+            this.segments[last] = grown;
         }
+        if (count > this.segments.length) {
+            int old = this.segments.length;
+            this.segments = Arrays.copyOf(this.segments, count);
+            for (int i = old; i < count; i += 1) {
+                long remaining = capacity - ((long) i << FitsHeap.SEGMENT_SHIFT);
+                this.segments[i] = newSegment((int) Math.min(remaining, FitsHeap.SEGMENT_SIZE));
+            }
+        }
+    }
+
+    private static ByteBuffer newSegment(int size) {
+        return ByteBuffer.wrap(new byte[Math.max(size, FitsHeap.MIN_SEGMENT_SIZE)]);
     }
 
     /**
      * Check if the Heap can accommodate a given requirement. If not expand the
      * heap.
      */
-    void expandHeap(int need) {
-
-        // Invalidate any existing input stream to the heap.
-        this.bstr = null;
+    void expandHeap(long need) {
         allocate();
-
-        if (this.heapSize + need > this.heap.length) {
+        long capacity = this.heapSize + need;
+        int last = this.segments.length - 1;
+        if (last < 0 || capacity > ((long) last << FitsHeap.SEGMENT_SHIFT) + this.segments[last].capacity()) {
             this.expanded = true;
-            int newlen = (this.heapSize + need) * 2;
-            if (newlen < 16384) {
-                newlen = 16384;
-            }
-            byte[] newHeap = new byte[newlen];
-            System.arraycopy(this.heap, 0, newHeap, 0, this.heapSize);
-            this.heap = newHeap;
+            ensureCapacity(capacity);
         }
     }
 
@@ -131,24 +148,179 @@ public class FitsHeap implements FitsElement {
      *            The offset at which the data begins.
      * @param array
      *            The array to be extracted.
+     * @deprecated Use {@link #getData(long, Object)}, which can reach data
+     *             beyond 2 GB.
      */
+    @Deprecated
     public void getData(int offset, Object array) throws FitsException {
+        getData((long) offset, array);
+    }
 
+    /**
+     * Get data from the heap.
+     * 
+     * @param offset
+     *            The offset at which the data begins.
+     * @param array
+     *            The array to be extracted.
+     */
+    public void getData(long offset, Object array) throws FitsException {
         allocate();
         try {
-            // Can we reuse the existing byte stream?
-            if (this.bstr == null || this.heapOffset > offset) {
-                this.heapOffset = 0;
-                this.bstr = new BufferedDataInputStream(new ByteArrayInputStream(this.heap));
+            if (offset < 0 || getData(offset, array, this.heapSize) > this.heapSize) {
+                throw new IndexOutOfBoundsException();
             }
+        } catch (IndexOutOfBoundsException e) {
+            throw new FitsException("Error decoding heap area at offset=" + offset + ": beyond the heap size " + this.heapSize);
+        } catch (IllegalArgumentException e) {
+            throw new FitsException("Error decoding heap area at offset=" + offset + ": " + e.getMessage());
+        }
+    }
 
-            this.bstr.skipBytes(offset - this.heapOffset);
-            this.heapOffset = offset;
-            this.heapOffset += this.bstr.readLArray(array);
+    /**
+     * Decode an array starting at a given offset.
+     * 
+     * @return the offset following the array.
+     */
+    private long getData(long offset, Object array, long limit) {
+        if (array instanceof Object[]) {
+            for (Object element : (Object[]) array) {
+                offset = getData(offset, element, limit);
+            }
+            return offset;
+        }
+        int length = java.lang.reflect.Array.getLength(array);
+        int elementSize = FitsHeap.elementSize(array);
+        long end = offset + (long) length * elementSize;
+        if (end > limit) {
+            throw new IndexOutOfBoundsException();
+        } else if (length == 0) {
+            return end;
+        }
+        ByteBuffer segment = this.segments[(int) (offset >>> FitsHeap.SEGMENT_SHIFT)];
+        int pos = (int) (offset & FitsHeap.SEGMENT_MASK);
+        if (pos + (long) length * elementSize > segment.capacity()) {
+            // The array crosses into the next segment.
+            getSplitData(offset, array, length, elementSize);
+            return end;
+        }
+        if (array instanceof byte[]) {
+            System.arraycopy(segment.array(), pos, array, 0, length);
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getShort(pos + 2 * i);
+            }
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getInt(pos + 4 * i);
+            }
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getLong(pos + 8 * i);
+            }
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getFloat(pos + 4 * i);
+            }
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getDouble(pos + 8 * i);
+            }
+        } else if (array instanceof char[]) {
+            char[] a = (char[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.getChar(pos + 2 * i);
+            }
+        } else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            for (int i = 0; i < length; i += 1) {
+                a[i] = segment.get(pos + i) == 1;
+            }
+        }
+        return end;
+    }
 
-        } catch (IOException e) {
-            throw new FitsException("Error decoding heap area at offset=" + offset + ".  Exception: Exception " + e);
+    /**
+     * The size in the heap of the elements of a primitive array.
+     */
+    private static int elementSize(Object array) {
+        if (array instanceof byte[] || array instanceof boolean[]) {
+            return 1;
+        } else if (array instanceof short[] || array instanceof char[]) {
+            return 2;
+        } else if (array instanceof int[] || array instanceof float[]) {
+            return 4;
+        } else if (array instanceof long[] || array instanceof double[]) {
+            return 8;
         }
+        throw new IllegalArgumentException("Invalid type for heap data: " + array.getClass().getName());
+    }
+
+    /**
+     * Decode an array which crosses a segment boundary element by element.
+     */
+    private void getSplitData(long offset, Object array, int length, int elementSize) {
+        for (int i = 0; i < length; i += 1) {
+            long bits = getBits(offset, elementSize);
+            offset += elementSize;
+            if (array instanceof byte[]) {
+                ((byte[]) array)[i] = (byte) bits;
+            } else if (array instanceof short[]) {
+                ((short[]) array)[i] = (short) bits;
+            } else if (array instanceof int[]) {
+                ((int[]) array)[i] = (int) bits;
+            } else if (array instanceof long[]) {
+                ((long[]) array)[i] = bits;
+            } else if (array instanceof float[]) {
+                ((float[]) array)[i] = Float.intBitsToFloat((int) bits);
+            } else if (array instanceof double[]) {
+                ((double[]) array)[i] = Double.longBitsToDouble(bits);
+            } else if (array instanceof char[]) {
+                ((char[]) array)[i] = (char) bits;
+            } else if (array instanceof boolean[]) {
+                ((boolean[]) array)[i] = bits == 1;
+            }
+        }
+    }
+
+    /**
+     * Assemble a big-endian value of up to 8 bytes which may span segments.
+     */
+    private long getBits(long offset, int size) {
+        long bits = 0;
+        for (int i = 0; i < size; i += 1) {
+            long at = offset + i;
+            bits = bits << 8 | this.segments[(int) (at >>> FitsHeap.SEGMENT_SHIFT)].get((int) (at & FitsHeap.SEGMENT_MASK)) & 0xFF;
+        }
+        return bits;
+    }
+
+    /**
+     * Store a big-endian value of up to 8 bytes which may span segments.
+     */
+    private void putBits(long offset, long bits, int size) {
+        for (int i = size - 1; i >= 0; i -= 1) {
+            long at = offset + i;
+            this.segments[(int) (at >>> FitsHeap.SEGMENT_SHIFT)].put((int) (at & FitsHeap.SEGMENT_MASK), (byte) bits);
+            bits >>>= 8;
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated for the heap, which may exceed its
+     * size.
+     */
+    long getCapacity() {
+        long capacity = 0;
+        for (ByteBuffer segment : this.segments) {
+            capacity += segment.capacity();
+        }
+        return capacity;
     }
 
     /**
@@ -164,36 +336,156 @@ public class FitsHeap implements FitsElement {
      */
     @Override
     public long getSize() {
-        return size();
+        return this.heapSize;
     }
 
     /**
      * Add some data to the heap.
+     * 
+     * @return the offset of the data in the heap.
      */
-    int putData(Object data) throws FitsException {
+    long putData(Object data) throws FitsException {
+        long size = FitsHeap.encodedSize(data);
+        expandHeap(size);
+        long offset = this.heapSize;
+        this.heapSize = encode(offset, data);
+        return offset;
+    }
 
-        long lsize = ArrayFuncs.computeLSize(data);
-        if (lsize > Integer.MAX_VALUE) {
-            throw new FitsException("FITS Heap > 2 G");
+    /**
+     * Add the data for a set of cells to the heap, growing it only once.
+     * 
+     * @return the offset in the heap of each cell.
+     */
+    long[] putData(Object[] cells) throws FitsException {
+        long size = 0;
+        for (Object cell : cells) {
+            size += FitsHeap.encodedSize(cell);
         }
-        int size = (int) lsize;
         expandHeap(size);
-        ByteArrayOutputStream bo = new ByteArrayOutputStream(size);
+        long[] offsets = new long[cells.length];
+        for (int i = 0; i < cells.length; i += 1) {
+            offsets[i] = this.heapSize;
+            this.heapSize = encode(this.heapSize, cells[i]);
+        }
+        return offsets;
+    }
 
-        try {
-            BufferedDataOutputStream o = new BufferedDataOutputStream(bo);
-            o.writeArray(data);
-            o.flush();
-            o.close();
-        } catch (IOException e) {
-            throw new FitsException("Unable to write variable column length data");
+    /**
+     * The number of bytes an array will occupy in the heap.
+     */
+    static long encodedSize(Object data) throws FitsException {
+        if (data instanceof Object[]) {
+            long size = 0;
+            for (Object element : (Object[]) data) {
+                size += FitsHeap.encodedSize(element);
+            }
+            return size;
+        } else if (data instanceof String) {
+            return ((String) data).length();
+        } else if (data == null || !data.getClass().isArray()) {
+            throw new FitsException("Invalid type for heap data: " + (data == null ? "null" : data.getClass().getName()));
         }
+        return (long) java.lang.reflect.Array.getLength(data) * FitsHeap.elementSize(data);
+    }
 
-        System.arraycopy(bo.toByteArray(), 0, this.heap, this.heapSize, size);
-        int oldOffset = this.heapSize;
-        this.heapSize += size;
+    /**
+     * Write an array into the heap in big-endian order. The heap must already
+     * have room for it.
+     * 
+     * @return the offset following the data.
+     */
+    private long encode(long offset, Object data) {
+        if (data instanceof Object[]) {
+            for (Object element : (Object[]) data) {
+                offset = encode(offset, element);
+            }
+            return offset;
+        } else if (data instanceof String) {
+            // Strings are written as their low order bytes.
+            String str = (String) data;
+            for (int i = 0; i < str.length(); i += 1) {
+                putBits(offset + i, str.charAt(i), 1);
+            }
+            return offset + str.length();
+        }
+        int length = java.lang.reflect.Array.getLength(data);
+        int elementSize = FitsHeap.elementSize(data);
+        long end = offset + (long) length * elementSize;
+        if (length == 0) {
+            return end;
+        }
+        ByteBuffer segment = this.segments[(int) (offset >>> FitsHeap.SEGMENT_SHIFT)];
+        int pos = (int) (offset & FitsHeap.SEGMENT_MASK);
+        if (pos + (long) length * elementSize > segment.capacity()) {
+            encodeSplit(offset, data, length, elementSize);
+        } else if (data instanceof byte[]) {
+            System.arraycopy(data, 0, segment.array(), pos, length);
+        } else if (data instanceof short[]) {
+            short[] a = (short[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putShort(pos + 2 * i, a[i]);
+            }
+        } else if (data instanceof int[]) {
+            int[] a = (int[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putInt(pos + 4 * i, a[i]);
+            }
+        } else if (data instanceof long[]) {
+            long[] a = (long[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putLong(pos + 8 * i, a[i]);
+            }
+        } else if (data instanceof float[]) {
+            float[] a = (float[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putFloat(pos + 4 * i, a[i]);
+            }
+        } else if (data instanceof double[]) {
+            double[] a = (double[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putDouble(pos + 8 * i, a[i]);
+            }
+        } else if (data instanceof char[]) {
+            char[] a = (char[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.putChar(pos + 2 * i, a[i]);
+            }
+        } else if (data instanceof boolean[]) {
+            boolean[] a = (boolean[]) data;
+            for (int i = 0; i < length; i += 1) {
+                segment.put(pos + i, (byte) (a[i] ? 1 : 0));
+            }
+        }
+        return end;
+    }
 
-        return oldOffset;
+    /**
+     * Write an array which crosses a segment boundary element by element.
+     */
+    private void encodeSplit(long offset, Object data, int length, int elementSize) {
+        for (int i = 0; i < length; i += 1) {
+            long bits = 0;
+            if (data instanceof byte[]) {
+                bits = ((byte[]) data)[i];
+            } else if (data instanceof short[]) {
+                bits = ((short[]) data)[i];
+            } else if (data instanceof int[]) {
+                bits = ((int[]) data)[i];
+            } else if (data instanceof long[]) {
+                bits = ((long[]) data)[i];
+            } else if (data instanceof float[]) {
+                bits = Float.floatToRawIntBits(((float[]) data)[i]);
+            } else if (data instanceof double[]) {
+                bits = Double.doubleToRawLongBits(((double[]) data)[i]);
+            } else if (data instanceof char[]) {
+                bits = ((char[]) data)[i];
+            } else if (data instanceof boolean[]) {
+                bits = ((boolean[]) data)[i] ? 1 : 0;
+            }
+            putBits(offset, bits, elementSize);
+            offset += elementSize;
+        }
     }
 
     /**
@@ -210,13 +502,16 @@ public class FitsHeap implements FitsElement {
         if (this.heapSize > 0) {
             allocate();
             try {
-                str.read(this.heap, 0, this.heapSize);
+                long remaining = this.heapSize;
+                for (int i = 0; remaining > 0; i += 1) {
+                    int n = (int) Math.min(remaining, this.segments[i].capacity());
+                    str.readFully(this.segments[i].array(), 0, n);
+                    remaining -= n;
+                }
             } catch (IOException e) {
                 throw new FitsException("Error reading heap:" + e);
             }
         }
-
-        this.bstr = null;
     }
 
     @Override
@@ -254,9 +549,13 @@ public class FitsHeap implements FitsElement {
 
     /**
      * Return the size of the Heap
+     * 
+     * @deprecated May silently underestimate the size if the heap is larger
+     *             than 2 GB. Use {@link #getSize()}.
      */
+    @Deprecated
     public int size() {
-        return this.heapSize;
+        return (int) getSize();
     }
 
     /**
@@ -266,7 +565,12 @@ public class FitsHeap implements FitsElement {
     public void write(ArrayDataOutput str) throws FitsException {
         allocate();
         try {
-            str.write(this.heap, 0, this.heapSize);
+            long remaining = this.heapSize;
+            for (int i = 0; remaining > 0; i += 1) {
+                int n = (int) Math.min(remaining, this.segments[i].capacity());
+                str.write(this.segments[i].array(), 0, n);
+                remaining -= n;
+            }
         } catch (IOException e) {
             throw new FitsException("Error writing heap:" + e);
         }
@@ -0,0 +1,499 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nom.tam.util.RandomAccess;
+
+/**
+ * An index of the HDUs in a FITS file. The index is built by reading only the
+ * headers of the file, seeking past the data of each HDU, and records where
+ * each HDU starts, the sizes of its header and data and its EXTNAME and EXTVER.
+ * An HDU may then be read directly given its number or name, without reading
+ * any other HDU, and its data is only read when it is needed.
+ * <p>
+ * The index is serializable so that it may be saved and used when the file is
+ * opened again. The file is not saved with the index and must be given using
+ * setInput() before HDUs are read from a deserialized index. The open() method
+ * keeps the index in a sidecar file (the FITS file name with ".fidx" appended)
+ * which is used as long as the length and modification time of the FITS file
+ * are unchanged. Sidecar files use a simple versioned binary format rather than
+ * Java serialization, so reading one never creates arbitrary objects.
+ */
+public class FitsIndex implements Serializable {
+
+    /** The location and identity of a single HDU */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long headerOffset;
+
+        private final long headerSize;
+
+        private final long dataSize;
+
+        private final String extname;
+
+        private final int extver;
+
+        /** The values of the keywords saved in the index */
+        private final HashMap<String, String> keywords;
+
+        Entry(long headerOffset, long headerSize, long dataSize, String extname, int extver, HashMap<String, String> keywords) {
+            this.headerOffset = headerOffset;
+            this.headerSize = headerSize;
+            this.dataSize = dataSize;
+            this.extname = extname;
+            this.extver = extver;
+            this.keywords = keywords;
+        }
+
+        /** Get the offset of the data in the file */
+        public long getDataOffset() {
+            return this.headerOffset + this.headerSize;
+        }
+
+        /** Get the size of the data including padding */
+        public long getDataSize() {
+            return this.dataSize;
+        }
+
+        /** Get the EXTNAME of the HDU, or null if it has none */
+        public String getExtname() {
+            return this.extname;
+        }
+
+        /** Get the EXTVER of the HDU (1 if it has none) */
+        public int getExtver() {
+            return this.extver;
+        }
+
+        /**
+         * Get the value of a keyword that was saved in the index.
+         * 
+         * @return The value or null if the keyword was not saved or was not in
+         *         the header.
+         */
+        public String getKeyword(String key) {
+            return this.keywords.get(key.trim().toUpperCase());
+        }
+
+        /** Get the offset of the header in the file */
+        public long getHeaderOffset() {
+            return this.headerOffset;
+        }
+
+        /** Get the size of the header including padding */
+        public long getHeaderSize() {
+            return this.headerSize;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = Logger.getLogger(FitsIndex.class.getName());
+
+    /** The suffix of index sidecar files */
+    public static final String SIDECAR_SUFFIX = ".fidx";
+
+    /** The first bytes of a sidecar file, "FIDX" */
+    private static final int SIDECAR_MAGIC = 0x46494458;
+
+    /** The version of the sidecar format */
+    private static final int SIDECAR_VERSION = 1;
+
+    /** The largest number of HDUs or keywords accepted from a sidecar */
+    private static final int SIDECAR_MAX_COUNT = 1 << 24;
+
+    /** Get the sidecar file in which the index of a FITS file is saved */
+    public static File getSidecar(File file) {
+        return new File(file.getPath() + FitsIndex.SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Get the index of a FITS file, using the index saved in its sidecar file
+     * if that is still valid. Otherwise the headers are scanned and the new
+     * index is saved. Failures to read or write the sidecar file are logged but
+     * otherwise ignored.
+     * 
+     * @param file
+     *            The FITS file.
+     * @param input
+     *            The FITS file opened for reading.
+     * @param keywords
+     *            Keywords whose values should be kept in the index.
+     */
+    public static FitsIndex open(File file, RandomAccess input, String... keywords) throws FitsException, IOException {
+        File sidecar = FitsIndex.getSidecar(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        FitsIndex index = FitsIndex.readSidecar(sidecar);
+        if (index != null && index.fileLength == length && index.lastModified == lastModified && Arrays.equals(index.keywords, FitsIndex.upperCase(keywords))) {
+            index.input = input;
+            return index;
+        }
+
+        index = new FitsIndex(input, keywords);
+        index.fileLength = length;
+        index.lastModified = lastModified;
+        FitsIndex.writeSidecar(index, sidecar);
+        return index;
+    }
+
+    /** Read a count from a sidecar, checking that it is plausible */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > FitsIndex.SIDECAR_MAX_COUNT) {
+            throw new IOException("Invalid count in FITS index: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Read a saved index, or return null if it cannot be read or is not
+     * consistent.
+     */
+    private static FitsIndex readSidecar(File sidecar) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            try {
+                if (in.readInt() != FitsIndex.SIDECAR_MAGIC || in.readInt() != FitsIndex.SIDECAR_VERSION) {
+                    throw new IOException("Not a FITS index of version " + FitsIndex.SIDECAR_VERSION);
+                }
+                long fileLength = in.readLong();
+                long lastModified = in.readLong();
+                String[] keywords = new String[FitsIndex.readCount(in)];
+                for (int i = 0; i < keywords.length; i += 1) {
+                    keywords[i] = in.readUTF();
+                }
+                FitsIndex index = new FitsIndex(keywords);
+                index.fileLength = fileLength;
+                index.lastModified = lastModified;
+                int nEntries = FitsIndex.readCount(in);
+                long end = 0;
+                for (int n = 0; n < nEntries; n += 1) {
+                    long headerOffset = in.readLong();
+                    long headerSize = in.readLong();
+                    long dataSize = in.readLong();
+                    if (headerOffset != end || headerSize <= 0 || dataSize < 0) {
+                        throw new IOException("Invalid offsets for HDU " + n + " in FITS index");
+                    }
+                    end = headerOffset + headerSize + dataSize;
+                    String extname = in.readBoolean() ? in.readUTF() : null;
+                    int extver = in.readInt();
+                    HashMap<String, String> values = new HashMap<String, String>();
+                    for (int i = FitsIndex.readCount(in); i > 0; i -= 1) {
+                        values.put(in.readUTF(), in.readUTF());
+                    }
+                    index.add(new Entry(headerOffset, headerSize, dataSize, extname, extver, values));
+                }
+                if (in.read() >= 0) {
+                    throw new IOException("Unexpected data after FITS index");
+                }
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            FitsIndex.LOG.log(Level.WARNING, "Ignoring unreadable FITS index " + sidecar, e);
+            return null;
+        }
+    }
+
+    /** Get the keyword names in upper case */
+    private static String[] upperCase(String[] keywords) {
+        String[] upper = new String[keywords.length];
+        for (int i = 0; i < keywords.length; i += 1) {
+            upper[i] = keywords[i].trim().toUpperCase();
+        }
+        return upper;
+    }
+
+    /**
+     * Save an index. It is written to a temporary file first so that readers
+     * never see a partial index.
+     */
+    private static void writeSidecar(FitsIndex index, File sidecar) {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FitsIndex.SIDECAR_MAGIC);
+                out.writeInt(FitsIndex.SIDECAR_VERSION);
+                out.writeLong(index.fileLength);
+                out.writeLong(index.lastModified);
+                out.writeInt(index.keywords.length);
+                for (String key : index.keywords) {
+                    out.writeUTF(key);
+                }
+                out.writeInt(index.entries.size());
+                for (Entry entry : index.entries) {
+                    out.writeLong(entry.headerOffset);
+                    out.writeLong(entry.headerSize);
+                    out.writeLong(entry.dataSize);
+                    out.writeBoolean(entry.extname != null);
+                    if (entry.extname != null) {
+                        out.writeUTF(entry.extname);
+                    }
+                    out.writeInt(entry.extver);
+                    out.writeInt(entry.keywords.size());
+                    for (Map.Entry<String, String> value : entry.keywords.entrySet()) {
+                        out.writeUTF(value.getKey());
+                        out.writeUTF(value.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            FitsIndex.LOG.log(Level.WARNING, "Unable to save FITS index " + sidecar, e);
+            tmp.delete();
+        }
+    }
+
+    /** The key used to look up an HDU by name and version */
+    private static String key(String extname, int extver) {
+        return extname.trim().toUpperCase() + ";" + extver;
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /** The index of the first HDU with each name */
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+    /** The index of the HDU with each name and version */
+    private final Map<String, Integer> versions = new HashMap<String, Integer>();
+
+    /** The keywords whose values are kept for each HDU */
+    private final String[] keywords;
+
+    /** The length and modification time of the file when it was indexed */
+    private long fileLength = -1;
+
+    private long lastModified = -1;
+
+    /** The file the HDUs are read from */
+    private transient RandomAccess input;
+
+    /**
+     * Build the index of a FITS file by scanning its headers. The position in
+     * the file is not changed.
+     * 
+     * @param input
+     *            The FITS file.
+     * @throws FitsException
+     *             if a header is invalid.
+     */
+    public FitsIndex(RandomAccess input) throws FitsException, IOException {
+        this(input, new String[0]);
+    }
+
+    /** Create an empty index, to be filled from a sidecar file */
+    private FitsIndex(String[] keywords) {
+        this.keywords = keywords;
+    }
+
+    /**
+     * Build the index of a FITS file by scanning its headers, keeping the
+     * values of the given keywords.
+     * 
+     * @param input
+     *            The FITS file.
+     * @param keywords
+     *            Keywords whose values should be kept in the index.
+     * @throws FitsException
+     *             if a header is invalid.
+     */
+    public FitsIndex(RandomAccess input, String... keywords) throws FitsException, IOException {
+        this.input = input;
+        this.keywords = FitsIndex.upperCase(keywords);
+        long currentOffset = input.getFilePointer();
+        try {
+            input.seek(0);
+            while (true) {
+                long offset = input.getFilePointer();
+                Header hdr;
+                try {
+                    hdr = Header.readHeader(input);
+                } catch (EOFException e) {
+                    if (FitsFactory.getAllowTerminalJunk() && e.getCause() instanceof TruncatedFileException && !this.entries.isEmpty()) {
+                        break;
+                    }
+                    throw e;
+                }
+                if (hdr == null) {
+                    break;
+                }
+                long headerSize = input.getFilePointer() - offset;
+                HashMap<String, String> values = new HashMap<String, String>();
+                for (String key : this.keywords) {
+                    HeaderCard card = hdr.findCard(key);
+                    if (card != null && card.getValue() != null) {
+                        values.put(key, card.getValue());
+                    }
+                }
+                add(new Entry(offset, headerSize, hdr.getDataSize(), hdr.getStringValue("EXTNAME"), hdr.getIntValue("EXTVER", 1), values));
+                input.seek(offset + headerSize + hdr.getDataSize());
+            }
+        } finally {
+            input.seek(currentOffset);
+        }
+    }
+
+    /** Add an HDU to the index */
+    private void add(Entry entry) {
+        int n = this.entries.size();
+        this.entries.add(entry);
+        if (entry.extname != null) {
+            String name = entry.extname.trim().toUpperCase();
+            if (!this.names.containsKey(name)) {
+                this.names.put(name, n);
+            }
+            String key = FitsIndex.key(entry.extname, entry.extver);
+            if (!this.versions.containsKey(key)) {
+                this.versions.put(key, n);
+            }
+        }
+    }
+
+    /**
+     * Get the entry for an HDU.
+     * 
+     * @param n
+     *            The HDU number (the primary HDU is 0).
+     */
+    public Entry getEntry(int n) {
+        return this.entries.get(n);
+    }
+
+    /**
+     * Read an HDU. Only the header is read immediately; the data is read when
+     * it is used.
+     * 
+     * @param n
+     *            The HDU number (the primary HDU is 0).
+     * @return The HDU or null if there is no such HDU.
+     */
+    public BasicHDU getHDU(int n) throws FitsException, IOException {
+        if (n < 0 || n >= this.entries.size()) {
+            return null;
+        }
+        if (this.input == null) {
+            throw new FitsException("No input for FITS index");
+        }
+        this.input.seek(this.entries.get(n).headerOffset);
+        Header hdr = Header.readHeader(this.input);
+        if (hdr == null) {
+            throw new FitsException("No HDU found at offset " + this.entries.get(n).headerOffset);
+        }
+        Data datum = hdr.makeData();
+        datum.read(this.input);
+        return FitsFactory.HDUFactory(hdr, datum);
+    }
+
+    /**
+     * Read the first HDU with the given EXTNAME.
+     * 
+     * @return The HDU or null if there is no such HDU.
+     */
+    public BasicHDU getHDU(String extname) throws FitsException, IOException {
+        return getHDU(indexOf(extname));
+    }
+
+    /**
+     * Read the HDU with the given EXTNAME and EXTVER.
+     * 
+     * @return The HDU or null if there is no such HDU.
+     */
+    public BasicHDU getHDU(String extname, int extver) throws FitsException, IOException {
+        return getHDU(indexOf(extname, extver));
+    }
+
+    /**
+     * Get the number of the first HDU with the given EXTNAME. Names are
+     * compared ignoring case and trailing blanks.
+     * 
+     * @return The HDU number or -1 if there is no such HDU.
+     */
+    public int indexOf(String extname) {
+        Integer n = this.names.get(extname.trim().toUpperCase());
+        return n == null ? -1 : n;
+    }
+
+    /**
+     * Get the number of the HDU with the given EXTNAME and EXTVER.
+     * 
+     * @return The HDU number or -1 if there is no such HDU.
+     */
+    public int indexOf(String extname, int extver) {
+        Integer n = this.versions.get(FitsIndex.key(extname, extver));
+        return n == null ? -1 : n;
+    }
+
+    /**
+     * Set the file HDUs are read from, e.g., after the index has been
+     * deserialized.
+     */
+    public void setInput(RandomAccess input) {
+        this.input = input;
+    }
+
+    /** Get the number of HDUs in the file */
+    public int size() {
+        return this.entries.size();
+    }
+}
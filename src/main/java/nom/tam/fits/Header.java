@@ -43,6 +43,7 @@ import nom.tam.fits.header.IFitsHeader;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.AsciiFuncs;
+import nom.tam.util.BufferedFile;
 import nom.tam.util.Cursor;
 import nom.tam.util.HashedList;
 import nom.tam.util.RandomAccess;
@@ -1189,13 +1190,12 @@ public class Header implements FitsElement {
         }
 
         boolean firstCard = true;
-        int count = 0;
+        HeaderCardReader reader = new HeaderCardReader(dis, false);
 
         try {
             while (true) {
 
-                HeaderCard fcard = new HeaderCard(dis);
-                count = count + fcard.cardSize();
+                HeaderCard fcard = new HeaderCard(reader);
 
                 if (firstCard) {
 
@@ -1256,7 +1256,7 @@ public class Header implements FitsElement {
         // Read to the end of the current FITS block.
         //
         try {
-            dis.skipBytes(FitsUtil.padding(count * 80));
+            reader.skipPadding();
         } catch (IOException e) {
             throw new TruncatedFileException(e.getMessage());
         }
@@ -1341,6 +1341,16 @@ public class Header implements FitsElement {
         }
     }
 
+    /**
+     * Note that the header has just been written to a file that can be read as
+     * well as written, so that it can be updated later with {@link #rewrite()}
+     * as if it had been read from that file.
+     */
+    void setRewriteFile(BufferedFile file) {
+        this.input = file;
+        this.originalCardCount = getNumberOfPhysicalCards();
+    }
+
     /** Can the header be rewritten without rewriting the entire file? */
     @Override
     public boolean rewriteable() {
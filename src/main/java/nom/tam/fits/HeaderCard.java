@@ -1,12 +1,10 @@
 package nom.tam.fits;
 
 import java.io.ByteArrayInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
-import java.util.regex.Pattern;
 
 import nom.tam.fits.utilities.FitsHeaderCardParser;
 import nom.tam.fits.utilities.FitsHeaderCardParser.ParsedValue;
@@ -54,17 +52,9 @@ import nom.tam.util.CursorValue;
  */
 public class HeaderCard implements CursorValue<String> {
 
-    private static final BigDecimal LONG_MAX_VALUE_AS_BIG_DECIMAL = BigDecimal.valueOf(Long.MAX_VALUE);
-
-    /**
-     * regexp for IEEE floats
-     */
-    private static final Pattern IEEE_REGEX = Pattern.compile("[+-]?(?=\\d*[.eE])(?=\\.?\\d)\\d*\\.?\\d*(?:[eE][+-]?\\d+)?");
+    private static final byte[] HIERARCH = AsciiFuncs.getBytes("HIERARCH ");
 
-    /**
-     * regexp for numbers.
-     */
-    private static final Pattern LONG_REGEX = Pattern.compile("[+-]?[0-9][0-9]*");
+    private static final BigDecimal LONG_MAX_VALUE_AS_BIG_DECIMAL = BigDecimal.valueOf(Long.MAX_VALUE);
 
     /**
      * max number of characters an integer can have.
@@ -133,6 +123,52 @@ public class HeaderCard implements CursorValue<String> {
         return value;
     }
 
+    /**
+     * Does the value contain something that starts like an IEEE float, i.e.
+     * digits (or a '.' and a digit) followed by a '.' or an exponent?
+     */
+    private static boolean containsReal(String value) {
+        for (int index = 0; index < value.length(); index += 1) {
+            char c = value.charAt(index);
+            if (isDigit(c) || c == '.' && index + 1 < value.length() && isDigit(value.charAt(index + 1))) {
+                int next = index;
+                while (next < value.length() && isDigit(value.charAt(next))) {
+                    next++;
+                }
+                if (next < value.length()) {
+                    c = value.charAt(next);
+                    if (c == '.' || c == 'e' || c == 'E') {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Is the value an optionally signed sequence of digits?
+     */
+    private static boolean isInteger(String value) {
+        int index = 0;
+        if (value.length() > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            index = 1;
+        }
+        if (index == value.length()) {
+            return false;
+        }
+        for (; index < value.length(); index += 1) {
+            if (!isDigit(value.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static ArrayDataInput stringToArrayInputStream(String card) {
         byte[] bytes = AsciiFuncs.getBytes(card);
         if (bytes.length % 80 != 0) {
@@ -159,57 +195,103 @@ public class HeaderCard implements CursorValue<String> {
     /** A flag indicating whether or not this is a string value */
     private boolean isString;
 
+    /**
+     * The card image the value and comment have not been extracted from yet
+     * (null once they have been)
+     */
+    private byte[] image;
+
+    /** The range of the value in the image (negative if there is none) */
+    private int valueStart = -1;
+
+    private int valueEnd = -1;
+
+    /** The range of the comment in the image (negative if there is none) */
+    private int commentStart = -1;
+
+    private int commentEnd = -1;
+
     public HeaderCard(ArrayDataInput dis) throws TruncatedFileException, IOException {
-        this.key = null;
-        this.value = null;
-        this.comment = null;
-        this.isString = false;
+        this(new HeaderCardReader(dis, true));
+    }
 
-        String card = readOneHeaderLine(dis);
+    /**
+     * Read the next card from a reader. The key is extracted straight away but
+     * the value and comment are only located in the card image and converted to
+     * Strings when they are first needed.
+     */
+    HeaderCard(HeaderCardReader reader) throws TruncatedFileException, IOException {
+        reader.next();
 
-        if (FitsFactory.getUseHierarch() && card.length() > 9 && card.substring(0, 9).equals("HIERARCH ")) {
-            hierarchCard(card, dis);
+        if (FitsFactory.getUseHierarch() && reader.startsWith(HeaderCard.HIERARCH)) {
+            hierarchCard(reader.cardString(), reader);
             return;
         }
 
+        byte[] card = reader.getImage();
+        int start = reader.getOffset();
+        int end = start + HeaderCardReader.CARD_SIZE;
+
         // We are going to assume that the value has no blanks in
         // it unless it is enclosed in quotes. Also, we assume that
         // a / terminates the string (except inside quotes)
 
-        // treat short lines as special keywords
-        if (card.length() < 9) {
-            this.key = card;
-            return;
-        }
-
         // extract the key
-        this.key = card.substring(0, 8).trim();
+        int keyStart = trimStart(card, start, start + HeaderCard.MAX_KEYWORD_LENGTH);
+        int keyEnd = trimEnd(card, keyStart, start + HeaderCard.MAX_KEYWORD_LENGTH);
 
         // if it is an empty key, assume the remainder of the card is a comment
-        if (this.key.length() == 0) {
+        if (keyStart == keyEnd) {
             this.key = "";
-            this.comment = card.substring(8);
+            setImage(card, -1, -1, start + HeaderCard.MAX_KEYWORD_LENGTH, end);
             return;
         }
+        this.key = AsciiFuncs.asciiString(card, keyStart, keyEnd - keyStart);
 
         // Non-key/value pair lines are treated as keyed comments
-        if (this.key.equals("COMMENT") || this.key.equals("HISTORY") || !card.substring(8, 10).equals("= ")) {
-            this.comment = card.substring(8).trim();
+        if (this.key.equals("COMMENT") || this.key.equals("HISTORY") || card[start + 8] != '=' || card[start + 9] != ' ') {
+            int commentStart = trimStart(card, start + HeaderCard.MAX_KEYWORD_LENGTH, end);
+            setImage(card, -1, -1, commentStart, trimEnd(card, commentStart, end));
             return;
         }
-        // extract the value/comment part of the string
-        ParsedValue parsedValue = FitsHeaderCardParser.parseCardValue(card);
 
-        if (FitsFactory.isLongStringsEnabled() && parsedValue.isString() && parsedValue.getValue().endsWith("&")) {
-            longStringCard(dis, parsedValue);
-        } else {
-            this.value = parsedValue.getValue();
-            this.isString = parsedValue.isString();
-            this.comment = parsedValue.getComment();
-            if (!this.isString && this.value.indexOf('\'') >= 0) {
-                throw new IllegalArgumentException("no single quotes allowed in values");
+        // keys with quotes, equals or slashes are left to the general parser
+        if (indexOf(card, '\'', start, keyEnd) >= 0 || indexOf(card, '=', start, keyEnd) >= 0 || indexOf(card, '/', start, keyEnd) >= 0) {
+            parsedValueCard(FitsHeaderCardParser.parseCardValue(reader.cardString()), reader);
+            return;
+        }
+
+        // extract the value/comment part of the string
+        int quote = indexOf(card, '\'', start + 10, end);
+        int slash = indexOf(card, '/', start + 10, end);
+        if (quote >= 0 && (slash < 0 || quote < slash)) {
+            int closingQuote = closingQuote(card, quote + 1, end);
+            if (closingQuote >= 0) {
+                this.isString = true;
+                int valueEnd = closingQuote;
+                while (valueEnd > quote + 1 && card[valueEnd - 1] >= 0 && Character.isWhitespace((char) card[valueEnd - 1])) {
+                    valueEnd--;
+                }
+                setImage(card, quote + 1, valueEnd, -1, -1);
+                setImageComment(indexOf(card, '/', closingQuote + 1, end), end);
+                if (FitsFactory.isLongStringsEnabled() && valueEnd > quote + 1 && card[valueEnd - 1] == '&') {
+                    resolve();
+                    longStringCard(reader, this.value, this.comment);
+                }
+                return;
             }
         }
+
+        int valueEnd = slash >= 0 ? slash : end;
+        int valueStart = trimStart(card, start + 9, valueEnd);
+        valueEnd = trimEnd(card, valueStart, valueEnd);
+        if (indexOf(card, '\'', valueStart, valueEnd) >= 0) {
+            throw new IllegalArgumentException("no single quotes allowed in values");
+        }
+        setImage(card, valueStart, valueEnd, -1, -1);
+        if (slash >= 0) {
+            setImageComment(slash, end);
+        }
     }
 
     /**
@@ -432,6 +514,7 @@ public class HeaderCard implements CursorValue<String> {
      *         card will return 1. only long stings can return more than one.
      */
     public int cardSize() {
+        resolve();
         if (this.isString && this.value != null && FitsFactory.isLongStringsEnabled()) {
             int maxStringValueLength = HeaderCard.MAX_STRING_VALUE_LENGTH;
             if (FitsFactory.getUseHierarch() && getKey().length() > MAX_KEYWORD_LENGTH) {
@@ -451,6 +534,7 @@ public class HeaderCard implements CursorValue<String> {
      * Return the comment from this card
      */
     public String getComment() {
+        resolve();
         return this.comment;
     }
 
@@ -465,6 +549,7 @@ public class HeaderCard implements CursorValue<String> {
      * Return the value from this card
      */
     public String getValue() {
+        resolve();
         return this.value;
     }
 
@@ -472,6 +557,7 @@ public class HeaderCard implements CursorValue<String> {
      * Return the value from this card as a specific type
      */
     public <T> T getValue(Class<T> clazz, T defaultValue) {
+        resolve();
         if (String.class.isAssignableFrom(clazz)) {
             return clazz.cast(this.value);
         } else if (this.value == null || this.value.isEmpty()) {
@@ -510,17 +596,19 @@ public class HeaderCard implements CursorValue<String> {
      * The keyword for the card will be "HIERARCH.LEV1.LEV2..." A '/' is assumed
      * to start a comment.
      * 
-     * @param dis
+     * @param reader
      */
-    private void hierarchCard(String card, ArrayDataInput dis) throws IOException, TruncatedFileException {
+    private void hierarchCard(String card, HeaderCardReader reader) throws IOException, TruncatedFileException {
 
         this.key = FitsHeaderCardParser.parseCardKey(card);
 
         // extract the value/comment part of the string
-        ParsedValue parsedValue = FitsHeaderCardParser.parseCardValue(card);
+        parsedValueCard(FitsHeaderCardParser.parseCardValue(card), reader);
+    }
 
+    private void parsedValueCard(ParsedValue parsedValue, HeaderCardReader reader) throws IOException, TruncatedFileException {
         if (FitsFactory.isLongStringsEnabled() && parsedValue.isString() && parsedValue.getValue().endsWith("&")) {
-            longStringCard(dis, parsedValue);
+            longStringCard(reader, parsedValue.getValue(), parsedValue.getComment());
         } else {
             this.value = parsedValue.getValue();
             this.isString = parsedValue.isString();
@@ -535,6 +623,7 @@ public class HeaderCard implements CursorValue<String> {
      * Is this a key/value card?
      */
     public boolean isKeyValuePair() {
+        resolve();
         return this.key != null && this.value != null;
     }
 
@@ -545,12 +634,26 @@ public class HeaderCard implements CursorValue<String> {
         return this.isString;
     }
 
-    private void longStringCard(ArrayDataInput dis, ParsedValue parsedValue) throws IOException, TruncatedFileException {
+    private void longStringCard(HeaderCardReader reader, String firstValue, String firstComment) throws IOException, TruncatedFileException {
         // ok this is a longString now read over all continues.
-        StringBuilder longValue = new StringBuilder();
+        StringBuilder longValue = new StringBuilder(firstValue);
         StringBuilder longComment = new StringBuilder();
-        ParsedValue continueCard = parsedValue;
-        do {
+        if (firstComment != null) {
+            longComment.append(firstComment);
+        }
+        while (longValue.length() > 0 && longValue.charAt(longValue.length() - 1) == '&') {
+            longValue.setLength(longValue.length() - 1);
+            if (!reader.isContinueNext()) {
+                // the & was part of the string put it back.
+                longValue.append('&');
+                break;
+            }
+            reader.next();
+            // extract the value/comment part of the string
+            ParsedValue continueCard = FitsHeaderCardParser.parseCardValue(reader.cardString());
+            if (continueCard == null) {
+                break;
+            }
             if (continueCard.getValue() != null) {
                 longValue.append(continueCard.getValue());
             }
@@ -560,47 +663,96 @@ public class HeaderCard implements CursorValue<String> {
                 }
                 longComment.append(continueCard.getComment());
             }
-            continueCard = null;
-            if (longValue.charAt(longValue.length() - 1) == '&') {
-                longValue.setLength(longValue.length() - 1);
-                dis.mark(80);
-                String card = readOneHeaderLine(dis);
-                if (card.startsWith("CONTINUE")) {
-                    // extract the value/comment part of the string
-                    continueCard = FitsHeaderCardParser.parseCardValue(card);
-                } else {
-                    // the & was part of the string put it back.
-                    longValue.append('&');
-                    // ok move the imputstream one card back.
-                    dis.reset();
-                }
-            }
-        } while (continueCard != null);
+        }
         this.comment = longComment.toString();
         this.value = longValue.toString();
         this.isString = true;
     }
 
-    private String readOneHeaderLine(ArrayDataInput dis) throws IOException, TruncatedFileException, EOFException {
-        byte[] buffer = new byte[80];
-        int len;
-        int need = 80;
-        try {
+    /**
+     * Convert the value and comment still held as ranges of the card image to
+     * Strings. The getters call this, so it is synchronized to make the
+     * conversion happen once and its results visible to any thread reading a
+     * card that is otherwise left unchanged.
+     */
+    private synchronized void resolve() {
+        if (this.image == null) {
+            return;
+        }
+        if (this.valueStart >= 0) {
+            this.value = AsciiFuncs.asciiString(this.image, this.valueStart, this.valueEnd - this.valueStart);
+            if (this.isString && this.value.indexOf('\'') >= 0) {
+                this.value = this.value.replace("''", "'");
+            }
+        }
+        if (this.commentStart >= 0) {
+            this.comment = AsciiFuncs.asciiString(this.image, this.commentStart, this.commentEnd - this.commentStart);
+        }
+        this.image = null;
+    }
+
+    private void setImage(byte[] card, int newValueStart, int newValueEnd, int newCommentStart, int newCommentEnd) {
+        this.image = card;
+        this.valueStart = newValueStart;
+        this.valueEnd = newValueEnd;
+        this.commentStart = newCommentStart;
+        this.commentEnd = newCommentEnd;
+    }
 
-            while (need > 0) {
-                len = dis.read(buffer, 80 - need, need);
-                if (len == 0) {
-                    throw new TruncatedFileException();
+    /**
+     * Set the comment to the trimmed text after a '/', if there is any text
+     * after it.
+     */
+    private void setImageComment(int slash, int end) {
+        if (slash >= 0 && slash + 1 < end) {
+            this.commentStart = trimStart(this.image, slash + 1, end);
+            this.commentEnd = trimEnd(this.image, this.commentStart, end);
+        }
+    }
+
+    /**
+     * Find the quote closing a string value, where two quotes stand for one
+     * quote in the value. If there is no single closing quote the first of the
+     * last pair of quotes is used.
+     */
+    private static int closingQuote(byte[] card, int from, int end) {
+        int lastPair = -1;
+        for (int index = from; index < end; index += 1) {
+            if (card[index] == '\'') {
+                if (index + 1 < end && card[index + 1] == '\'') {
+                    lastPair = index;
+                    index += 1;
+                } else {
+                    return index;
                 }
-                need -= len;
             }
-        } catch (EOFException e) {
-            if (need == 80) {
-                throw e;
+        }
+        return lastPair;
+    }
+
+    private static int indexOf(byte[] card, char c, int from, int end) {
+        for (int index = from; index < end; index += 1) {
+            if (card[index] == c) {
+                return index;
             }
-            throw new TruncatedFileException(e.getMessage());
         }
-        return AsciiFuncs.asciiString(buffer);
+        return -1;
+    }
+
+    /** @return the start of the range without leading blanks, as in trim(). */
+    private static int trimStart(byte[] card, int from, int end) {
+        while (from < end && card[from] >= 0 && card[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /** @return the end of the range without trailing blanks, as in trim(). */
+    private static int trimEnd(byte[] card, int from, int end) {
+        while (end > from && card[end - 1] >= 0 && card[end - 1] <= ' ') {
+            end--;
+        }
+        return end;
     }
 
     /**
@@ -614,6 +766,7 @@ public class HeaderCard implements CursorValue<String> {
      * Set the value for this card.
      */
     public void setValue(String update) {
+        resolve();
         this.value = update;
     }
 
@@ -625,6 +778,7 @@ public class HeaderCard implements CursorValue<String> {
      */
     @Override
     public String toString() {
+        resolve();
         int alignSmallString = 19;
         int alignPosition = 30;
         FitsLineAppender buf = new FitsLineAppender();
@@ -699,13 +853,14 @@ public class HeaderCard implements CursorValue<String> {
      * @return the type of the value.
      */
     public Class<?> valueType() {
+        resolve();
         if (this.isString) {
             return String.class;
         } else if (this.value != null) {
             String trimedValue = this.value.trim();
             if (trimedValue.equals("T") || trimedValue.equals("F")) {
                 return Boolean.class;
-            } else if (HeaderCard.LONG_REGEX.matcher(trimedValue).matches()) {
+            } else if (isInteger(trimedValue)) {
                 int length = trimedValue.length();
                 if (trimedValue.charAt(0) == '-' || trimedValue.charAt(0) == '+') {
                     length--;
@@ -717,7 +872,7 @@ public class HeaderCard implements CursorValue<String> {
                 } else {
                     return BigInteger.class;
                 }
-            } else if (HeaderCard.IEEE_REGEX.matcher(trimedValue).find()) {
+            } else if (containsReal(trimedValue)) {
                 // We should detect if we are loosing precision here
                 BigDecimal bigDecimal = null;
 
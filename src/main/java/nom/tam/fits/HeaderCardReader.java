@@ -0,0 +1,199 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import nom.tam.util.ArrayDataInput;
+import nom.tam.util.AsciiFuncs;
+
+/**
+ * Reads header card images from an input a whole FITS block at a time. The
+ * cards are handed to {@link HeaderCard} as offsets into the block so that they
+ * can be parsed without first building a String for each card.
+ */
+final class HeaderCardReader {
+
+    /** The length of a header card image */
+    static final int CARD_SIZE = 80;
+
+    /** The length of a FITS block */
+    private static final int BLOCK_SIZE = 2880;
+
+    /** The keyword of a long string continuation card */
+    private static final byte[] CONTINUE = AsciiFuncs.getBytes("CONTINUE");
+
+    private final ArrayDataInput input;
+
+    /**
+     * Is only a single card to be read? If so the input is never read beyond
+     * the card unless a continuation card follows it.
+     */
+    private final boolean singleCard;
+
+    /** The current block (a new array is used for each block) */
+    private byte[] block;
+
+    /** The number of valid bytes in the current block */
+    private int available;
+
+    /** The offset of the next unread card in the block */
+    private int position;
+
+    /** The offset of the current card in the block */
+    private int offset;
+
+    /** Has the end of the input been reached? */
+    private boolean atEnd;
+
+    /**
+     * Create a reader of header cards.
+     * 
+     * @param input
+     *            the input positioned at the start of a card
+     * @param singleCard
+     *            should the input be read one card at a time rather than in
+     *            whole blocks?
+     */
+    HeaderCardReader(ArrayDataInput input, boolean singleCard) {
+        this.input = input;
+        this.singleCard = singleCard;
+        this.block = new byte[0];
+    }
+
+    /**
+     * @return the current card as a String
+     */
+    String cardString() {
+        return AsciiFuncs.asciiString(this.block, this.offset, HeaderCardReader.CARD_SIZE);
+    }
+
+    /**
+     * @return the array holding the current card image
+     */
+    byte[] getImage() {
+        return this.block;
+    }
+
+    /**
+     * @return the offset of the current card image in {@link #getImage()}
+     */
+    int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Is the next card a long string continuation card? If it is not, it will
+     * still be returned by the following call to {@link #next()}.
+     */
+    boolean isContinueNext() throws IOException, TruncatedFileException {
+        if (this.singleCard && this.position == this.available) {
+            this.input.mark(HeaderCardReader.CARD_SIZE);
+            ensureCard();
+            if (!startsWith(this.block, this.position, HeaderCardReader.CONTINUE)) {
+                // put the card back for whoever reads the input next
+                this.input.reset();
+                this.available = this.position;
+                return false;
+            }
+            return true;
+        }
+        ensureCard();
+        return startsWith(this.block, this.position, HeaderCardReader.CONTINUE);
+    }
+
+    /**
+     * Move to the next card.
+     * 
+     * @throws EOFException
+     *             if the input ends before the card starts
+     * @throws TruncatedFileException
+     *             if the input ends inside the card
+     */
+    void next() throws IOException, TruncatedFileException {
+        ensureCard();
+        this.offset = this.position;
+        this.position += HeaderCardReader.CARD_SIZE;
+    }
+
+    /**
+     * Skip the rest of the current block, which has already been read unless
+     * the input ended in the middle of it.
+     */
+    void skipPadding() throws IOException {
+        if (this.atEnd && this.available < this.block.length) {
+            this.input.skipBytes(this.block.length - this.available);
+        }
+    }
+
+    /**
+     * Does the current card start with the given bytes?
+     */
+    boolean startsWith(byte[] prefix) {
+        return startsWith(this.block, this.offset, prefix);
+    }
+
+    private void ensureCard() throws IOException, TruncatedFileException {
+        if (this.position == this.available && !this.atEnd) {
+            load();
+        }
+        if (this.position + HeaderCardReader.CARD_SIZE > this.available) {
+            if (this.position == this.available) {
+                throw new EOFException();
+            }
+            throw new TruncatedFileException("Header card truncated");
+        }
+    }
+
+    private void load() throws IOException {
+        this.block = new byte[this.singleCard ? HeaderCardReader.CARD_SIZE : HeaderCardReader.BLOCK_SIZE];
+        this.available = 0;
+        this.position = 0;
+        try {
+            // the inputs only return less than requested at the end of file
+            this.available = this.input.read(this.block, 0, this.block.length);
+        } catch (EOFException e) {
+            this.available = 0;
+        }
+        this.atEnd = this.available < this.block.length;
+    }
+
+    private static boolean startsWith(byte[] image, int start, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i += 1) {
+            if (image[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
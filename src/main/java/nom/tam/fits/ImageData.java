@@ -32,12 +32,25 @@ package nom.tam.fits;
  */
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import nom.tam.image.ConcurrentImageTiler;
 import nom.tam.image.StandardImageTiler;
+import nom.tam.image.StridedIndex;
 import nom.tam.util.ArrayDataInput;
 import nom.tam.util.ArrayDataOutput;
 import nom.tam.util.ArrayFuncs;
+import nom.tam.util.BufferedFile;
+import nom.tam.util.MappedFile;
 import nom.tam.util.RandomAccess;
 
 /**
@@ -51,6 +64,11 @@ import nom.tam.util.RandomAccess;
  * Java libraries. A call to the getData() method will still return a
  * multi-dimensional array, but the image data will not be read until the user
  * explicitly requests. it.
+ * <p>
+ * Alternatively the image may be accessed as a flat, typed java.nio.Buffer
+ * using getBuffer(). If FitsFactory.setUseBufferKernels(true) has been called,
+ * getData() will also return such a buffer rather than a multi-dimensional
+ * array.
  */
 public class ImageData extends Data {
 
@@ -79,6 +97,14 @@ public class ImageData extends Data {
 
         @Override
         protected Object getMemoryImage() {
+            if (ImageData.this.dataArray instanceof Buffer) {
+                // Prefer the file if we have one, since the buffer was
+                // mapped from it.
+                if (ImageData.this.input != null) {
+                    return null;
+                }
+                return ArrayFuncs.curl(bufferToArray((Buffer) ImageData.this.dataArray), ImageData.this.dataDescription.dims);
+            }
             return ImageData.this.dataArray;
         }
     }
@@ -100,6 +126,12 @@ public class ImageData extends Data {
     /** The image tiler associated with this image. */
     private StandardImageTiler tiler;
 
+    /**
+     * The raw bytes of the image when it has been read or mapped into a buffer
+     * rather than an array. This may be null.
+     */
+    private ByteBuffer dataBytes;
+
     /**
      * Create the equivalent of a null data element.
      */
@@ -151,6 +183,9 @@ public class ImageData extends Data {
             head.nullImage();
             return;
         }
+        if (this.dataArray instanceof Buffer) {
+            throw new FitsException("Cannot describe buffer image data without a header");
+        }
 
         String classname = this.dataArray.getClass().getName();
 
@@ -214,7 +249,11 @@ public class ImageData extends Data {
 
         if (this.dataArray == null && this.tiler != null) {
             try {
-                this.dataArray = this.tiler.getCompleteImage();
+                if (FitsFactory.getUseBufferKernels() && this.byteSize <= Integer.MAX_VALUE) {
+                    this.dataArray = getBuffer();
+                } else {
+                    this.dataArray = this.tiler.getCompleteImage();
+                }
             } catch (Exception e) {
                 return null;
             }
@@ -223,10 +262,279 @@ public class ImageData extends Data {
         return this.dataArray;
     }
 
+    /**
+     * Get the entire image as a flat, typed buffer (a ByteBuffer, ShortBuffer,
+     * IntBuffer, LongBuffer, FloatBuffer or DoubleBuffer depending upon
+     * BITPIX). The pixels are in FITS order and may be addressed using
+     * getIndex(). If the image has not been read and the input is a
+     * BufferedFile or a MappedFile, the buffer is a read-only view mapped from
+     * the file and the image is not copied onto the heap. If the image is held
+     * in a multi-dimensional array the buffer is a copy of the array, unless
+     * the image has a single row (see getBuffer(long, int)).
+     * 
+     * @exception FitsException
+     *                if the image is larger than 2 GB. Use getBuffer(long, int)
+     *                to access segments of such images.
+     */
+    public Buffer getBuffer() throws FitsException {
+        if (this.dataArray instanceof Buffer) {
+            return (Buffer) this.dataArray;
+        }
+        long n = this.byteSize / elementSize(getBaseType());
+        if (this.byteSize > Integer.MAX_VALUE) {
+            throw new FitsException("Image too large for a single buffer: " + this.byteSize + " bytes");
+        }
+        return getBuffer(0, (int) n);
+    }
+
+    /**
+     * Get a segment of the image as a flat, typed buffer. This is typically
+     * used to process images larger than 2 GB a plane at a time.
+     * <p>
+     * If the image is held in a multi-dimensional array and the segment lies
+     * within a single row of the array, the buffer wraps that row, so writes to
+     * the buffer change the image. Otherwise the buffer holds a copy of just
+     * the pixels of the segment, and writes to it are not seen in the image.
+     * 
+     * @param first
+     *            The offset of the first pixel of the segment in FITS order.
+     * @param count
+     *            The number of pixels in the segment.
+     */
+    public Buffer getBuffer(long first, int count) throws FitsException {
+        Class type = getBaseType();
+        int size = elementSize(type);
+        if (first < 0 || count < 0 || (first + count) * size > this.byteSize) {
+            throw new FitsException("Buffer segment outside image");
+        }
+
+        if (this.dataArray != null && !(this.dataArray instanceof Buffer)) {
+            if (count == 0) {
+                return wrap(ArrayFuncs.newInstance(type, 0), 0, 0);
+            }
+            int[] dims = ArrayFuncs.getDimensions(this.dataArray);
+            int rowLength = dims[dims.length - 1];
+            int offset = (int) (first % rowLength);
+            if (offset + count <= rowLength) {
+                return wrap(arrayRow(dims, first / rowLength), offset, count);
+            }
+            // Copy the segment a row at a time.
+            Object segment = ArrayFuncs.newInstance(type, count);
+            long row = first / rowLength;
+            for (int done = 0; done < count; row += 1) {
+                int n = Math.min(count - done, rowLength - offset);
+                System.arraycopy(arrayRow(dims, row), offset, segment, done, n);
+                done += n;
+                offset = 0;
+            }
+            return wrap(segment, 0, count);
+        }
+
+        long start = first * size;
+        long length = (long) count * size;
+        if (length > Integer.MAX_VALUE) {
+            throw new FitsException("Buffer segment too large: " + length + " bytes");
+        }
+        ByteBuffer bytes;
+        if (this.dataBytes == null && this.byteSize <= Integer.MAX_VALUE) {
+            this.dataBytes = loadBytes(0, (int) this.byteSize);
+        }
+        if (this.dataBytes != null) {
+            bytes = this.dataBytes.duplicate();
+            bytes.limit((int) (start + length));
+            bytes.position((int) start);
+            bytes = bytes.slice();
+        } else {
+            bytes = loadBytes(start, (int) length);
+        }
+        return typedView(bytes, type);
+    }
+
+    /** Get a row, i.e., a one-dimensional array, of the image array */
+    private Object arrayRow(int[] dims, long row) {
+        Object array = this.dataArray;
+        long stride = 1;
+        for (int i = 0; i < dims.length - 1; i += 1) {
+            stride *= dims[i];
+        }
+        for (int i = 0; i < dims.length - 1; i += 1) {
+            stride /= dims[i];
+            array = ((Object[]) array)[(int) (row / stride)];
+            row %= stride;
+        }
+        return array;
+    }
+
+    /** Wrap part of a primitive array in a buffer of the matching type */
+    private static Buffer wrap(Object array, int offset, int count) {
+        if (array instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) array, offset, count).slice();
+        } else if (array instanceof short[]) {
+            return ShortBuffer.wrap((short[]) array, offset, count).slice();
+        } else if (array instanceof int[]) {
+            return IntBuffer.wrap((int[]) array, offset, count).slice();
+        } else if (array instanceof long[]) {
+            return LongBuffer.wrap((long[]) array, offset, count).slice();
+        } else if (array instanceof float[]) {
+            return FloatBuffer.wrap((float[]) array, offset, count).slice();
+        } else {
+            return DoubleBuffer.wrap((double[]) array, offset, count).slice();
+        }
+    }
+
+    /**
+     * Get a tiler that may be used by several threads at once. It reads the
+     * file with positional reads on a channel of its own, so the image must
+     * have been read from a file. The tiler should be closed when it is no
+     * longer needed.
+     */
+    public ConcurrentImageTiler getConcurrentTiler() throws FitsException {
+        File file = getInputFile();
+        if (file == null || this.dataDescription == null) {
+            throw new FitsException("Concurrent tiles require an image read from a file");
+        }
+        ConcurrentImageTiler concurrent;
+        try {
+            concurrent = new ConcurrentImageTiler(file, this.fileOffset, this.dataDescription.dims, this.dataDescription.type);
+        } catch (IOException e) {
+            throw new FitsException("Unable to open " + file + " for concurrent tiles", e);
+        }
+        concurrent.setCache(FitsFactory.getTileCache(), getSourceKey());
+        return concurrent;
+    }
+
+    /**
+     * Get a helper that converts the indices of a pixel into its offset in the
+     * buffer returned by getBuffer().
+     */
+    public StridedIndex getIndex() {
+        if (this.dataDescription != null) {
+            return new StridedIndex(this.dataDescription.dims);
+        }
+        return new StridedIndex(ArrayFuncs.getDimensions(this.dataArray));
+    }
+
     public StandardImageTiler getTiler() {
         return this.tiler;
     }
 
+    /** Get the primitive type of the pixels */
+    private Class getBaseType() {
+        if (this.dataDescription != null) {
+            return this.dataDescription.type;
+        }
+        return ArrayFuncs.getBaseClass(this.dataArray);
+    }
+
+    /** Get the channel of the input file, or null if it does not have one */
+    private FileChannel getChannel() {
+        if (this.input instanceof MappedFile) {
+            return ((MappedFile) this.input).getChannel();
+        } else if (this.input instanceof BufferedFile) {
+            return ((BufferedFile) this.input).getChannel();
+        }
+        return null;
+    }
+
+    /** Get the number of bytes in a pixel of the given type */
+    private static int elementSize(Class type) {
+        if (type == byte.class) {
+            return 1;
+        } else if (type == short.class) {
+            return 2;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else {
+            return 8;
+        }
+    }
+
+    /**
+     * Map or read a section of the image from the input.
+     * 
+     * @param start
+     *            The offset in bytes from the beginning of the image.
+     * @param length
+     *            The number of bytes required.
+     */
+    private ByteBuffer loadBytes(long start, int length) throws FitsException {
+        if (this.input == null) {
+            throw new FitsException("No data source for image buffer");
+        }
+        FileChannel channel = getChannel();
+        try {
+            if (channel != null) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, this.fileOffset + start, length);
+            }
+            long currentOffset = this.input.getFilePointer();
+            byte[] buf = new byte[length];
+            this.input.seek(this.fileOffset + start);
+            this.input.readFully(buf);
+            this.input.seek(currentOffset);
+            return ByteBuffer.wrap(buf);
+        } catch (IOException e) {
+            throw new FitsException("Unable to read image buffer:" + e);
+        }
+    }
+
+    /** View a big-endian byte buffer as a buffer of the given type */
+    private static Buffer typedView(ByteBuffer bytes, Class type) {
+        if (type == byte.class) {
+            return bytes;
+        } else if (type == short.class) {
+            return bytes.asShortBuffer();
+        } else if (type == int.class) {
+            return bytes.asIntBuffer();
+        } else if (type == long.class) {
+            return bytes.asLongBuffer();
+        } else if (type == float.class) {
+            return bytes.asFloatBuffer();
+        } else {
+            return bytes.asDoubleBuffer();
+        }
+    }
+
+    /** Copy the contents of a typed buffer into a one-dimensional array */
+    private static Object bufferToArray(Buffer b) {
+        if (b instanceof ByteBuffer) {
+            ByteBuffer x = ((ByteBuffer) b).duplicate();
+            x.clear();
+            byte[] out = new byte[x.remaining()];
+            x.get(out);
+            return out;
+        } else if (b instanceof ShortBuffer) {
+            ShortBuffer x = ((ShortBuffer) b).duplicate();
+            x.clear();
+            short[] out = new short[x.remaining()];
+            x.get(out);
+            return out;
+        } else if (b instanceof IntBuffer) {
+            IntBuffer x = ((IntBuffer) b).duplicate();
+            x.clear();
+            int[] out = new int[x.remaining()];
+            x.get(out);
+            return out;
+        } else if (b instanceof LongBuffer) {
+            LongBuffer x = ((LongBuffer) b).duplicate();
+            x.clear();
+            long[] out = new long[x.remaining()];
+            x.get(out);
+            return out;
+        } else if (b instanceof FloatBuffer) {
+            FloatBuffer x = ((FloatBuffer) b).duplicate();
+            x.clear();
+            float[] out = new float[x.remaining()];
+            x.get(out);
+            return out;
+        } else {
+            DoubleBuffer x = ((DoubleBuffer) b).duplicate();
+            x.clear();
+            double[] out = new double[x.remaining()];
+            x.get(out);
+            return out;
+        }
+    }
+
     /** Get the size in bytes of the data */
     @Override
     protected long getTrueSize() {
@@ -301,6 +609,7 @@ public class ImageData extends Data {
 
         if (i instanceof RandomAccess) {
             this.tiler = new ImageDataTiler((RandomAccess) i, ((RandomAccess) i).getFilePointer(), this.dataDescription);
+            this.tiler.setCache(FitsFactory.getTileCache(), getSourceKey());
             try {
                 // Handle long skips.
                 i.skipBytes(this.byteSize);
@@ -308,6 +617,17 @@ public class ImageData extends Data {
                 throw new FitsException("Unable to skip over image:" + e);
             }
 
+        } else if (FitsFactory.getUseBufferKernels() && this.byteSize <= Integer.MAX_VALUE) {
+            byte[] buf = new byte[(int) this.byteSize];
+            try {
+                i.readFully(buf);
+            } catch (IOException e) {
+                throw new FitsException("Unable to read image data:" + e);
+            }
+            this.dataBytes = ByteBuffer.wrap(buf);
+            this.dataArray = typedView(this.dataBytes, this.dataDescription.type);
+
+            this.tiler = new ImageDataTiler(null, 0, this.dataDescription);
         } else {
             this.dataArray = ArrayFuncs.newInstance(this.dataDescription.type, this.dataDescription.dims);
             try {
@@ -362,11 +682,77 @@ public class ImageData extends Data {
         }
 
         try {
-            o.writeArray(this.dataArray);
+            if (this.dataArray instanceof Buffer) {
+                writeBuffer(o, (Buffer) this.dataArray);
+            } else {
+                o.writeArray(this.dataArray);
+            }
         } catch (IOException e) {
             throw new FitsException("IO Error on image write" + e);
         }
 
         FitsUtil.pad(o, getTrueSize());
     }
+
+    /** Write the contents of a typed buffer a chunk at a time */
+    private static void writeBuffer(ArrayDataOutput o, Buffer b) throws IOException {
+        final int chunk = 8192;
+        if (b instanceof ByteBuffer) {
+            ByteBuffer x = ((ByteBuffer) b).duplicate();
+            x.clear();
+            byte[] tmp = new byte[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else if (b instanceof ShortBuffer) {
+            ShortBuffer x = ((ShortBuffer) b).duplicate();
+            x.clear();
+            short[] tmp = new short[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else if (b instanceof IntBuffer) {
+            IntBuffer x = ((IntBuffer) b).duplicate();
+            x.clear();
+            int[] tmp = new int[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else if (b instanceof LongBuffer) {
+            LongBuffer x = ((LongBuffer) b).duplicate();
+            x.clear();
+            long[] tmp = new long[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else if (b instanceof FloatBuffer) {
+            FloatBuffer x = ((FloatBuffer) b).duplicate();
+            x.clear();
+            float[] tmp = new float[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else if (b instanceof DoubleBuffer) {
+            DoubleBuffer x = ((DoubleBuffer) b).duplicate();
+            x.clear();
+            double[] tmp = new double[Math.min(chunk, x.remaining())];
+            while (x.hasRemaining()) {
+                int n = Math.min(tmp.length, x.remaining());
+                x.get(tmp, 0, n);
+                o.write(tmp, 0, n);
+            }
+        } else {
+            throw new IOException("Invalid buffer type for image data: " + b.getClass().getName());
+        }
+    }
 }
@@ -32,8 +32,11 @@ package nom.tam.fits;
  */
 
 import java.io.PrintStream;
+import java.nio.Buffer;
 
+import nom.tam.image.ConcurrentImageTiler;
 import nom.tam.image.StandardImageTiler;
+import nom.tam.image.StridedIndex;
 import nom.tam.util.ArrayFuncs;
 
 /** FITS image header/data unit */
@@ -141,6 +144,29 @@ public class ImageHDU extends BasicHDU {
         return ((ImageData) this.myData).getTiler();
     }
 
+    /**
+     * Get a tiler that may be shared by several threads.
+     * 
+     * @see ImageData#getConcurrentTiler()
+     */
+    public ConcurrentImageTiler getConcurrentTiler() throws FitsException {
+        return ((ImageData) this.myData).getConcurrentTiler();
+    }
+
+    /**
+     * Get the image as a flat, typed buffer.
+     * 
+     * @see ImageData#getBuffer()
+     */
+    public Buffer getBuffer() throws FitsException {
+        return ((ImageData) this.myData).getBuffer();
+    }
+
+    /** Get a helper for addressing the pixels of getBuffer() */
+    public StridedIndex getIndex() {
+        return ((ImageData) this.myData).getIndex();
+    }
+
     /**
      * Print out some information about this HDU.
      */
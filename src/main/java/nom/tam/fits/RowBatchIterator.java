@@ -0,0 +1,245 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import nom.tam.util.ArrayDataInput;
+import nom.tam.util.ArrayFuncs;
+import nom.tam.util.ColumnTable;
+
+/**
+ * Iterates over the rows of a binary table in batches of a fixed number of
+ * rows. Each batch is returned as an array of flattened columns, in the raw
+ * form in which they are stored in the table: strings and logicals are bytes
+ * and variable length columns are given as their descriptors. The column arrays
+ * are allocated once and reused for every batch, so only as much memory as one
+ * batch needs is used however large the table is.
+ * <p>
+ * The rows can come from a table in memory, from a deferred table on a random
+ * access file or straight from a stream positioned at the start of the table
+ * data.
+ */
+public class RowBatchIterator {
+
+    private final BinaryTable table;
+
+    /** The stream the rows are read from in order, or null */
+    private final ArrayDataInput input;
+
+    /** The columns returned */
+    private final int[] cols;
+
+    /** The byte offset of each of the columns in a row */
+    private final int[] colOffsets;
+
+    /** The number of rows in a full batch */
+    private final int batchRows;
+
+    /** The reused column arrays */
+    private final Object[] batch;
+
+    /** The raw bytes of the rows in a batch */
+    private final byte[] block;
+
+    private final ByteBuffer rows;
+
+    /** The first row of the next batch */
+    private int nextRow;
+
+    /** The first row of the current batch */
+    private int firstRow;
+
+    /** The number of rows in the current batch */
+    private int rowCount;
+
+    /**
+     * Create an iterator reading a binary table from a stream.
+     * 
+     * @param header
+     *            The header of the table. The input must be positioned just
+     *            after it. Once the last batch has been read the input is
+     *            positioned after the data of the table, including its heap and
+     *            padding.
+     * @param input
+     *            The input to read from.
+     * @param batchRows
+     *            The maximum number of rows in a batch.
+     * @param cols
+     *            The indices of the columns to return (all columns if none are
+     *            given).
+     */
+    public RowBatchIterator(Header header, ArrayDataInput input, int batchRows, int... cols) throws FitsException {
+        this(new BinaryTable(header), input, batchRows, cols);
+    }
+
+    RowBatchIterator(BinaryTable table, ArrayDataInput input, int batchRows, int... cols) throws FitsException {
+        if (batchRows <= 0) {
+            throw new IllegalArgumentException("Invalid batch size:" + batchRows);
+        }
+        if (cols.length == 0) {
+            cols = new int[table.getNCols()];
+            for (int col = 0; col < cols.length; col += 1) {
+                cols[col] = col;
+            }
+        }
+        this.table = table;
+        this.input = input;
+        this.cols = cols;
+        this.colOffsets = table.getColumnOffsets();
+        this.batchRows = Math.max(1, Math.min(batchRows, table.getNRows()));
+
+        Object[] model = table.getModelRow();
+        int[] sizes = table.getSizes();
+        this.batch = new Object[cols.length];
+        for (int i = 0; i < cols.length; i += 1) {
+            if (cols[i] < 0 || cols[i] >= table.getNCols()) {
+                throw new FitsException("Invalid column");
+            }
+            this.batch[i] = ArrayFuncs.newInstance(ArrayFuncs.getBaseClass(model[cols[i]]), sizes[cols[i]] * this.batchRows);
+        }
+        this.block = new byte[this.batchRows * table.rowLen];
+        this.rows = ByteBuffer.wrap(this.block);
+
+        // With no rows there is no last batch to skip the heap after.
+        if (input != null && !hasNext()) {
+            try {
+                skipRest();
+            } catch (IOException e) {
+                throw new FitsException("Error skipping table data:" + e);
+            }
+        }
+    }
+
+    /**
+     * Copy the raw elements of a row of the current batch in any column of the
+     * table, whether or not the column is returned by the iterator.
+     * 
+     * @param row
+     *            The row within the current batch.
+     * @param col
+     *            The column in the table.
+     * @param dest
+     *            The flattened array to copy into.
+     * @param index
+     *            The index in the array of the first element.
+     */
+    void copyRow(int row, int col, Object dest, int index) {
+        int size = this.table.getSizes()[col];
+        if (this.input == null && this.table.table != null) {
+            System.arraycopy(this.table.table.getColumn(col), (this.firstRow + row) * size, dest, index, size);
+        } else {
+            ColumnTable.extractColumn(this.rows, this.table.rowLen, 1, row * this.table.rowLen + this.colOffsets[col], size, dest, index);
+        }
+    }
+
+    /**
+     * @return the index of the first row in the current batch.
+     */
+    public int getFirstRow() {
+        return this.firstRow;
+    }
+
+    /**
+     * @return the number of rows in the current batch. Only this many rows at
+     *         the start of the column arrays are valid.
+     */
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * @return true if there are more rows to read.
+     */
+    public boolean hasNext() {
+        return this.nextRow < this.table.getNRows();
+    }
+
+    /**
+     * Skip the heap and padding after the rows on the input stream.
+     */
+    private void skipRest() throws IOException {
+        long size = this.table.getTrueSize();
+        this.input.skipBytes(size + FitsUtil.padding(size) - (long) this.table.getNRows() * this.table.rowLen);
+    }
+
+    /**
+     * Read the next batch of rows.
+     * 
+     * @return the flattened columns holding the batch. The same arrays are
+     *         returned for every batch.
+     */
+    public Object[] next() throws FitsException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int rowLen = this.table.rowLen;
+        int[] sizes = this.table.getSizes();
+        this.firstRow = this.nextRow;
+        this.rowCount = Math.min(this.batchRows, this.table.getNRows() - this.firstRow);
+        this.nextRow += this.rowCount;
+
+        if (this.input == null && this.table.table != null) {
+            for (int i = 0; i < this.cols.length; i += 1) {
+                int size = sizes[this.cols[i]];
+                System.arraycopy(this.table.table.getColumn(this.cols[i]), this.firstRow * size, this.batch[i], 0, this.rowCount * size);
+            }
+            return this.batch;
+        }
+
+        try {
+            if (this.input != null) {
+                this.input.readFully(this.block, 0, this.rowCount * rowLen);
+                if (!hasNext()) {
+                    skipRest();
+                }
+            } else {
+                ArrayDataInput file = this.table.currInput;
+                if (file == null) {
+                    throw new FitsException("Cannot find input for deferred read");
+                }
+                long currentOffset = FitsUtil.findOffset(file);
+                FitsUtil.reposition(file, this.table.getFileOffset() + (long) this.firstRow * rowLen);
+                file.readFully(this.block, 0, this.rowCount * rowLen);
+                FitsUtil.reposition(file, currentOffset);
+            }
+        } catch (IOException e) {
+            throw new FitsException("Error reading table rows:" + e);
+        }
+        for (int i = 0; i < this.cols.length; i += 1) {
+            ColumnTable.extractColumn(this.rows, rowLen, this.rowCount, this.colOffsets[this.cols[i]], sizes[this.cols[i]], this.batch[i], 0);
+        }
+        return this.batch;
+    }
+}
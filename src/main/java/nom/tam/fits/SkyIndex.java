@@ -0,0 +1,358 @@
+package nom.tam.fits;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A spatial index of the sky positions in two angular columns (e.g., RA and
+ * DEC, in degrees) of a binary table, for cone and box searches. The sky is
+ * divided into 2^order bands of declination, each cut into 2^(order+1) cells of
+ * right ascension, and cells are numbered band by band. The index keeps the
+ * occupied cells in ascending order with the range of entries falling in each,
+ * so a query covering part of a band needs a single binary search for the cells
+ * it touches, and only the entries in those cells are tested against the exact
+ * region. The positions are kept in the index so queries do not read the table.
+ * Rows with NaN positions are not indexed.
+ */
+public class SkyIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The finest resolution, about 40 arcseconds per band */
+    public static final int MAX_ORDER = 14;
+
+    /** The number of rows per cell aimed for when the order is chosen */
+    private static final int ROWS_PER_CELL = 4;
+
+    /**
+     * Choose an order giving a few rows per cell on average for a table.
+     */
+    public static int defaultOrder(int nRows) {
+        int order = 0;
+        while (order < SkyIndex.MAX_ORDER && 2L << 2 * order < nRows / SkyIndex.ROWS_PER_CELL) {
+            order += 1;
+        }
+        return order;
+    }
+
+    private final int raColumn;
+
+    private final int decColumn;
+
+    private final int order;
+
+    /** The number of declination bands */
+    private final int nDec;
+
+    /** The number of right ascension cells per band */
+    private final int nRa;
+
+    /** The occupied cells in ascending order */
+    private final int[] cells;
+
+    /** The first entry of each occupied cell, and the number of entries */
+    private final int[] starts;
+
+    /** The row, right ascension and declination of each entry by cell */
+    private final int[] rows;
+
+    private final double[] ra;
+
+    private final double[] dec;
+
+    /**
+     * Build the index of a table at a resolution suited to its size.
+     * 
+     * @param table
+     *            The table.
+     * @param raCol
+     *            A scalar numeric column with the longitude in degrees.
+     * @param decCol
+     *            A scalar numeric column with the latitude in degrees.
+     */
+    public SkyIndex(BinaryTable table, int raCol, int decCol) throws FitsException {
+        this(table, raCol, decCol, SkyIndex.defaultOrder(table.getNRows()));
+    }
+
+    /**
+     * Build the index of a table. The columns are read a block of rows at a
+     * time, so a deferred table is not read into memory.
+     * 
+     * @param table
+     *            The table.
+     * @param raCol
+     *            A scalar numeric column with the longitude in degrees.
+     * @param decCol
+     *            A scalar numeric column with the latitude in degrees.
+     * @param order
+     *            The resolution: there are 2^order declination bands.
+     */
+    public SkyIndex(BinaryTable table, int raCol, int decCol, int order) throws FitsException {
+        if (!table.isScalarNumeric(raCol) || !table.isScalarNumeric(decCol)) {
+            throw new FitsException("Columns " + raCol + " and " + decCol + " must be scalar numeric columns");
+        }
+        if (order < 0 || order > SkyIndex.MAX_ORDER) {
+            throw new FitsException("Invalid sky index order: " + order);
+        }
+        this.raColumn = raCol;
+        this.decColumn = decCol;
+        this.order = order;
+        this.nDec = 1 << order;
+        this.nRa = 2 << order;
+
+        int nRows = table.getNRows();
+        double[] raValues = new double[nRows];
+        double[] decValues = new double[nRows];
+        // The cell in the high word and the row in the low word, so sorting
+        // orders the entries by cell and then by row.
+        long[] entries = new long[nRows];
+        int count = 0;
+        RowBatchIterator iter = table.getRowBatchIterator(Math.max(1, 1024 * 1024 / Math.max(1, table.rowLen)), raCol, decCol);
+        while (iter.hasNext()) {
+            Object[] batch = iter.next();
+            for (int i = 0; i < iter.getRowCount(); i += 1) {
+                double lon = ColumnIndex.value(batch[0], i);
+                double lat = ColumnIndex.value(batch[1], i);
+                if (lon == lon && lat == lat) {
+                    int row = iter.getFirstRow() + i;
+                    lon = SkyIndex.normalize(lon);
+                    raValues[row] = lon;
+                    decValues[row] = lat;
+                    entries[count] = (long) cell(lon, lat) << 32 | row;
+                    count += 1;
+                }
+            }
+        }
+        Arrays.sort(entries, 0, count);
+
+        this.rows = new int[count];
+        this.ra = new double[count];
+        this.dec = new double[count];
+        int[] occupied = new int[count];
+        int[] first = new int[count + 1];
+        int nCells = 0;
+        for (int i = 0; i < count; i += 1) {
+            int c = (int) (entries[i] >>> 32);
+            int row = (int) entries[i];
+            if (nCells == 0 || occupied[nCells - 1] != c) {
+                occupied[nCells] = c;
+                first[nCells] = i;
+                nCells += 1;
+            }
+            this.rows[i] = row;
+            this.ra[i] = raValues[row];
+            this.dec[i] = decValues[row];
+        }
+        first[nCells] = count;
+        this.cells = Arrays.copyOf(occupied, nCells);
+        this.starts = Arrays.copyOf(first, nCells + 1);
+    }
+
+    /** Bring a longitude into [0, 360) */
+    private static double normalize(double lon) {
+        lon %= 360;
+        return lon < 0 ? lon + 360 : lon;
+    }
+
+    /** The cell holding a position */
+    private int cell(double lon, double lat) {
+        return decBand(lat) * this.nRa + raCell(lon);
+    }
+
+    private int decBand(double lat) {
+        int band = (int) Math.floor((lat + 90) / 180 * this.nDec);
+        return Math.max(0, Math.min(this.nDec - 1, band));
+    }
+
+    private int raCell(double lon) {
+        return Math.min(this.nRa - 1, (int) (lon / 360 * this.nRa));
+    }
+
+    /**
+     * Find the rows with positions in a box. The box spans the longitudes from
+     * raMin eastwards to raMax, so it crosses zero if raMin is greater than
+     * raMax, and the latitudes between decMin and decMax. The limits are
+     * inclusive. A box spanning 360 degrees or more covers all longitudes.
+     * 
+     * @return the rows in ascending order.
+     */
+    public int[] findBox(double raMin, double raMax, double decMin, double decMax) {
+        if (raMax - raMin >= 360) {
+            // Normalizing would make e.g. 0 to 360 an empty range.
+            raMin = 0;
+            raMax = 360;
+        } else {
+            raMin = SkyIndex.normalize(raMin);
+            raMax = SkyIndex.normalize(raMax);
+        }
+        boolean wraps = raMin > raMax;
+        Candidates found = new Candidates();
+        for (int band = decBand(decMin); band <= decBand(decMax); band += 1) {
+            if (wraps) {
+                addCells(found, band, raCell(raMin), this.nRa - 1);
+                addCells(found, band, 0, raCell(raMax));
+            } else {
+                addCells(found, band, raCell(raMin), raCell(raMax));
+            }
+        }
+        int n = 0;
+        for (int i = 0; i < found.count; i += 1) {
+            int entry = found.entries[i];
+            double lon = this.ra[entry];
+            double lat = this.dec[entry];
+            if (lat >= decMin && lat <= decMax && (wraps ? lon >= raMin || lon <= raMax : lon >= raMin && lon <= raMax)) {
+                found.entries[n] = this.rows[entry];
+                n += 1;
+            }
+        }
+        return found.sorted(n);
+    }
+
+    /**
+     * Find the rows with positions within a distance of a point.
+     * 
+     * @param lon
+     *            The longitude of the center in degrees.
+     * @param lat
+     *            The latitude of the center in degrees.
+     * @param radius
+     *            The radius of the cone in degrees.
+     * @return the rows in ascending order.
+     */
+    public int[] findCone(double lon, double lat, double radius) {
+        lon = SkyIndex.normalize(lon);
+        double decMin = lat - radius;
+        double decMax = lat + radius;
+        // The half width in longitude of the cone, which covers all
+        // longitudes if it contains a pole.
+        double halfWidth = 180;
+        if (decMin > -90 && decMax < 90) {
+            halfWidth = Math.toDegrees(Math.asin(Math.min(1, Math.sin(Math.toRadians(radius)) / Math.cos(Math.toRadians(lat)))));
+        }
+        Candidates found = new Candidates();
+        for (int band = decBand(decMin); band <= decBand(decMax); band += 1) {
+            if (halfWidth >= 180) {
+                addCells(found, band, 0, this.nRa - 1);
+            } else if (lon - halfWidth < 0) {
+                addCells(found, band, 0, raCell(lon + halfWidth));
+                addCells(found, band, raCell(lon - halfWidth + 360), this.nRa - 1);
+            } else if (lon + halfWidth >= 360) {
+                addCells(found, band, 0, raCell(lon + halfWidth - 360));
+                addCells(found, band, raCell(lon - halfWidth), this.nRa - 1);
+            } else {
+                addCells(found, band, raCell(lon - halfWidth), raCell(lon + halfWidth));
+            }
+        }
+        double sinLat = Math.sin(Math.toRadians(lat));
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double cosRadius = Math.cos(Math.toRadians(radius));
+        int n = 0;
+        for (int i = 0; i < found.count; i += 1) {
+            int entry = found.entries[i];
+            double entryLat = Math.toRadians(this.dec[entry]);
+            double cosDistance = sinLat * Math.sin(entryLat) + cosLat * Math.cos(entryLat) * Math.cos(Math.toRadians(this.ra[entry] - lon));
+            if (cosDistance >= cosRadius) {
+                found.entries[n] = this.rows[entry];
+                n += 1;
+            }
+        }
+        return found.sorted(n);
+    }
+
+    /** Add the entries in a range of cells of a band to the candidates */
+    private void addCells(Candidates found, int band, int fromCell, int toCell) {
+        int low = Arrays.binarySearch(this.cells, band * this.nRa + fromCell);
+        if (low < 0) {
+            low = -low - 1;
+        }
+        int high = Arrays.binarySearch(this.cells, band * this.nRa + toCell);
+        high = high < 0 ? -high - 1 : high + 1;
+        if (low < high) {
+            found.add(this.starts[low], this.starts[high]);
+        }
+    }
+
+    /**
+     * @return the column with the declinations.
+     */
+    public int getDecColumn() {
+        return this.decColumn;
+    }
+
+    /**
+     * @return the resolution of the index: there are 2^order declination bands.
+     */
+    public int getOrder() {
+        return this.order;
+    }
+
+    /**
+     * @return the column with the right ascensions.
+     */
+    public int getRaColumn() {
+        return this.raColumn;
+    }
+
+    /**
+     * @return the number of rows indexed, i.e., those without NaN positions.
+     */
+    public int size() {
+        return this.rows.length;
+    }
+
+    /** The entries to be tested in a query */
+    private static class Candidates {
+
+        private int[] entries = new int[64];
+
+        private int count;
+
+        void add(int from, int to) {
+            if (this.count + to - from > this.entries.length) {
+                this.entries = Arrays.copyOf(this.entries, Math.max(2 * this.entries.length, this.count + to - from));
+            }
+            for (int i = from; i < to; i += 1) {
+                this.entries[this.count] = i;
+                this.count += 1;
+            }
+        }
+
+        /** The first n entries, which have been replaced by rows, in order */
+        int[] sorted(int n) {
+            int[] result = Arrays.copyOf(this.entries, n);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
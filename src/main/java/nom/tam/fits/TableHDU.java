@@ -31,12 +31,18 @@ package nom.tam.fits;
  * #L%
  */
 
+import nom.tam.util.ColumnStatistics;
+
 /**
  * This class allows FITS binary and ASCII tables to be accessed via a common
  * interface. Bug Fix: 3/28/01 to findColumn.
  */
 public abstract class TableHDU extends BasicHDU {
 
+    static final String TDMIN_COMMENT = "minimum physical value in the column";
+
+    static final String TDMAX_COMMENT = "maximum physical value in the column";
+
     private final TableData table;
 
     /**
@@ -289,6 +295,19 @@ public abstract class TableHDU extends BasicHDU {
         return this.table.getElement(row, col);
     }
 
+    /**
+     * Get the statistics of the stored values of a numeric column.
+     * 
+     * @return the statistics, or null if the column is not numeric or the table
+     *         does not extend {@link AbstractTableData}.
+     */
+    public ColumnStatistics getColumnStatistics(int col) throws FitsException {
+        if (this.table instanceof AbstractTableData) {
+            return ((AbstractTableData) this.table).getColumnStatistics(col);
+        }
+        return null;
+    }
+
     /**
      * Get the number of columns for this table
      * 
@@ -328,6 +347,50 @@ public abstract class TableHDU extends BasicHDU {
         setColumn(findColumn(colName), newCol);
     }
 
+    /**
+     * Add TDMINn and TDMAXn cards giving the range of the physical values of
+     * each numeric column which has any defined values. These let a reader
+     * decide whether a table can hold values of interest without reading it.
+     */
+    public void setColumnLimits() throws FitsException {
+        for (int col = 0; col < getNCols(); col += 1) {
+            ColumnStatistics stats = getColumnStatistics(col);
+            if (stats != null && stats.getCount() > 0) {
+                double[] range = TableHDU.physicalRange(this.myHeader, col, stats);
+                if (TableHDU.isIntegralRange(this.myHeader, col, stats)) {
+                    setColumnMeta(col, "TDMIN", (long) range[0], TableHDU.TDMIN_COMMENT, true);
+                    setColumnMeta(col, "TDMAX", (long) range[1], TableHDU.TDMAX_COMMENT, true);
+                } else {
+                    setColumnMeta(col, "TDMIN", range[0], TableHDU.TDMIN_COMMENT, true);
+                    setColumnMeta(col, "TDMAX", range[1], TableHDU.TDMAX_COMMENT, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * The range of the physical values of a column given the statistics of its
+     * stored values and the scaling in the header.
+     */
+    static double[] physicalRange(Header header, int col, ColumnStatistics stats) {
+        double scale = header.getDoubleValue("TSCAL" + (col + 1), 1);
+        double zero = header.getDoubleValue("TZERO" + (col + 1), 0);
+        double low = stats.getMin() * scale + zero;
+        double high = stats.getMax() * scale + zero;
+        return new double[]{
+            Math.min(low, high),
+            Math.max(low, high)
+        };
+    }
+
+    /**
+     * Are the physical values of a column integers?
+     */
+    static boolean isIntegralRange(Header header, int col, ColumnStatistics stats) {
+        double zero = header.getDoubleValue("TZERO" + (col + 1), 0);
+        return stats.isIntegral() && header.getDoubleValue("TSCAL" + (col + 1), 1) == 1 && zero == Math.rint(zero);
+    }
+
     public void setColumnMeta(int index, String key, boolean value, String comment, boolean after) throws FitsException {
         setCurrentColumn(index, after);
         this.myHeader.addValue(key + (index + 1), value, comment);
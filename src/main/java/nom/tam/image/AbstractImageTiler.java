@@ -0,0 +1,92 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+
+/**
+ * A base class for image tilers, with implementations of the tile requests that
+ * were not part of the original {@link ImageTiler} interface. Tilers extending
+ * this class rather than only implementing the interface keep working as
+ * requests are added.
+ */
+public abstract class AbstractImageTiler implements ImageTiler {
+
+    private final int[] dims;
+
+    private final Class base;
+
+    /**
+     * Create a tiler.
+     * 
+     * @param dims
+     *            The dimensions of the image.
+     * @param base
+     *            The primitive type of the image.
+     */
+    protected AbstractImageTiler(int[] dims, Class base) {
+        this.dims = dims;
+        this.base = base;
+    }
+
+    /**
+     * Get the mean values of the pixels of a tile in bins. Only the rows within
+     * the bins are read.
+     * 
+     * @param corners
+     *            The starting corner of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     * @param bins
+     *            The size of a bin in each dimension.
+     * @see TileSampler#bin(ImageTiler, int[], Class, int[], int[], int[])
+     */
+    public double[] getBinnedTile(int[] corners, int[] lengths, int[] bins) throws IOException {
+        return TileSampler.bin(this, this.dims, this.base, corners, lengths, bins);
+    }
+
+    /**
+     * Get every step'th pixel of a tile in each dimension. Rows which hold none
+     * of the pixels are not read.
+     * 
+     * @param corners
+     *            The starting corner of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     * @param steps
+     *            The spacing of the pixels in each dimension.
+     * @see TileSampler#sample(ImageTiler, int[], Class, int[], int[], int[])
+     */
+    public Object getTile(int[] corners, int[] lengths, int[] steps) throws IOException {
+        return TileSampler.sample(this, this.dims, this.base, corners, lengths, steps);
+    }
+}
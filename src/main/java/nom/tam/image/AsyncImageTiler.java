@@ -0,0 +1,234 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches tiles in the background so that the threads asking for them never
+ * block on the disk. Requests are run by an executor supplied by the caller,
+ * which the library does not shut down, and return a Future and optionally call
+ * back when the tile is ready. At most a given number of requests may be
+ * outstanding; further requests are rejected at once rather than queued without
+ * limit.
+ * <p>
+ * The tiler wrapped must allow several threads to use it at once, e.g., a
+ * ConcurrentImageTiler, unless the executor has a single thread.
+ */
+public class AsyncImageTiler {
+
+    /** Receives the result of a request */
+    public interface TileCallback {
+
+        /** Called with the tile when it has been read */
+        void completed(Object tile);
+
+        /**
+         * Called if the tile could not be read, or with a CancellationException
+         * if the request was cancelled.
+         */
+        void failed(Throwable error);
+    }
+
+    /**
+     * A request for a tile. Cancelling a request which is being read lets the
+     * read finish, since interrupting a thread reading a FileChannel would
+     * close the channel for every user of the file; the tile is discarded. The
+     * request counts as outstanding until the read ends.
+     */
+    private final class TileRequest extends FutureTask<Object> {
+
+        private final TileCallback callback;
+
+        /** Set by whichever of run and cancel owns the release of the permit */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        TileRequest(Callable<Object> read, TileCallback callback) {
+            super(read);
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            // A request which never started will not run, so it is no longer
+            // outstanding.
+            if (cancelled && this.claimed.compareAndSet(false, true)) {
+                AsyncImageTiler.this.permits.release();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                AsyncImageTiler.this.permits.release();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (this.callback == null) {
+                return;
+            }
+            try {
+                this.callback.completed(get());
+            } catch (CancellationException e) {
+                this.callback.failed(e);
+            } catch (ExecutionException e) {
+                this.callback.failed(e.getCause());
+            } catch (InterruptedException e) {
+                // Cannot happen since the task is done.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final AbstractImageTiler tiler;
+
+    private final ExecutorService executor;
+
+    private final int maxOutstanding;
+
+    private final Semaphore permits;
+
+    /**
+     * Create an asynchronous tiler.
+     * 
+     * @param tiler
+     *            The tiler which reads the tiles.
+     * @param executor
+     *            The executor which runs the reads.
+     * @param maxOutstanding
+     *            The largest number of requests which may be queued or running
+     *            at once.
+     */
+    public AsyncImageTiler(AbstractImageTiler tiler, ExecutorService executor, int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("Invalid limit on outstanding tile requests: " + maxOutstanding);
+        }
+        this.tiler = tiler;
+        this.executor = executor;
+        this.maxOutstanding = maxOutstanding;
+        this.permits = new Semaphore(maxOutstanding);
+    }
+
+    /** Get the largest number of outstanding requests */
+    public int getMaxOutstanding() {
+        return this.maxOutstanding;
+    }
+
+    /** Get the number of requests which are queued or running */
+    public int getOutstanding() {
+        return this.maxOutstanding - this.permits.availablePermits();
+    }
+
+    /**
+     * Request a subset of the image.
+     * 
+     * @see ImageTiler#getTile(int[], int[])
+     * @throws RejectedExecutionException
+     *             if too many requests are outstanding or the executor does not
+     *             accept the request.
+     */
+    public Future<Object> getTile(int[] corners, int[] lengths) {
+        return getTile(corners, lengths, null);
+    }
+
+    /**
+     * Request a subset of the image, calling back when it has been read. The
+     * callback is run by the thread which read the tile, or by the thread which
+     * cancels the request.
+     * 
+     * @param corners
+     *            The starting corner of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     * @param callback
+     *            The callback, or null.
+     * @throws RejectedExecutionException
+     *             if too many requests are outstanding or the executor does not
+     *             accept the request.
+     */
+    public Future<Object> getTile(final int[] corners, final int[] lengths, TileCallback callback) {
+        return submit(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return AsyncImageTiler.this.tiler.getTile(corners, lengths);
+            }
+        }, callback);
+    }
+
+    /**
+     * Request every step'th pixel of a tile in each dimension.
+     * 
+     * @see AbstractImageTiler#getTile(int[], int[], int[])
+     * @see #getTile(int[], int[], TileCallback)
+     */
+    public Future<Object> getTile(final int[] corners, final int[] lengths, final int[] steps, TileCallback callback) {
+        return submit(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return AsyncImageTiler.this.tiler.getTile(corners, lengths, steps);
+            }
+        }, callback);
+    }
+
+    private Future<Object> submit(Callable<Object> read, TileCallback callback) {
+        if (!this.permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many outstanding tile requests: " + this.maxOutstanding);
+        }
+        TileRequest request = new TileRequest(read, callback);
+        try {
+            this.executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            this.permits.release();
+            throw e;
+        }
+        return request;
+    }
+}
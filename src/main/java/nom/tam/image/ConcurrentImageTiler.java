@@ -0,0 +1,349 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import nom.tam.util.ArrayFuncs;
+
+/**
+ * An image tiler which may be used by many threads at once. Unlike
+ * StandardImageTiler, which seeks and reads through a shared RandomAccess
+ * device, this tiler reads the file with positional reads on its own read-only
+ * channel, which neither use nor move a file pointer, and converts the bytes in
+ * a scratch buffer belonging to the calling thread. One open file can thus
+ * serve tiles to any number of threads.
+ * <p>
+ * A thread interrupted during a read closes the channel, as for any
+ * interruptible channel. The read in that thread fails, but the channel is
+ * reopened for the other threads. The tiler should be closed when it is no
+ * longer needed.
+ */
+public class ConcurrentImageTiler extends AbstractImageTiler implements Closeable {
+
+    /** The most bytes read at once */
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+
+    /** The largest scratch buffer kept by a thread between requests */
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    private volatile boolean closed;
+
+    private final long fileOffset;
+
+    private final int[] dims;
+
+    private final Class base;
+
+    /** The number of bytes in a pixel */
+    private final int elementSize;
+
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+
+    private volatile int maxGap = TilePlan.DEFAULT_MAX_GAP;
+
+    private volatile TileCache cache;
+
+    private volatile String source;
+
+    /**
+     * Create a tiler.
+     * 
+     * @param file
+     *            The file holding the image, which is opened for reading.
+     * @param fileOffset
+     *            The offset in the file at which the image data begins.
+     * @param dims
+     *            The dimensions of the image.
+     * @param base
+     *            The primitive type of the image.
+     */
+    public ConcurrentImageTiler(File file, long fileOffset, int[] dims, Class base) throws IOException {
+        super(dims.clone(), base);
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileOffset = fileOffset;
+        this.dims = dims.clone();
+        this.base = base;
+        this.elementSize = ArrayFuncs.getBaseLength(ArrayFuncs.newInstance(base, 0));
+    }
+
+    /**
+     * Close the channel of the tiler. Later requests fail.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+    }
+
+    /**
+     * Read the entire image into a multidimensional array.
+     */
+    @Override
+    public Object getCompleteImage() throws IOException {
+        int[] corners = new int[this.dims.length];
+        return ArrayFuncs.curl(getTile(corners, this.dims), this.dims);
+    }
+
+    /**
+     * Get a subset of the image as a one-dimensional array.
+     * 
+     * @param corners
+     *            The starting corner (using 0 as the start) for the image.
+     * @param lengths
+     *            The length requested in each dimension.
+     */
+    @Override
+    public Object getTile(int[] corners, int[] lengths) throws IOException {
+        Object outArray = newTile(corners, lengths);
+        getTile(outArray, corners, lengths);
+        return outArray;
+    }
+
+    /**
+     * Get a tile, filling in a prespecified array. As for StandardImageTiler,
+     * the tile may extend beyond the image, in which case the elements outside
+     * the image are left unchanged.
+     * 
+     * @param outArray
+     *            The output tile array, with the length given by the product of
+     *            lengths.
+     * @param corners
+     *            The corners of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     */
+    @Override
+    public void getTile(Object outArray, int[] corners, int[] lengths) throws IOException {
+        TilePlan plan = new TilePlan(this.dims, this.elementSize);
+        plan.add(0, corners, lengths);
+        readPlan(plan, new Object[]{
+            outArray
+        });
+    }
+
+    /**
+     * Get several subsets of the image, reading the file in a single pass.
+     * 
+     * @see StandardImageTiler#getTiles(int[][], int[][])
+     */
+    public Object[] getTiles(int[][] corners, int[][] lengths) throws IOException {
+        if (corners.length != lengths.length) {
+            throw new IOException("Inconsistent sub-image request");
+        }
+        Object[] tiles = new Object[corners.length];
+        TilePlan plan = new TilePlan(this.dims, this.elementSize);
+        for (int i = 0; i < tiles.length; i += 1) {
+            tiles[i] = newTile(corners[i], lengths[i]);
+            plan.add(i, corners[i], lengths[i]);
+        }
+        readPlan(plan, tiles);
+        return tiles;
+    }
+
+    /** Create the array for a tile, after checking it is within the image */
+    private Object newTile(int[] corners, int[] lengths) throws IOException {
+        if (corners.length != this.dims.length || lengths.length != this.dims.length) {
+            throw new IOException("Inconsistent sub-image request");
+        }
+        int arraySize = 1;
+        for (int i = 0; i < this.dims.length; i += 1) {
+            if (corners[i] < 0 || lengths[i] < 0 || corners[i] + lengths[i] > this.dims[i]) {
+                throw new IOException("Sub-image not within image");
+            }
+            arraySize *= lengths[i];
+        }
+        return ArrayFuncs.newInstance(this.base, arraySize);
+    }
+
+    /** Get a block of the image from the cache, reading it if needed */
+    private Object getBlock(TileCache blocks, TilePlan.BlockGrid grid, int blockRow, int blockCol) throws IOException {
+        Object data = blocks.get(this.source, blockRow, blockCol);
+        if (data == null) {
+            data = ArrayFuncs.newInstance(this.base, grid.getPixelCount(blockRow, blockCol));
+            readRuns(grid.plan(blockRow, blockCol, this.elementSize), new Object[]{
+                data
+            });
+            blocks.put(this.source, blockRow, blockCol, data);
+        }
+        return data;
+    }
+
+    /**
+     * Use a cache for the blocks of the image read from the file.
+     * 
+     * @see StandardImageTiler#setCache(TileCache, String)
+     */
+    public void setCache(TileCache cache, String source) {
+        this.source = source;
+        this.cache = source != null ? cache : null;
+    }
+
+    /**
+     * Set the largest gap, in bytes, between two parts of the file which are
+     * read with a single read.
+     * 
+     * @see StandardImageTiler#setMaxGap(int)
+     */
+    public void setMaxGap(int maxGap) {
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Get the scratch buffer of the current thread, of at least a size. Larger
+     * buffers than MAX_SCRATCH_SIZE are allocated for the call and not kept.
+     */
+    private ByteBuffer getScratch(int size) {
+        ByteBuffer buf = this.scratch.get();
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocate(size);
+            if (size <= ConcurrentImageTiler.MAX_SCRATCH_SIZE) {
+                this.scratch.set(buf);
+            }
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Read consecutive pixels into the output array.
+     * 
+     * @param output
+     *            The output tile.
+     * @param delta
+     *            The offset of the first pixel from the beginning of the image
+     *            in bytes.
+     * @param outputOffset
+     *            The index of the first pixel in the output.
+     * @param count
+     *            The number of pixels.
+     */
+    private void readSegment(Object output, long delta, int outputOffset, int count) throws IOException {
+        int chunk = Math.max(1, ConcurrentImageTiler.MAX_READ_SIZE / this.elementSize);
+        ByteBuffer buf = getScratch(Math.min(count, chunk) * this.elementSize);
+        while (count > 0) {
+            int n = Math.min(count, chunk);
+            buf.clear();
+            buf.limit(n * this.elementSize);
+            readFully(buf, this.fileOffset + delta);
+            TilePlan.copy(buf, this.base, output, outputOffset, n);
+            delta += (long) n * this.elementSize;
+            outputOffset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Fill a buffer from a position in the file and flip it. If another thread
+     * closed the channel by being interrupted, the channel is reopened and the
+     * read goes on.
+     */
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            FileChannel current = this.channel;
+            int got;
+            try {
+                got = current.read(buf, position);
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                reopen(current);
+                continue;
+            }
+            if (got < 0) {
+                throw new EOFException("End of file reading tile at " + position);
+            }
+            position += got;
+        }
+        buf.flip();
+    }
+
+    /** Replace a channel which has been closed, unless the tiler is closed */
+    private synchronized void reopen(FileChannel failed) throws IOException {
+        if (this.closed) {
+            throw new ClosedChannelException();
+        }
+        if (this.channel == failed) {
+            this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Read the runs of a plan into the tiles. A run with a single segment is
+     * read in pieces which fit the scratch buffer. If there is a cache the
+     * tiles are filled from cached blocks of the image instead.
+     */
+    private void readPlan(TilePlan plan, Object[] tiles) throws IOException {
+        final TileCache blocks = this.cache;
+        if (blocks != null) {
+            final TilePlan.BlockGrid grid = new TilePlan.BlockGrid(this.dims);
+            plan.fillFromBlocks(grid, new TilePlan.BlockSource() {
+
+                @Override
+                public Object getBlock(int blockRow, int blockCol) throws IOException {
+                    return ConcurrentImageTiler.this.getBlock(blocks, grid, blockRow, blockCol);
+                }
+            }, tiles);
+        } else {
+            readRuns(plan, tiles);
+        }
+    }
+
+    /** Read the runs of a plan from the file into the tiles */
+    private void readRuns(TilePlan plan, Object[] tiles) throws IOException {
+        plan.coalesce(this.maxGap);
+        for (int run = 0; run < plan.getRunCount(); run += 1) {
+            if (plan.getSegmentCount(run) == 1) {
+                readSegment(tiles[plan.getTile(run)], plan.getRunStart(run), plan.getOutputOffset(run), plan.getPixelCount(run));
+            } else {
+                ByteBuffer buf = getScratch((int) plan.getRunLength(run));
+                readFully(buf, this.fileOffset + plan.getRunStart(run));
+                plan.scatter(run, buf, this.base, tiles);
+            }
+        }
+    }
+}
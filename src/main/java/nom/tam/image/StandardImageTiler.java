@@ -32,6 +32,7 @@ package nom.tam.image;
  */
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import nom.tam.util.ArrayFuncs;
 import nom.tam.util.RandomAccess;
@@ -40,7 +41,7 @@ import nom.tam.util.RandomAccess;
  * This class provides a subset of an N-dimensional image. Modified May 2, 2000
  * by T. McGlynn to permit tiles that go off the edge of the image.
  */
-public abstract class StandardImageTiler implements ImageTiler {
+public abstract class StandardImageTiler extends AbstractImageTiler {
 
     /**
      * Get the offset of a given position.
@@ -96,6 +97,12 @@ public abstract class StandardImageTiler implements ImageTiler {
 
     private final Class base;
 
+    private int maxGap = TilePlan.DEFAULT_MAX_GAP;
+
+    private TileCache cache;
+
+    private String source;
+
     /**
      * Create a tiler.
      * 
@@ -112,6 +119,7 @@ public abstract class StandardImageTiler implements ImageTiler {
      *            The base class (should be a primitive type) of the image.
      */
     public StandardImageTiler(RandomAccess f, long fileOffset, int[] dims, Class base) {
+        super(dims, base);
         this.f = f;
         this.fileOffset = fileOffset;
         this.dims = dims;
@@ -130,7 +138,7 @@ public abstract class StandardImageTiler implements ImageTiler {
      * @param segment
      *            The number of elements to be read for this segment.
      */
-    protected void fillFileData(Object output, int delta, int outputOffset, int segment) throws IOException {
+    protected void fillFileData(Object output, long delta, int outputOffset, int segment) throws IOException {
 
         this.f.seek(this.fileOffset + delta);
 
@@ -200,7 +208,9 @@ public abstract class StandardImageTiler implements ImageTiler {
     }
 
     /**
-     * Fill the subset.
+     * Fill the subset. When the image is read from the file, the segments of
+     * the tile are planned first, and segments separated by small gaps are read
+     * together and then copied into the tile.
      * 
      * @param data
      *            The memory-resident data image. This may be null if the image
@@ -217,16 +227,20 @@ public abstract class StandardImageTiler implements ImageTiler {
      */
     protected void fillTile(Object data, Object o, int[] dims, int[] corners, int[] lengths) throws IOException {
 
+        if (data == null) {
+            TilePlan plan = new TilePlan(dims, ArrayFuncs.getBaseLength(o));
+            plan.add(0, corners, lengths);
+            readPlan(plan, new Object[]{
+                o
+            });
+            return;
+        }
+
         int n = dims.length;
         int[] posits = new int[n];
-        int baseLength = ArrayFuncs.getBaseLength(o);
         int segment = lengths[n - 1];
 
         System.arraycopy(corners, 0, posits, 0, n);
-        long currentOffset = 0;
-        if (data == null) {
-            currentOffset = this.f.getFilePointer();
-        }
 
         int outputOffset = 0;
 
@@ -253,33 +267,11 @@ public abstract class StandardImageTiler implements ImageTiler {
             }
 
             if (validSegment) {
-                if (data != null) {
-                    fillMemData(data, posits, segment, o, outputOffset, 0);
-                } else {
-                    int offset = getOffset(dims, posits) * baseLength;
-
-                    // Point to offset at real beginning
-                    // of segment
-                    int actualLen = segment;
-                    int actualOffset = offset;
-                    int actualOutput = outputOffset;
-                    if (posits[mx] < 0) {
-                        actualOffset -= posits[mx] * baseLength;
-                        actualOutput -= posits[mx];
-                        actualLen += posits[mx];
-                    }
-                    if (posits[mx] + segment > dims[mx]) {
-                        actualLen -= posits[mx] + segment - dims[mx];
-                    }
-                    fillFileData(o, actualOffset, actualOutput, actualLen);
-                }
+                fillMemData(data, posits, segment, o, outputOffset, 0);
             }
             outputOffset += segment;
 
         } while (incrementPosition(corners, posits, lengths));
-        if (data == null) {
-            this.f.seek(currentOffset);
-        }
     }
 
     /**
@@ -299,6 +291,103 @@ public abstract class StandardImageTiler implements ImageTiler {
         return o;
     }
 
+    /** Create the array for a tile, after checking it is within the image */
+    private Object newTile(int[] corners, int[] lengths) throws IOException {
+        if (corners.length != this.dims.length || lengths.length != this.dims.length) {
+            throw new IOException("Inconsistent sub-image request");
+        }
+
+        int arraySize = 1;
+        for (int i = 0; i < this.dims.length; i += 1) {
+
+            if (corners[i] < 0 || lengths[i] < 0 || corners[i] + lengths[i] > this.dims[i]) {
+                throw new IOException("Sub-image not within image");
+            }
+
+            arraySize *= lengths[i];
+        }
+
+        return ArrayFuncs.newInstance(this.base, arraySize);
+    }
+
+    /**
+     * Read the runs of a plan from the file into the tiles. A run with a single
+     * segment is read directly into its tile. If there is a cache the tiles are
+     * filled from cached blocks of the image instead.
+     */
+    private void readPlan(TilePlan plan, Object[] tiles) throws IOException {
+        long currentOffset = this.f.getFilePointer();
+        if (this.cache != null) {
+            final TilePlan.BlockGrid grid = new TilePlan.BlockGrid(this.dims);
+            plan.fillFromBlocks(grid, new TilePlan.BlockSource() {
+
+                @Override
+                public Object getBlock(int blockRow, int blockCol) throws IOException {
+                    return StandardImageTiler.this.getBlock(grid, blockRow, blockCol);
+                }
+            }, tiles);
+        } else {
+            readRuns(plan, tiles);
+        }
+        this.f.seek(currentOffset);
+    }
+
+    /** Read the runs of a plan from the file into the tiles */
+    private void readRuns(TilePlan plan, Object[] tiles) throws IOException {
+        plan.coalesce(this.maxGap);
+        byte[] buf = new byte[0];
+        for (int run = 0; run < plan.getRunCount(); run += 1) {
+            if (plan.getSegmentCount(run) == 1) {
+                fillFileData(tiles[plan.getTile(run)], plan.getRunStart(run), plan.getOutputOffset(run), plan.getPixelCount(run));
+            } else {
+                int length = (int) plan.getRunLength(run);
+                if (buf.length < length) {
+                    buf = new byte[length];
+                }
+                this.f.seek(this.fileOffset + plan.getRunStart(run));
+                this.f.readFully(buf, 0, length);
+                plan.scatter(run, ByteBuffer.wrap(buf, 0, length).slice(), this.base, tiles);
+            }
+        }
+    }
+
+    /** Get a block of the image from the cache, reading it if needed */
+    private Object getBlock(TilePlan.BlockGrid grid, int blockRow, int blockCol) throws IOException {
+        Object data = this.cache.get(this.source, blockRow, blockCol);
+        if (data == null) {
+            data = ArrayFuncs.newInstance(this.base, grid.getPixelCount(blockRow, blockCol));
+            readRuns(grid.plan(blockRow, blockCol, ArrayFuncs.getBaseLength(data)), new Object[]{
+                data
+            });
+            this.cache.put(this.source, blockRow, blockCol, data);
+        }
+        return data;
+    }
+
+    /**
+     * Use a cache for the blocks of the image read from the file.
+     * 
+     * @param cache
+     *            The cache, or null to read the file for each tile.
+     * @param source
+     *            The key of the image in the cache, e.g., Data.getSourceKey(),
+     *            which must be the same for every tiler of the image sharing
+     *            the cache.
+     */
+    public void setCache(TileCache cache, String source) {
+        this.cache = source != null ? cache : null;
+        this.source = source;
+    }
+
+    /**
+     * Set the largest gap, in bytes, between two parts of the file which are
+     * read with a single read rather than with a seek and two reads. Use 0 to
+     * merge only adjacent parts.
+     */
+    public void setMaxGap(int maxGap) {
+        this.maxGap = maxGap;
+    }
+
     /**
      * See if we can get the image data from memory. This may be overriden by
      * other classes, notably in nom.tam.fits.ImageData.
@@ -316,25 +405,48 @@ public abstract class StandardImageTiler implements ImageTiler {
      */
     @Override
     public Object getTile(int[] corners, int[] lengths) throws IOException {
+        Object outArray = newTile(corners, lengths);
+        getTile(outArray, corners, lengths);
+        return outArray;
+    }
 
-        if (corners.length != this.dims.length || lengths.length != this.dims.length) {
+    /**
+     * Get several subsets of the image. When the image is read from the file,
+     * the reads for all the tiles are sorted by their position in the file and
+     * nearby reads are merged, so the file is read in a single pass.
+     * 
+     * @param corners
+     *            The starting corner of each tile.
+     * @param lengths
+     *            The dimensions of each tile.
+     * @return the tiles as one-dimensional arrays.
+     */
+    public Object[] getTiles(int[][] corners, int[][] lengths) throws IOException {
+        if (corners.length != lengths.length) {
             throw new IOException("Inconsistent sub-image request");
         }
-
-        int arraySize = 1;
-        for (int i = 0; i < this.dims.length; i += 1) {
-
-            if (corners[i] < 0 || lengths[i] < 0 || corners[i] + lengths[i] > this.dims[i]) {
-                throw new IOException("Sub-image not within image");
+        Object[] tiles = new Object[corners.length];
+        if (tiles.length == 0) {
+            return tiles;
+        }
+        for (int i = 0; i < tiles.length; i += 1) {
+            tiles[i] = newTile(corners[i], lengths[i]);
+        }
+        Object data = getMemoryImage();
+        if (data != null) {
+            for (int i = 0; i < tiles.length; i += 1) {
+                fillTile(data, tiles[i], this.dims, corners[i], lengths[i]);
             }
-
-            arraySize *= lengths[i];
+        } else if (this.f == null) {
+            throw new IOException("No data source for tile subset");
+        } else {
+            TilePlan plan = new TilePlan(this.dims, ArrayFuncs.getBaseLength(tiles[0]));
+            for (int i = 0; i < tiles.length; i += 1) {
+                plan.add(i, corners[i], lengths[i]);
+            }
+            readPlan(plan, tiles);
         }
-
-        Object outArray = ArrayFuncs.newInstance(this.base, arraySize);
-
-        getTile(outArray, corners, lengths);
-        return outArray;
+        return tiles;
     }
 
     /**
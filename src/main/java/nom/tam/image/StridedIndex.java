@@ -0,0 +1,129 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * This class maps the indices of a multi-dimensional image onto the offset of
+ * the pixel within a flat (one-dimensional) representation of the image, e.g.,
+ * a java.nio.Buffer returned by ImageData.getBuffer(). The dimensions are given
+ * in Java order, i.e., the reverse of the FITS NAXISn order, so that the last
+ * index varies fastest.
+ * <p>
+ * Offsets are returned as longs since a large image may contain more than 2^31
+ * pixels even though every dimension fits within an int.
+ */
+public class StridedIndex {
+
+    private final int[] dims;
+
+    private final long[] strides;
+
+    private final long size;
+
+    /**
+     * Create an index for an image.
+     * 
+     * @param dims
+     *            The dimensions of the image in Java order.
+     */
+    public StridedIndex(int[] dims) {
+        this.dims = dims.clone();
+        this.strides = new long[dims.length];
+        long stride = 1;
+        for (int i = dims.length - 1; i >= 0; i -= 1) {
+            if (dims[i] < 0) {
+                throw new IllegalArgumentException("Invalid dimension:" + dims[i]);
+            }
+            this.strides[i] = stride;
+            stride *= dims[i];
+        }
+        this.size = stride;
+    }
+
+    /** Get the dimensions of the image in Java order. */
+    public int[] getDimensions() {
+        return this.dims.clone();
+    }
+
+    /**
+     * Get the number of pixels that separate adjacent values of each index. The
+     * stride of the last index is always 1.
+     */
+    public long[] getStrides() {
+        return this.strides.clone();
+    }
+
+    /** Get the total number of pixels in the image. */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Get the offset of a pixel.
+     * 
+     * @param pos
+     *            The indices of the pixel in Java order. There must be one
+     *            index for each dimension of the image.
+     */
+    public long offset(int... pos) {
+        if (pos.length != this.dims.length) {
+            throw new IllegalArgumentException("Expected " + this.dims.length + " indices but got " + pos.length);
+        }
+        long offset = 0;
+        for (int i = 0; i < pos.length; i += 1) {
+            if (pos[i] < 0 || pos[i] >= this.dims[i]) {
+                throw new IndexOutOfBoundsException("Index " + pos[i] + " outside dimension " + i + " of size " + this.dims[i]);
+            }
+            offset += pos[i] * this.strides[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Get the indices of the pixel at a given offset.
+     * 
+     * @param offset
+     *            The offset of the pixel in the flat image.
+     * @param pos
+     *            An array, with one element per dimension, to be filled with
+     *            the indices of the pixel.
+     */
+    public void position(long offset, int[] pos) {
+        if (offset < 0 || offset >= this.size) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside image of " + this.size + " pixels");
+        }
+        for (int i = 0; i < this.dims.length; i += 1) {
+            pos[i] = (int) (offset / this.strides[i]);
+            offset -= pos[i] * this.strides[i];
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nom.tam.util.ArrayFuncs;
+
+/**
+ * A cache of decoded blocks of images, which may be shared by the tilers of
+ * many HDUs and threads. Blocks are identified by a source, a key for the HDU
+ * in its file such as Data.getSourceKey(), and either a block number or the row
+ * and column of the block in a grid, whose meaning is up to the tiler. The
+ * cache holds up to a given number of bytes, and the least recently used blocks
+ * are evicted first. It is split into stripes, each guarded by its own lock and
+ * holding an equal share of the budget, so threads using different blocks
+ * rarely wait for each other.
+ * <p>
+ * The cache is used by tilers when it has been set with
+ * FitsFactory.setTileCache().
+ */
+public class TileCache {
+
+    /** The default number of stripes */
+    private static final int DEFAULT_STRIPES = 16;
+
+    /** The key of a block */
+    private static final class Key {
+
+        private final String source;
+
+        private final long row;
+
+        private final long col;
+
+        Key(String source, long row, long col) {
+            this.source = source;
+            this.row = row;
+            this.col = col;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.row == other.row && this.col == other.col && this.source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = this.source.hashCode() * 31 + (int) (this.row ^ this.row >>> 32);
+            return hash * 31 + (int) (this.col ^ this.col >>> 32);
+        }
+    }
+
+    /** A part of the cache, in least recently used order */
+    private static final class Stripe extends LinkedHashMap<Key, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private long bytes;
+
+        Stripe() {
+            super(16, 0.75f, true);
+        }
+    }
+
+    private final long maxBytes;
+
+    private final Stripe[] stripes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache.
+     * 
+     * @param maxBytes
+     *            The largest number of bytes of blocks held.
+     */
+    public TileCache(long maxBytes) {
+        this(maxBytes, TileCache.DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a cache.
+     * 
+     * @param maxBytes
+     *            The largest number of bytes of blocks held.
+     * @param nStripes
+     *            The number of independently locked parts of the cache. A block
+     *            larger than maxBytes / nStripes is never cached.
+     */
+    public TileCache(long maxBytes, int nStripes) {
+        if (maxBytes < 0 || nStripes < 1) {
+            throw new IllegalArgumentException("Invalid tile cache size: " + maxBytes + " bytes in " + nStripes + " stripes");
+        }
+        this.maxBytes = maxBytes;
+        this.stripes = new Stripe[nStripes];
+        for (int i = 0; i < nStripes; i += 1) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /** Remove all blocks. The counters are not reset. */
+    public void clear() {
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+                stripe.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Get a block.
+     * 
+     * @return the block, or null if it is not in the cache.
+     */
+    public Object get(String source, long block) {
+        return get(source, block, 0);
+    }
+
+    /**
+     * Get a block of a grid.
+     * 
+     * @return the block, or null if it is not in the cache.
+     */
+    public Object get(String source, long row, long col) {
+        Key key = new Key(source, row, col);
+        Stripe stripe = stripe(key);
+        Object value;
+        synchronized (stripe) {
+            value = stripe.get(key);
+        }
+        if (value != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    /** Get the number of bytes of the blocks held */
+    public long getBytes() {
+        long bytes = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /** Get the number of blocks removed to keep within the budget */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /** Get the number of requests for blocks which were in the cache */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /** Get the largest number of bytes held */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /** Get the number of requests for blocks which were not in the cache */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Add a block, evicting the least recently used blocks of its stripe as
+     * needed. The block must not be modified afterwards.
+     * 
+     * @param source
+     *            The HDU the block belongs to.
+     * @param block
+     *            The number of the block.
+     * @param value
+     *            The decoded block, a primitive array.
+     */
+    public void put(String source, long block, Object value) {
+        put(source, block, 0, value);
+    }
+
+    /**
+     * Add a block of a grid, evicting the least recently used blocks of its
+     * stripe as needed. The block must not be modified afterwards.
+     * 
+     * @param source
+     *            The HDU the block belongs to.
+     * @param row
+     *            The row of the block in the grid.
+     * @param col
+     *            The column of the block in the grid.
+     * @param value
+     *            The decoded block, a primitive array.
+     */
+    public void put(String source, long row, long col, Object value) {
+        long size = ArrayFuncs.computeLSize(value);
+        long budget = this.maxBytes / this.stripes.length;
+        if (size > budget) {
+            return;
+        }
+        Key key = new Key(source, row, col);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            Object old = stripe.put(key, value);
+            if (old != null) {
+                stripe.bytes -= ArrayFuncs.computeLSize(old);
+            }
+            stripe.bytes += size;
+            Iterator<Map.Entry<Key, Object>> iter = stripe.entrySet().iterator();
+            while (stripe.bytes > budget) {
+                Map.Entry<Key, Object> eldest = iter.next();
+                stripe.bytes -= ArrayFuncs.computeLSize(eldest.getValue());
+                iter.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Get the number of blocks held */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(Key key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return this.stripes[(hash & Integer.MAX_VALUE) % this.stripes.length];
+    }
+}
@@ -0,0 +1,392 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The reads needed to fill one or more tiles of an image stored in a file. Each
+ * tile is broken into segments, i.e., runs of pixels which are consecutive in
+ * both the file and the tile, clipped to the image. The segments are then
+ * sorted by their position in the file and merged into runs which may be read
+ * with a single read, as long as the gaps between segments are small. The data
+ * of a run are then scattered into the tiles.
+ */
+final class TilePlan {
+
+    /** The default largest gap in bytes between segments read together */
+    static final int DEFAULT_MAX_GAP = 16 * 1024;
+
+    /** The largest run in bytes, unless a single segment is larger */
+    static final int MAX_RUN = 4 * 1024 * 1024;
+
+    /** The largest number of pixels in a cached block of an image */
+    static final int BLOCK_PIXELS = 16 * 1024;
+
+    /** The width of a cached block, unless the image is narrower or short */
+    static final int BLOCK_WIDTH = 128;
+
+    /**
+     * The grid of blocks in which an image is cached. The image is viewed as
+     * rows of its last dimension, and each block holds up to BLOCK_PIXELS
+     * pixels from a range of rows and a range of columns. A narrow cutout
+     * therefore only needs the blocks of the columns it covers. Each block is a
+     * flat array of its rows, and the blocks at the edges of the image may be
+     * smaller.
+     */
+    static final class BlockGrid {
+
+        private final int nRows;
+
+        private final int width;
+
+        private final int blockRows;
+
+        private final int blockCols;
+
+        BlockGrid(int[] dims) {
+            long rows = 1;
+            for (int i = 0; i < dims.length - 1; i += 1) {
+                rows *= dims[i];
+            }
+            this.nRows = (int) rows;
+            this.width = dims[dims.length - 1];
+            // Images with few rows get wider blocks, so blocks are not tiny.
+            int cols = Math.max(TilePlan.BLOCK_WIDTH, TilePlan.BLOCK_PIXELS / Math.max(1, this.nRows));
+            this.blockCols = Math.max(1, Math.min(this.width, cols));
+            this.blockRows = Math.max(1, Math.min(this.nRows, TilePlan.BLOCK_PIXELS / this.blockCols));
+        }
+
+        /** The number of columns of a block */
+        private int getCols(int blockCol) {
+            return Math.min(this.blockCols, this.width - blockCol * this.blockCols);
+        }
+
+        /** The number of rows of a block */
+        private int getRows(int blockRow) {
+            return Math.min(this.blockRows, this.nRows - blockRow * this.blockRows);
+        }
+
+        /** The number of pixels in a block */
+        int getPixelCount(int blockRow, int blockCol) {
+            return getRows(blockRow) * getCols(blockCol);
+        }
+
+        /** A plan reading a block into tile 0 */
+        TilePlan plan(int blockRow, int blockCol, int elementSize) {
+            TilePlan plan = new TilePlan(new int[]{
+                this.nRows,
+                this.width
+            }, elementSize);
+            plan.add(0, new int[]{
+                blockRow * this.blockRows,
+                blockCol * this.blockCols
+            }, new int[]{
+                getRows(blockRow),
+                getCols(blockCol)
+            });
+            return plan;
+        }
+    }
+
+    /**
+     * Supplies the blocks of an image in a BlockGrid, e.g., from a TileCache.
+     */
+    interface BlockSource {
+
+        Object getBlock(int blockRow, int blockCol) throws IOException;
+    }
+
+    /** Convert big-endian pixels from a buffer into an array */
+    static void copy(ByteBuffer buf, Class base, Object output, int offset, int count) throws IOException {
+        if (base == float.class) {
+            buf.asFloatBuffer().get((float[]) output, offset, count);
+        } else if (base == int.class) {
+            buf.asIntBuffer().get((int[]) output, offset, count);
+        } else if (base == short.class) {
+            buf.asShortBuffer().get((short[]) output, offset, count);
+        } else if (base == double.class) {
+            buf.asDoubleBuffer().get((double[]) output, offset, count);
+        } else if (base == byte.class) {
+            buf.get((byte[]) output, offset, count);
+        } else if (base == char.class) {
+            buf.asCharBuffer().get((char[]) output, offset, count);
+        } else if (base == long.class) {
+            buf.asLongBuffer().get((long[]) output, offset, count);
+        } else {
+            throw new IOException("Invalid type for tile array");
+        }
+    }
+
+    private final int[] dims;
+
+    private final int elementSize;
+
+    /** The number of segments */
+    private int nSegments;
+
+    /** The offset of each segment in bytes from the start of the image */
+    private long[] starts = new long[16];
+
+    /** The number of pixels in each segment */
+    private int[] counts = new int[16];
+
+    /** The index of the first pixel of each segment in its tile */
+    private int[] outputs = new int[16];
+
+    /** The tile of each segment */
+    private int[] tiles = new int[16];
+
+    /** The segments in the order they are read */
+    private int[] order;
+
+    /** The number of runs */
+    private int nRuns;
+
+    /** The offset in bytes of each run from the start of the image */
+    private long[] runStarts;
+
+    /** The length in bytes of each run */
+    private long[] runLengths;
+
+    /** The position in order of the first segment of each run, and an end */
+    private int[] runFirst;
+
+    /**
+     * Create an empty plan.
+     * 
+     * @param dims
+     *            The dimensions of the image.
+     * @param elementSize
+     *            The number of bytes in a pixel.
+     */
+    TilePlan(int[] dims, int elementSize) {
+        this.dims = dims;
+        this.elementSize = elementSize;
+    }
+
+    /**
+     * Add the segments of a tile. As for StandardImageTiler the tile may extend
+     * beyond the image, and only the part within the image is read.
+     * 
+     * @param tile
+     *            The number of the tile.
+     * @param corners
+     *            The corners of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     */
+    void add(int tile, int[] corners, int[] lengths) {
+        int mx = this.dims.length - 1;
+        int segment = lengths[mx];
+        int[] posits = corners.clone();
+        int outputOffset = 0;
+        do {
+            boolean validSegment = segment > 0 && posits[mx] + segment > 0 && posits[mx] < this.dims[mx];
+            for (int i = 0; validSegment && i < mx; i += 1) {
+                validSegment = posits[i] >= 0 && posits[i] < this.dims[i];
+            }
+            if (validSegment) {
+                int from = Math.max(0, posits[mx]);
+                int to = Math.min(this.dims[mx], posits[mx] + segment);
+                long pixel = 0;
+                for (int i = 0; i < mx; i += 1) {
+                    pixel = (pixel + posits[i]) * this.dims[i + 1];
+                }
+                addSegment(tile, (pixel + from) * this.elementSize, outputOffset + from - posits[mx], to - from);
+            }
+            outputOffset += segment;
+        } while (StandardImageTiler.incrementPosition(corners, posits, lengths));
+    }
+
+    private void addSegment(int tile, long start, int output, int count) {
+        if (this.nSegments == this.starts.length) {
+            int size = 2 * this.nSegments;
+            this.starts = Arrays.copyOf(this.starts, size);
+            this.counts = Arrays.copyOf(this.counts, size);
+            this.outputs = Arrays.copyOf(this.outputs, size);
+            this.tiles = Arrays.copyOf(this.tiles, size);
+        }
+        this.starts[this.nSegments] = start;
+        this.counts[this.nSegments] = count;
+        this.outputs[this.nSegments] = output;
+        this.tiles[this.nSegments] = tile;
+        this.nSegments += 1;
+    }
+
+    /**
+     * Sort the segments by their position in the file and merge them into runs.
+     * 
+     * @param maxGap
+     *            The largest number of unwanted bytes between two segments
+     *            which are read in the same run.
+     */
+    void coalesce(int maxGap) {
+        this.order = new int[this.nSegments];
+        boolean sorted = true;
+        for (int i = 0; i < this.nSegments; i += 1) {
+            this.order[i] = i;
+            sorted = sorted && (i == 0 || this.starts[i] >= this.starts[i - 1]);
+        }
+        if (!sorted) {
+            // Only happens when there are several tiles.
+            Integer[] boxed = new Integer[this.nSegments];
+            for (int i = 0; i < this.nSegments; i += 1) {
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, new Comparator<Integer>() {
+
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long sa = TilePlan.this.starts[a];
+                    long sb = TilePlan.this.starts[b];
+                    return sa < sb ? -1 : sa > sb ? 1 : 0;
+                }
+            });
+            for (int i = 0; i < this.nSegments; i += 1) {
+                this.order[i] = boxed[i];
+            }
+        }
+
+        this.runStarts = new long[this.nSegments];
+        this.runLengths = new long[this.nSegments];
+        this.runFirst = new int[this.nSegments + 1];
+        this.nRuns = 0;
+        long runEnd = 0;
+        for (int i = 0; i < this.nSegments; i += 1) {
+            int s = this.order[i];
+            long start = this.starts[s];
+            long end = start + (long) this.counts[s] * this.elementSize;
+            if (this.nRuns > 0 && start - runEnd <= maxGap && Math.max(runEnd, end) - this.runStarts[this.nRuns - 1] <= TilePlan.MAX_RUN) {
+                runEnd = Math.max(runEnd, end);
+                this.runLengths[this.nRuns - 1] = runEnd - this.runStarts[this.nRuns - 1];
+            } else {
+                this.runStarts[this.nRuns] = start;
+                this.runLengths[this.nRuns] = end - start;
+                this.runFirst[this.nRuns] = i;
+                this.nRuns += 1;
+                runEnd = end;
+            }
+        }
+        this.runFirst[this.nRuns] = this.nSegments;
+    }
+
+    /**
+     * Fill the tiles from blocks of the image rather than by reading runs.
+     * 
+     * @param grid
+     *            The layout of the blocks.
+     * @param blocks
+     *            The source of the blocks.
+     * @param output
+     *            The tiles.
+     */
+    void fillFromBlocks(BlockGrid grid, BlockSource blocks, Object[] output) throws IOException {
+        for (int s = 0; s < this.nSegments; s += 1) {
+            long pixel = this.starts[s] / this.elementSize;
+            int outputOffset = this.outputs[s];
+            int count = this.counts[s];
+            while (count > 0) {
+                int row = (int) (pixel / grid.width);
+                int col = (int) (pixel - (long) row * grid.width);
+                int blockRow = row / grid.blockRows;
+                int blockCol = col / grid.blockCols;
+                int firstCol = blockCol * grid.blockCols;
+                int cols = grid.getCols(blockCol);
+                int n = Math.min(count, firstCol + cols - col);
+                int offset = (row - blockRow * grid.blockRows) * cols + col - firstCol;
+                System.arraycopy(blocks.getBlock(blockRow, blockCol), offset, output[this.tiles[s]], outputOffset, n);
+                pixel += n;
+                outputOffset += n;
+                count -= n;
+            }
+        }
+    }
+
+    /** The number of runs found by coalesce() */
+    int getRunCount() {
+        return this.nRuns;
+    }
+
+    /** The length of a run in bytes */
+    long getRunLength(int run) {
+        return this.runLengths[run];
+    }
+
+    /** The offset of a run in bytes from the start of the image */
+    long getRunStart(int run) {
+        return this.runStarts[run];
+    }
+
+    /** The number of segments in a run */
+    int getSegmentCount(int run) {
+        return this.runFirst[run + 1] - this.runFirst[run];
+    }
+
+    /** The number of pixels in the first segment of a run */
+    int getPixelCount(int run) {
+        return this.counts[this.order[this.runFirst[run]]];
+    }
+
+    /** The index of the first pixel of the first segment of a run in its tile */
+    int getOutputOffset(int run) {
+        return this.outputs[this.order[this.runFirst[run]]];
+    }
+
+    /** The tile of the first segment of a run */
+    int getTile(int run) {
+        return this.tiles[this.order[this.runFirst[run]]];
+    }
+
+    /**
+     * Copy the data of a run into the tiles.
+     * 
+     * @param run
+     *            The run.
+     * @param buf
+     *            The bytes of the run, starting at position 0.
+     * @param base
+     *            The primitive type of the image.
+     * @param output
+     *            The tiles.
+     */
+    void scatter(int run, ByteBuffer buf, Class base, Object[] output) throws IOException {
+        for (int i = this.runFirst[run]; i < this.runFirst[run + 1]; i += 1) {
+            int s = this.order[i];
+            buf.position((int) (this.starts[s] - this.runStarts[run]));
+            TilePlan.copy(buf, base, output[this.tiles[s]], this.outputs[s], this.counts[s]);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package nom.tam.image;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import nom.tam.util.ArrayFuncs;
+
+/**
+ * Sub-sampled and binned tiles, built from the rows of an image read through a
+ * tiler. Only the rows which contribute to the result are read, and each is
+ * reduced into the smaller output as it is read, so the full resolution tile is
+ * never held in memory. As for other tilers the corners, lengths, steps and
+ * bins are given in Java order, i.e., the last index varies fastest.
+ */
+public final class TileSampler {
+
+    private TileSampler() {
+    }
+
+    /**
+     * Get the mean values of the pixels of a tile in bins. The mean of a bin of
+     * byte pixels treats the bytes as unsigned, as for FITS 8 bit images. Bins
+     * which would extend past the end of the tile are dropped.
+     * 
+     * @param tiler
+     *            The tiler used to read the rows of the image.
+     * @param dims
+     *            The dimensions of the image.
+     * @param base
+     *            The primitive type of the image.
+     * @param corners
+     *            The starting corner of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     * @param bins
+     *            The size of a bin in each dimension.
+     * @return the means, as a flat array whose dimensions are lengths / bins.
+     */
+    public static double[] bin(ImageTiler tiler, int[] dims, Class base, int[] corners, int[] lengths, int[] bins) throws IOException {
+        TileSampler.check(dims, corners, lengths, bins);
+        int n = dims.length;
+        int mx = n - 1;
+        int size = 1;
+        int[] outLengths = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            outLengths[i] = lengths[i] / bins[i];
+            size *= outLengths[i];
+        }
+        double[] out = new double[size];
+        if (size == 0) {
+            return out;
+        }
+
+        // The rows are read in slabs of the rows of one bin along the
+        // second to last dimension.
+        int span = outLengths[mx] * bins[mx];
+        int slabRows = n > 1 ? bins[mx - 1] : 1;
+        Object slab = ArrayFuncs.newInstance(base, slabRows * span);
+        int[] slabCorner = corners.clone();
+        int[] slabLengths = new int[n];
+        int[] limits = new int[n];
+        for (int i = 0; i < mx; i += 1) {
+            slabLengths[i] = 1;
+            limits[i] = i < mx - 1 ? outLengths[i] * bins[i] : outLengths[i];
+        }
+        if (n > 1) {
+            slabLengths[mx - 1] = slabRows;
+        }
+        slabLengths[mx] = span;
+
+        int[] index = new int[n];
+        do {
+            int outRow = 0;
+            for (int i = 0; i < mx; i += 1) {
+                slabCorner[i] = corners[i] + (i < mx - 1 ? index[i] : index[i] * bins[i]);
+                outRow = outRow * outLengths[i] + (i < mx - 1 ? index[i] / bins[i] : index[i]);
+            }
+            tiler.getTile(slab, slabCorner, slabLengths);
+            for (int r = 0; r < slabRows; r += 1) {
+                TileSampler.addRow(slab, r * span, span, bins[mx], out, outRow * outLengths[mx]);
+            }
+        } while (TileSampler.next(index, limits));
+
+        double volume = 1;
+        for (int bin : bins) {
+            volume *= bin;
+        }
+        for (int i = 0; i < size; i += 1) {
+            out[i] /= volume;
+        }
+        return out;
+    }
+
+    /**
+     * Get every step'th pixel of a tile in each dimension, starting with the
+     * corner.
+     * 
+     * @param tiler
+     *            The tiler used to read the rows of the image.
+     * @param dims
+     *            The dimensions of the image.
+     * @param base
+     *            The primitive type of the image.
+     * @param corners
+     *            The starting corner of the tile.
+     * @param lengths
+     *            The dimensions of the tile.
+     * @param steps
+     *            The spacing of the pixels in each dimension.
+     * @return the pixels, as a flat array whose dimensions are lengths / steps
+     *         rounded up.
+     */
+    public static Object sample(ImageTiler tiler, int[] dims, Class base, int[] corners, int[] lengths, int[] steps) throws IOException {
+        TileSampler.check(dims, corners, lengths, steps);
+        int n = dims.length;
+        int mx = n - 1;
+        int size = 1;
+        int[] outLengths = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            outLengths[i] = (lengths[i] + steps[i] - 1) / steps[i];
+            size *= outLengths[i];
+        }
+        Object out = ArrayFuncs.newInstance(base, size);
+        if (size == 0) {
+            return out;
+        }
+
+        // Each row read spans the pixels wanted from it.
+        int span = (outLengths[mx] - 1) * steps[mx] + 1;
+        Object row = ArrayFuncs.newInstance(base, span);
+        int[] rowCorner = corners.clone();
+        int[] rowLengths = new int[n];
+        for (int i = 0; i < mx; i += 1) {
+            rowLengths[i] = 1;
+        }
+        rowLengths[mx] = span;
+
+        int[] index = new int[n];
+        int outputOffset = 0;
+        do {
+            for (int i = 0; i < mx; i += 1) {
+                rowCorner[i] = corners[i] + index[i] * steps[i];
+            }
+            tiler.getTile(row, rowCorner, rowLengths);
+            TileSampler.decimate(row, steps[mx], out, outputOffset, outLengths[mx]);
+            outputOffset += outLengths[mx];
+        } while (TileSampler.next(index, outLengths));
+        return out;
+    }
+
+    /** Add the pixels of a row into the bins of an output row */
+    private static void addRow(Object row, int from, int count, int bin, double[] out, int offset) {
+        if (row instanceof float[]) {
+            float[] values = (float[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        } else if (row instanceof double[]) {
+            double[] values = (double[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        } else if (row instanceof int[]) {
+            int[] values = (int[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        } else if (row instanceof short[]) {
+            short[] values = (short[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        } else if (row instanceof byte[]) {
+            byte[] values = (byte[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i] & 0xFF;
+            }
+        } else if (row instanceof long[]) {
+            long[] values = (long[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        } else {
+            char[] values = (char[]) row;
+            for (int i = 0; i < count; i += 1) {
+                out[offset + i / bin] += values[from + i];
+            }
+        }
+    }
+
+    private static void check(int[] dims, int[] corners, int[] lengths, int[] factors) throws IOException {
+        if (corners.length != dims.length || lengths.length != dims.length || factors.length != dims.length) {
+            throw new IOException("Inconsistent sub-image request");
+        }
+        for (int i = 0; i < dims.length; i += 1) {
+            if (corners[i] < 0 || lengths[i] < 0 || corners[i] + lengths[i] > dims[i]) {
+                throw new IOException("Sub-image not within image");
+            }
+            if (factors[i] < 1) {
+                throw new IOException("Invalid step or bin size: " + factors[i]);
+            }
+        }
+    }
+
+    /** Copy every step'th element of a row into the output */
+    private static void decimate(Object row, int step, Object out, int offset, int count) {
+        if (step == 1) {
+            System.arraycopy(row, 0, out, offset, count);
+        } else if (row instanceof float[]) {
+            for (int i = 0; i < count; i += 1) {
+                ((float[]) out)[offset + i] = ((float[]) row)[i * step];
+            }
+        } else if (row instanceof double[]) {
+            for (int i = 0; i < count; i += 1) {
+                ((double[]) out)[offset + i] = ((double[]) row)[i * step];
+            }
+        } else if (row instanceof int[]) {
+            for (int i = 0; i < count; i += 1) {
+                ((int[]) out)[offset + i] = ((int[]) row)[i * step];
+            }
+        } else if (row instanceof short[]) {
+            for (int i = 0; i < count; i += 1) {
+                ((short[]) out)[offset + i] = ((short[]) row)[i * step];
+            }
+        } else {
+            for (int i = 0; i < count; i += 1) {
+                System.arraycopy(row, i * step, out, offset + i, 1);
+            }
+        }
+    }
+
+    /**
+     * Step to the next combination of all but the last index.
+     * 
+     * @return false when all have been done.
+     */
+    private static boolean next(int[] index, int[] limits) {
+        for (int i = index.length - 2; i >= 0; i -= 1) {
+            index[i] += 1;
+            if (index[i] < limits[i]) {
+                return true;
+            }
+            index[i] = 0;
+        }
+        return false;
+    }
+}
@@ -36,6 +36,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Map;
+import java.util.logging.Logger;
 
 import nom.tam.fits.Header;
 import nom.tam.util.BufferedDataOutputStream;
@@ -85,6 +86,8 @@ import nom.tam.util.BufferedDataOutputStream;
  */
 public class HCompress implements CompressionScheme {
 
+    private static final Logger LOG = Logger.getLogger(HCompress.class.getName());
+
     /**
      * Magic number (only low byte in each used)
      */
@@ -324,11 +327,8 @@ public class HCompress implements CompressionScheme {
 
         InputBitStream dis = new InputBitStream(new ByteArrayInputStream(input));
 
-        System.err.println("Before decode");
         int[] a = decode(dis); // Launch decoding
-        System.err.println("After decode");
         undigitize(a);
-        System.err.println("After undigitze");
 
         boolean[] flag = null;
 
@@ -336,9 +336,7 @@ public class HCompress implements CompressionScheme {
             this.tmp = new int[Math.max(this.nx, this.ny)];
             flag = new boolean[Math.max(this.nx, this.ny)];
         }
-        System.err.println("About to call hinv");
         hinv(a, flag); // Inverse H-transform
-        System.err.println("Done decomp!");
         return a;
     }
 
@@ -385,7 +383,6 @@ public class HCompress implements CompressionScheme {
 
         /* Make sure there is an EOF symbol (nybble=0) at end */
         if (dis.readBits(4) != 0) {
-            System.err.println("dodecode: bad bit plane values\n");
             throw new IOException("Error in dodecode decompression");
         }
 
@@ -535,7 +532,6 @@ public class HCompress implements CompressionScheme {
                 params.put("ny", hdr.getIntValue("ZNAXIS2") + "");
             }
         }
-        System.err.println("After get:" + params.keySet());
     }
 
     private int getSignBits(int a[], byte[] signbits, int nel) {
@@ -716,7 +712,7 @@ public class HCompress implements CompressionScheme {
         }
 
         if (nxtop != this.nx || nytop != this.ny) {
-            System.err.println("hinv: error, final image size is " + nxtop + " x " + nytop + " not " + this.nx + " x " + this.ny);
+            HCompress.LOG.warning("hinv: final image size is " + nxtop + " x " + nytop + " not " + this.nx + " x " + this.ny);
         }
 
         /*
@@ -1577,7 +1573,7 @@ public class HCompress implements CompressionScheme {
                      */
                     System.arraycopy(this.tmp, 0, a, nydim * k, ny);
                     if (j != k) {
-                        System.err.println("error: yunshuffle failed!\nj=" + j + " k=" + k);
+                        HCompress.LOG.warning("yunshuffle failed: j=" + j + " k=" + k);
                     }
                 }
             }
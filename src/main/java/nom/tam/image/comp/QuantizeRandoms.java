@@ -47,8 +47,14 @@ package nom.tam.image.comp;
  */
 public class QuantizeRandoms {
 
-    /** The set of 10,000 random numbers used */
-    private double[] values;
+    /** The sequence of random numbers shared by all instances */
+    private static float[] sharedValues;
+
+    /**
+     * The set of 10,000 random numbers used. These are kept in single
+     * precision, as in CFITSIO, so that the dithering matches exactly.
+     */
+    private float[] values;
 
     /** The last index requested */
     private int nextIndex = -1;
@@ -83,28 +89,43 @@ public class QuantizeRandoms {
         while (n >= this.NVAL) {
             n -= this.NVAL;
         }
-        this.nextIndex = (int) (this.MULT * (this.values[n] + 0.5));
+        this.lastStart = n;
+        this.nextIndex = (int) (this.MULT * (double) this.values[n]);
     }
 
     /** Initialize the sequence of NVAL random numbers */
     private void initialize() {
+        this.values = QuantizeRandoms.sequence(this.NVAL);
+        this.ready = true;
+    }
 
-        this.values = new double[this.NVAL];
+    /**
+     * Get the sequence of random numbers. The sequence never changes so it is
+     * computed once and shared by all instances (which may be used in different
+     * threads).
+     */
+    private static synchronized float[] sequence(int nval) {
+        if (QuantizeRandoms.sharedValues != null) {
+            return QuantizeRandoms.sharedValues;
+        }
+
+        float[] values = new float[nval];
 
         double a = 16807;
         double m = 2147483647;
         double seed = 1;
         double temp;
 
-        for (int ii = 0; ii < this.NVAL; ii += 1) {
+        for (int ii = 0; ii < nval; ii += 1) {
             temp = a * seed;
             seed = temp - m * Math.floor(temp / m);
-            this.values[ii] = seed / m - 0.5;
+            values[ii] = (float) (seed / m);
         }
-        this.ready = true;
         if (seed != 1043618065) {
             throw new IllegalStateException("Final seed has unexpected value");
         }
+        QuantizeRandoms.sharedValues = values;
+        return values;
     }
 
     /**
@@ -128,6 +149,6 @@ public class QuantizeRandoms {
         }
         int currIndex = this.nextIndex;
         this.nextIndex += 1;
-        return this.values[currIndex];
+        return this.values[currIndex] - 0.5;
     }
 }
@@ -0,0 +1,159 @@
+package nom.tam.image.comp;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * This class takes a tile from a real image and converts it into integers which
+ * may then be compressed, using the SUBTRACTIVE_DITHER_1 algorithm of the FITS
+ * tiled image compression convention. Tiles are handled as flat
+ * (one-dimensional) float or double arrays. A quantizer has no mutable state so
+ * it may be shared by threads processing different tiles.
+ * 
+ * @author tmcglynn
+ */
+public class Quantizer {
+
+    /** The integer value used for NaNs in quantized data (ZBLANK) */
+    public static final int NULL_VALUE = -2147483647;
+
+    private final double scale;
+
+    private final double offset;
+
+    private final int dither0;
+
+    /**
+     * Create a quantizer that will transform data to/from integer values using
+     * the algorithm: i = round((r-offset)/scale + rand - 0.5) where the rand
+     * term represents a standard dither.
+     */
+    public Quantizer(double scale, double offset) {
+        this(scale, offset, 1);
+    }
+
+    /**
+     * Create a quantizer using the given ZDITHER0 value to select the dither
+     * sequence of the first tile.
+     */
+    public Quantizer(double scale, double offset, int dither0) {
+        this.scale = scale;
+        this.offset = offset;
+        this.dither0 = dither0;
+    }
+
+    /** Round to the nearest integer as CFITSIO does */
+    private static int nint(double x) {
+        return x >= 0 ? (int) (x + 0.5) : (int) (x - 0.5);
+    }
+
+    /**
+     * Convert a tile of real data into integers.
+     * 
+     * @param input
+     *            The tile, a one-dimensional float or double array.
+     * @param tileIndex
+     *            The index of the tile (starting at 0) which is used to get the
+     *            appropriate dither values.
+     * @return The quantized values. NaNs are given the value NULL_VALUE.
+     */
+    public int[] quantize(Object input, int tileIndex) {
+        QuantizeRandoms qr = new QuantizeRandoms();
+        qr.computeOffset(tileIndex + this.dither0 - 1);
+        if (input instanceof float[]) {
+            float[] in = (float[]) input;
+            int[] out = new int[in.length];
+            for (int i = 0; i < in.length; i += 1) {
+                double dither = qr.next();
+                if (Float.isNaN(in[i])) {
+                    out[i] = Quantizer.NULL_VALUE;
+                } else {
+                    out[i] = nint((in[i] - this.offset) / this.scale + dither);
+                }
+            }
+            return out;
+        } else if (input instanceof double[]) {
+            double[] in = (double[]) input;
+            int[] out = new int[in.length];
+            for (int i = 0; i < in.length; i += 1) {
+                double dither = qr.next();
+                if (Double.isNaN(in[i])) {
+                    out[i] = Quantizer.NULL_VALUE;
+                } else {
+                    out[i] = nint((in[i] - this.offset) / this.scale + dither);
+                }
+            }
+            return out;
+        } else {
+            throw new IllegalArgumentException("Only real arrays supported");
+        }
+    }
+
+    /**
+     * Restore a tile of the original data.
+     * 
+     * @param input
+     *            The quantized values.
+     * @param output
+     *            The one-dimensional float or double array to be filled.
+     * @param tileIndex
+     *            The index of the tile (starting at 0).
+     * @param blank
+     *            The value which indicates a NaN.
+     */
+    public void unquantize(int[] input, Object output, int tileIndex, int blank) {
+        QuantizeRandoms qr = new QuantizeRandoms();
+        qr.computeOffset(tileIndex + this.dither0 - 1);
+        if (output instanceof float[]) {
+            float[] out = (float[]) output;
+            for (int i = 0; i < input.length; i += 1) {
+                double dither = qr.next();
+                if (input[i] == blank) {
+                    out[i] = Float.NaN;
+                } else {
+                    out[i] = (float) ((input[i] - dither) * this.scale + this.offset);
+                }
+            }
+        } else if (output instanceof double[]) {
+            double[] out = (double[]) output;
+            for (int i = 0; i < input.length; i += 1) {
+                double dither = qr.next();
+                if (input[i] == blank) {
+                    out[i] = Double.NaN;
+                } else {
+                    out[i] = (input[i] - dither) * this.scale + this.offset;
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Only real arrays supported");
+        }
+    }
+}
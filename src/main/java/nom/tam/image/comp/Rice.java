@@ -0,0 +1,631 @@
+package nom.tam.image.comp;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+
+/**
+ * Do Rice compression. Integer data in any local region rarely use the full
+ * dynamic range available for the data type. Rice compression looks at the
+ * differences between groups of integers and strips out leading 0's from the
+ * differences. Given a sequence of integers we: (** for steps where we actually
+ * write something)
+ * <ol>
+ * <li>** Write out the value of the first integer
+ * <li>Replace the sequence with the sequence of differences.
+ * <li>Replace positive differences, n, with 2*n and negative differences with
+ * -2*n-1. So 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, 2 -> 4,... This means that
+ * differences will have the same number of bits (pretty much) for a given
+ * absolute value.
+ * <li>Loop over the sequence in blocks of 16 or 32 integers. There may be a
+ * shorter terminal block.
+ * <li>For each block:
+ * <ol>
+ * <li>Calculate the sum of the values and get the average of this sum. Find the
+ * number of bits it takes to represent this value, e.g., if the average is
+ * 110.4 then we would need 7 bits to represent this (2^7 = 128 which is >
+ * 110.4). Call this number F.
+ * <li>** Write out (F+1) (using a number of bits appropriate for the data
+ * size). We use F+1 rather than F to cater to the first special case below.
+ * <li>For each value in the block
+ * <ol>
+ * <li>Break up the number into two parts: the top,T, any bits more significant
+ * than the F low order bits, and the bottom, B, the lowest F bits in the value.
+ * To get the top we can divide by 2^F or left shift F bits. To get the bottom
+ * we can do a modulo operation or a bitwise AND with the mask 2^F - 1.
+ * <p>
+ * The top will often be 0 and will always be less than or equal to the number
+ * of values in the block. [In the worst case only one difference in the block
+ * in non-zero, then the average difference is the just that difference over the
+ * block size.]. Typically it will be 0, 1, or 2.
+ * <li>** Write out T 0 bits followed by a single 1 bit.
+ * <li>** Write out the B using just F bits.
+ * <li>In a typical case we will write about B+2 bits for each value. Say we
+ * have 16 bit pixels with values fluctuating typically by 30 units between
+ * adjacent pixels. Then we will write ~8 bits per pixel for a savings of >50%
+ * in storage. Overheads include writing the first value at the beginning of the
+ * file and 4 bits (for shorts) per block giving the value of F for each block.
+ * If we use 32 pixel blocks, a block of uncompressed data will be 512 bits
+ * while the compressed block would be ~240 bits.
+ * </ol>
+ * </ol>
+ * </ol>
+ * There are two special cases for each block.
+ * <ul>
+ * <li>If all the differences are 0, then instead of writing F+1 we just write 0
+ * to mark the block as constant.
+ * <li>If the differences between adjacent pixels are too high, i.e., there are
+ * largely random values in the original data, then splitting into top and
+ * bottom wastes a bit of space and time. This is indicated when F is greater
+ * than some maximum value. When we see this we don't do the splitting we just
+ * write the values directly to the output.
+ * </ul>
+ * The bit stream produced is the same as that of the fits_rcomp functions of
+ * CFITSIO so that tiles may be exchanged with fpack/funpack. Pixels of 1 and 2
+ * bytes are differenced using byte and short arithmetic respectively.
+ * <p>
+ * Besides the byte array methods of CompressionScheme, tiles may be compressed
+ * from and decompressed into int, short and byte arrays (which use 4, 2 and 1
+ * byte pixels respectively) using caller supplied ByteBuffers. The bit buffer
+ * and work arrays are kept between calls so that these methods do not create
+ * any garbage. A Rice instance should not be used by more than one thread at a
+ * time.
+ * 
+ * @author tmcglynn
+ */
+public class Rice implements CompressionScheme {
+
+    private int block;
+
+    private int bitpix;
+
+    private boolean initialized = false;
+
+    /** Bits which have been read but not used, or not yet written */
+    private long bitBuffer;
+
+    /** The number of valid bits at the bottom of bitBuffer */
+    private int bitCount;
+
+    /** Coded differences for the current block */
+    private int[] diffs = new int[0];
+
+    /** Pixels converted to or from short and byte arrays */
+    private int[] work = new int[0];
+
+    /** Output buffer for the byte array interface */
+    private ByteBuffer output = ByteBuffer.allocate(0);
+
+    /**
+     * Compress an input block. While the input is a byte array it may represent
+     * integers of any length.
+     */
+    @Override
+    public byte[] compress(byte[] in) throws IOException {
+        checkInitialized();
+        int n = in.length / (this.bitpix / 8);
+        int[] pixels = workArray(n);
+        ByteBuffer buf = ByteBuffer.wrap(in);
+        for (int i = 0; i < n; i += 1) {
+            if (this.bitpix == 8) {
+                pixels[i] = buf.get();
+            } else if (this.bitpix == 16) {
+                pixels[i] = buf.getShort();
+            } else {
+                pixels[i] = buf.getInt();
+            }
+        }
+
+        int max = maxCompressedSize(n, this.bitpix);
+        if (this.output.capacity() < max) {
+            this.output = ByteBuffer.allocate(max);
+        }
+        this.output.clear();
+        int len = encode(pixels, 0, n, this.bitpix, this.output);
+        return Arrays.copyOf(this.output.array(), len);
+    }
+
+    /**
+     * Compress byte pixels.
+     * 
+     * @param pixels
+     *            The pixel array.
+     * @param offset
+     *            The index of the first pixel to compress.
+     * @param length
+     *            The number of pixels to compress.
+     * @param out
+     *            The buffer to which the compressed data is written starting at
+     *            its current position.
+     * @return The number of bytes written.
+     * @throws java.nio.BufferOverflowException
+     *             if the buffer does not have room for the compressed data.
+     */
+    public int compress(byte[] pixels, int offset, int length, ByteBuffer out) {
+        checkInitialized();
+        int[] words = workArray(length);
+        for (int i = 0; i < length; i += 1) {
+            words[i] = pixels[offset + i];
+        }
+        return encode(words, 0, length, 8, out);
+    }
+
+    /**
+     * Compress int pixels.
+     * 
+     * @see #compress(byte[], int, int, ByteBuffer)
+     */
+    public int compress(int[] pixels, int offset, int length, ByteBuffer out) {
+        checkInitialized();
+        return encode(pixels, offset, length, 32, out);
+    }
+
+    /**
+     * Compress short pixels.
+     * 
+     * @see #compress(byte[], int, int, ByteBuffer)
+     */
+    public int compress(short[] pixels, int offset, int length, ByteBuffer out) {
+        checkInitialized();
+        int[] words = workArray(length);
+        for (int i = 0; i < length; i += 1) {
+            words[i] = pixels[offset + i];
+        }
+        return encode(words, 0, length, 16, out);
+    }
+
+    /** Make sure the block size has been set */
+    private void checkInitialized() {
+        if (!this.initialized) {
+            throw new IllegalStateException("Rice compressor not initialized");
+        }
+    }
+
+    /**
+     * Convert a block of pixels into the coded differences. Positive
+     * differences go to 2*val and negative differences to 2*|val|-1 so that all
+     * the values are positive (when treated as unsigned integers).
+     * 
+     * @return The sum of the coded differences.
+     */
+    private double convertToDiffs(int[] pixels, int start, int len, int lastPix, int bits) {
+        int[] d = this.diffs;
+        long sum = 0;
+        for (int i = 0; i < len; i += 1) {
+            int next = pixels[start + i];
+            int diff = next - lastPix;
+            // Short and byte pixels are differenced in their own arithmetic.
+            if (bits == 8) {
+                diff = (byte) diff;
+            } else if (bits == 16) {
+                diff = (short) diff;
+            }
+            lastPix = next;
+            d[i] = diff < 0 ? ~(diff << 1) : diff << 1;
+            sum += d[i] & 0xFFFFFFFFL;
+        }
+        return sum;
+    }
+
+    /**
+     * Decode the pixels of a tile. The first pixel is read at the current
+     * position of the buffer.
+     */
+    private void decode(ByteBuffer in, int[] pixels, int start, int n, int bits) {
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        if (n == 0) {
+            return;
+        }
+        int fsbits = fsBits(bits);
+        int fsmax = fsMax(bits);
+        int bbits = 1 << fsbits;
+
+        // Read the first pixel.
+        int lastPix = readBits(in, bits);
+        int end = start + n;
+        for (int offset = start; offset < end; offset += this.block) {
+            int blockEnd = Math.min(offset + this.block, end);
+            int fs = readBits(in, fsbits) - 1;
+            if (fs < 0) {
+                // A block of constant values
+                for (int i = offset; i < blockEnd; i += 1) {
+                    pixels[i] = lastPix;
+                }
+            } else if (fs == fsmax) {
+                // The noise was too large to be usefully compressed.
+                for (int i = offset; i < blockEnd; i += 1) {
+                    lastPix = decodeDiff(readBits(in, bbits), lastPix, bits);
+                    pixels[i] = lastPix;
+                }
+            } else {
+                for (int i = offset; i < blockEnd; i += 1) {
+                    // The number of 0 bits before the 1 separator is the
+                    // high order part of the difference, followed by the fs
+                    // 'noise' bits.
+                    int high = readZeros(in);
+                    int low = readBits(in, fs);
+                    lastPix = decodeDiff(high << fs | low, lastPix, bits);
+                    pixels[i] = lastPix;
+                }
+            }
+        }
+    }
+
+    /** Undo the coding of a difference and add it to the previous pixel */
+    private static int decodeDiff(int diff, int lastPix, int bits) {
+        if ((diff & 1) == 0) {
+            diff = diff >>> 1;
+        } else {
+            diff = ~(diff >>> 1);
+        }
+        int pix = diff + lastPix;
+        if (bits == 8) {
+            pix = (byte) pix;
+        } else if (bits == 16) {
+            pix = (short) pix;
+        }
+        return pix;
+    }
+
+    /**
+     * Decompress input data using the Rice algorithm.
+     * 
+     * @param in
+     *            The compressed data.
+     * @param len
+     *            The number of pixels expected on the input.
+     * @return A byte array representing the uncompressed data as big-endian
+     *         words of the size given by the bitpix parameter.
+     */
+    @Override
+    public byte[] decompress(byte[] in, int len) throws IOException {
+        checkInitialized();
+        int[] pixels = workArray(len);
+        try {
+            decode(ByteBuffer.wrap(in), pixels, 0, len, this.bitpix);
+        } catch (BufferUnderflowException e) {
+            throw (IOException) new EOFException("Compressed data too short").initCause(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(len * this.bitpix / 8);
+        for (int i = 0; i < len; i += 1) {
+            if (this.bitpix == 8) {
+                buf.put((byte) pixels[i]);
+            } else if (this.bitpix == 16) {
+                buf.putShort((short) pixels[i]);
+            } else {
+                buf.putInt(pixels[i]);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decompress byte pixels.
+     * 
+     * @param in
+     *            The compressed data starting at the current position. The
+     *            position is left after the data that was used.
+     * @param pixels
+     *            The array to be filled.
+     * @param offset
+     *            The index of the first pixel to fill.
+     * @param length
+     *            The number of pixels in the compressed data.
+     * @throws BufferUnderflowException
+     *             if the compressed data ends too soon.
+     */
+    public void decompress(ByteBuffer in, byte[] pixels, int offset, int length) {
+        checkInitialized();
+        int[] words = workArray(length);
+        decode(in, words, 0, length, 8);
+        for (int i = 0; i < length; i += 1) {
+            pixels[offset + i] = (byte) words[i];
+        }
+    }
+
+    /**
+     * Decompress int pixels.
+     * 
+     * @see #decompress(ByteBuffer, byte[], int, int)
+     */
+    public void decompress(ByteBuffer in, int[] pixels, int offset, int length) {
+        checkInitialized();
+        decode(in, pixels, offset, length, 32);
+    }
+
+    /**
+     * Decompress short pixels.
+     * 
+     * @see #decompress(ByteBuffer, byte[], int, int)
+     */
+    public void decompress(ByteBuffer in, short[] pixels, int offset, int length) {
+        checkInitialized();
+        int[] words = workArray(length);
+        decode(in, words, 0, length, 16);
+        for (int i = 0; i < length; i += 1) {
+            pixels[offset + i] = (short) words[i];
+        }
+    }
+
+    /**
+     * Encode the pixels of a tile.
+     * 
+     * @return The number of bytes written.
+     */
+    private int encode(int[] pixels, int start, int n, int bits, ByteBuffer out) {
+        int first = out.position();
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        if (n == 0) {
+            return 0;
+        }
+        int fsbits = fsBits(bits);
+        int fsmax = fsMax(bits);
+        int bbits = 1 << fsbits;
+        if (this.diffs.length < this.block) {
+            this.diffs = new int[this.block];
+        }
+
+        // Write out the first word. We'll be computing
+        // differences starting from this value.
+        writeBits(out, pixels[start], bits);
+
+        int lastPix = pixels[start];
+        int end = start + n;
+        // Loop over individual compression blocks.
+        for (int offset = start; offset < end; offset += this.block) {
+            int len = Math.min(this.block, end - offset);
+
+            // Convert the integer values to integer differences
+            // and compute the sum of the differences.
+            double sum = convertToDiffs(pixels, offset, len, lastPix, bits);
+            lastPix = pixels[offset + len - 1];
+            int fs = getFs(sum, len);
+
+            if (fs >= fsmax) {
+                // Too much variation to compress
+                writeBits(out, fsmax + 1, fsbits);
+                for (int i = 0; i < len; i += 1) {
+                    writeBits(out, this.diffs[i], bbits);
+                }
+            } else if (fs == 0 && sum == 0) {
+                // A constant block
+                writeBits(out, 0, fsbits);
+            } else {
+                // The normal case: write out the number of 'noise' bits
+                // and then the encoded differences.
+                writeBits(out, fs + 1, fsbits);
+                int mask = (1 << fs) - 1;
+                for (int i = 0; i < len; i += 1) {
+                    // The top is written as that many 0's followed by a 1.
+                    int top = this.diffs[i] >>> fs;
+                    while (top >= 32) {
+                        writeBits(out, 0, 32);
+                        top -= 32;
+                    }
+                    writeBits(out, 1, top + 1);
+                    writeBits(out, this.diffs[i] & mask, fs);
+                }
+            }
+        }
+        // Flush the last partial byte.
+        if (this.bitCount > 0) {
+            out.put((byte) (this.bitBuffer << 8 - this.bitCount));
+            this.bitCount = 0;
+        }
+        return out.position() - first;
+    }
+
+    /** The number of bits used to give the number of noise bits in a block */
+    private static int fsBits(int bits) {
+        return bits == 8 ? 3 : bits == 16 ? 4 : 5;
+    }
+
+    /** The number of noise bits which indicates an uncompressed block */
+    private static int fsMax(int bits) {
+        return bits == 8 ? 6 : bits == 16 ? 14 : 25;
+    }
+
+    /**
+     * Get the number of 'noise' bits in the block
+     */
+    private int getFs(double sum, int len) {
+
+        // We want to compute the 'average' difference. Not
+        // sure why we have the thisBlock/2 - 1 there, but
+        // presumably that comes out in the details.
+        double dpSum = (sum - len / 2 - 1) / len;
+        if (dpSum < 0) {
+            dpSum = 0;
+        }
+
+        // How many bits does it take to represent the 'average' difference.
+        int fs;
+        long psum = (long) dpSum >> 1;
+        for (fs = 0; psum > 0; fs += 1) {
+            psum >>= 1;
+        }
+        return fs;
+    }
+
+    /** The number of bits per pixel in the byte array interface */
+    int getBitpix() {
+        return this.bitpix;
+    }
+
+    /**
+     * Translate the header compression parameters (ZNAMEn/ZVALn as BLOCKSIZE
+     * and BYTEPIX) into the parameters used in initialize().
+     */
+    @Override
+    public void getParameters(Map<String, String> params, Header hdr) {
+        if (!params.containsKey("block")) {
+            String block = params.get("blocksize");
+            params.put("block", block == null ? "32" : block);
+        }
+        if (!params.containsKey("bitpix")) {
+            String bytepix = params.get("bytepix");
+            if (bytepix != null) {
+                params.put("bitpix", 8 * Integer.parseInt(bytepix) + "");
+            } else {
+                int zbitpix = hdr.getIntValue("ZBITPIX");
+                params.put("bitpix", (zbitpix > 0 && zbitpix < 64 ? zbitpix : 32) + "");
+            }
+        }
+    }
+
+    @Override
+    public void initialize(Map<String, String> params) {
+        // Rice compression expects a length and block size parameter
+        try {
+            this.block = Integer.parseInt(params.get("block"));
+            this.bitpix = Integer.parseInt(params.get("bitpix"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Required parameters not found for rice compression", e);
+        }
+        if (this.block <= 0) {
+            throw new IllegalArgumentException("Invalid block size for Rice compression:" + this.block);
+        }
+        if (this.bitpix != 8 && this.bitpix != 16 && this.bitpix != 32) {
+            throw new IllegalArgumentException("Invalid bitpix for Rice compression:" + this.bitpix);
+        }
+        this.initialized = true;
+    }
+
+    /**
+     * Get the largest number of bytes that compressing n pixels of the given
+     * size may need.
+     */
+    public int maxCompressedSize(int n, int bits) {
+        checkInitialized();
+        long nblocks = (n + this.block - 1) / this.block;
+        long nbits = bits + nblocks * fsBits(bits) + (long) n * (1 << fsBits(bits));
+        return (int) ((nbits + 7) / 8);
+    }
+
+    @Override
+    public String name() {
+        return "RICE_1";
+    }
+
+    /** Read 0-32 bits from the buffer */
+    private int readBits(ByteBuffer in, int n) {
+        while (this.bitCount < n) {
+            this.bitBuffer = this.bitBuffer << 8 | in.get() & 0xFF;
+            this.bitCount += 8;
+        }
+        this.bitCount -= n;
+        long val = this.bitBuffer >>> this.bitCount;
+        return n == 32 ? (int) val : (int) (val & (1L << n) - 1);
+    }
+
+    /**
+     * Read a sequence of 0 bits and the 1 bit which ends it.
+     * 
+     * @return The number of 0 bits.
+     */
+    private int readZeros(ByteBuffer in) {
+        int zeros = 0;
+        while (true) {
+            if (this.bitCount == 0) {
+                this.bitBuffer = in.get() & 0xFF;
+                this.bitCount = 8;
+            }
+            int rest = (int) this.bitBuffer & (1 << this.bitCount) - 1;
+            if (rest == 0) {
+                zeros += this.bitCount;
+                this.bitCount = 0;
+            } else {
+                int lead = Integer.numberOfLeadingZeros(rest) - (32 - this.bitCount);
+                this.bitCount -= lead + 1;
+                return zeros + lead;
+            }
+        }
+    }
+
+    @Override
+    public void updateForWrite(Header hdr, Map<String, String> parameters) throws FitsException {
+
+        int bitpix = hdr.getIntValue("ZBITPIX", -1);
+
+        int block;
+        if (!parameters.containsKey("block")) {
+            parameters.put("block", "" + 32);
+            block = 32;
+        } else {
+            block = Integer.parseInt(parameters.get("block"));
+        }
+
+        hdr.addValue("ZNAME1", "BLOCKSIZE", "Compression region size");
+        hdr.addValue("ZVAL1", block, "Compression region size");
+
+        hdr.addValue("ZNAME2", "BYTEPIX", "Bytes in pixel");
+        if (bitpix > 0) {
+            if (bitpix > 32) {
+                throw new FitsException("Rice compression not supported for BITPIX=" + bitpix);
+            }
+            parameters.put("bitpix", "" + bitpix);
+            hdr.addValue("ZVAL2", bitpix / 8, "Bytes in pixel");
+        } else {
+            parameters.put("bitpix", "32");
+            hdr.addValue("ZVAL2", 4, "Bytes in pixel");
+        }
+    }
+
+    /** Get a work array with room for at least n pixels */
+    private int[] workArray(int n) {
+        if (this.work.length < n) {
+            this.work = new int[n];
+        }
+        return this.work;
+    }
+
+    /** Write the low n bits (0-32) of a value */
+    private void writeBits(ByteBuffer out, int val, int n) {
+        this.bitBuffer = this.bitBuffer << n | val & (1L << n) - 1;
+        this.bitCount += n;
+        while (this.bitCount >= 8) {
+            this.bitCount -= 8;
+            out.put((byte) (this.bitBuffer >>> this.bitCount));
+        }
+    }
+}
@@ -0,0 +1,1095 @@
+package nom.tam.image.comp;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.BinaryTableHDU;
+import nom.tam.fits.Data;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.FitsFactory;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.fits.ImageHDU;
+import nom.tam.image.AbstractImageTiler;
+import nom.tam.image.StandardImageTiler;
+import nom.tam.image.TileCache;
+import nom.tam.util.ArrayFuncs;
+import nom.tam.util.Cursor;
+
+/**
+ * This class represents a FITS image that has rendered using the tiled
+ * compression convention. RICE_1, GZIP_1 and HCOMPRESS_1 compression are
+ * supported. Real images are quantized using SUBTRACTIVE_DITHER_1 unless the
+ * "quantize" parameter is "none" (which is allowed only for GZIP_1).
+ * <p>
+ * The image may be decompressed as a whole using getImageHDU(), or a subset may
+ * be extracted using the tiler returned by getImageTiler(). The tiler only
+ * decompresses the tiles which overlap the requested region.
+ * <p>
+ * If an executor is given, tiles are compressed and decompressed in parallel.
+ * The tiles are still stored in order so the result is identical to that of
+ * serial processing.
+ * 
+ * @author tmcglynn
+ */
+public class TiledImageHDU extends BinaryTableHDU {
+
+    /**
+     * An image tiler which fills requests from the compressed tiles. As for
+     * other tilers the corners and lengths are given in Java order and the
+     * tiles returned are flat arrays.
+     */
+    class TiledTiler extends AbstractImageTiler {
+
+        TiledTiler() {
+            super(ArrayFuncs.reverseIndices(TiledImageHDU.this.imageSize), TiledImageHDU.this.baseClass);
+        }
+
+        @Override
+        public double[] getBinnedTile(int[] corners, int[] lengths, int[] bins) throws IOException {
+            return region(corners, lengths).getBinnedTile(new int[corners.length], lengths, bins);
+        }
+
+        @Override
+        public Object getCompleteImage() throws IOException {
+            int[] dims = ArrayFuncs.reverseIndices(TiledImageHDU.this.imageSize);
+            Object flat = getTile(new int[dims.length], dims);
+            return ArrayFuncs.curl(flat, dims);
+        }
+
+        @Override
+        public Object getTile(int[] corners, int[] lengths) throws IOException {
+            int[] dims = ArrayFuncs.reverseIndices(TiledImageHDU.this.imageSize);
+            if (corners.length != dims.length || lengths.length != dims.length) {
+                throw new IOException("Inconsistent sub-image request");
+            }
+            int arraySize = 1;
+            for (int i = 0; i < dims.length; i += 1) {
+                if (corners[i] < 0 || lengths[i] < 0 || corners[i] + lengths[i] > dims[i]) {
+                    throw new IOException("Sub-image not within image");
+                }
+                arraySize *= lengths[i];
+            }
+            Object array = ArrayFuncs.newInstance(TiledImageHDU.this.baseClass, arraySize);
+            getTile(array, corners, lengths);
+            return array;
+        }
+
+        @Override
+        public Object getTile(int[] corners, int[] lengths, int[] steps) throws IOException {
+            return region(corners, lengths).getTile(new int[corners.length], lengths, steps);
+        }
+
+        /**
+         * Get a tiler over a region of the image. Compressed tiles have to be
+         * decompressed whole however few of their pixels are used, so the
+         * region is decompressed once and then sampled in memory.
+         */
+        private StandardImageTiler region(int[] corners, int[] lengths) throws IOException {
+            final Object image = ArrayFuncs.curl(getTile(corners, lengths), lengths);
+            return new StandardImageTiler(null, 0, lengths, TiledImageHDU.this.baseClass) {
+
+                @Override
+                protected Object getMemoryImage() {
+                    return image;
+                }
+            };
+        }
+
+        /**
+         * Fill a subset from the tiles. Data not within the image is left
+         * unchanged.
+         */
+        @Override
+        public void getTile(Object array, int[] corners, int[] lengths) throws IOException {
+            int[] cutCorner = ArrayFuncs.reverseIndices(corners);
+            int[] cutSize = ArrayFuncs.reverseIndices(lengths);
+
+            // First compute the tiles that we are going to loop over.
+            int[] tFirst = new int[TiledImageHDU.this.naxis];
+            int[] tCount = new int[TiledImageHDU.this.naxis];
+            for (int i = 0; i < TiledImageHDU.this.naxis; i += 1) {
+                int lo = Math.max(cutCorner[i], 0);
+                int hi = Math.min(cutCorner[i] + cutSize[i], TiledImageHDU.this.imageSize[i]);
+                if (lo >= hi) {
+                    // No overlap with the image
+                    return;
+                }
+                tFirst[i] = lo / TiledImageHDU.this.tileSize[i];
+                tCount[i] = (hi - 1) / TiledImageHDU.this.tileSize[i] - tFirst[i] + 1;
+            }
+
+            // Create a tile looper that goes over the tiles we want.
+            TileLooper tl = new TileLooper(TiledImageHDU.this.imageSize, TiledImageHDU.this.tileSize, tFirst, tCount);
+            try {
+                decompressTiles(tl, array, cutCorner, cutSize);
+            } catch (FitsException e) {
+                throw new IOException("FITS error reading tile", e);
+            }
+        }
+    }
+
+    /** The data read from the table for a single tile */
+    private static class TileData {
+
+        private TileDescriptor td;
+
+        private byte[] compressed;
+
+        /** The data from the GZIP_COMPRESSED_DATA or UNCOMPRESSED_DATA column */
+        private Object alternate;
+
+        private Quantizer quant;
+
+        private int blank;
+    }
+
+    // These keywords will not be copied from the original
+    // image into the copy.
+    private static String[] reserved = {
+        "SIMPLE",
+        "XTENSION",
+        "BITPIX",
+        "NAXIS",
+        "NAXIS1",
+        "NAXIS2",
+        "NAXIS3",
+        "NAXIS4",
+        "NAXIS5",
+        "BLOCKED",
+        "EXTEND",
+        "PCOUNT",
+        "GCOUNT",
+        "ZHECKSUM",
+        "ZDATASUM",
+        "END",
+        "ZSIMPLE",
+        "ZEXTENSION",
+        "ZEXTEND",
+        "ZBLOCKED",
+        "ZPCOUNT",
+        "ZGCOUNT",
+        "ZHECKSUM",
+        "ZDATASUM",
+        "ZTILE1",
+        "ZTILE2",
+        "ZTILE3",
+        "ZTILE4",
+        "ZTILE5",
+        "ZBITPIX",
+        "ZXTENSION",
+        "ZNAXIS",
+        "ZNAXIS1",
+        "ZNAXIS2",
+        "ZNAXIS3",
+        "ZNAXIS4",
+        "ZNAXIS5",
+        "ZNAME1",
+        "ZNAME2",
+        "ZNAME3",
+        "ZNAME4",
+        "ZNAME5",
+        "ZVAL1",
+        "ZVAL2",
+        "ZVAL3",
+        "ZVAL4",
+        "ZVAL5",
+        "ZMASKCMP",
+        "ZQUANTIZ",
+        "ZDITHER0",
+        "ZSCALE",
+        "ZZERO",
+        "ZBLANK",
+        "ZIMAGE",
+        "ZCMPTYPE",
+        "TFIELDS",
+        "THEAP",
+        "CHECKSUM",
+        "DATASUM"
+    };
+
+    private static Set<String> reservedKeys = new HashSet<String>();
+
+    static {
+        for (String res : TiledImageHDU.reserved) {
+            TiledImageHDU.reservedKeys.add(res);
+        }
+    }
+
+    private static Map<Integer, Class> bitpixClasses = new HashMap<Integer, Class>();
+
+    static {
+        TiledImageHDU.bitpixClasses.put(8, byte.class);
+        TiledImageHDU.bitpixClasses.put(16, short.class);
+        TiledImageHDU.bitpixClasses.put(32, int.class);
+        TiledImageHDU.bitpixClasses.put(64, long.class);
+        TiledImageHDU.bitpixClasses.put(-32, float.class);
+        TiledImageHDU.bitpixClasses.put(-64, double.class);
+    }
+
+    /**
+     * Copy the overlap of two regions of an image between flat arrays. Both
+     * regions are described in FITS order (first index varies fastest) using
+     * image coordinates.
+     * 
+     * @param src
+     *            The source array.
+     * @param srcCorner
+     *            The corner of the source region in the image.
+     * @param srcSize
+     *            The dimensions of the source region.
+     * @param dst
+     *            The destination array.
+     * @param dstCorner
+     *            The corner of the destination region in the image.
+     * @param dstSize
+     *            The dimensions of the destination region.
+     */
+    static void copyRegion(Object src, int[] srcCorner, int[] srcSize, Object dst, int[] dstCorner, int[] dstSize) {
+        int n = srcCorner.length;
+        int[] lo = new int[n];
+        int[] hi = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            lo[i] = Math.max(srcCorner[i], dstCorner[i]);
+            hi[i] = Math.min(srcCorner[i] + srcSize[i], dstCorner[i] + dstSize[i]);
+            if (lo[i] >= hi[i]) {
+                return;
+            }
+        }
+
+        int[] pos = lo.clone();
+        int rowLength = hi[0] - lo[0];
+        while (true) {
+            System.arraycopy(src, flatOffset(pos, srcCorner, srcSize), dst, flatOffset(pos, dstCorner, dstSize), rowLength);
+
+            // Move to the next row.
+            int i = 1;
+            while (i < n) {
+                pos[i] += 1;
+                if (pos[i] < hi[i]) {
+                    break;
+                }
+                pos[i] = lo[i];
+                i += 1;
+            }
+            if (i == n) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Create the basic header for a TiledImage.
+     */
+    private static Header coreHeader() throws FitsException {
+        Header hdr = BinaryTableHDU.manufactureHeader(nilData());
+        hdr.addValue("TTYPE1", "COMPRESSED_DATA", "Compressed data for a single tile");
+        return hdr;
+    }
+
+    /**
+     * Decompress Rice data directly into an integer array whose pixel size
+     * matches that of the compressed data.
+     * 
+     * @return false if the data could not be decompressed directly.
+     */
+    private static boolean decompressWords(CompressionScheme scheme, byte[] compressed, Object words) {
+        if (!(scheme instanceof Rice)) {
+            return false;
+        }
+        Rice rice = (Rice) scheme;
+        ByteBuffer in = ByteBuffer.wrap(compressed);
+        if (words instanceof int[] && rice.getBitpix() == 32) {
+            rice.decompress(in, (int[]) words, 0, ((int[]) words).length);
+        } else if (words instanceof short[] && rice.getBitpix() == 16) {
+            rice.decompress(in, (short[]) words, 0, ((short[]) words).length);
+        } else if (words instanceof byte[] && rice.getBitpix() == 8) {
+            rice.decompress(in, (byte[]) words, 0, ((byte[]) words).length);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /** Get the offset of an image position within a flat region */
+    private static int flatOffset(int[] pos, int[] corner, int[] size) {
+        int offset = 0;
+        for (int i = pos.length - 1; i >= 0; i -= 1) {
+            offset = offset * size[i] + pos[i] - corner[i];
+        }
+        return offset;
+    }
+
+    /**
+     * Is this a header for a tile compressed image?
+     */
+    public static boolean isHeader(Header hdr) {
+        return hdr.getBooleanValue("ZIMAGE", false) && BinaryTableHDU.isHeader(hdr);
+    }
+
+    /**
+     * Create a nil data segment for a basic tiled image.
+     * 
+     * @return A nil data segment
+     */
+    private static Data nilData() throws FitsException {
+        // We start with two rows so that we can ensure
+        // that it is seen as a variable length column.
+        // Need to delete these before adding the real data.
+        byte[][] testData = new byte[2][];
+        testData[0] = new byte[0];
+        testData[1] = new byte[1];
+        return BinaryTableHDU.encapsulate(new Object[]{
+            testData
+        });
+    }
+
+    /** Get the number of pixels in a tile */
+    private static int tileLength(TileDescriptor td) {
+        int tileLen = 1;
+        for (int element : td.size) {
+            tileLen *= element;
+        }
+        return tileLen;
+    }
+
+    /** Convert a flat tile of any type to big-endian bytes */
+    private static byte[] toBytes(Object tile) {
+        if (tile instanceof byte[]) {
+            return ((byte[]) tile).clone();
+        } else if (tile instanceof short[]) {
+            short[] t = (short[]) tile;
+            ByteBuffer buf = ByteBuffer.allocate(2 * t.length);
+            buf.asShortBuffer().put(t);
+            return buf.array();
+        } else if (tile instanceof int[]) {
+            int[] t = (int[]) tile;
+            ByteBuffer buf = ByteBuffer.allocate(4 * t.length);
+            buf.asIntBuffer().put(t);
+            return buf.array();
+        } else if (tile instanceof long[]) {
+            long[] t = (long[]) tile;
+            ByteBuffer buf = ByteBuffer.allocate(8 * t.length);
+            buf.asLongBuffer().put(t);
+            return buf.array();
+        } else if (tile instanceof float[]) {
+            float[] t = (float[]) tile;
+            ByteBuffer buf = ByteBuffer.allocate(4 * t.length);
+            buf.asFloatBuffer().put(t);
+            return buf.array();
+        } else {
+            double[] t = (double[]) tile;
+            ByteBuffer buf = ByteBuffer.allocate(8 * t.length);
+            buf.asDoubleBuffer().put(t);
+            return buf.array();
+        }
+    }
+
+    Header hdr;
+
+    private Quantizer quant;
+
+    private final CompressionScheme cs;
+
+    /** The name and parameters used to create schemes for other threads */
+    private final String compression;
+
+    private final Map<String, String> parameters;
+
+    /** Schemes not currently in use by a thread */
+    private final Queue<CompressionScheme> idleSchemes = new ConcurrentLinkedQueue<CompressionScheme>();
+
+    /** The executor used to process tiles, or null to process them serially */
+    private ExecutorService executor;
+
+    private final Class baseClass;
+
+    /**
+     * The tile widths in each dimension
+     */
+    private final int[] tileSize;
+
+    /**
+     * Dimensionality
+     */
+    private final int naxis;
+
+    /**
+     * Image dimensions
+     */
+    private final int[] imageSize;
+
+    /**
+     * Image BITPIX
+     */
+    private final int zbitpix;
+
+    /** The value used for undefined quantized pixels */
+    private int zblank = Quantizer.NULL_VALUE;
+
+    /**
+     * Columns (or -1) for tiles which could not be compressed and the per-tile
+     * quantization parameters.
+     */
+    private int gzipColumn = -1;
+
+    private int uncompressedColumn = -1;
+
+    private int scaleColumn = -1;
+
+    private int zeroColumn = -1;
+
+    private int blankColumn = -1;
+
+    private int dither0 = 1;
+
+    /**
+     * See if an existing binary table can be treated at a TiledImageHDU.
+     * 
+     * @param input
+     *            A binary table that has been created/read in that may be a
+     *            tiled image.
+     * @throws FitsException
+     *             if the input cannot be treated as a TiledImageHDU.
+     */
+    public TiledImageHDU(BinaryTableHDU input) throws FitsException {
+        super(input.getHeader(), input.getData());
+        this.hdr = input.getHeader();
+        if (!this.hdr.getBooleanValue("ZIMAGE", false) || this.hdr.getStringValue("ZCMPTYPE") == null || this.hdr.getIntValue("ZBITPIX", -1) == -1
+                || this.hdr.getIntValue("ZNAXIS", -1) == -1) {
+            throw new FitsException("Required keywords not found for TiledImageHDU");
+        }
+        this.naxis = this.hdr.getIntValue("ZNAXIS");
+        this.tileSize = new int[this.naxis];
+        this.imageSize = new int[this.naxis];
+        getDimens(this.imageSize, this.tileSize);
+
+        this.zbitpix = this.hdr.getIntValue("ZBITPIX");
+        this.baseClass = TiledImageHDU.bitpixClasses.get(this.zbitpix);
+        if (this.baseClass == null) {
+            throw new FitsException("Invalid ZBITPIX for TiledImageHDU:" + this.zbitpix);
+        }
+
+        this.compression = this.hdr.getStringValue("ZCMPTYPE");
+        this.cs = getCompression(this.compression);
+
+        this.gzipColumn = findColumn("GZIP_COMPRESSED_DATA");
+        this.uncompressedColumn = findColumn("UNCOMPRESSED_DATA");
+        if (this.zbitpix < 0) {
+            String zquantiz = this.hdr.getStringValue("ZQUANTIZ");
+            if (zquantiz == null || !zquantiz.trim().toUpperCase().equals("NONE")) {
+                if (zquantiz != null && !zquantiz.trim().toUpperCase().equals("SUBTRACTIVE_DITHER_1") && !zquantiz.trim().toUpperCase().equals("NO_DITHER")) {
+                    throw new FitsException("Unsupported quantization:" + zquantiz);
+                }
+                this.scaleColumn = findColumn("ZSCALE");
+                this.zeroColumn = findColumn("ZZERO");
+                this.blankColumn = findColumn("ZBLANK");
+                this.zblank = this.hdr.getIntValue("ZBLANK", Quantizer.NULL_VALUE);
+                this.dither0 = this.hdr.getIntValue("ZDITHER0", 1);
+                if (this.scaleColumn < 0) {
+                    this.quant = new Quantizer(this.hdr.getDoubleValue("ZSCALE", 1), this.hdr.getDoubleValue("ZZERO", 0), this.dither0);
+                }
+            }
+        }
+
+        Map<String, String> params = getParameters();
+        this.cs.getParameters(params, this.hdr);
+
+        this.cs.initialize(params);
+        this.parameters = params;
+    }
+
+    /**
+     * See if an existing binary table can be treated at a TiledImageHDU whose
+     * tiles are decompressed in parallel.
+     * 
+     * @param input
+     *            A binary table that may be a tiled image.
+     * @param executor
+     *            The executor used to decompress the tiles.
+     * @throws FitsException
+     *             if the input cannot be treated as a TiledImageHDU.
+     */
+    public TiledImageHDU(BinaryTableHDU input, ExecutorService executor) throws FitsException {
+        this(input);
+        this.executor = executor;
+    }
+
+    /**
+     * Create a tiled image HDU from an existing Image HDU.
+     * 
+     * @param input
+     *            The image to be compressed.
+     * @param parameters
+     *            The compression parameters: "compression" (rice, gzip or
+     *            hcompress; rice by default), "tiling" (a comma separated list
+     *            of tile dimensions in FITS order; row by row by default),
+     *            "quantize" ("none" to store real images without loss) and any
+     *            parameters of the compression scheme (e.g., "block").
+     */
+    public TiledImageHDU(ImageHDU input, Map<String, String> parameters) throws FitsException, IOException {
+        this(input, parameters, null);
+    }
+
+    /**
+     * Create a tiled image HDU from an existing Image HDU, compressing the
+     * tiles in parallel. The result is identical to that of the serial
+     * constructor.
+     * 
+     * @param input
+     *            The image to be compressed.
+     * @param parameters
+     *            The compression parameters.
+     * @param executor
+     *            The executor used to compress (and later decompress) the
+     *            tiles, or null to process them serially.
+     */
+    public TiledImageHDU(ImageHDU input, Map<String, String> parameters, ExecutorService executor) throws FitsException, IOException {
+        super(coreHeader(), nilData());
+        this.executor = executor;
+
+        this.hdr = getHeader(); // Get a local reference to the Header.
+        String comp = parameters.get("compression");
+
+        int[] axes = input.getAxes();
+        if (axes == null || axes.length == 0 || axes[0] == 0) {
+            throw new FitsException("Cannot compress nil image");
+        }
+        // getAxes() is in Java order.
+        this.imageSize = ArrayFuncs.reverseIndices(axes);
+        this.naxis = this.imageSize.length;
+        String tiling = parameters.get("tiling");
+        if (tiling == null) {
+            tiling = this.imageSize[0] + "";
+            for (int i = 1; i < this.imageSize.length; i += 1) {
+                tiling += ",1";
+            }
+        }
+        String[] fields = tiling.split(",");
+        if (fields.length != this.imageSize.length) {
+            throw new FitsException("Tile dimensionality (" + fields.length + ") must match image (" + this.imageSize.length + ")");
+        }
+        this.tileSize = new int[this.imageSize.length];
+        for (int i = 0; i < this.imageSize.length; i += 1) {
+            this.tileSize[i] = Integer.parseInt(fields[i].trim());
+        }
+
+        Header old = input.getHeader();
+        // Position the insertion pointer after the TFORM1.
+        this.hdr.getStringValue("TFORM1");
+
+        this.compression = comp;
+        this.cs = getCompression(comp);
+        insertTileKeywords(old, this.cs, parameters, this.imageSize, this.tileSize);
+
+        Object kern = input.getKernel();
+
+        int bitpix = old.getIntValue("BITPIX");
+        this.zbitpix = bitpix;
+        this.baseClass = TiledImageHDU.bitpixClasses.get(this.zbitpix);
+        if (bitpix < 0) {
+            if ("none".equalsIgnoreCase(parameters.get("quantize"))) {
+                if (!(this.cs instanceof Gzip)) {
+                    throw new FitsException("Unquantized real images may only be GZIP compressed");
+                }
+                this.hdr.addValue("ZQUANTIZ", "NONE", " Lossless compression");
+            } else {
+                RealStats rs = new RealStats(kern);
+                double offset = rs.min;
+                double scale = rs.noise3 / 16;
+                double range = rs.max - rs.min;
+                if (!(scale > 0)) {
+                    scale = range > 0 ? range / (1 << 24) : 1;
+                }
+                // Make sure the quantized values fit in an int.
+                if (range / scale > 1 << 30) {
+                    scale = range / (1 << 30);
+                }
+                insertQuantizerKeywords(offset, scale);
+                this.quant = new Quantizer(scale, offset, this.dither0);
+            }
+        }
+
+        Cursor<String, HeaderCard> newPointer = this.hdr.iterator();
+        newPointer.setKey("END");
+        Cursor<String, HeaderCard> oldPointer = old.iterator();
+        oldPointer.setKey("BITPIX");
+
+        copyOldKeywords(oldPointer, newPointer);
+        TileLooper tl = new TileLooper(this.imageSize, this.tileSize);
+        this.cs.initialize(parameters);
+        this.parameters = new HashMap<String, String>(parameters);
+        populateData(kern, tl);
+    }
+
+    /** Get a compression scheme which is not in use by another thread */
+    private CompressionScheme acquireScheme() {
+        if (this.executor == null) {
+            return this.cs;
+        }
+        CompressionScheme scheme = this.idleSchemes.poll();
+        if (scheme == null) {
+            scheme = getCompression(this.compression);
+            scheme.initialize(new HashMap<String, String>(this.parameters));
+        }
+        return scheme;
+    }
+
+    /** Make a scheme from acquireScheme() available to other threads */
+    private void releaseScheme(CompressionScheme scheme) {
+        if (scheme != this.cs) {
+            this.idleSchemes.add(scheme);
+        }
+    }
+
+    private void copyOldKeywords(Cursor<String, HeaderCard> oldPointer, Cursor<String, HeaderCard> newPointer) {
+
+        newPointer.add(HeaderCard.create("COMMENT"));
+        newPointer.add(HeaderCard.create("COMMENT   Header info copied from original image"));
+        newPointer.add(HeaderCard.create("COMMENT"));
+
+        while (oldPointer.hasNext()) {
+            HeaderCard card = oldPointer.next();
+            String key = card.getKey();
+            if (key.equals("END")) {
+                break;
+            }
+
+            if (!TiledImageHDU.reservedKeys.contains(key)) {
+                newPointer.add(card);
+            }
+        }
+    }
+
+    /**
+     * Compress a single tile of the image.
+     * 
+     * @return The compressed bytes for the tile.
+     */
+    private byte[] compressTile(Object image, TileDescriptor td) throws IOException {
+        Object tile = ArrayFuncs.newInstance(this.baseClass, tileLength(td));
+        copyRegion(image, new int[this.naxis], this.imageSize, tile, td.corner, td.size);
+
+        byte[] data;
+        if (this.quant == null) {
+            data = toBytes(tile);
+        } else {
+            data = toBytes(this.quant.quantize(tile, td.count));
+        }
+        CompressionScheme scheme = acquireScheme();
+        try {
+            return scheme.compress(data);
+        } finally {
+            releaseScheme(scheme);
+        }
+    }
+
+    /**
+     * Decompress a single tile whose data has been read from the table.
+     * 
+     * @return The tile as a flat array in FITS order.
+     */
+    private Object decompressTile(TileData data) throws FitsException, IOException {
+        int tileLen = tileLength(data.td);
+        Object tile = ArrayFuncs.newInstance(this.baseClass, tileLen);
+
+        if (data.compressed == null || data.compressed.length == 0) {
+            // CFITSIO stores tiles which could not be compressed
+            // (e.g., real tiles that could not be quantized)
+            // separately.
+            if (this.gzipColumn >= 0) {
+                fromBytes(new Gzip().decompress((byte[]) data.alternate, tileLen), tile);
+            } else if (this.uncompressedColumn >= 0) {
+                System.arraycopy(ArrayFuncs.convertArray(data.alternate, this.baseClass), 0, tile, 0, tileLen);
+            } else {
+                throw new FitsException("No data for tile " + data.td.count);
+            }
+            return tile;
+        }
+
+        Object words = data.quant != null ? new int[tileLen] : tile;
+        CompressionScheme scheme = acquireScheme();
+        try {
+            if (!decompressWords(scheme, data.compressed, words)) {
+                fromBytes(scheme.decompress(data.compressed, tileLen), words);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new FitsException("Compressed data too short for tile " + data.td.count, e);
+        } finally {
+            releaseScheme(scheme);
+        }
+        if (data.quant != null) {
+            data.quant.unquantize((int[]) words, tile, data.td.count, data.blank);
+        }
+        return tile;
+    }
+
+    /**
+     * Decompress the tiles of the looper and copy them into a region of the
+     * image. The table is read in the calling thread, the tiles are
+     * decompressed using the executor. Decompressed tiles are kept in the tile
+     * cache of the FitsFactory, if any, when the table was read from a file.
+     */
+    private void decompressTiles(TileLooper tl, final Object array, final int[] cutCorner, final int[] cutSize) throws FitsException, IOException {
+        final TileCache cache = FitsFactory.getTileCache();
+        final String source = cache != null ? getData().getSourceKey() : null;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (TileDescriptor td : tl) {
+            Object cached = source != null ? cache.get(source, td.count) : null;
+            if (cached != null) {
+                copyRegion(cached, td.corner, td.size, array, cutCorner, cutSize);
+                continue;
+            }
+            final TileData data = readTile(td);
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    Object tile = decompressTile(data);
+                    if (source != null) {
+                        cache.put(source, data.td.count, tile);
+                    }
+                    // Tiles do not overlap so each task fills a
+                    // different part of the array.
+                    copyRegion(tile, data.td.corner, data.td.size, array, cutCorner, cutSize);
+                    return null;
+                }
+            });
+        }
+        runTasks(tasks);
+    }
+
+    /**
+     * Fill a flat array from big-endian words. The word size is inferred from
+     * the number of bytes available, since some compression schemes return
+     * words which are larger than the pixels.
+     */
+    private void fromBytes(byte[] data, Object tile) throws FitsException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int len = Array.getLength(tile);
+        if (len == 0) {
+            return;
+        }
+        int wordSize = data.length / len;
+        if (tile instanceof float[]) {
+            buf.asFloatBuffer().get((float[]) tile);
+        } else if (tile instanceof double[]) {
+            buf.asDoubleBuffer().get((double[]) tile);
+        } else {
+            for (int i = 0; i < len; i += 1) {
+                long val;
+                if (wordSize == 1) {
+                    val = buf.get();
+                } else if (wordSize == 2) {
+                    val = buf.getShort();
+                } else if (wordSize == 4) {
+                    val = buf.getInt();
+                } else if (wordSize == 8) {
+                    val = buf.getLong();
+                } else {
+                    throw new FitsException("Invalid decompressed tile size:" + data.length + " bytes for " + len + " pixels");
+                }
+                if (tile instanceof byte[]) {
+                    ((byte[]) tile)[i] = (byte) val;
+                } else if (tile instanceof short[]) {
+                    ((short[]) tile)[i] = (short) val;
+                } else if (tile instanceof int[]) {
+                    ((int[]) tile)[i] = (int) val;
+                } else {
+                    ((long[]) tile)[i] = val;
+                }
+            }
+        }
+    }
+
+    private CompressionScheme getCompression(String comp) {
+        if (comp == null) {
+            comp = "rice_1";
+        }
+        comp = comp.trim().toLowerCase();
+
+        CompressionScheme cs;
+        if (comp.equals("rice_1") || comp.equals("rice")) {
+            cs = new Rice();
+        } else if (comp.equals("gzip_1") || comp.equals("gzip")) {
+            cs = new Gzip();
+        } else if (comp.equals("hcompress_1") || comp.equals("hcompress")) {
+            cs = new HCompress();
+        } else {
+            throw new IllegalArgumentException("Unsupported compression:" + comp);
+        }
+        return cs;
+    }
+
+    /**
+     * Find the size and tile information in the header
+     */
+    private void getDimens(int[] axes, int[] tiles) throws FitsException {
+
+        for (int i = 0; i < axes.length; i += 1) {
+            axes[i] = this.hdr.getIntValue("ZNAXIS" + (i + 1), -1);
+            if (axes[i] == -1) {
+                throw new FitsException("Missing ZNAXIS" + (i + 1) + " keyword for TiledImageHDU");
+            }
+            // Default tiling is row by row.
+            tiles[i] = this.hdr.getIntValue("ZTILE" + (i + 1), i == 0 ? axes[i] : 1);
+        }
+    }
+
+    /**
+     * Convert the tiled image into a regular ImageHDU. The keywords of the
+     * original image are restored.
+     * 
+     * @return The converted HDU.
+     */
+    public ImageHDU getImageHDU() throws FitsException, IOException {
+
+        Object data = new TiledTiler().getCompleteImage();
+
+        BasicHDU bhdu = FitsFactory.HDUFactory(data);
+        Header imageHeader = bhdu.getHeader();
+        Cursor<String, HeaderCard> oldPointer = this.hdr.iterator();
+        Cursor<String, HeaderCard> newPointer = imageHeader.iterator();
+        newPointer.setKey("END");
+        while (oldPointer.hasNext()) {
+            HeaderCard card = oldPointer.next();
+            String key = card.getKey();
+            if (key.equals("END")) {
+                break;
+            }
+            if (!TiledImageHDU.reservedKeys.contains(key) && !key.startsWith("TTYPE") && !key.startsWith("TFORM") && !key.startsWith("TDIM")) {
+                newPointer.add(card);
+            }
+        }
+        return (ImageHDU) bhdu;
+    }
+
+    /**
+     * Get a tiler which extracts subsets of the image, decompressing only the
+     * tiles which are needed.
+     */
+    public AbstractImageTiler getImageTiler() {
+        return new TiledTiler();
+    }
+
+    /**
+     * Get the compression parameters given in the ZNAMEn/ZVALn keywords. The
+     * names are converted to lower case.
+     */
+    private Map<String, String> getParameters() {
+        Map<String, String> params = new HashMap<String, String>();
+        int i = 1;
+        while (this.hdr.containsKey("ZNAME" + i)) {
+            String name = this.hdr.getStringValue("ZNAME" + i).trim().toLowerCase();
+            HeaderCard val = this.hdr.findCard("ZVAL" + i);
+            if (val != null && val.getValue() != null) {
+                params.put(name, val.getValue().trim());
+            }
+            i += 1;
+        }
+        return params;
+    }
+
+    /** Get the quantizer for a tile or null if the tile is not quantized */
+    private Quantizer getQuantizer(int tile) throws FitsException {
+        if (this.scaleColumn >= 0) {
+            double scale = ((double[]) ArrayFuncs.convertArray(getElement(tile, this.scaleColumn), double.class))[0];
+            double zero = 0;
+            if (this.zeroColumn >= 0) {
+                zero = ((double[]) ArrayFuncs.convertArray(getElement(tile, this.zeroColumn), double.class))[0];
+            }
+            return new Quantizer(scale, zero, this.dither0);
+        }
+        return this.quant;
+    }
+
+    private void insertQuantizerKeywords(double offset, double scale) throws FitsException {
+        this.hdr.addValue("ZZERO", offset, " Quantizer offset value");
+        this.hdr.addValue("ZSCALE", scale, " Quantizer scaling");
+        this.hdr.addValue("ZQUANTIZ", "SUBTRACTIVE_DITHER_1", " Quantizing scheme");
+        this.hdr.addValue("ZDITHER0", this.dither0, " Dithering offset");
+        this.hdr.addValue("ZBLANK", this.zblank, " Value of undefined pixels");
+    }
+
+    private void insertTileKeywords(Header old, CompressionScheme comp, Map<String, String> parameters, int[] axes, int[] tiles) throws FitsException {
+
+        this.hdr.insertComment(" ");
+        this.hdr.insertComment("  Tile compression keywords ");
+        this.hdr.insertComment(" ");
+
+        // Update the header.
+        this.hdr.addValue("ZIMAGE", true, "This is a tile compressed image");
+
+        this.hdr.addValue("ZCMPTYPE", comp.name(), "The compression algorithm used");
+        this.hdr.addValue("ZBITPIX", old.getIntValue("BITPIX"), "The original bitpix value");
+        this.hdr.addValue("ZNAXIS", axes.length, "The original NAXIS");
+        for (int i = 0; i < axes.length; i += 1) {
+            String d = i + 1 + "";
+            this.hdr.addValue("ZNAXIS" + d, axes[i], "The original NAXIS" + d);
+            this.hdr.addValue("ZTILE" + d, tiles[i], "The tile size along this axis");
+        }
+        if (old.containsKey("SIMPLE")) {
+            this.hdr.addValue("ZSIMPLE", old.getBooleanValue("SIMPLE"), "Was primary array");
+        }
+
+        if (old.containsKey("BLOCKED")) {
+            this.hdr.addValue("ZBLOCKED", old.getIntValue("BLOCKED"), "Old BLOCKED value");
+        }
+        if (old.containsKey("EXTEND")) {
+            this.hdr.addValue("ZEXTEND", old.getBooleanValue("EXTEND"), "Old EXTEND value");
+        }
+        if (old.containsKey("PCOUNT")) {
+            this.hdr.addValue("ZPCOUNT", old.getIntValue("PCOUNT"), "Old PCOUNT value");
+        }
+        if (old.containsKey("GCOUNT")) {
+            this.hdr.addValue("ZGCOUNT", old.getIntValue("GCOUNT"), "Old GCOUNT value");
+        }
+        if (old.containsKey("CHECKSUM")) {
+            this.hdr.addValue("ZHECKSUM", old.getStringValue("CHECKSUM"), "Old CHECKSUM value");
+        }
+        if (old.containsKey("DATASUM")) {
+            this.hdr.addValue("ZDATASUM", old.getStringValue("DATASUM"), "Old DATASUM value");
+        }
+        comp.updateForWrite(this.hdr, parameters);
+    }
+
+    private void populateData(Object kern, TileLooper tl) throws FitsException, IOException {
+
+        getData();
+        this.deleteRows(0, 2);
+
+        final Object image = ArrayFuncs.flatten(kern);
+
+        List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+        for (final TileDescriptor td : tl) {
+            tasks.add(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws IOException {
+                    return compressTile(image, td);
+                }
+            });
+        }
+        // The rows are added in tile order whatever order the
+        // tiles were compressed in.
+        for (byte[] data : runTasks(tasks)) {
+            addRow(new Object[]{
+                data
+            });
+        }
+    }
+
+    /** Read the data for a tile from the table */
+    private TileData readTile(TileDescriptor td) throws FitsException {
+        TileData data = new TileData();
+        data.td = td;
+        data.compressed = (byte[]) getElement(td.count, findColumn("COMPRESSED_DATA"));
+        if (data.compressed == null || data.compressed.length == 0) {
+            if (this.gzipColumn >= 0) {
+                data.alternate = getElement(td.count, this.gzipColumn);
+            } else if (this.uncompressedColumn >= 0) {
+                data.alternate = getElement(td.count, this.uncompressedColumn);
+            }
+        } else {
+            data.quant = getQuantizer(td.count);
+            data.blank = this.zblank;
+            if (data.quant != null && this.blankColumn >= 0) {
+                data.blank = ((int[]) getElement(td.count, this.blankColumn))[0];
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Run a set of tasks, using the executor if there is one, and return the
+     * results in the order of the tasks.
+     */
+    private <T> List<T> runTasks(List<Callable<T>> tasks) throws FitsException, IOException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (this.executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : this.executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing tiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FitsException) {
+                throw (FitsException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new FitsException("Error processing tiles", e);
+        } catch (FitsException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new FitsException("Error processing tiles", e);
+        }
+        return results;
+    }
+
+    /**
+     * Set the executor used to compress and decompress tiles.
+     * 
+     * @param executor
+     *            The executor, or null to process the tiles serially.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+}
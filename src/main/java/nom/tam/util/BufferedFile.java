@@ -85,6 +85,9 @@ public class BufferedFile implements ArrayDataInput, ArrayDataOutput, RandomAcce
     /** The underlying access to the file system */
     private RandomAccessFile raf;
 
+    /** The file being accessed */
+    private File file;
+
     /** The offset of the beginning of the current buffer */
     private long fileOffset;
 
@@ -342,6 +345,11 @@ public class BufferedFile implements ArrayDataInput, ArrayDataOutput, RandomAcce
         return this.raf.getChannel();
     }
 
+    /** Get the file being accessed */
+    public File getFile() {
+        return this.file;
+    }
+
     /**
      * Get the file descriptor associated with this stream. Note that this
      * returns the file descriptor of the associated RandomAccessFile.
@@ -361,6 +369,7 @@ public class BufferedFile implements ArrayDataInput, ArrayDataOutput, RandomAcce
     protected void initialize(File file, String mode, int bufferSize) throws IOException {
 
         this.raf = new RandomAccessFile(file, mode);
+        this.file = file;
         this.buffer = new byte[bufferSize];
         this.bufferOffset = 0;
         this.bufferLength = 0;
@@ -560,6 +569,8 @@ public class BufferedFile implements ArrayDataInput, ArrayDataOutput, RandomAcce
                     if (this.bufferLength > 0) {
                         System.arraycopy(this.buffer, 0, buf, offset, this.bufferLength);
                         total += this.bufferLength;
+                        // keep the file pointer after the bytes returned
+                        this.fileOffset += this.bufferLength;
                         this.bufferLength = 0;
                     }
                     if (total == 0) {
@@ -0,0 +1,111 @@
+package nom.tam.util;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which accumulates the FITS checksum of the bytes read through
+ * it, so that CHECKSUM and DATASUM values can be verified while an HDU is read.
+ * Skipped bytes are read so that they are included in the checksum, and
+ * mark/reset is not supported.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    private final FitsChecksum checksum;
+
+    private byte[] skipBuffer;
+
+    /**
+     * Compute the checksum of data read from a stream.
+     * 
+     * @param checksum
+     *            The checksum to be updated.
+     * @param in
+     *            The stream the data is read from.
+     */
+    public ChecksumInputStream(FitsChecksum checksum, InputStream in) {
+        super(in);
+        this.checksum = checksum;
+    }
+
+    /** Get the checksum being updated. */
+    public FitsChecksum getChecksum() {
+        return this.checksum;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = this.in.read();
+        if (b >= 0) {
+            this.checksum.update(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = this.in.read(b, off, len);
+        if (n > 0) {
+            this.checksum.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (this.skipBuffer == null) {
+            this.skipBuffer = new byte[8192];
+        }
+        long skipped = 0;
+        while (skipped < n) {
+            int got = read(this.skipBuffer, 0, (int) Math.min(this.skipBuffer.length, n - skipped));
+            if (got < 0) {
+                break;
+            }
+            skipped += got;
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,105 @@
+package nom.tam.util;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream which accumulates the FITS checksum of the bytes written
+ * through it. Wrap it in a BufferedDataOutputStream to compute CHECKSUM and
+ * DATASUM values while writing an HDU, or without a destination to compute them
+ * without writing anything.
+ */
+public class ChecksumOutputStream extends FilterOutputStream {
+
+    private final FitsChecksum checksum;
+
+    /**
+     * Compute a checksum without writing the data anywhere.
+     * 
+     * @param checksum
+     *            The checksum to be updated.
+     */
+    public ChecksumOutputStream(FitsChecksum checksum) {
+        this(checksum, null);
+    }
+
+    /**
+     * Compute a checksum of the data written to a stream.
+     * 
+     * @param checksum
+     *            The checksum to be updated.
+     * @param out
+     *            The stream the data is written to (or null).
+     */
+    public ChecksumOutputStream(FitsChecksum checksum, OutputStream out) {
+        super(out);
+        this.checksum = checksum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.out != null) {
+            super.close();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.out != null) {
+            this.out.flush();
+        }
+    }
+
+    /** Get the checksum being updated. */
+    public FitsChecksum getChecksum() {
+        return this.checksum;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.checksum.update(b, off, len);
+        if (this.out != null) {
+            this.out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.checksum.update(b);
+        if (this.out != null) {
+            this.out.write(b);
+        }
+    }
+}
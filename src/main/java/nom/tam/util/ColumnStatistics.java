@@ -0,0 +1,189 @@
+package nom.tam.util;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * Accumulates the minimum, maximum and sum of the values in a numeric column of
+ * a table, and the numbers of defined and undefined values. Values are added as
+ * ranges of the flattened primitive arrays in which columns are held. NaNs and
+ * undefined values are counted but otherwise ignored, as are non-numeric
+ * arrays. Bytes are unsigned, as in FITS tables. Values are accumulated as
+ * doubles, so long values beyond 2^53 are approximated.
+ */
+public class ColumnStatistics {
+
+    /** The number of values other than NaNs and undefined values */
+    private long count;
+
+    /** The number of NaN and undefined values */
+    private long nullCount;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private double sum;
+
+    /** Were the values integers? */
+    private boolean integral = true;
+
+    /**
+     * Add a range of values.
+     * 
+     * @param array
+     *            A flattened primitive array.
+     * @param start
+     *            The index of the first value to add.
+     * @param length
+     *            The number of values to add.
+     */
+    public void add(Object array, int start, int length) {
+        int end = start + length;
+        if (array instanceof byte[]) {
+            byte[] a = (byte[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i] & 0xFF);
+            }
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i]);
+            }
+        } else if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i]);
+            }
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i]);
+            }
+        } else if (array instanceof float[]) {
+            this.integral = false;
+            float[] a = (float[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i]);
+            }
+        } else if (array instanceof double[]) {
+            this.integral = false;
+            double[] a = (double[]) array;
+            for (int i = start; i < end; i += 1) {
+                addValue(a[i]);
+            }
+        }
+    }
+
+    /**
+     * Count an undefined value, e.g., a null entry in an ASCII table.
+     */
+    public void addNull() {
+        this.nullCount += 1;
+    }
+
+    private void addValue(double value) {
+        if (value != value) {
+            this.nullCount += 1;
+            return;
+        }
+        if (value < this.min) {
+            this.min = value;
+        }
+        if (value > this.max) {
+            this.max = value;
+        }
+        this.sum += value;
+        this.count += 1;
+    }
+
+    /**
+     * @return the number of values other than NaNs and undefined values.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the largest value, or negative infinity if there are none.
+     */
+    public double getMax() {
+        return this.max;
+    }
+
+    /**
+     * @return the mean value, or NaN if there are no values.
+     */
+    public double getMean() {
+        return this.count == 0 ? Double.NaN : this.sum / this.count;
+    }
+
+    /**
+     * @return the smallest value, or positive infinity if there are none.
+     */
+    public double getMin() {
+        return this.min;
+    }
+
+    /**
+     * @return the number of NaN and undefined values.
+     */
+    public long getNullCount() {
+        return this.nullCount;
+    }
+
+    /**
+     * @return the sum of the values.
+     */
+    public double getSum() {
+        return this.sum;
+    }
+
+    /**
+     * @return true if only integer columns have been added.
+     */
+    public boolean isIntegral() {
+        return this.integral;
+    }
+
+    /**
+     * Add the values accumulated by other statistics. This may be called from
+     * several threads.
+     */
+    public synchronized void merge(ColumnStatistics other) {
+        this.count += other.count;
+        this.nullCount += other.nullCount;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+        this.sum += other.sum;
+        this.integral = this.integral && other.integral;
+    }
+}
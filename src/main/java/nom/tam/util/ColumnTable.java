@@ -32,7 +32,15 @@ package nom.tam.util;
  */
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A data table is conventionally considered to consist of rows and columns,
@@ -50,6 +58,12 @@ import java.lang.reflect.Array;
  */
 public class ColumnTable implements DataTable {
 
+    /**
+     * The number of bytes of rows transposed at a time when reading or writing
+     * in parallel. Smaller tables are always handled serially.
+     */
+    private static final int PARALLEL_BLOCK_SIZE = 4 * 1024 * 1024;
+
     /** The columns to be read/written */
     private Object[] arrays;
 
@@ -89,6 +103,9 @@ public class ColumnTable implements DataTable {
 
     private boolean[][] booleanPointers;
 
+    /** Statistics accumulated for each column as it is read or written */
+    private ColumnStatistics[] statistics;
+
     /**
      * Create the object after checking consistency.
      * 
@@ -421,6 +438,79 @@ public class ColumnTable implements DataTable {
         initializePointers();
     }
 
+    /**
+     * Copy the elements of one column from a block of big-endian rows into a
+     * flattened column array. Only absolute gets are used so several threads
+     * may share the buffer.
+     * 
+     * @param rows
+     *            The row data.
+     * @param rowLen
+     *            The number of bytes in a row.
+     * @param nrow
+     *            The number of rows to copy.
+     * @param colOffset
+     *            The offset of the column in the first row to copy.
+     * @param size
+     *            The number of elements of the column in each row.
+     * @param column
+     *            The flattened column.
+     * @param start
+     *            The index in the column of the first element copied.
+     */
+    public static void extractColumn(ByteBuffer rows, int rowLen, int nrow, int colOffset, int size, Object column, int start) {
+        int index = start;
+        for (int row = 0; row < nrow; row += 1) {
+            int pos = row * rowLen + colOffset;
+            if (column instanceof byte[]) {
+                byte[] a = (byte[]) column;
+                if (rows.hasArray()) {
+                    System.arraycopy(rows.array(), rows.arrayOffset() + pos, a, index, size);
+                } else {
+                    for (int k = 0; k < size; k += 1) {
+                        a[index + k] = rows.get(pos + k);
+                    }
+                }
+            } else if (column instanceof short[]) {
+                short[] a = (short[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getShort(pos + 2 * k);
+                }
+            } else if (column instanceof int[]) {
+                int[] a = (int[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getInt(pos + 4 * k);
+                }
+            } else if (column instanceof long[]) {
+                long[] a = (long[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getLong(pos + 8 * k);
+                }
+            } else if (column instanceof float[]) {
+                float[] a = (float[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getFloat(pos + 4 * k);
+                }
+            } else if (column instanceof double[]) {
+                double[] a = (double[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getDouble(pos + 8 * k);
+                }
+            } else if (column instanceof char[]) {
+                char[] a = (char[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.getChar(pos + 2 * k);
+                }
+            } else if (column instanceof boolean[]) {
+                boolean[] a = (boolean[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    a[index + k] = rows.get(pos + k) == 1;
+                }
+            }
+            index += size;
+        }
+    }
+
     /**
      * Get the base classes of the columns.
      * 
@@ -522,6 +612,11 @@ public class ColumnTable implements DataTable {
         return this.sizes;
     }
 
+    /** The statistics being accumulated, if any */
+    public ColumnStatistics[] getStatistics() {
+        return this.statistics;
+    }
+
     /**
      * Get the characters describing the base classes of the columns.
      * 
@@ -640,6 +735,63 @@ public class ColumnTable implements DataTable {
         }
     }
 
+    /**
+     * Copy the elements of one column from a flattened column array into a
+     * block of big-endian rows. This is the inverse of extractColumn.
+     */
+    public static void insertColumn(ByteBuffer rows, int rowLen, int nrow, int colOffset, int size, Object column, int start) {
+        int index = start;
+        for (int row = 0; row < nrow; row += 1) {
+            int pos = row * rowLen + colOffset;
+            if (column instanceof byte[]) {
+                byte[] a = (byte[]) column;
+                if (rows.hasArray()) {
+                    System.arraycopy(a, index, rows.array(), rows.arrayOffset() + pos, size);
+                } else {
+                    for (int k = 0; k < size; k += 1) {
+                        rows.put(pos + k, a[index + k]);
+                    }
+                }
+            } else if (column instanceof short[]) {
+                short[] a = (short[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putShort(pos + 2 * k, a[index + k]);
+                }
+            } else if (column instanceof int[]) {
+                int[] a = (int[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putInt(pos + 4 * k, a[index + k]);
+                }
+            } else if (column instanceof long[]) {
+                long[] a = (long[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putLong(pos + 8 * k, a[index + k]);
+                }
+            } else if (column instanceof float[]) {
+                float[] a = (float[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putFloat(pos + 4 * k, a[index + k]);
+                }
+            } else if (column instanceof double[]) {
+                double[] a = (double[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putDouble(pos + 8 * k, a[index + k]);
+                }
+            } else if (column instanceof char[]) {
+                char[] a = (char[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.putChar(pos + 2 * k, a[index + k]);
+                }
+            } else if (column instanceof boolean[]) {
+                boolean[] a = (boolean[]) column;
+                for (int k = 0; k < size; k += 1) {
+                    rows.put(pos + k, (byte) (a[index + k] ? 1 : 0));
+                }
+            }
+            index += size;
+        }
+    }
+
     /**
      * Read a table.
      * 
@@ -717,6 +869,9 @@ public class ColumnTable implements DataTable {
                         is.read(bool, arrOffset, size);
                         break;
                 }
+                if (this.statistics != null && this.statistics[col] != null) {
+                    this.statistics[col].add(this.arrays[col], arrOffset, size);
+                }
             }
         }
 
@@ -724,6 +879,37 @@ public class ColumnTable implements DataTable {
         return this.rowSize * this.nrow;
     }
 
+    /**
+     * Read a table, transposing the rows into the columns in parallel. Blocks
+     * of raw rows are read in turn and each is split by row range into tasks
+     * for the executor while the next block is read. Small tables, or a null
+     * executor, are read serially.
+     * 
+     * @param is
+     *            The input stream to read from.
+     * @param executor
+     *            The executor which runs the transposition tasks.
+     */
+    public int read(ArrayDataInput is, ExecutorService executor) throws IOException {
+        if (executor == null || this.rowSize == 0 || (long) this.nrow * this.rowSize <= ColumnTable.PARALLEL_BLOCK_SIZE) {
+            return read(is);
+        }
+        int blockRows = Math.max(1, ColumnTable.PARALLEL_BLOCK_SIZE / this.rowSize);
+        byte[][] buffers = new byte[2][blockRows * this.rowSize];
+        List<Future<?>> pending = new ArrayList<>();
+        int which = 0;
+        for (int row = 0; row < this.nrow; row += blockRows) {
+            int n = Math.min(blockRows, this.nrow - row);
+            is.readFully(buffers[which], 0, n * this.rowSize);
+            // The previous block must be done before its tasks are replaced.
+            ColumnTable.waitFor(pending);
+            transpose(executor, pending, ByteBuffer.wrap(buffers[which]), row, n, false);
+            which = 1 - which;
+        }
+        ColumnTable.waitFor(pending);
+        return this.rowSize * this.nrow;
+    }
+
     /**
      * Set the values in a particular column. The new values must match the old
      * in length but not necessarily in type.
@@ -804,6 +990,19 @@ public class ColumnTable implements DataTable {
         }
     }
 
+    /**
+     * Accumulate statistics for columns as they are read or written. The
+     * statistics are added to, so the same objects may be used across several
+     * tables, e.g., the batches of a table written in pieces.
+     * 
+     * @param statistics
+     *            The statistics for each column. Null entries, or a null array,
+     *            disable collection.
+     */
+    public void setStatistics(ColumnStatistics[] statistics) {
+        this.statistics = statistics;
+    }
+
     /**
      * Actually perform the initialization.
      */
@@ -815,6 +1014,63 @@ public class ColumnTable implements DataTable {
 
     }
 
+    /**
+     * Submit tasks which copy a block of rows between the row buffer and the
+     * column arrays, one task for each range of rows.
+     */
+    private void transpose(ExecutorService executor, List<Future<?>> pending, final ByteBuffer rows, final int firstRow, int nrows, final boolean toRows) {
+        final int[] offsets = new int[this.arrays.length];
+        final ColumnStatistics[] statistics = this.statistics;
+        for (int col = 1; col < this.arrays.length; col += 1) {
+            offsets[col] = offsets[col - 1] + this.sizes[col - 1] * ArrayFuncs.getBaseLength(this.arrays[col - 1]);
+        }
+        int tasks = Math.min(nrows, Runtime.getRuntime().availableProcessors());
+        for (int t = 0; t < tasks; t += 1) {
+            final int from = (int) ((long) nrows * t / tasks);
+            final int to = (int) ((long) nrows * (t + 1) / tasks);
+            pending.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    for (int col = 0; col < ColumnTable.this.arrays.length; col += 1) {
+                        int size = ColumnTable.this.sizes[col];
+                        int offset = from * ColumnTable.this.rowSize + offsets[col];
+                        int start = (firstRow + from) * size;
+                        if (toRows) {
+                            ColumnTable.insertColumn(rows, ColumnTable.this.rowSize, to - from, offset, size, ColumnTable.this.arrays[col], start);
+                        } else {
+                            ColumnTable.extractColumn(rows, ColumnTable.this.rowSize, to - from, offset, size, ColumnTable.this.arrays[col], start);
+                        }
+                        if (statistics != null && statistics[col] != null) {
+                            ColumnStatistics local = new ColumnStatistics();
+                            local.add(ColumnTable.this.arrays[col], start, (to - from) * size);
+                            statistics[col].merge(local);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Wait for transposition tasks to complete.
+     */
+    private static void waitFor(List<Future<?>> pending) throws IOException {
+        try {
+            for (Future<?> task : pending) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during table transposition");
+        } catch (ExecutionException e) {
+            throw new IOException("Error in table transposition", e.getCause());
+        } finally {
+            pending.clear();
+        }
+    }
+
     /**
      * Write a table.
      * 
@@ -894,6 +1150,9 @@ public class ColumnTable implements DataTable {
                         os.write(bool, arrOffset, size);
                         break;
                 }
+                if (this.statistics != null && this.statistics[col] != null) {
+                    this.statistics[col].add(this.arrays[col], arrOffset, size);
+                }
 
             }
 
@@ -902,4 +1161,37 @@ public class ColumnTable implements DataTable {
         // All done if we get here...
         return this.rowSize * this.nrow;
     }
+
+    /**
+     * Write a table, transposing the columns into rows in parallel. Each block
+     * of rows is assembled by tasks on the executor while the previous block is
+     * written. Small tables, or a null executor, are written serially.
+     * 
+     * @param os
+     *            the output stream to write to.
+     * @param executor
+     *            The executor which runs the transposition tasks.
+     */
+    public int write(ArrayDataOutput os, ExecutorService executor) throws IOException {
+        if (executor == null || this.rowSize == 0 || (long) this.nrow * this.rowSize <= ColumnTable.PARALLEL_BLOCK_SIZE) {
+            return write(os);
+        }
+        int blockRows = Math.max(1, ColumnTable.PARALLEL_BLOCK_SIZE / this.rowSize);
+        byte[][] buffers = new byte[2][blockRows * this.rowSize];
+        List<Future<?>> pending = new ArrayList<>();
+        int which = 0;
+        int previous = 0;
+        for (int row = 0; row < this.nrow; row += blockRows) {
+            int n = Math.min(blockRows, this.nrow - row);
+            transpose(executor, pending, ByteBuffer.wrap(buffers[which]), row, n, true);
+            if (previous > 0) {
+                os.write(buffers[1 - which], 0, previous * this.rowSize);
+            }
+            ColumnTable.waitFor(pending);
+            previous = n;
+            which = 1 - which;
+        }
+        os.write(buffers[1 - which], 0, previous * this.rowSize);
+        return this.rowSize * this.nrow;
+    }
 }
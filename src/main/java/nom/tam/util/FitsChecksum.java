@@ -0,0 +1,235 @@
+package nom.tam.util;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental Seaman-Pence 32-bit 1's complement checksum as used for the
+ * FITS CHECKSUM and DATASUM keywords. Data may be added in pieces of any size
+ * and the sums of consecutive segments which were computed separately (e.g., in
+ * different threads) may be combined. The checksum of a complete HDU which
+ * includes a valid CHECKSUM keyword is 0xFFFFFFFF.
+ * <p>
+ * The sums of the high and low order 16-bit halves of each 4-byte word are
+ * accumulated separately and carries are only folded back in when the value is
+ * requested or the sums get large.
+ */
+public class FitsChecksum {
+
+    /** Fold the carries when the sums exceed this */
+    private static final long FOLD_LIMIT = 1L << 48;
+
+    /**
+     * Add two checksums using 1's complement arithmetic.
+     * 
+     * @param a
+     *            A 32-bit checksum.
+     * @param b
+     *            Another 32-bit checksum.
+     * @return The combined checksum.
+     */
+    public static long add(long a, long b) {
+        long sum = a + b;
+        // A carry goes back into the low order bit.
+        while ((sum & 0xFFFFFFFF00000000L) != 0) {
+            sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        }
+        return sum;
+    }
+
+    /** Sum of the first (high order) 16 bits of each word */
+    private long hi;
+
+    /** Sum of the second (low order) 16 bits of each word */
+    private long lo;
+
+    /** The number of bytes that have been added */
+    private long length;
+
+    /**
+     * Add a byte to the checksum.
+     * 
+     * @param b
+     *            The byte in the low order 8 bits.
+     */
+    public void update(int b) {
+        int val = b & 0xFF;
+        switch ((int) (this.length & 3)) {
+            case 0:
+                this.hi += val << 8;
+                break;
+            case 1:
+                this.hi += val;
+                break;
+            case 2:
+                this.lo += val << 8;
+                break;
+            default:
+                this.lo += val;
+        }
+        this.length += 1;
+    }
+
+    /** Add an array of bytes to the checksum. */
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Add part of an array of bytes to the checksum.
+     * 
+     * @param data
+     *            The array.
+     * @param offset
+     *            The first byte to add.
+     * @param len
+     *            The number of bytes to add.
+     */
+    public void update(byte[] data, int offset, int len) {
+        int end = offset + len;
+        // Get to a word boundary.
+        while (offset < end && (this.length & 3) != 0) {
+            update(data[offset]);
+            offset += 1;
+        }
+
+        long h = 0;
+        long l = 0;
+        int words = (end - offset) / 4;
+        for (int i = 0; i < words; i += 1) {
+            h += (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+            l += (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+            offset += 4;
+        }
+        this.hi += h;
+        this.lo += l;
+        this.length += 4L * words;
+
+        while (offset < end) {
+            update(data[offset]);
+            offset += 1;
+        }
+        if (this.hi >= FitsChecksum.FOLD_LIMIT || this.lo >= FitsChecksum.FOLD_LIMIT) {
+            fold();
+        }
+    }
+
+    /**
+     * Add the remaining bytes of a buffer to the checksum. The position of the
+     * buffer is moved to its limit.
+     */
+    public void update(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        while (buf.remaining() > 0 && (this.length & 3) != 0) {
+            update(buf.get());
+        }
+        long h = 0;
+        long l = 0;
+        int words = buf.remaining() / 4;
+        for (int i = 0; i < words; i += 1) {
+            int word = buf.getInt();
+            h += word >>> 16;
+            l += word & 0xFFFF;
+        }
+        this.hi += h;
+        this.lo += l;
+        this.length += 4L * words;
+        while (buf.remaining() > 0) {
+            update(buf.get());
+        }
+        if (this.hi >= FitsChecksum.FOLD_LIMIT || this.lo >= FitsChecksum.FOLD_LIMIT) {
+            fold();
+        }
+    }
+
+    /**
+     * Append the checksum of the bytes which follow those added to this
+     * checksum. The other checksum need not start on a word boundary of this
+     * one.
+     * 
+     * @param next
+     *            The checksum of the following bytes.
+     */
+    public void combine(FitsChecksum next) {
+        long value = next.getValue();
+        // Each byte of the following data is shifted within its word by the
+        // number of bytes left over in this checksum. In 1's complement
+        // arithmetic this just rotates the sum.
+        int shift = 8 * (int) (this.length & 3);
+        if (shift != 0) {
+            value = (value >>> shift | value << 32 - shift) & 0xFFFFFFFFL;
+        }
+        this.hi += value >>> 16;
+        this.lo += value & 0xFFFF;
+        this.length += next.length;
+        fold();
+    }
+
+    /** Fold the carries of the half word sums back into the sums. */
+    private void fold() {
+        long hicarry = this.hi >>> 16;
+        long locarry = this.lo >>> 16;
+        while (hicarry != 0 || locarry != 0) {
+            this.hi = (this.hi & 0xFFFFL) + locarry;
+            this.lo = (this.lo & 0xFFFFL) + hicarry;
+            hicarry = this.hi >>> 16;
+            locarry = this.lo >>> 16;
+        }
+    }
+
+    /** Get the number of bytes that have been added. */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Get the checksum of the bytes added so far.
+     * 
+     * @return The 32-bit checksum in the range 0 to 2^32-1.
+     */
+    public long getValue() {
+        fold();
+        return this.hi << 16 | this.lo;
+    }
+
+    /** Start a new checksum. */
+    public void reset() {
+        this.hi = 0;
+        this.lo = 0;
+        this.length = 0;
+    }
+}
@@ -0,0 +1,1088 @@
+package nom.tam.util;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A random access file which reads and writes its data through memory mapped
+ * windows of the underlying file rather than through a private byte buffer as
+ * BufferedFile does. Each window is a big-endian MappedByteBuffer so that the
+ * bulk array reads and writes are done by the typed views of the buffer (e.g.,
+ * asFloatBuffer().get(...)) rather than by converting one element at a time.
+ * Files larger than 2 GB are handled by moving the window as the file pointer
+ * moves.
+ * <p>
+ * This class is a drop-in alternative to BufferedFile and may be used wherever
+ * an ArrayDataInput, ArrayDataOutput or RandomAccess is required. Like
+ * BufferedFile its methods are not synchronized.
+ * <p>
+ * When the file is opened for writing the mapped windows may extend the file
+ * beyond the last byte written. The file is truncated back to the logical
+ * length when the file is closed or setLength is called.
+ */
+public class MappedFile implements ArrayDataInput, ArrayDataOutput, RandomAccess {
+
+    /** The default size of a mapped window: 64 MB */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** The underlying file */
+    private final RandomAccessFile raf;
+
+    /** The file being accessed */
+    private final File file;
+
+    /** The channel of the underlying file that the windows are mapped from */
+    private final FileChannel channel;
+
+    /** Was the file opened for writing */
+    private final boolean writable;
+
+    /** The maximum size of a mapped window */
+    private final int windowSize;
+
+    /** The currently mapped window (may be null) */
+    private MappedByteBuffer window;
+
+    /** The offset in the file of the beginning of the current window */
+    private long windowStart;
+
+    /** The number of bytes mapped in the current window */
+    private int windowLength;
+
+    /** The current offset into the file */
+    private long position;
+
+    /** The logical length of the file */
+    private long length;
+
+    /** The position saved by mark() */
+    private long markPosition;
+
+    /** Counter used in reading arrays */
+    private long primitiveArrayCount;
+
+    /** Create a read-only mapped file */
+    public MappedFile(File file) throws IOException {
+        this(file, "r", MappedFile.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a mapped file with the given mode.
+     * 
+     * @param file
+     *            The file to be accessed.
+     * @param mode
+     *            A string composed of "r" and "w" for read and write access.
+     */
+    public MappedFile(File file, String mode) throws IOException {
+        this(file, mode, MappedFile.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a mapped file with the given mode and window size.
+     * 
+     * @param file
+     *            The file to be accessed.
+     * @param mode
+     *            A string composed of "r" and "w" for read and write access.
+     * @param windowSize
+     *            The maximum number of bytes mapped at any one time. This
+     *            should be substantially larger than 100 bytes and defaults to
+     *            64 MB in the other constructors.
+     */
+    public MappedFile(File file, String mode, int windowSize) throws IOException {
+        if (windowSize < 8) {
+            throw new IllegalArgumentException("Invalid window size for mapped file:" + windowSize);
+        }
+        this.raf = new RandomAccessFile(file, mode);
+        this.file = file;
+        this.channel = this.raf.getChannel();
+        this.writable = mode.indexOf('w') >= 0;
+        this.windowSize = windowSize;
+        this.length = this.raf.length();
+    }
+
+    /** Create a read-only mapped file */
+    public MappedFile(String filename) throws IOException {
+        this(new File(filename), "r", MappedFile.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a mapped file with the given mode.
+     * 
+     * @param filename
+     *            The file to be accessed.
+     * @param mode
+     *            A string composed of "r" and "w" for read and write access.
+     */
+    public MappedFile(String filename, String mode) throws IOException {
+        this(new File(filename), mode, MappedFile.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Release the current window and truncate the file to its logical length.
+     */
+    @Override
+    public void close() throws IOException {
+        this.window = null;
+        if (this.writable && this.channel.isOpen() && this.channel.size() > this.length) {
+            this.channel.truncate(this.length);
+        }
+        this.raf.close();
+    }
+
+    /** See if an exception should be thrown during an array read. */
+    private int eofCheck(EOFException e, int start, int index, int length) throws EOFException {
+        if (start == index) {
+            throw e;
+        } else {
+            return (index - start) * length;
+        }
+    }
+
+    /**
+     * Data written to the mapped windows is immediately visible to other users
+     * of the file so there is nothing to flush. Note that this does not force
+     * the data to the storage device.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Get the channel associated with this file.
+     */
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    /** Get the file being accessed */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Get the file descriptor associated with this stream.
+     */
+    public FileDescriptor getFD() throws IOException {
+        return this.raf.getFD();
+    }
+
+    /**
+     * Get the current offset into the file.
+     */
+    @Override
+    public long getFilePointer() {
+        return this.position;
+    }
+
+    /**
+     * Get the current (logical) length of the file.
+     */
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * Map a new window beginning at the current position.
+     * 
+     * @param forWrite
+     *            Should the window extend past the end of the file.
+     */
+    private void map(boolean forWrite) throws IOException {
+        this.window = null;
+        long size = this.windowSize;
+        if (!forWrite) {
+            size = Math.min(size, this.channel.size() - this.position);
+            if (size <= 0) {
+                throw new EOFException();
+            }
+        }
+        FileChannel.MapMode mode = this.writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        this.window = this.channel.map(mode, this.position, size);
+        this.windowStart = this.position;
+        this.windowLength = (int) size;
+    }
+
+    @Override
+    public void mark(int readlimit) throws IOException {
+        this.markPosition = this.position;
+    }
+
+    /**
+     * Make sure that the current window can supply at least the requested
+     * number of bytes at the current position and position the window there.
+     * 
+     * @param need
+     *            The number of bytes required.
+     * @return The window with its position and limit set to the readable
+     *         region.
+     */
+    private ByteBuffer needInput(int need) throws IOException {
+        if (this.position + need > this.length) {
+            throw new EOFException();
+        }
+        if (this.window == null || this.position < this.windowStart || this.position + need > this.windowStart + this.windowLength) {
+            map(false);
+        }
+        int limit = (int) Math.min(this.windowLength, this.length - this.windowStart);
+        this.window.limit(limit);
+        this.window.position((int) (this.position - this.windowStart));
+        return this.window;
+    }
+
+    /**
+     * Make sure that the current window can accept at least the requested
+     * number of bytes at the current position and position the window there.
+     * 
+     * @param need
+     *            The number of bytes to be written.
+     * @return The window with its position and limit set to the writable
+     *         region.
+     */
+    private ByteBuffer needOutput(int need) throws IOException {
+        if (!this.writable) {
+            throw new IOException("Attempt to write to read-only MappedFile");
+        }
+        if (this.window == null || this.position < this.windowStart || this.position + need > this.windowStart + this.windowLength) {
+            map(true);
+        }
+        this.window.limit(this.windowLength);
+        this.window.position((int) (this.position - this.windowStart));
+        return this.window;
+    }
+
+    /**
+     * Note the number of bytes just written and extend the logical length of
+     * the file if needed.
+     */
+    private void wrote(long count) {
+        this.position += count;
+        if (this.position > this.length) {
+            this.length = this.position;
+        }
+    }
+
+    protected long primitiveArrayRecurse(Object o) throws IOException {
+
+        if (o == null) {
+            return this.primitiveArrayCount;
+        }
+
+        String className = o.getClass().getName();
+
+        if (className.charAt(0) != '[') {
+            throw new IOException("Invalid object passed to MappedFile.readArray:" + className);
+        }
+
+        // Is this a multidimensional array? If so process recursively.
+        if (className.charAt(1) == '[') {
+            for (int i = 0; i < ((Object[]) o).length; i += 1) {
+                primitiveArrayRecurse(((Object[]) o)[i]);
+            }
+        } else {
+
+            // This is a one-d array. Process it using our special functions.
+            switch (className.charAt(1)) {
+                case 'Z':
+                    this.primitiveArrayCount += read((boolean[]) o, 0, ((boolean[]) o).length);
+                    break;
+                case 'B':
+                    this.primitiveArrayCount += read((byte[]) o, 0, ((byte[]) o).length);
+                    break;
+                case 'C':
+                    this.primitiveArrayCount += read((char[]) o, 0, ((char[]) o).length);
+                    break;
+                case 'S':
+                    this.primitiveArrayCount += read((short[]) o, 0, ((short[]) o).length);
+                    break;
+                case 'I':
+                    this.primitiveArrayCount += read((int[]) o, 0, ((int[]) o).length);
+                    break;
+                case 'J':
+                    this.primitiveArrayCount += read((long[]) o, 0, ((long[]) o).length);
+                    break;
+                case 'F':
+                    this.primitiveArrayCount += read((float[]) o, 0, ((float[]) o).length);
+                    break;
+                case 'D':
+                    this.primitiveArrayCount += read((double[]) o, 0, ((double[]) o).length);
+                    break;
+                case 'L':
+
+                    // Handle an array of Objects by recursion. Anything
+                    // else is an error.
+                    if (className.equals("[Ljava.lang.Object;")) {
+                        for (int i = 0; i < ((Object[]) o).length; i += 1) {
+                            primitiveArrayRecurse(((Object[]) o)[i]);
+                        }
+                    } else {
+                        throw new IOException("Invalid object passed to MappedFile.readArray: " + className);
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid object passed to MappedFile.readArray: " + className);
+            }
+        }
+        return this.primitiveArrayCount;
+    }
+
+    /** Read a byte */
+    public int read() throws IOException {
+        if (this.position >= this.length) {
+            return -1;
+        }
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public int read(boolean[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(boolean[] b, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                ByteBuffer buf = needInput(1);
+                int n = Math.min(start + length - i, buf.remaining());
+                for (int j = 0; j < n; j += 1) {
+                    b[i + j] = buf.get() == 1;
+                }
+                this.position += n;
+                i += n;
+            }
+            return length;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 1);
+        }
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        return read(buf, 0, buf.length);
+    }
+
+    /**
+     * Read into a segment of a byte array.
+     * 
+     * @param buf
+     *            The array to be filled.
+     * @param offset
+     *            The starting location for input.
+     * @param len
+     *            The number of bytes to be read. Fewer bytes will be read if an
+     *            EOF is reached.
+     */
+    @Override
+    public int read(byte[] buf, int offset, int len) throws IOException {
+        int i = offset;
+        try {
+            while (i < offset + len) {
+                ByteBuffer b = needInput(1);
+                int n = Math.min(offset + len - i, b.remaining());
+                b.get(buf, i, n);
+                this.position += n;
+                i += n;
+            }
+            return len;
+        } catch (EOFException e) {
+            return eofCheck(e, offset, i, 1);
+        }
+    }
+
+    @Override
+    public int read(char[] c) throws IOException {
+        return read(c, 0, c.length);
+    }
+
+    @Override
+    public int read(char[] c, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                CharBuffer view = needInput(2).asCharBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(c, i, n);
+                this.position += 2L * n;
+                i += n;
+            }
+            return length * 2;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 2);
+        }
+    }
+
+    @Override
+    public int read(double[] d) throws IOException {
+        return read(d, 0, d.length);
+    }
+
+    @Override
+    public int read(double[] d, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                DoubleBuffer view = needInput(8).asDoubleBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(d, i, n);
+                this.position += 8L * n;
+                i += n;
+            }
+            return length * 8;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 8);
+        }
+    }
+
+    @Override
+    public int read(float[] f) throws IOException {
+        return read(f, 0, f.length);
+    }
+
+    @Override
+    public int read(float[] f, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                FloatBuffer view = needInput(4).asFloatBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(f, i, n);
+                this.position += 4L * n;
+                i += n;
+            }
+            return length * 4;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 4);
+        }
+    }
+
+    @Override
+    public int read(int[] ia) throws IOException {
+        return read(ia, 0, ia.length);
+    }
+
+    @Override
+    public int read(int[] ia, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                IntBuffer view = needInput(4).asIntBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(ia, i, n);
+                this.position += 4L * n;
+                i += n;
+            }
+            return length * 4;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 4);
+        }
+    }
+
+    @Override
+    public int read(long[] l) throws IOException {
+        return read(l, 0, l.length);
+    }
+
+    @Override
+    public int read(long[] l, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                LongBuffer view = needInput(8).asLongBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(l, i, n);
+                this.position += 8L * n;
+                i += n;
+            }
+            return length * 8;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 8);
+        }
+    }
+
+    @Override
+    public int read(short[] s) throws IOException {
+        return read(s, 0, s.length);
+    }
+
+    @Override
+    public int read(short[] s, int start, int length) throws IOException {
+        int i = start;
+        try {
+            while (i < start + length) {
+                ShortBuffer view = needInput(2).asShortBuffer();
+                int n = Math.min(start + length - i, view.remaining());
+                view.get(s, i, n);
+                this.position += 2L * n;
+                i += n;
+            }
+            return length * 2;
+        } catch (EOFException e) {
+            return eofCheck(e, start, i, 2);
+        }
+    }
+
+    /**
+     * @deprecated The readLArray(Object) routine should be used to ensure that
+     *             large arrays which read more than two-gigabytes return the
+     *             proper value.
+     */
+    @Deprecated
+    @Override
+    public int readArray(Object o) throws IOException {
+        return (int) readLArray(o);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() == 1;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        byte b = needInput(1).get();
+        this.position += 1;
+        return b;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        char c = needInput(2).getChar();
+        this.position += 2;
+        return c;
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        double d = needInput(8).getDouble();
+        this.position += 8;
+        return d;
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        float f = needInput(4).getFloat();
+        this.position += 4;
+        return f;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IOException("Attempt to read outside byte array");
+        }
+
+        if (read(b, off, len) < len) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int i = needInput(4).getInt();
+        this.position += 4;
+        return i;
+    }
+
+    /**
+     * This routine provides efficient reading of arrays of any primitive type.
+     * 
+     * @param o
+     *            The object to be read. It must be an array of a primitive type
+     *            (or any dimension), or an array of Objects which contains
+     *            pointers to primitive arrays or other object arrays.
+     */
+    @Override
+    public long readLArray(Object o) throws IOException {
+        this.primitiveArrayCount = 0;
+        return primitiveArrayRecurse(o);
+    }
+
+    /**
+     * Read a line of input terminated by a newline, a carriage return or a
+     * carriage return followed by a newline.
+     * 
+     * @return the next line or null if at the end of the file.
+     */
+    @Override
+    public String readLine() throws IOException {
+        if (this.position >= this.length) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (this.position < this.length) {
+            int c = readByte() & 0xFF;
+            if (c == '\n') {
+                break;
+            } else if (c == '\r') {
+                if (this.position < this.length && needInput(1).get() == '\n') {
+                    this.position += 1;
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        long l = needInput(8).getLong();
+        this.position += 8;
+        return l;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        short s = needInput(2).getShort();
+        this.position += 2;
+        return s;
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        this.position = this.markPosition;
+    }
+
+    /**
+     * Move to the current offset from the beginning of the file. A user may
+     * move past the end of file but this does not extend the file unless data
+     * is written there.
+     */
+    @Override
+    public void seek(long offsetFromStart) throws IOException {
+        if (offsetFromStart < 0) {
+            offsetFromStart = 0;
+        }
+        this.position = offsetFromStart;
+    }
+
+    /**
+     * Set the length of the file.
+     * 
+     * @param newLength
+     *            The number of bytes at which the file is set.
+     */
+    public void setLength(long newLength) throws IOException {
+        // Never resize the file underneath a live mapping.
+        this.window = null;
+        if (newLength < this.channel.size()) {
+            this.channel.truncate(newLength);
+        } else {
+            this.raf.setLength(newLength);
+        }
+        this.length = newLength;
+    }
+
+    /**
+     * Skip from the current position.
+     * 
+     * @param offset
+     *            The number of bytes from the current position. This may be
+     *            negative.
+     */
+    @Override
+    public long skip(long offset) throws IOException {
+
+        if (offset > 0 && this.position + offset > this.length) {
+            offset = this.length - this.position;
+            seek(this.length);
+        } else if (this.position + offset < 0) {
+            offset = -this.position;
+            seek(0);
+        } else {
+            seek(this.position + offset);
+        }
+        return offset;
+    }
+
+    @Override
+    public int skipBytes(int toSkip) throws IOException {
+        return (int) skipBytes((long) toSkip);
+    }
+
+    @Override
+    public long skipBytes(long toSkip) throws IOException {
+
+        // Note that we allow negative skips...
+        if (skip(toSkip) < toSkip) {
+            throw new EOFException();
+        } else {
+            return toSkip;
+        }
+    }
+
+    @Override
+    public void write(boolean[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(boolean[] b, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            ByteBuffer buf = needOutput(1);
+            int n = Math.min(start + length - i, buf.remaining());
+            for (int j = 0; j < n; j += 1) {
+                buf.put(b[i + j] ? (byte) 1 : (byte) 0);
+            }
+            wrote(n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(byte[] buf) throws IOException {
+        write(buf, 0, buf.length);
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        int i = offset;
+        while (i < offset + length) {
+            ByteBuffer b = needOutput(1);
+            int n = Math.min(offset + length - i, b.remaining());
+            b.put(buf, i, n);
+            wrote(n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(char[] c) throws IOException {
+        write(c, 0, c.length);
+    }
+
+    @Override
+    public void write(char[] c, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            CharBuffer view = needOutput(2).asCharBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(c, i, n);
+            wrote(2L * n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(double[] d) throws IOException {
+        write(d, 0, d.length);
+    }
+
+    @Override
+    public void write(double[] d, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            DoubleBuffer view = needOutput(8).asDoubleBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(d, i, n);
+            wrote(8L * n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(float[] f) throws IOException {
+        write(f, 0, f.length);
+    }
+
+    @Override
+    public void write(float[] f, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            FloatBuffer view = needOutput(4).asFloatBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(f, i, n);
+            wrote(4L * n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        writeByte(b);
+    }
+
+    @Override
+    public void write(int[] ia) throws IOException {
+        write(ia, 0, ia.length);
+    }
+
+    @Override
+    public void write(int[] ia, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            IntBuffer view = needOutput(4).asIntBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(ia, i, n);
+            wrote(4L * n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(long[] l) throws IOException {
+        write(l, 0, l.length);
+    }
+
+    @Override
+    public void write(long[] l, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            LongBuffer view = needOutput(8).asLongBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(l, i, n);
+            wrote(8L * n);
+            i += n;
+        }
+    }
+
+    @Override
+    public void write(short[] s) throws IOException {
+        write(s, 0, s.length);
+    }
+
+    @Override
+    public void write(short[] s, int start, int length) throws IOException {
+        int i = start;
+        while (i < start + length) {
+            ShortBuffer view = needOutput(2).asShortBuffer();
+            int n = Math.min(start + length - i, view.remaining());
+            view.put(s, i, n);
+            wrote(2L * n);
+            i += n;
+        }
+    }
+
+    /**
+     * Write an array of Strings -- equivalent to calling writeBytes for each
+     * string.
+     */
+    @Override
+    public void write(String[] s) throws IOException {
+        write(s, 0, s.length);
+    }
+
+    @Override
+    public void write(String[] s, int start, int length) throws IOException {
+        for (int i = start; i < start + length; i += 1) {
+            writeBytes(s[i]);
+        }
+    }
+
+    /**
+     * This routine provides efficient writing of arrays of any primitive type.
+     * The String class is also handled but it is an error to invoke this method
+     * with an object that is not an array of these types. If the array is
+     * multidimensional, then it calls itself recursively to write the entire
+     * array. Strings are written using the standard 1 byte format (i.e., as in
+     * writeBytes). If the array is an array of objects, then write will be
+     * called for each element of the array.
+     * 
+     * @param o
+     *            The object to be written. It must be an array of a primitive
+     *            type, Object, or String.
+     */
+    @Override
+    public void writeArray(Object o) throws IOException {
+        String className = o.getClass().getName();
+
+        if (className.charAt(0) != '[') {
+            throw new IOException("Invalid object passed to MappedFile.writeArray:" + className);
+        }
+
+        // Is this a multidimensional array? If so process recursively.
+        if (className.charAt(1) == '[') {
+            for (int i = 0; i < ((Object[]) o).length; i += 1) {
+                writeArray(((Object[]) o)[i]);
+            }
+        } else {
+
+            // This is a one-d array. Process it using our special functions.
+            switch (className.charAt(1)) {
+                case 'Z':
+                    write((boolean[]) o, 0, ((boolean[]) o).length);
+                    break;
+                case 'B':
+                    write((byte[]) o, 0, ((byte[]) o).length);
+                    break;
+                case 'C':
+                    write((char[]) o, 0, ((char[]) o).length);
+                    break;
+                case 'S':
+                    write((short[]) o, 0, ((short[]) o).length);
+                    break;
+                case 'I':
+                    write((int[]) o, 0, ((int[]) o).length);
+                    break;
+                case 'J':
+                    write((long[]) o, 0, ((long[]) o).length);
+                    break;
+                case 'F':
+                    write((float[]) o, 0, ((float[]) o).length);
+                    break;
+                case 'D':
+                    write((double[]) o, 0, ((double[]) o).length);
+                    break;
+                case 'L':
+
+                    // Handle two exceptions: an array of strings, or an
+                    // array of objects. .
+                    if (className.equals("[Ljava.lang.String;")) {
+                        write((String[]) o, 0, ((String[]) o).length);
+                    } else if (className.equals("[Ljava.lang.Object;")) {
+                        for (int i = 0; i < ((Object[]) o).length; i += 1) {
+                            writeArray(((Object[]) o)[i]);
+                        }
+                    } else {
+                        throw new IOException("Invalid object passed to MappedFile.write: " + className);
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid object passed to MappedFile.write: " + className);
+            }
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        writeByte(b ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int b) throws IOException {
+        needOutput(1).put((byte) b);
+        wrote(1);
+    }
+
+    /**
+     * Write a string using the local protocol to convert char's to bytes.
+     * 
+     * @param s
+     *            The string to be written.
+     */
+    @Override
+    public void writeBytes(String s) throws IOException {
+        write(AsciiFuncs.getBytes(s), 0, s.length());
+    }
+
+    @Override
+    public void writeChar(int c) throws IOException {
+        needOutput(2).putChar((char) c);
+        wrote(2);
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        write(s.toCharArray());
+    }
+
+    @Override
+    public void writeDouble(double d) throws IOException {
+        needOutput(8).putDouble(d);
+        wrote(8);
+    }
+
+    @Override
+    public void writeFloat(float f) throws IOException {
+        needOutput(4).putFloat(f);
+        wrote(4);
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        needOutput(4).putInt(i);
+        wrote(4);
+    }
+
+    @Override
+    public void writeLong(long l) throws IOException {
+        needOutput(8).putLong(l);
+        wrote(8);
+    }
+
+    @Override
+    public void writeShort(int s) throws IOException {
+        needOutput(2).putShort((short) s);
+        wrote(2);
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bo);
+        out.writeUTF(s);
+        out.flush();
+        write(bo.toByteArray());
+    }
+}
@@ -41,6 +41,7 @@ import nom.tam.fits.Header;
 import nom.tam.fits.TableHDU;
 import nom.tam.util.ArrayFuncs;
 import nom.tam.util.BufferedFile;
+import nom.tam.util.ColumnStatistics;
 import nom.tam.util.TestArrayFuncs;
 
 import org.junit.Before;
@@ -200,6 +201,27 @@ public class AsciiTableTest {
         };
     }
 
+    @Test
+    public void columnStatistics() throws Exception {
+        Object[] cols = getSampleCols();
+        AsciiTableHDU hdu = (AsciiTableHDU) Fits.makeHDU(cols);
+        AsciiTable data = (AsciiTable) hdu.getData();
+        hdu.setNullString(1, "--");
+        data.setNull(49, 1, true);
+
+        ColumnStatistics stats = hdu.getColumnStatistics(1);
+        assertEquals("count", 49, stats.getCount());
+        assertEquals("nulls", 1, stats.getNullCount());
+        assertEquals("min", 1, stats.getMin(), 0);
+        assertEquals("max", ((int[]) cols[1])[48], stats.getMax(), 0);
+        assertEquals("strings", null, hdu.getColumnStatistics(4));
+
+        hdu.setColumnLimits();
+        assertEquals("TDMIN2", 1, hdu.getHeader().getLongValue("TDMIN2"));
+        assertEquals("TDMAX4", ((double[]) cols[3])[49], hdu.getHeader().getDoubleValue("TDMAX4"), 0);
+        assertEquals("TDMIN5", false, hdu.getHeader().containsKey("TDMIN5"));
+    }
+
     Fits makeAsciiTable() throws Exception {
         Object[] cols = getSampleCols();
         // Create the new ASCII table.
@@ -32,19 +32,35 @@ package nom.tam.fits.test;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nom.tam.fits.BasicHDU;
 import nom.tam.fits.BinaryTable;
 import nom.tam.fits.BinaryTableHDU;
+import nom.tam.fits.BinaryTableWriter;
+import nom.tam.fits.ColumnIndex;
+import nom.tam.fits.ColumnPredicate;
 import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
 import nom.tam.fits.FitsFactory;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
+import nom.tam.fits.RowBatchIterator;
+import nom.tam.fits.SkyIndex;
+import nom.tam.util.BufferedDataInputStream;
 import nom.tam.util.BufferedDataOutputStream;
 import nom.tam.util.BufferedFile;
+import nom.tam.util.ColumnStatistics;
 import nom.tam.util.ColumnTable;
 import nom.tam.util.TestArrayFuncs;
 
@@ -971,6 +987,696 @@ public class BinaryTableTest {
 
     }
 
+    @Test
+    public void testProjectedColumns() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        Object[] data = new Object[]{
+            this.bytes,
+            this.bools,
+            this.shorts,
+            this.ints,
+            this.floats,
+            this.doubles,
+            this.longs,
+            this.strings,
+            this.complex,
+            this.vf
+        };
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(data));
+        BufferedFile bf = new BufferedFile("target/bt12.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/bt12.fits");
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        Object[] cols = bhdu.getColumns(9, 7, 3, 1, 4, 6);
+        assertEquals("var", true, TestArrayFuncs.arrayEquals(this.vf, cols[0]));
+        String[] st = (String[]) cols[1];
+        for (int j = 0; j < st.length; j += 1) {
+            st[j] = st[j].trim();
+        }
+        assertEquals("strings", true, TestArrayFuncs.arrayEquals(this.strings, st));
+        assertEquals("ints", true, TestArrayFuncs.arrayEquals(this.ints, cols[2]));
+        assertEquals("bools", true, TestArrayFuncs.arrayEquals(this.bools, cols[3]));
+        assertEquals("floats", true, TestArrayFuncs.arrayEquals(this.floats, cols[4]));
+        assertEquals("longs", true, TestArrayFuncs.arrayEquals(this.longs, cols[5]));
+
+        BinaryTable btab = (BinaryTable) bhdu.getData();
+        Object[] flat = btab.getFlattenedColumns(2, 8, 5, 0);
+        for (int i = 0; i < flat.length; i += 1) {
+            int col = new int[]{
+                2,
+                8,
+                5,
+                0
+            }[i];
+            assertEquals("flat" + col, true, TestArrayFuncs.arrayEquals(btab.getFlattenedColumn(col), flat[i]));
+        }
+        assertEquals("row", true, TestArrayFuncs.arrayEquals(this.shorts[17], btab.getRow(17)[2]));
+    }
+
+    @Test
+    public void testRowBatches() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(new Object[]{
+            this.ints,
+            this.shorts,
+            this.strings,
+            this.vf,
+            this.doubles
+        }));
+        f.addHDU(Fits.makeHDU(new Object[]{
+            this.longs
+        }));
+        BufferedFile bf = new BufferedFile("target/bt13.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/bt13.fits");
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        RowBatchIterator iter = bhdu.getRowBatchIterator(16, 4, 1);
+        Object[] first = null;
+        int rows = 0;
+        while (iter.hasNext()) {
+            Object[] batch = iter.next();
+            if (first == null) {
+                first = batch;
+            }
+            assertEquals("reused", first[0], batch[0]);
+            assertEquals("first row", rows, iter.getFirstRow());
+            double[] d = (double[]) batch[0];
+            short[] s = (short[]) batch[1];
+            for (int i = 0; i < iter.getRowCount(); i += 1) {
+                assertEquals("double", this.doubles[rows + i], d[i], 0);
+                assertEquals("short", this.shorts[rows + i][2], s[3 * i + 2]);
+            }
+            rows += iter.getRowCount();
+        }
+        assertEquals("rows", 50, rows);
+
+        BufferedDataInputStream in = new BufferedDataInputStream(new FileInputStream("target/bt13.fits"));
+        Header hdr = Header.readHeader(in);
+        in.skipBytes(hdr.getDataSize());
+        hdr = Header.readHeader(in);
+        iter = new RowBatchIterator(hdr, in, 20);
+        rows = 0;
+        while (iter.hasNext()) {
+            Object[] batch = iter.next();
+            int[] ints = (int[]) batch[0];
+            byte[] strings = (byte[]) batch[2];
+            int width = strings.length / 20;
+            for (int i = 0; i < iter.getRowCount(); i += 1) {
+                assertEquals("int", this.ints[rows + i], ints[i]);
+                assertEquals("string", this.strings[rows + i], new String(strings, i * width, width, "US-ASCII").trim());
+            }
+            rows += iter.getRowCount();
+        }
+        assertEquals("stream rows", 50, rows);
+        hdr = Header.readHeader(in);
+        assertEquals("next HDU", "BINTABLE", hdr.getStringValue("XTENSION"));
+        in.close();
+    }
+
+    @Test
+    public void testRowBatchIteratorNoRows() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        // A table without rows that still has a heap, followed by another HDU
+        Header hdr = Fits.makeHDU(new Object[]{
+            this.ints,
+            this.vf
+        }).getHeader();
+        hdr.addValue("NAXIS2", 0, "no rows");
+        hdr.addValue("PCOUNT", 3000, "heap size");
+        hdr.deleteKey("THEAP");
+        BufferedDataOutputStream out = new BufferedDataOutputStream(new FileOutputStream("target/bt12b.fits"));
+        BasicHDU.getDummyHDU().write(out);
+        hdr.write(out);
+        out.write(new byte[2 * 2880]);
+        Fits.makeHDU(new Object[]{
+            this.longs
+        }).write(out);
+        out.close();
+
+        BufferedDataInputStream in = new BufferedDataInputStream(new FileInputStream("target/bt12b.fits"));
+        Header.readHeader(in);
+        hdr = Header.readHeader(in);
+        RowBatchIterator iter = new RowBatchIterator(hdr, in, 10);
+        assertFalse("no rows", iter.hasNext());
+        hdr = Header.readHeader(in);
+        assertEquals("next HDU", "BINTABLE", hdr.getStringValue("XTENSION"));
+        assertEquals("next HDU rows", this.longs.length, hdr.getIntValue("NAXIS2"));
+        in.close();
+    }
+
+    @Test
+    public void testStreamingWriter() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        BufferedFile bf = new BufferedFile("target/bt14.fits", "rw");
+        BasicHDU.getDummyHDU().write(bf);
+        Header hdr = BinaryTableHDU.manufactureHeader(new BinaryTable(batch(0, 20)));
+        BinaryTableWriter writer = new BinaryTableWriter(bf, hdr);
+        writer.writeRows(batch(0, 20));
+        writer.writeRows(batch(20, 45));
+        writer.writeRows(batch(45, 50));
+        writer.close();
+        assertEquals("rows", 50, writer.getNRows());
+
+        writer = new BinaryTableWriter(bf, BinaryTableHDU.manufactureHeader(new BinaryTable(batch(0, 2))));
+        writer.writeRows(batch(7, 9));
+        writer.close();
+        bf.close();
+
+        Fits f = new Fits("target/bt14.fits");
+        f.read();
+        assertEquals("HDUs", 3, f.getNumberOfHDUs());
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        assertEquals("NAXIS2", 50, bhdu.getHeader().getIntValue("NAXIS2"));
+        assertEquals("ints", true, TestArrayFuncs.arrayEquals(this.ints, bhdu.getColumn(0)));
+        assertEquals("doubles", true, TestArrayFuncs.arrayEquals(this.doubles, bhdu.getColumn(1)));
+        assertEquals("vf", true, TestArrayFuncs.arrayEquals(this.vf, bhdu.getColumn(3)));
+        String[] st = (String[]) bhdu.getColumn(2);
+        for (int j = 0; j < st.length; j += 1) {
+            st[j] = st[j].trim();
+        }
+        assertEquals("strings", true, TestArrayFuncs.arrayEquals(this.strings, st));
+
+        bhdu = (BinaryTableHDU) f.getHDU(2);
+        assertEquals("second table", 2, bhdu.getNRows());
+        assertEquals("second vf", true, TestArrayFuncs.arrayEquals(this.vf[8], ((Object[]) bhdu.getColumn(3))[1]));
+    }
+
+    private Object[] batch(int from, int to) {
+        return new Object[]{
+            Arrays.copyOfRange(this.ints, from, to),
+            Arrays.copyOfRange(this.doubles, from, to),
+            Arrays.copyOfRange(this.strings, from, to),
+            Arrays.copyOfRange(this.vf, from, to)
+        };
+    }
+
+    @Test
+    public void testParallelTransposition() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        int nrow = 200000;
+        int[] ci = new int[nrow];
+        double[] cd = new double[nrow];
+        short[][] cs = new short[nrow][3];
+        byte[] cb = new byte[nrow];
+        long[] cl = new long[nrow];
+        for (int i = 0; i < nrow; i += 1) {
+            ci[i] = i;
+            cd[i] = i * 0.25;
+            cs[i][0] = (short) i;
+            cs[i][2] = (short) -i;
+            cb[i] = (byte) i;
+            cl[i] = (long) i << 33;
+        }
+        Object[] data = new Object[]{
+            ci,
+            cd,
+            cs,
+            cb,
+            cl
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            FitsFactory.setTableExecutor(pool);
+            Fits f = new Fits();
+            f.addHDU(Fits.makeHDU(data));
+            BufferedFile bf = new BufferedFile("target/bt16.fits", "rw");
+            f.write(bf);
+            bf.close();
+
+            // Read back both in parallel and serially.
+            for (int pass = 0; pass < 2; pass += 1) {
+                f = new Fits("target/bt16.fits");
+                BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+                bhdu.getData().getData();
+                for (int col = 0; col < data.length; col += 1) {
+                    assertEquals("column " + col + " pass " + pass, true, TestArrayFuncs.arrayEquals(data[col], bhdu.getColumn(col)));
+                }
+                FitsFactory.setTableExecutor(null);
+            }
+        } finally {
+            FitsFactory.setTableExecutor(null);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPredicateScan() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(batch(0, 50)));
+        BufferedFile bf = new BufferedFile("target/bt17.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/bt17.fits");
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        for (int pass = 0; pass < 2; pass += 1) {
+            // First deferred on the file, then from memory.
+            int[] rows = bhdu.findRows(ColumnPredicate.greater(1, 1.0), ColumnPredicate.lessOrEqual(0, 1600));
+            int count = 0;
+            for (int i = 0; i < 50; i += 1) {
+                if (this.doubles[i] > 1.0 && this.ints[i] <= 1600) {
+                    assertEquals("row " + count, i, rows[count]);
+                    count += 1;
+                }
+            }
+            assertEquals("matches", count, rows.length);
+
+            BinaryTable sel = bhdu.select(new int[]{
+                2,
+                3,
+                0
+            }, ColumnPredicate.between(0, 100, 900));
+            assertEquals("selected rows", 21, sel.getNRows());
+            for (int i = 0; i < sel.getNRows(); i += 1) {
+                assertEquals("string", this.strings[i + 10], ((String) sel.getElement(i, 0)).trim());
+                assertEquals("vf", true, TestArrayFuncs.arrayEquals(this.vf[i + 10], sel.getElement(i, 1)));
+                assertEquals("int", this.ints[i + 10], ((int[]) sel.getElement(i, 2))[0]);
+            }
+            assertEquals("none", 0, bhdu.findRows(ColumnPredicate.equal(0, 2)).length);
+            assertEquals("empty", 0, bhdu.select(new int[]{
+                0,
+                2
+            }, ColumnPredicate.equal(0, 2)).getNRows());
+            bhdu.getData().getData();
+        }
+    }
+
+    @Test
+    public void testUnsignedBytePredicate() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        byte[] b = new byte[256];
+        for (int i = 0; i < b.length; i += 1) {
+            b[i] = (byte) i;
+        }
+        BinaryTableHDU bhdu = (BinaryTableHDU) Fits.makeHDU(new Object[]{
+            b
+        });
+        int[] rows = bhdu.findRows(ColumnPredicate.greater(0, 200));
+        assertEquals("above 200", 55, rows.length);
+        assertEquals("first above 200", 201, rows[0]);
+        assertEquals("255", 255, bhdu.findRows(ColumnPredicate.equal(0, 255))[0]);
+        assertEquals("below 128", 128, bhdu.findRows(ColumnPredicate.less(0, 128)).length);
+    }
+
+    @Test
+    public void testColumnStatistics() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double d : this.doubles) {
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+
+        BinaryTableHDU hdu = (BinaryTableHDU) Fits.makeHDU(batch(0, 50));
+        hdu.setColumnLimits();
+        BufferedFile bf = new BufferedFile("target/bt18.fits", "rw");
+        BasicHDU.getDummyHDU().write(bf);
+        hdu.write(bf);
+        BinaryTableWriter writer = new BinaryTableWriter(bf, BinaryTableHDU.manufactureHeader(new BinaryTable(batch(0, 2))), true);
+        writer.writeRows(batch(0, 20));
+        writer.writeRows(batch(20, 50));
+        writer.close();
+        bf.close();
+
+        Fits f = new Fits("target/bt18.fits");
+        for (int i = 1; i <= 2; i += 1) {
+            hdu = (BinaryTableHDU) f.getHDU(i);
+            Header hdr = hdu.getHeader();
+            assertEquals("TDMIN1 " + i, 0, hdr.getLongValue("TDMIN1"));
+            assertEquals("TDMAX1 " + i, 49 * 49, hdr.getLongValue("TDMAX1"));
+            assertEquals("TDMIN2 " + i, min, hdr.getDoubleValue("TDMIN2"), 0);
+            assertEquals("TDMAX2 " + i, max, hdr.getDoubleValue("TDMAX2"), 0);
+            assertEquals("TDMIN3 " + i, false, hdr.containsKey("TDMIN3"));
+            assertEquals("TDMIN4 " + i, false, hdr.containsKey("TDMIN4"));
+
+            // Deferred and then in memory.
+            for (int pass = 0; pass < 2; pass += 1) {
+                ColumnStatistics stats = hdu.getColumnStatistics(1);
+                assertEquals("count", 50, stats.getCount());
+                assertEquals("min", min, stats.getMin(), 0);
+                assertEquals("max", max, stats.getMax(), 0);
+                assertEquals("strings", null, hdu.getColumnStatistics(2));
+                assertEquals("varying", null, hdu.getColumnStatistics(3));
+                hdu.getData().getData();
+            }
+        }
+    }
+
+    @Test
+    public void testUnsignedByteStatistics() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        byte[] b = new byte[256];
+        for (int i = 0; i < b.length; i += 1) {
+            b[i] = (byte) i;
+        }
+        BinaryTableHDU hdu = (BinaryTableHDU) Fits.makeHDU(new Object[]{
+            b
+        });
+        ColumnStatistics stats = hdu.getColumnStatistics(0);
+        assertEquals("min", 0, stats.getMin(), 0);
+        assertEquals("max", 255, stats.getMax(), 0);
+        assertEquals("sum", 255 * 256 / 2, stats.getSum(), 0);
+        hdu.setColumnLimits();
+        assertEquals("TDMIN1", 0, hdu.getHeader().getLongValue("TDMIN1"));
+        assertEquals("TDMAX1", 255, hdu.getHeader().getLongValue("TDMAX1"));
+    }
+
+    private Fits indexedTable(int[] k, double[] d, int shift) throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < k.length; i += 1) {
+            k[i] = i * 7919 % 1000 + shift;
+            d[i] = i % 97 == 0 ? Double.NaN : random.nextDouble();
+        }
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(new Object[]{
+            k,
+            d
+        }));
+        BufferedFile bf = new BufferedFile("target/bt19.fits", "rw");
+        f.write(bf);
+        bf.close();
+        return new Fits("target/bt19.fits");
+    }
+
+    @Test
+    public void testColumnIndex() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        int[] k = new int[5000];
+        double[] d = new double[5000];
+        File file = new File("target/bt19.fits");
+        Fits f = indexedTable(k, d, 0);
+        long mtime = file.lastModified();
+        File sidecar = ColumnIndex.getSidecar(file, 1, 1);
+        sidecar.delete();
+        ColumnIndex.getSidecar(file, 1, 0).delete();
+
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        ColumnIndex index = ColumnIndex.open(file, 1, bhdu, 1);
+        assertEquals("saved", true, sidecar.exists());
+        assertEquals("size", 5000 - 52, index.size());
+        int[] range = index.findRange(0.25, 0.5);
+        int count = 0;
+        for (int i = 0; i < d.length; i += 1) {
+            if (d[i] >= 0.25 && d[i] <= 0.5) {
+                count += 1;
+            }
+        }
+        assertEquals("range", count, range.length);
+        assertEquals("direct", count, bhdu.createIndex(1).findRange(0.25, 0.5).length);
+        for (int i = 0; i < range.length; i += 1) {
+            assertEquals("in range", true, d[range[i]] >= 0.25 && d[range[i]] <= 0.5);
+            assertEquals("ascending", true, i == 0 || d[range[i]] >= d[range[i - 1]]);
+        }
+        assertEquals("point", range[3], index.find(d[range[3]])[0]);
+
+        ColumnIndex ids = ColumnIndex.open(file, 1, bhdu, 0);
+        int[] rows = ids.find(500);
+        assertEquals("duplicates", 5, rows.length);
+        for (int i = 0; i < rows.length; i += 1) {
+            assertEquals("id", 500, k[rows[i]]);
+            assertEquals("row order", true, i == 0 || rows[i] > rows[i - 1]);
+        }
+        assertEquals("missing", 0, ids.find(1000).length);
+        assertEquals("id range", 50, ids.findRange(10, 19.5).length);
+
+        // The saved index is used while the file appears unchanged.
+        f = indexedTable(k, d, 1);
+        file.setLastModified(mtime);
+        bhdu = (BinaryTableHDU) f.getHDU(1);
+        assertEquals("cached", 5, ColumnIndex.open(file, 1, bhdu, 0).find(0).length);
+        file.setLastModified(mtime - 10000);
+        assertEquals("rebuilt", 5, ColumnIndex.open(file, 1, bhdu, 0).find(1).length);
+    }
+
+    @Test
+    public void testColumnIndexLongKeys() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        long base = 1L << 53;
+        long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i += 1) {
+            ids[i] = base + (i * 37 % 100);
+        }
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(new Object[]{
+            ids
+        }));
+        BufferedFile bf = new BufferedFile("target/bt19b.fits", "rw");
+        f.write(bf);
+        bf.close();
+        File file = new File("target/bt19b.fits");
+        File sidecar = ColumnIndex.getSidecar(file, 1, 0);
+        sidecar.delete();
+
+        f = new Fits(file);
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        for (int pass = 0; pass < 2; pass += 1) {
+            // Built and saved, and then read back from the sidecar.
+            ColumnIndex index = ColumnIndex.open(file, 1, bhdu, 0);
+            assertEquals("integral", true, index.isIntegral());
+            int[] rows = index.find(base + 1);
+            assertEquals("one row for +1", 1, rows.length);
+            assertEquals("+1", base + 1, ids[rows[0]]);
+            rows = index.find(base + 2);
+            assertEquals("one row for +2", 1, rows.length);
+            assertEquals("+2", base + 2, ids[rows[0]]);
+            assertEquals("range", 2, index.findRange(base + 1, base + 2).length);
+        }
+        assertEquals("saved", true, sidecar.exists());
+
+        // A damaged sidecar is ignored and the index is built again.
+        FileOutputStream out = new FileOutputStream(sidecar);
+        out.write(new byte[]{
+            (byte) 0xac,
+            (byte) 0xed,
+            0,
+            5
+        });
+        out.close();
+        assertEquals("rebuilt", 1, ColumnIndex.open(file, 1, bhdu, 0).find(base + 1).length);
+        assertEquals("replaced", true, sidecar.length() > 4);
+    }
+
+    private static boolean inCone(double ra, double dec, double[] cone) {
+        double lat = Math.toRadians(dec);
+        return Math.sin(Math.toRadians(cone[1])) * Math.sin(lat) + Math.cos(Math.toRadians(cone[1])) * Math.cos(lat) * Math.cos(Math.toRadians(ra - cone[0])) >= Math.cos(Math
+                .toRadians(cone[2]));
+    }
+
+    @Test
+    public void testSkyIndex() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        int n = 20000;
+        double[] ra = new double[n];
+        float[] dec = new float[n];
+        Random random = new Random(7);
+        for (int i = 0; i < n; i += 1) {
+            ra[i] = 360 * random.nextDouble();
+            dec[i] = (float) Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+        }
+        ra[5] = Double.NaN;
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(new Object[]{
+            ra,
+            dec
+        }));
+        BufferedFile bf = new BufferedFile("target/bt20.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/bt20.fits");
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        SkyIndex index = bhdu.createSkyIndex(0, 1);
+        assertEquals("size", n - 1, index.size());
+        assertEquals("order", 6, index.getOrder());
+
+        double[][] cones = {
+            {
+                120,
+                30,
+                5
+            },
+            {
+                359,
+                -10,
+                3
+            },
+            {
+                0.5,
+                10,
+                2
+            },
+            {
+                200,
+                88,
+                4
+            },
+            {
+                10,
+                -89.5,
+                1
+            }
+        };
+        for (double[] cone : cones) {
+            int[] rows = index.findCone(cone[0], cone[1], cone[2]);
+            int k = 0;
+            for (int i = 0; i < n; i += 1) {
+                if (inCone(ra[i], dec[i], cone)) {
+                    assertEquals("cone row", i, rows[k]);
+                    k += 1;
+                }
+            }
+            assertEquals("cone " + cone[0] + "," + cone[1], k, rows.length);
+        }
+
+        int[] rows = index.findBox(350, 20, -15, 15);
+        int k = 0;
+        for (int i = 0; i < n; i += 1) {
+            if ((ra[i] >= 350 || ra[i] <= 20) && dec[i] >= -15 && dec[i] <= 15) {
+                assertEquals("box row", i, rows[k]);
+                k += 1;
+            }
+        }
+        assertEquals("box", k, rows.length);
+        assertEquals("whole sky", n - 1, index.findCone(0, 0, 180).length);
+        assertEquals("all longitudes", n - 1, index.findBox(0, 360, -90, 90).length);
+        assertEquals("all longitudes shifted", n - 1, index.findBox(-90, 270, -90, 90).length);
+        assertEquals("more than 360", n - 1, index.findBox(10, 400, -90, 90).length);
+    }
+
+    @Test
+    public void testBulkHeap() throws Exception {
+        int nrow = 30;
+        boolean[][] vb = new boolean[nrow][];
+        float[][][] vc = new float[nrow][][];
+        for (int i = 0; i < nrow; i += 1) {
+            vb[i] = new boolean[10000 + i];
+            for (int j = 0; j < vb[i].length; j += 1) {
+                vb[i][j] = (i + j) % 3 == 0;
+            }
+            vc[i] = new float[4000 + i][2];
+            for (int j = 0; j < vc[i].length; j += 1) {
+                vc[i][j][0] = i + j;
+                vc[i][j][1] = -j;
+            }
+        }
+        BinaryTable btab = new BinaryTable();
+        btab.addColumn(vb);
+        btab.addColumn(vc);
+
+        // The complex cells cross from the first 1 MB heap segment into the
+        // second, which is allocated at exactly the size needed rather than
+        // grown cell by cell.
+        int segment = 1024 * 1024;
+        long size = btab.getLHeapSize();
+        assertEquals("heap", 300435 + 8 * 120435, size);
+        assertEquals("capacity", segment + Math.max(size - segment, 16384), btab.getHeapCapacity());
+
+        BufferedFile bf = new BufferedFile("target/bt15b.fits", "rw");
+        BasicHDU.getDummyHDU().write(bf);
+        Fits.makeHDU(btab).write(bf);
+        bf.close();
+
+        Fits f = new Fits("target/bt15b.fits");
+        BinaryTableHDU bhdu = (BinaryTableHDU) f.getHDU(1);
+        assertEquals("booleans", true, TestArrayFuncs.arrayEquals(vb, bhdu.getColumn(0)));
+        assertEquals("complex", true, TestArrayFuncs.arrayEquals(vc, bhdu.getColumn(1)));
+        assertEquals("TFORM2", "1PC", bhdu.getHeader().getStringValue("TFORM2").substring(0, 3));
+    }
+
+    @Test
+    public void testHeapLimit() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+        BinaryTableHDU bhdu = (BinaryTableHDU) Fits.makeHDU(new Object[]{
+            new double[][]{
+                new double[]{
+                    1,
+                    2
+                },
+                new double[]{
+                    3
+                }
+            }
+        });
+        BinaryTable table = (BinaryTable) bhdu.getData();
+        long heapSize = table.getLHeapSize();
+
+        // Repeating one 8 MB array gives a cell larger than 'P' descriptors
+        // can address without needing the memory for it.
+        double[] big = new double[1024 * 1024];
+        Object[] cell = new Object[300];
+        Arrays.fill(cell, big);
+        try {
+            table.setElement(1, 0, cell);
+            fail("'P' descriptor beyond 2 GB");
+        } catch (FitsException e) {
+            // expected
+        }
+        assertEquals("heap unchanged", heapSize, table.getLHeapSize());
+        assertEquals("row kept", true, TestArrayFuncs.arrayEquals(new double[]{
+            3
+        }, table.getElement(1, 0)));
+    }
+
+    @Test
+    public void testSegmentedHeap() throws Exception {
+        FitsFactory.setUseAsciiTables(false);
+
+        // Odd length byte rows put the doubles across heap segment boundaries.
+        int nrow = 20;
+        byte[][] vb = new byte[nrow][];
+        double[][] vd = new double[nrow][];
+        for (int i = 0; i < nrow; i += 1) {
+            vb[i] = new byte[2 * i + 1];
+            Arrays.fill(vb[i], (byte) i);
+            vd[i] = new double[20000 + i];
+            for (int j = 0; j < vd[i].length; j += 1) {
+                vd[i][j] = i + j * 0.5;
+            }
+        }
+        Object[] data = new Object[]{
+            vb,
+            vd
+        };
+        BinaryTableHDU bhdu = (BinaryTableHDU) Fits.makeHDU(data);
+        Header hdr = bhdu.getHeader();
+        assertEquals("heap", true, ((BinaryTable) bhdu.getData()).getLHeapSize() > 3 * 1024 * 1024);
+
+        BufferedFile bf = new BufferedFile("target/bt15.fits", "rw");
+        BasicHDU.getDummyHDU().write(bf);
+        bhdu.write(bf);
+        // Also write the table with 64 bit descriptors.
+        hdr.addValue("TFORM2", "1QD", null);
+        BinaryTableWriter writer = new BinaryTableWriter(bf, hdr);
+        writer.writeRows(data);
+        writer.close();
+        bf.close();
+
+        Fits f = new Fits("target/bt15.fits");
+        f.read();
+        for (int hdu = 1; hdu <= 2; hdu += 1) {
+            bhdu = (BinaryTableHDU) f.getHDU(hdu);
+            assertEquals("bytes " + hdu, true, TestArrayFuncs.arrayEquals(vb, bhdu.getColumn(0)));
+            assertEquals("doubles " + hdu, true, TestArrayFuncs.arrayEquals(vd, bhdu.getColumn(1)));
+        }
+        assertEquals("TFORM2", "1QD", f.getHDU(2).getHeader().getStringValue("TFORM2"));
+    }
+
     @Test
     public void testSimpleIO() throws Exception {
 
@@ -32,13 +32,25 @@ package nom.tam.fits.test;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nom.tam.fits.BasicHDU;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsFactory;
+import nom.tam.fits.Header;
 import nom.tam.util.BufferedDataOutputStream;
+import nom.tam.util.BufferedFile;
+import nom.tam.util.ChecksumInputStream;
+import nom.tam.util.FitsChecksum;
 
 import org.junit.Test;
 
@@ -80,4 +92,134 @@ public class ChecksumTest {
         assertEquals("CheckSum test", -1, val);
     }
 
+    @Test
+    public void testIncremental() throws Exception {
+        byte[] data = new byte[10007];
+        new Random(99).nextBytes(data);
+        long expected = Fits.checksum(data);
+
+        // Feed the data in pieces which do not respect word boundaries.
+        FitsChecksum sum = new FitsChecksum();
+        int offset = 0;
+        for (int len = 1; offset < data.length; len += 3) {
+            len = Math.min(len, data.length - offset);
+            sum.update(data, offset, len);
+            offset += len;
+        }
+        assertEquals("pieces", expected, sum.getValue());
+        assertEquals("length", data.length, sum.getLength());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        sum.reset();
+        sum.update(direct);
+        assertEquals("buffer", expected, sum.getValue());
+
+        // Combine separately computed segments.
+        for (int split : new int[]{
+            0,
+            1,
+            2,
+            3,
+            2880,
+            5001
+        }) {
+            FitsChecksum first = new FitsChecksum();
+            first.update(data, 0, split);
+            FitsChecksum second = new FitsChecksum();
+            second.update(data, split, data.length - split);
+            first.combine(second);
+            assertEquals("combine at " + split, expected, first.getValue());
+        }
+    }
+
+    @Test
+    public void testVerifyWhileReading() throws Exception {
+        float[][] img = new float[100][73];
+        for (int i = 0; i < img.length; i += 1) {
+            for (int j = 0; j < img[i].length; j += 1) {
+                img[i][j] = i * 1.5f - j;
+            }
+        }
+        Fits f = new Fits();
+        BasicHDU hdu = FitsFactory.HDUFactory(img);
+        f.addHDU(hdu);
+        Fits.setChecksum(hdu);
+        BufferedFile bf = new BufferedFile("target/checksum.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        FitsChecksum sum = new FitsChecksum();
+        f = new Fits(new ChecksumInputStream(sum, new FileInputStream("target/checksum.fits")));
+        BasicHDU back = f.readHDU();
+        f.getStream().close();
+        assertEquals("HDU checksum", 0xFFFFFFFFL, sum.getValue());
+        assertEquals("bytes", back.getHeader().getSize() + back.getData().getSize(), sum.getLength());
+        assertEquals("DATASUM", hdu.getHeader().getStringValue("DATASUM"), back.getHeader().getStringValue("DATASUM"));
+    }
+
+    @Test
+    public void testCorruptDatasum() throws Exception {
+        Fits f = new Fits();
+        BasicHDU hdu = FitsFactory.HDUFactory(new int[10][10]);
+        hdu.getHeader().addValue("DATASUM", "12x4", "corrupt");
+        f.addHDU(hdu);
+        BufferedFile bf = new BufferedFile("target/checksum3.fits", "rw");
+        f.write(bf);
+        bf.close();
+        assertFalse("corrupt DATASUM", Fits.verifyChecksums(new File("target/checksum3.fits")));
+    }
+
+    @Test
+    public void testParallelDatasum() throws Exception {
+        int[][] img = new int[600][500];
+        double[][] img2 = new double[100][90];
+        for (int i = 0; i < img.length; i += 1) {
+            for (int j = 0; j < img[i].length; j += 1) {
+                img[i][j] = i * j * 7919 - j;
+            }
+        }
+        for (int i = 0; i < img2.length; i += 1) {
+            for (int j = 0; j < img2[i].length; j += 1) {
+                img2[i][j] = Math.sqrt(i + j);
+            }
+        }
+        Fits f = new Fits();
+        f.addHDU(FitsFactory.HDUFactory(img));
+        f.addHDU(FitsFactory.HDUFactory(img2));
+        f.setChecksum();
+        BufferedFile bf = new BufferedFile("target/checksum2.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        File file = new File("target/checksum2.fits");
+        assertTrue("valid", Fits.verifyChecksums(file));
+
+        bf = new BufferedFile(file, "r");
+        Header hdr = Header.readHeader(bf);
+        long offset = bf.getFilePointer();
+        long datasum = Long.parseLong(hdr.getStringValue("DATASUM"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals("serial", datasum, Fits.computeDatasum(bf, offset, hdr.getDataSize(), null));
+            assertEquals("parallel", datasum, Fits.computeDatasum(bf, offset, hdr.getDataSize(), executor));
+            assertEquals("pointer", offset, bf.getFilePointer());
+            bf.close();
+
+            // Corrupt one byte of the data. The parallel sum sees the write
+            // before it is flushed.
+            bf = new BufferedFile(file, "rw");
+            bf.seek(offset + 1000001);
+            int b = bf.read();
+            bf.seek(offset + 1000001);
+            bf.write(b + 1);
+            long corrupt = Fits.computeDatasum(bf, offset, hdr.getDataSize(), executor);
+            assertTrue("changed", corrupt != datasum);
+            assertEquals("flushed", Fits.computeDatasum(bf, offset, hdr.getDataSize(), null), corrupt);
+            bf.close();
+        } finally {
+            executor.shutdown();
+        }
+        assertFalse("corrupt", Fits.verifyChecksums(file));
+    }
 }
@@ -0,0 +1,173 @@
+package nom.tam.fits.test;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsFactory;
+import nom.tam.fits.FitsIndex;
+import nom.tam.util.BufferedFile;
+
+import org.junit.Test;
+
+public class FitsIndexTest {
+
+    private static final String FILE = "target/index.fits";
+
+    private void makeFile() throws Exception {
+        makeFile("SCI");
+    }
+
+    private void makeFile(String sci) throws Exception {
+        Fits f = new Fits();
+        f.addHDU(FitsFactory.HDUFactory(new int[10][10]));
+        for (int k = 0; k < 8; k += 1) {
+            int[][] img = new int[20 + k][30];
+            img[0][0] = k;
+            BasicHDU hdu = FitsFactory.HDUFactory(img);
+            hdu.addValue("EXTNAME", k % 2 == 0 ? sci : "ERR", null);
+            hdu.addValue("EXTVER", k / 2 + 1, null);
+            f.addHDU(hdu);
+        }
+        BufferedFile bf = new BufferedFile(FILE, "rw");
+        f.write(bf);
+        bf.close();
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        makeFile();
+        BufferedFile bf = new BufferedFile(FILE, "r");
+        FitsIndex index = new FitsIndex(bf);
+        assertEquals("size", 9, index.size());
+        assertEquals("pointer", 0, bf.getFilePointer());
+
+        // Compare with a sequential read.
+        Fits f = new Fits(FILE);
+        BasicHDU[] hdus = f.read();
+        for (int n = 0; n < hdus.length; n += 1) {
+            assertEquals("offset " + n, hdus[n].getHeader().getFileOffset(), index.getEntry(n).getHeaderOffset());
+            assertEquals("data offset " + n, hdus[n].getData().getFileOffset(), index.getEntry(n).getDataOffset());
+        }
+
+        BasicHDU hdu = index.getHDU(5);
+        assertEquals("hdu 5", 4, ((int[][]) hdu.getKernel())[0][0]);
+        assertEquals("rows", 24, ((int[][]) hdu.getKernel()).length);
+
+        assertEquals("by name", 1, index.indexOf("sci"));
+        assertEquals("by version", 6, index.indexOf("ERR", 3));
+        assertEquals("ERR 3", 5, ((int[][]) index.getHDU("ERR", 3).getKernel())[0][0]);
+        assertEquals("SCI", 0, ((int[][]) index.getHDU("SCI").getKernel())[0][0]);
+        assertNull("missing", index.getHDU("DQ"));
+        assertNull("past end", index.getHDU(9));
+
+        // Save and restore the index.
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bo);
+        out.writeObject(index);
+        out.close();
+        FitsIndex restored = (FitsIndex) new ObjectInputStream(new ByteArrayInputStream(bo.toByteArray())).readObject();
+        restored.setInput(bf);
+        assertEquals("restored size", 9, restored.size());
+        assertArrayEquals("restored data", ((int[][]) hdus[8].getKernel())[0], ((int[][]) restored.getHDU("err", 4).getKernel())[0]);
+        bf.close();
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        makeFile();
+        File file = new File(FILE);
+        File sidecar = FitsIndex.getSidecar(file);
+        sidecar.delete();
+        long mtime = file.lastModified();
+
+        BufferedFile bf = new BufferedFile(file, "r");
+        FitsIndex index = FitsIndex.open(file, bf, "naxis2");
+        bf.close();
+        assertTrue("saved", sidecar.exists());
+        assertEquals("keyword", "27", index.getEntry(8).getKeyword("NAXIS2"));
+        assertEquals("name", 1, index.indexOf("SCI"));
+
+        // A file with the same length and time is assumed unchanged, so the
+        // saved index is used.
+        makeFile("SCX");
+        file.setLastModified(mtime);
+        bf = new BufferedFile(file, "r");
+        index = FitsIndex.open(file, bf, "NAXIS2");
+        assertEquals("cached", 1, index.indexOf("SCI"));
+        assertEquals("cached data", 6, ((int[][]) index.getHDU(7).getKernel())[0][0]);
+        bf.close();
+
+        // Otherwise the file is scanned again.
+        file.setLastModified(mtime - 10000);
+        bf = new BufferedFile(file, "r");
+        index = FitsIndex.open(file, bf, "NAXIS2");
+        bf.close();
+        assertEquals("rescanned", 1, index.indexOf("SCX"));
+        assertEquals("old name", -1, index.indexOf("SCI"));
+
+        // Or if different keywords are wanted.
+        bf = new BufferedFile(file, "r");
+        index = FitsIndex.open(file, bf, "NAXIS1");
+        bf.close();
+        assertEquals("new keyword", "30", index.getEntry(8).getKeyword("NAXIS1"));
+        assertNull("old keyword", index.getEntry(8).getKeyword("NAXIS2"));
+
+        // A damaged sidecar is ignored and the index is built again.
+        FileOutputStream out = new FileOutputStream(sidecar);
+        out.write(new byte[]{
+            (byte) 0xac,
+            (byte) 0xed,
+            0,
+            5
+        });
+        out.close();
+        bf = new BufferedFile(file, "r");
+        index = FitsIndex.open(file, bf, "NAXIS1");
+        bf.close();
+        assertEquals("rebuilt", 9, index.size());
+        assertEquals("rebuilt name", 1, index.indexOf("SCX"));
+        assertTrue("replaced", sidecar.length() > 4);
+    }
+}
@@ -504,4 +504,73 @@ public class HeaderTest {
         assertEquals("tuhc2", c1.getComment(), "A byte array");
     }
 
+    private static String card(String image) {
+        StringBuilder card = new StringBuilder(image);
+        while (card.length() < 80) {
+            card.append(' ');
+        }
+        return card.toString();
+    }
+
+    @Test
+    public void testReadCardsFromBlocks() throws Exception {
+        boolean longStrings = FitsFactory.isLongStringsEnabled();
+        StringBuilder image = new StringBuilder();
+        image.append(card("SIMPLE  =                    T / conforms"));
+        image.append(card("STR     = 'it''s here  '     / quoted"));
+        image.append(card("NOCOM   = 'a/b'"));
+        image.append(card("INT     =                  -42"));
+        image.append(card("LNG     =          12345678901 /"));
+        image.append(card("DBL     =               1.5E10 / real"));
+        image.append(card("COMMENT   a comment / not split"));
+        image.append(card("          blank key"));
+        image.append(card("NOEQ      no value here"));
+        image.append(card("LONGSTRN= 'OGIP 1.0'"));
+        // put the long string across the block boundary
+        while (image.length() < 35 * 80) {
+            image.append(card("FILL    =                    0"));
+        }
+        image.append(card("LONG    = 'first&'           / c1"));
+        image.append(card("CONTINUE  'second&'"));
+        image.append(card("CONTINUE  'third'            / c3"));
+        image.append(card("END"));
+        while (image.length() % 2880 != 0) {
+            image.append(' ');
+        }
+        image.append("DATA");
+        try {
+            BufferedDataInputStream in = new BufferedDataInputStream(new ByteArrayInputStream(AsciiFuncs.getBytes(image.toString())));
+            Header hdr = Header.readHeader(in);
+
+            HeaderCard c = hdr.findCard("STR");
+            assertEquals("str", "it's here", c.getValue());
+            assertEquals("str comment", "quoted", c.getComment());
+            assertEquals("str type", String.class, c.valueType());
+            c = hdr.findCard("NOCOM");
+            assertEquals("slash in string", "a/b", c.getValue());
+            assertEquals("no comment", null, c.getComment());
+            assertEquals("int", Integer.class, hdr.findCard("INT").valueType());
+            assertEquals("int value", -42, hdr.getIntValue("INT"));
+            assertEquals("long", Long.class, hdr.findCard("LNG").valueType());
+            assertEquals("empty comment", "", hdr.findCard("LNG").getComment());
+            assertEquals("double", Double.class, hdr.findCard("DBL").valueType());
+            assertEquals("double value", 1.5e10, hdr.getDoubleValue("DBL"), 0);
+            assertEquals("logical", Boolean.class, hdr.findCard("SIMPLE").valueType());
+            c = hdr.findCard("COMMENT");
+            assertEquals("comment card", null, c.getValue());
+            assertEquals("comment text", "a comment / not split", c.getComment());
+            c = hdr.findCard("NOEQ");
+            assertEquals("no equals", null, c.getValue());
+            assertEquals("no equals text", "no value here", c.getComment());
+            c = hdr.findCard("LONG");
+            assertEquals("long string", "firstsecondthird", c.getValue());
+            assertEquals("long string comment", "c1 c3", c.getComment());
+
+            byte[] data = new byte[4];
+            in.readFully(data);
+            assertEquals("positioned at data", "DATA", AsciiFuncs.asciiString(data));
+        } finally {
+            FitsFactory.setLongStringsEnabled(longStrings);
+        }
+    }
 }
@@ -0,0 +1,214 @@
+package nom.tam.fits.test;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsFactory;
+import nom.tam.fits.ImageData;
+import nom.tam.fits.ImageHDU;
+import nom.tam.image.StridedIndex;
+import nom.tam.util.BufferedDataOutputStream;
+import nom.tam.util.BufferedFile;
+
+import org.junit.Test;
+
+/**
+ * Test access to images as flat java.nio.Buffers.
+ */
+public class ImageBufferTest {
+
+    private float[][][] makeCube() {
+        float[][][] cube = new float[4][30][50];
+        for (int i = 0; i < cube.length; i += 1) {
+            for (int j = 0; j < cube[i].length; j += 1) {
+                for (int k = 0; k < cube[i][j].length; k += 1) {
+                    cube[i][j][k] = 10000 * i + 100 * j + k;
+                }
+            }
+        }
+        return cube;
+    }
+
+    @Test
+    public void testStridedIndex() {
+        StridedIndex index = new StridedIndex(new int[]{
+            4,
+            30,
+            50
+        });
+        assertEquals("size", 6000, index.getSize());
+        assertArrayEquals("strides", new long[]{
+            1500,
+            50,
+            1
+        }, index.getStrides());
+        assertEquals("offset", 2 * 1500 + 7 * 50 + 9, index.offset(2, 7, 9));
+        int[] pos = new int[3];
+        index.position(2 * 1500 + 7 * 50 + 9, pos);
+        assertArrayEquals("position", new int[]{
+            2,
+            7,
+            9
+        }, pos);
+    }
+
+    @Test
+    public void testBufferFromFile() throws Exception {
+        float[][][] cube = makeCube();
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(new short[]{
+            1,
+            2,
+            3
+        }));
+        f.addHDU(Fits.makeHDU(cube));
+        BufferedFile bf = new BufferedFile("target/imageBuffer.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits(new File("target/imageBuffer.fits"));
+        ImageHDU hdu = (ImageHDU) f.getHDU(1);
+        FloatBuffer buf = (FloatBuffer) hdu.getBuffer();
+        StridedIndex index = hdu.getIndex();
+        assertEquals("size", index.getSize(), buf.capacity());
+        assertEquals("pixel", cube[3][29][49], buf.get((int) index.offset(3, 29, 49)), 0);
+        assertEquals("pixel", cube[1][2][3], buf.get((int) index.offset(1, 2, 3)), 0);
+
+        FloatBuffer plane = (FloatBuffer) ((ImageData) hdu.getData()).getBuffer(2 * 1500, 1500);
+        assertEquals("plane", cube[2][0][0], plane.get(0), 0);
+        assertEquals("plane", cube[2][29][49], plane.get(1499), 0);
+
+        // The tiler still works alongside the buffer.
+        float[] tile = (float[]) hdu.getTiler().getTile(new int[]{
+            1,
+            5,
+            5
+        }, new int[]{
+            1,
+            1,
+            3
+        });
+        assertArrayEquals("tile", new float[]{
+            cube[1][5][5],
+            cube[1][5][6],
+            cube[1][5][7]
+        }, tile, 0);
+        f.getStream().close();
+    }
+
+    @Test
+    public void testBufferFromArray() throws Exception {
+        float[][][] cube = makeCube();
+        ImageHDU hdu = (ImageHDU) Fits.makeHDU(cube);
+        ImageData data = (ImageData) hdu.getData();
+
+        // A segment within a row wraps the row itself.
+        FloatBuffer row = (FloatBuffer) data.getBuffer(50 + 10, 20);
+        assertEquals("row", cube[0][1][10], row.get(0), 0);
+        row.put(5, -1);
+        assertEquals("written through", -1, cube[0][1][15], 0);
+
+        // A segment spanning rows and planes is a copy of just those pixels.
+        FloatBuffer span = (FloatBuffer) data.getBuffer(30 * 50 - 10, 100);
+        assertEquals("span", 100, span.remaining());
+        for (int i = 0; i < 100; i += 1) {
+            int pixel = 30 * 50 - 10 + i;
+            assertEquals("span " + i, cube[pixel / 1500][pixel / 50 % 30][pixel % 50], span.get(i), 0);
+        }
+        assertEquals("empty", 0, data.getBuffer(7, 0).remaining());
+    }
+
+    @Test
+    public void testBufferKernels() throws Exception {
+        float[][][] cube = makeCube();
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(cube));
+        BufferedDataOutputStream out = new BufferedDataOutputStream(new FileOutputStream("target/imageBuffer2.fits"));
+        f.write(out);
+        out.close();
+
+        FitsFactory.setUseBufferKernels(true);
+        try {
+            // From a stream
+            f = new Fits(new FileInputStream("target/imageBuffer2.fits"));
+            ImageHDU hdu = (ImageHDU) f.readHDU();
+            assertTrue("buffer kernel", hdu.getKernel() instanceof FloatBuffer);
+            FloatBuffer buf = (FloatBuffer) hdu.getKernel();
+            assertEquals("pixel", cube[3][4][5], buf.get((int) hdu.getIndex().offset(3, 4, 5)), 0);
+
+            // Buffers are written back out like arrays
+            BufferedFile bf = new BufferedFile("target/imageBuffer3.fits", "rw");
+            f.write(bf);
+            bf.close();
+
+            // From a file
+            f = new Fits(new File("target/imageBuffer3.fits"));
+            hdu = (ImageHDU) f.readHDU();
+            buf = (FloatBuffer) hdu.getKernel();
+            assertEquals("size", 6000, buf.capacity());
+            for (int i = 0; i < cube.length; i += 1) {
+                for (int j = 0; j < cube[i].length; j += 1) {
+                    for (int k = 0; k < cube[i][j].length; k += 1) {
+                        assertEquals("pixel", cube[i][j][k], buf.get(), 0);
+                    }
+                }
+            }
+            f.getStream().close();
+        } finally {
+            FitsFactory.setUseBufferKernels(false);
+        }
+
+        // Arrays in memory may also be viewed as buffers.
+        ImageHDU hdu = (ImageHDU) Fits.makeHDU(new short[][]{
+            {
+                1,
+                2
+            },
+            {
+                3,
+                4
+            }
+        });
+        ShortBuffer sb = (ShortBuffer) hdu.getBuffer();
+        assertEquals("memory", 3, sb.get((int) hdu.getIndex().offset(1, 0)));
+    }
+}
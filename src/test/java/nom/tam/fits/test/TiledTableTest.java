@@ -31,17 +31,26 @@ package nom.tam.fits.test;
  * #L%
  */
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nom.tam.fits.BinaryTableHDU;
 import nom.tam.fits.Data;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsException;
+import nom.tam.fits.FitsFactory;
 import nom.tam.fits.ImageHDU;
+import nom.tam.image.AbstractImageTiler;
+import nom.tam.image.TileCache;
 import nom.tam.image.comp.TiledImageHDU;
 import nom.tam.util.ArrayFuncs;
 import nom.tam.util.BufferedFile;
@@ -157,4 +166,240 @@ public class TiledTableTest {
         Data data = ImageHDU.encapsulate(bimg);
         return new TiledImageHDU(new ImageHDU(ImageHDU.manufactureHeader(data), data), params);
     }
+
+    private int[][] integerImage() {
+        int[][] iimg = new int[37][50];
+        for (int i = 0; i < 37; i += 1) {
+            for (int j = 0; j < 50; j += 1) {
+                iimg[i][j] = i * j * j * 1001 - 123456;
+            }
+        }
+        iimg[3][4] = Integer.MIN_VALUE;
+        iimg[3][5] = Integer.MAX_VALUE;
+        return iimg;
+    }
+
+    private AbstractImageTiler integerTiler(int[][] iimg, String name) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("tiling", "16,7");
+        return readBack(iimg, params, name).getImageTiler();
+    }
+
+    private TiledImageHDU readBack(Object img, Map<String, String> params, String name) throws Exception {
+        Fits f = new Fits();
+        f.addHDU(tiledImageHdu(img, params));
+        BufferedFile bf = new BufferedFile(name, "rw");
+        f.write(bf);
+        bf.close();
+
+        f = new Fits(name);
+        f.readHDU();
+        BinaryTableHDU hdu = (BinaryTableHDU) f.readHDU();
+        assertTrue("is tiled", TiledImageHDU.isHeader(hdu.getHeader()));
+        return new TiledImageHDU(hdu);
+    }
+
+    @Test
+    public void testIntegerRoundTrip() throws Exception {
+        short[][] simg = new short[37][50];
+        int[][] iimg = integerImage();
+        byte[][] bimg = new byte[37][50];
+        for (int i = 0; i < 37; i += 1) {
+            for (int j = 0; j < 50; j += 1) {
+                simg[i][j] = (short) (1000 * Math.sin(i / 5.) + 30 * j - 700);
+                bimg[i][j] = (byte) (i + 3 * j);
+            }
+        }
+
+        for (String comp : new String[]{
+            "rice",
+            "gzip"
+        }) {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("compression", comp);
+            params.put("tiling", "16,7");
+            Object[] images = new Object[]{
+                simg,
+                iimg,
+                bimg
+            };
+            for (int k = 0; k < images.length; k += 1) {
+                TiledImageHDU hdu = readBack(images[k], params, "target/tiled-roundtrip-" + comp + k + ".fits");
+                Object back = hdu.getImageHDU().getKernel();
+                for (int i = 0; i < 37; i += 1) {
+                    Object row = ((Object[]) images[k])[i];
+                    Object backRow = ((Object[]) back)[i];
+                    assertEquals(comp + " row " + i, ArrayFuncs.arrayDescription(row), ArrayFuncs.arrayDescription(backRow));
+                    assertArrayEquals(comp + " row " + i, (int[]) ArrayFuncs.convertArray(row, int.class), (int[]) ArrayFuncs.convertArray(backRow, int.class));
+                }
+            }
+        }
+
+        // Extract a subset that crosses tile boundaries.
+        AbstractImageTiler tiler = integerTiler(iimg, "target/tiled-subset.fits");
+        int[] tile = (int[]) tiler.getTile(new int[]{
+            5,
+            14
+        }, new int[]{
+            10,
+            20
+        });
+        for (int i = 0; i < 10; i += 1) {
+            for (int j = 0; j < 20; j += 1) {
+                assertEquals("subset", iimg[5 + i][14 + j], tile[20 * i + j]);
+            }
+        }
+    }
+
+    @Test
+    public void testSampledTiles() throws Exception {
+        int[][] iimg = integerImage();
+        AbstractImageTiler tiler = integerTiler(iimg, "target/tiled-sampled.fits");
+        int[] sampled = (int[]) tiler.getTile(new int[]{
+            0,
+            0
+        }, new int[]{
+            37,
+            50
+        }, new int[]{
+            3,
+            5
+        });
+        assertEquals("samples", 13 * 10, sampled.length);
+        assertEquals("sampled", iimg[9][35], sampled[3 * 10 + 7]);
+        double[] binned = tiler.getBinnedTile(new int[]{
+            1,
+            2
+        }, new int[]{
+            4,
+            6
+        }, new int[]{
+            2,
+            3
+        });
+        assertEquals("bins", 4, binned.length);
+        assertEquals("binned", ((double) iimg[3][5] + iimg[3][6] + iimg[3][7] + iimg[4][5] + iimg[4][6] + iimg[4][7]) / 6., binned[3], 1e-6);
+    }
+
+    @Test
+    public void testTileCache() throws Exception {
+        int[][] iimg = integerImage();
+        AbstractImageTiler tiler = integerTiler(iimg, "target/tiled-cache.fits");
+
+        // Decompressed tiles are taken from the cache the second time.
+        TileCache cache = new TileCache(1024 * 1024);
+        FitsFactory.setTileCache(cache);
+        try {
+            for (int k = 0; k < 2; k += 1) {
+                int[] tile = (int[]) tiler.getTile(new int[]{
+                    5,
+                    14
+                }, new int[]{
+                    10,
+                    20
+                });
+                assertEquals("cached subset", iimg[14][33], tile[20 * 9 + 19]);
+            }
+            assertTrue("hits", cache.getHits() > 0);
+            assertEquals("hits", cache.getMisses(), cache.getHits());
+            assertEquals("cached tiles", cache.getHits(), cache.size());
+        } finally {
+            FitsFactory.setTileCache(null);
+        }
+    }
+
+    @Test
+    public void testRealRoundTrip() throws Exception {
+        float[][] fimg = new float[40][30];
+        double[][] dimg = new double[40][30];
+        for (int i = 0; i < 40; i += 1) {
+            for (int j = 0; j < 30; j += 1) {
+                fimg[i][j] = (float) (100 * Math.cos(i * j / 50.) + Math.random());
+                dimg[i][j] = i * 1.e10 + j * Math.PI;
+            }
+        }
+        fimg[7][7] = Float.NaN;
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("tiling", "30,4");
+        TiledImageHDU hdu = readBack(fimg, params, "target/tiled-float.fits");
+        double scale = hdu.getHeader().getDoubleValue("ZSCALE");
+        float[][] fback = (float[][]) hdu.getImageHDU().getKernel();
+        assertTrue("nan", Float.isNaN(fback[7][7]));
+        for (int i = 0; i < 40; i += 1) {
+            for (int j = 0; j < 30; j += 1) {
+                if (i != 7 || j != 7) {
+                    assertEquals("quantized", fimg[i][j], fback[i][j], scale);
+                }
+            }
+        }
+
+        params.put("compression", "gzip");
+        params.put("quantize", "none");
+        hdu = readBack(dimg, params, "target/tiled-double.fits");
+        double[][] dback = (double[][]) hdu.getImageHDU().getKernel();
+        for (int i = 0; i < 40; i += 1) {
+            assertArrayEquals("lossless", dimg[i], dback[i], 0);
+        }
+    }
+
+    @Test
+    public void testParallelTiles() throws Exception {
+        float[][] fimg = new float[64][50];
+        for (int i = 0; i < 64; i += 1) {
+            for (int j = 0; j < 50; j += 1) {
+                fimg[i][j] = (float) (100 * Math.sin(i / 7.) * Math.cos(j / 3.) + (i * 31 + j * 17) % 11);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String comp : new String[]{
+                "rice",
+                "gzip"
+            }) {
+                Map<String, String> params = new HashMap<String, String>();
+                params.put("compression", comp);
+                params.put("tiling", "10,3");
+
+                Data data = ImageHDU.encapsulate(fimg);
+                ImageHDU image = new ImageHDU(ImageHDU.manufactureHeader(data), data);
+                writeHDU(new TiledImageHDU(image, params), "target/tiled-serial-" + comp + ".fits");
+                writeHDU(new TiledImageHDU(image, params, executor), "target/tiled-parallel-" + comp + ".fits");
+                assertArrayEquals("identical files " + comp, Files.readAllBytes(new File("target/tiled-serial-" + comp + ".fits").toPath()),
+                        Files.readAllBytes(new File("target/tiled-parallel-" + comp + ".fits").toPath()));
+
+                Fits f = new Fits("target/tiled-parallel-" + comp + ".fits");
+                f.readHDU();
+                BinaryTableHDU hdu = (BinaryTableHDU) f.readHDU();
+                float[][] serial = (float[][]) new TiledImageHDU(hdu).getImageHDU().getKernel();
+                TiledImageHDU parallel = new TiledImageHDU(hdu, executor);
+                float[][] back = (float[][]) parallel.getImageHDU().getKernel();
+                for (int i = 0; i < 64; i += 1) {
+                    assertArrayEquals("parallel " + comp + " row " + i, serial[i], back[i], 0);
+                }
+                float[] tile = (float[]) parallel.getImageTiler().getTile(new int[]{
+                    5,
+                    8
+                }, new int[]{
+                    20,
+                    30
+                });
+                for (int i = 0; i < 20; i += 1) {
+                    for (int j = 0; j < 30; j += 1) {
+                        assertEquals("subset", serial[5 + i][8 + j], tile[30 * i + j], 0);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void writeHDU(TiledImageHDU hdu, String name) throws Exception {
+        Fits f = new Fits();
+        f.addHDU(hdu);
+        BufferedFile bf = new BufferedFile(name, "rw");
+        f.write(bf);
+        bf.close();
+    }
 }
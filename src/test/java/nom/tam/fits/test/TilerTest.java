@@ -32,9 +32,33 @@ package nom.tam.fits.test;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import nom.tam.fits.Fits;
+import nom.tam.fits.FitsFactory;
 import nom.tam.fits.ImageHDU;
+import nom.tam.image.AbstractImageTiler;
+import nom.tam.image.AsyncImageTiler;
+import nom.tam.image.ConcurrentImageTiler;
+import nom.tam.image.ImageTiler;
 import nom.tam.image.StandardImageTiler;
+import nom.tam.image.TileCache;
 import nom.tam.util.BufferedFile;
 
 import org.junit.Test;
@@ -47,7 +71,18 @@ import org.junit.Test;
  */
 public class TilerTest {
 
-    void doTile(String test, float[][] data, StandardImageTiler t, int x, int y, int nx, int ny) throws Exception {
+    /** A 300 by 300 image whose pixel values encode their own position. */
+    private static final float[][] RAMP = new float[300][300];
+
+    static {
+        for (int i = 0; i < 300; i += 1) {
+            for (int j = 0; j < 300; j += 1) {
+                TilerTest.RAMP[i][j] = 1000 * i + j;
+            }
+        }
+    }
+
+    void doTile(String test, float[][] data, ImageTiler t, int x, int y, int nx, int ny) throws Exception {
 
         float[] tile = new float[nx * ny];
         t.getTile(tile, new int[]{
@@ -102,4 +137,503 @@ public class TilerTest {
         doTile("t3", data, t, 200, 200, 50, 50);
         doTile("t4", data, t, 133, 133, 72, 26);
     }
+
+    private static void checkCube(String test, float[][][] cube, Object tile, int[] corner, int[] size) {
+        float[] values = (float[]) tile;
+        int k = 0;
+        for (int i = 0; i < size[0]; i += 1) {
+            for (int j = 0; j < size[1]; j += 1) {
+                for (int l = 0; l < size[2]; l += 1) {
+                    assertEquals(test, cube[corner[0] + i][corner[1] + j][corner[2] + l], values[k], 0);
+                    k += 1;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        float[][][] cube = new float[10][60][70];
+        for (int i = 0; i < 10; i += 1) {
+            for (int j = 0; j < 60; j += 1) {
+                for (int l = 0; l < 70; l += 1) {
+                    cube[i][j][l] = 10000 * i + 100 * j + l;
+                }
+            }
+        }
+        Fits f = new Fits();
+        BufferedFile bf = new BufferedFile("target/tiler3.fits", "rw");
+        f.addHDU(Fits.makeHDU(cube));
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/tiler3.fits");
+        ImageHDU h = (ImageHDU) f.readHDU();
+        int[][] corners = {
+            {
+                7,
+                30,
+                40
+            },
+            {
+                1,
+                2,
+                3
+            },
+            {
+                6,
+                25,
+                35
+            },
+            {
+                0,
+                0,
+                0
+            }
+        };
+        int[][] sizes = {
+            {
+                3,
+                20,
+                30
+            },
+            {
+                4,
+                50,
+                5
+            },
+            {
+                2,
+                10,
+                10
+            },
+            {
+                10,
+                60,
+                70
+            }
+        };
+        StandardImageTiler t = h.getTiler();
+        ConcurrentImageTiler c = h.getConcurrentTiler();
+        for (int gap : new int[]{
+            0,
+            100,
+            1000000
+        }) {
+            t.setMaxGap(gap);
+            c.setMaxGap(gap);
+            Object[] tiles = t.getTiles(corners, sizes);
+            Object[] shared = c.getTiles(corners, sizes);
+            for (int i = 0; i < corners.length; i += 1) {
+                checkCube("tiles " + gap + ":" + i, cube, tiles[i], corners[i], sizes[i]);
+                checkCube("shared " + gap + ":" + i, cube, shared[i], corners[i], sizes[i]);
+                checkCube("tile " + gap + ":" + i, cube, t.getTile(corners[i], sizes[i]), corners[i], sizes[i]);
+            }
+        }
+        assertEquals("no tiles", 0, t.getTiles(new int[0][], new int[0][]).length);
+        assertEquals("no shared tiles", 0, c.getTiles(new int[0][], new int[0][]).length);
+        c.close();
+        h.getData().getKernel();
+        Object[] memory = t.getTiles(corners, sizes);
+        for (int i = 0; i < corners.length; i += 1) {
+            checkCube("memory " + i, cube, memory[i], corners[i], sizes[i]);
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        Fits f = new Fits(writeRamp("target/tiler6.fits"));
+        ImageHDU h = (ImageHDU) f.readHDU();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            AsyncImageTiler t = new AsyncImageTiler(h.getConcurrentTiler(), pool, 2);
+
+            // Hold the only thread so that the requests stay queued.
+            final CountDownLatch latch = new CountDownLatch(1);
+            pool.submit(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    latch.await();
+                    return null;
+                }
+            });
+            final AtomicReference<Object> result = new AtomicReference<Object>();
+            final CountDownLatch called = new CountDownLatch(2);
+            AsyncImageTiler.TileCallback callback = new AsyncImageTiler.TileCallback() {
+
+                @Override
+                public void completed(Object tile) {
+                    result.set(tile);
+                    called.countDown();
+                }
+
+                @Override
+                public void failed(Throwable error) {
+                    result.compareAndSet(null, error);
+                    called.countDown();
+                }
+            };
+            Future<Object> first = t.getTile(new int[]{
+                10,
+                20
+            }, new int[]{
+                2,
+                3
+            }, callback);
+            Future<Object> second = t.getTile(new int[]{
+                100,
+                200
+            }, new int[]{
+                4,
+                5
+            });
+            assertEquals("outstanding", 2, t.getOutstanding());
+            try {
+                t.getTile(new int[]{
+                    0,
+                    0
+                }, new int[]{
+                    1,
+                    1
+                });
+                assertEquals("rejected", true, false);
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+
+            first.cancel(true);
+            assertEquals("cancelled", true, result.get() instanceof CancellationException);
+            assertEquals("released", 1, t.getOutstanding());
+            result.set(null);
+            t.getTile(new int[]{
+                50,
+                60
+            }, new int[]{
+                2,
+                2
+            }, new int[]{
+                1,
+                1
+            }, callback);
+
+            latch.countDown();
+            assertEquals("second", 100200f, ((float[]) second.get())[0], 0);
+            assertEquals("called back", true, called.await(10, TimeUnit.SECONDS));
+            assertEquals("third", 51061f, ((float[]) result.get())[3], 0);
+            pool.shutdown();
+            assertEquals("terminated", true, pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals("done", 0, t.getOutstanding());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncCancelRunning() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        AbstractImageTiler blocking = new AbstractImageTiler(new int[]{
+            10,
+            10
+        }, float.class) {
+
+            @Override
+            public Object getCompleteImage() throws IOException {
+                return getTile(new int[]{
+                    0,
+                    0
+                }, new int[]{
+                    10,
+                    10
+                });
+            }
+
+            @Override
+            public Object getTile(int[] corners, int[] lengths) throws IOException {
+                float[] tile = new float[lengths[0] * lengths[1]];
+                getTile(tile, corners, lengths);
+                return tile;
+            }
+
+            @Override
+            public void getTile(Object array, int[] corners, int[] lengths) throws IOException {
+                reading.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            AsyncImageTiler t = new AsyncImageTiler(blocking, pool, 1);
+            Future<Object> first = t.getTile(new int[]{
+                0,
+                0
+            }, new int[]{
+                2,
+                2
+            });
+            assertEquals("reading", true, reading.await(10, TimeUnit.SECONDS));
+            first.cancel(true);
+
+            // The read goes on, so it still counts against the limit.
+            assertEquals("still outstanding", 1, t.getOutstanding());
+            try {
+                t.getTile(new int[]{
+                    0,
+                    0
+                }, new int[]{
+                    1,
+                    1
+                });
+                fail("more reads than the limit");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+
+            latch.countDown();
+            pool.shutdown();
+            assertEquals("terminated", true, pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals("released", 0, t.getOutstanding());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        float[][] data = TilerTest.RAMP;
+        String name = writeRamp("target/tiler4.fits");
+
+        // Blocks are 128 by 128 floats, 64 KB, so the image is a grid of 3 by
+        // 3 blocks and the cache holds 2 per stripe.
+        TileCache cache = new TileCache(4 * 64 * 1024, 2);
+        FitsFactory.setTileCache(cache);
+        try {
+            Fits f = new Fits(name);
+            ImageHDU h = (ImageHDU) f.readHDU();
+            StandardImageTiler t = h.getTiler();
+            doTile("cached", data, t, 10, 20, 50, 30);
+            long misses = cache.getMisses();
+            doTile("cached again", data, t, 10, 20, 50, 30);
+            assertEquals("no new misses", misses, cache.getMisses());
+            assertEquals("hits", true, cache.getHits() > 0);
+
+            // Another Fits object for the same file shares the blocks.
+            Fits other = new Fits(name);
+            ConcurrentImageTiler c = ((ImageHDU) other.readHDU()).getConcurrentTiler();
+            doTile("shared", data, c, 10, 20, 50, 30);
+            assertEquals("still no new misses", misses, cache.getMisses());
+            c.close();
+
+            doTile("whole", data, t, 0, 0, 300, 300);
+            assertEquals("evicted", true, cache.getEvictions() > 0);
+            assertEquals("budget", true, cache.getBytes() <= cache.getMaxBytes());
+            assertEquals("blocks", true, cache.size() < 9);
+            cache.clear();
+            assertEquals("cleared", 0, cache.getBytes());
+
+            // A narrow cutout of all the rows only reads the first column of
+            // blocks, 128 of the 300 pixels of each row.
+            cache = new TileCache(1024 * 1024, 1);
+            t.setCache(cache, h.getData().getSourceKey());
+            doTile("narrow", data, t, 10, 0, 5, 300);
+            assertEquals("narrow misses", 3, cache.getMisses());
+            assertEquals("narrow bytes", 300 * 128 * 4, cache.getBytes());
+            doTile("next column", data, t, 130, 0, 5, 300);
+            assertEquals("next column bytes", 2 * 300 * 128 * 4, cache.getBytes());
+        } finally {
+            FitsFactory.setTileCache(null);
+        }
+    }
+
+    private static void checkSampled(String test, short[][][] cube, AbstractImageTiler t, int[] corner, int[] size, int[] steps) throws Exception {
+        short[] sampled = (short[]) t.getTile(corner, size, steps);
+        double[] binned = t.getBinnedTile(corner, size, steps);
+        int k = 0;
+        for (int i = 0; i < size[0]; i += steps[0]) {
+            for (int j = 0; j < size[1]; j += steps[1]) {
+                for (int l = 0; l < size[2]; l += steps[2]) {
+                    assertEquals(test + " sampled", cube[corner[0] + i][corner[1] + j][corner[2] + l], sampled[k]);
+                    k += 1;
+                }
+            }
+        }
+        assertEquals(test + " samples", k, sampled.length);
+        k = 0;
+        for (int i = 0; i + steps[0] <= size[0]; i += steps[0]) {
+            for (int j = 0; j + steps[1] <= size[1]; j += steps[1]) {
+                for (int l = 0; l + steps[2] <= size[2]; l += steps[2]) {
+                    double sum = 0;
+                    for (int a = 0; a < steps[0]; a += 1) {
+                        for (int b = 0; b < steps[1]; b += 1) {
+                            for (int c = 0; c < steps[2]; c += 1) {
+                                sum += cube[corner[0] + i + a][corner[1] + j + b][corner[2] + l + c];
+                            }
+                        }
+                    }
+                    assertEquals(test + " binned", sum / (steps[0] * steps[1] * steps[2]), binned[k], 1e-9);
+                    k += 1;
+                }
+            }
+        }
+        assertEquals(test + " bins", k, binned.length);
+    }
+
+    @Test
+    public void testSubsampled() throws Exception {
+        short[][][] cube = new short[12][50][70];
+        for (int i = 0; i < 12; i += 1) {
+            for (int j = 0; j < 50; j += 1) {
+                for (int l = 0; l < 70; l += 1) {
+                    cube[i][j][l] = (short) (1000 * i + 37 * j - l);
+                }
+            }
+        }
+        Fits f = new Fits();
+        BufferedFile bf = new BufferedFile("target/tiler5.fits", "rw");
+        f.addHDU(Fits.makeHDU(cube));
+        f.write(bf);
+        bf.close();
+
+        f = new Fits("target/tiler5.fits");
+        ImageHDU h = (ImageHDU) f.readHDU();
+        AbstractImageTiler[] tilers = {
+            h.getTiler(),
+            h.getConcurrentTiler()
+        };
+        int[] corner = {
+            1,
+            3,
+            5
+        };
+        int[] size = {
+            11,
+            47,
+            64
+        };
+        for (AbstractImageTiler t : tilers) {
+            checkSampled("unit", cube, t, corner, size, new int[]{
+                1,
+                1,
+                1
+            });
+            checkSampled("steps", cube, t, corner, size, new int[]{
+                2,
+                4,
+                16
+            });
+            checkSampled("uneven", cube, t, corner, size, new int[]{
+                3,
+                5,
+                7
+            });
+        }
+        ((ConcurrentImageTiler) tilers[1]).close();
+        h.getData().getKernel();
+        checkSampled("memory", cube, h.getTiler(), corner, size, new int[]{
+            3,
+            5,
+            7
+        });
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final float[][] data = TilerTest.RAMP;
+        Fits f = new Fits(writeRamp("target/tiler2.fits"));
+        ImageHDU h = (ImageHDU) f.readHDU();
+        final ConcurrentImageTiler t = h.getConcurrentTiler();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int k = 0; k < 64; k += 1) {
+                final int x = 7 * k % 250;
+                final int y = 13 * k % 250;
+                results.add(pool.submit(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        for (int n = 0; n < 20; n += 1) {
+                            doTile("c" + x + "," + y, data, t, x, y, 50, 1 + n);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        float[] tile = new float[4];
+        t.getTile(tile, new int[]{
+            299,
+            -1
+        }, new int[]{
+            2,
+            2
+        });
+        assertEquals("clipped", 299000f, tile[1], 0);
+        assertEquals("outside", 0f, tile[2], 0);
+        assertEquals("complete", 123045f, ((float[][]) t.getCompleteImage())[123][45], 0);
+
+        // An interrupted read closes the channel of the tiler but not the
+        // file of the Fits object, and the next read reopens the channel.
+        Thread.currentThread().interrupt();
+        try {
+            t.getTile(new int[]{
+                0,
+                0
+            }, new int[]{
+                1,
+                1
+            });
+            fail("interrupted read succeeded");
+        } catch (ClosedByInterruptException e) {
+            assertTrue("interrupted", Thread.interrupted());
+        }
+        assertEquals("reopened", 5006f, ((float[]) t.getTile(new int[]{
+            5,
+            6
+        }, new int[]{
+            1,
+            1
+        }))[0], 0);
+        assertEquals("own channel", 7008f, ((float[]) h.getTiler().getTile(new int[]{
+            7,
+            8
+        }, new int[]{
+            1,
+            1
+        }))[0], 0);
+        t.close();
+        try {
+            t.getTile(new int[]{
+                0,
+                0
+            }, new int[]{
+                1,
+                1
+            });
+            fail("read after close succeeded");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    /** Writes {@link #RAMP} as the primary image of a new file. */
+    private static String writeRamp(String name) throws Exception {
+        Fits f = new Fits();
+        BufferedFile bf = new BufferedFile(name, "rw");
+        f.addHDU(Fits.makeHDU(TilerTest.RAMP));
+        f.write(bf);
+        bf.close();
+        return name;
+    }
 }
@@ -0,0 +1,123 @@
+package nom.tam.image.comp.test;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import nom.tam.image.comp.Rice;
+
+import org.junit.Test;
+
+public class RiceTest {
+
+    private Rice rice(int bitpix) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("block", "32");
+        params.put("bitpix", "" + bitpix);
+        Rice rice = new Rice();
+        rice.initialize(params);
+        return rice;
+    }
+
+    @Test
+    public void testArrays() throws Exception {
+        Random r = new Random(1234);
+        int[] ints = new int[1000];
+        short[] shorts = new short[1000];
+        byte[] bytes = new byte[1000];
+        for (int i = 0; i < ints.length; i += 1) {
+            // Smooth, noisy and constant regions.
+            int val = i < 300 ? 10 * i + r.nextInt(20) : i < 600 ? r.nextInt() : 77;
+            ints[i] = val;
+            shorts[i] = (short) val;
+            bytes[i] = (byte) val;
+        }
+        ints[5] = Integer.MIN_VALUE;
+        ints[6] = Integer.MAX_VALUE;
+
+        // One instance and one buffer are reused for all the tiles.
+        Rice rice = rice(32);
+        ByteBuffer buf = ByteBuffer.allocate(rice.maxCompressedSize(1000, 32));
+        for (int offset = 0; offset < 1000; offset += 250) {
+            buf.clear();
+            int len = rice.compress(ints, offset, 250, buf);
+            assertEquals("int length", len, buf.position());
+            buf.flip();
+            int[] back = new int[260];
+            rice.decompress(buf, back, 10, 250);
+            for (int i = 0; i < 250; i += 1) {
+                assertEquals("int " + (offset + i), ints[offset + i], back[10 + i]);
+            }
+        }
+
+        buf.clear();
+        rice.compress(shorts, 0, 1000, buf);
+        buf.flip();
+        short[] sback = new short[1000];
+        rice.decompress(buf, sback, 0, 1000);
+        assertArrayEquals("short", shorts, sback);
+
+        buf.clear();
+        rice.compress(bytes, 0, 1000, buf);
+        buf.flip();
+        byte[] bback = new byte[1000];
+        rice.decompress(buf, bback, 0, 1000);
+        assertArrayEquals("byte", bytes, bback);
+    }
+
+    @Test
+    public void testByteInterface() throws Exception {
+        short[] shorts = new short[500];
+        for (int i = 0; i < shorts.length; i += 1) {
+            shorts[i] = (short) (1000 * Math.sin(i / 10.));
+        }
+        ByteBuffer raw = ByteBuffer.allocate(1000);
+        raw.asShortBuffer().put(shorts);
+
+        // The byte array and short array interfaces write the same data.
+        Rice rice = rice(16);
+        byte[] compressed = rice.compress(raw.array());
+        ByteBuffer buf = ByteBuffer.allocate(rice.maxCompressedSize(500, 16));
+        int len = rice.compress(shorts, 0, 500, buf);
+        assertEquals("length", compressed.length, len);
+        for (int i = 0; i < len; i += 1) {
+            assertEquals("byte " + i, compressed[i], buf.get(i));
+        }
+        assertArrayEquals("decompressed", raw.array(), rice.decompress(compressed, 500));
+    }
+}
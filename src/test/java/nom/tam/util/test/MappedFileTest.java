@@ -0,0 +1,208 @@
+package nom.tam.util.test;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 2004 - 2015 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.EOFException;
+import java.io.File;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsFactory;
+import nom.tam.util.BufferedFile;
+import nom.tam.util.MappedFile;
+
+import org.junit.Test;
+
+/**
+ * Check that MappedFile reads and writes the same bytes as BufferedFile, in
+ * particular when arrays straddle the boundaries of the mapped windows.
+ */
+public class MappedFileTest {
+
+    private static final int WINDOW = 1000;
+
+    @Test
+    public void testReadBufferedFile() throws Exception {
+        double[] db = new double[333];
+        float[] fl = new float[555];
+        int[] in = new int[777];
+        short[] sh = new short[999];
+        long[] ln = new long[111];
+        char[] ch = new char[222];
+        byte[] by = new byte[1234];
+        boolean[] bl = new boolean[77];
+        for (int i = 0; i < by.length; i += 1) {
+            if (i < db.length) {
+                db[i] = i * Math.PI;
+            }
+            if (i < fl.length) {
+                fl[i] = (float) (-i / 3.);
+            }
+            if (i < in.length) {
+                in[i] = i * 100003;
+            }
+            if (i < sh.length) {
+                sh[i] = (short) (i * 37);
+            }
+            if (i < ln.length) {
+                ln[i] = i * 1000000000007L;
+            }
+            if (i < ch.length) {
+                ch[i] = (char) (i * 300);
+            }
+            if (i < bl.length) {
+                bl[i] = i % 3 == 0;
+            }
+            by[i] = (byte) i;
+        }
+
+        BufferedFile bf = new BufferedFile("target/mappedFileTest.bin", "rw");
+        bf.writeInt(17);
+        bf.writeArray(db);
+        bf.writeByte(3);
+        bf.writeArray(fl);
+        bf.writeArray(in);
+        bf.writeArray(sh);
+        bf.writeArray(ln);
+        bf.writeArray(ch);
+        bf.writeArray(by);
+        bf.writeArray(bl);
+        bf.writeDouble(-1.5);
+        bf.close();
+
+        MappedFile mf = new MappedFile(new File("target/mappedFileTest.bin"), "r", MappedFileTest.WINDOW);
+        assertEquals("int", 17, mf.readInt());
+        double[] db2 = new double[db.length];
+        mf.readLArray(db2);
+        assertArrayEquals("double", db, db2, 0);
+        assertEquals("byte", 3, mf.readByte());
+        float[] fl2 = new float[fl.length];
+        mf.readLArray(fl2);
+        assertArrayEquals("float", fl, fl2, 0);
+        int[] in2 = new int[in.length];
+        mf.readLArray(in2);
+        assertArrayEquals("int", in, in2);
+        short[] sh2 = new short[sh.length];
+        mf.readLArray(sh2);
+        assertArrayEquals("short", sh, sh2);
+        long[] ln2 = new long[ln.length];
+        mf.readLArray(ln2);
+        assertArrayEquals("long", ln, ln2);
+        char[] ch2 = new char[ch.length];
+        mf.readLArray(ch2);
+        assertArrayEquals("char", ch, ch2);
+        byte[] by2 = new byte[by.length];
+        mf.readLArray(by2);
+        assertArrayEquals("byte", by, by2);
+        boolean[] bl2 = new boolean[bl.length];
+        mf.readLArray(bl2);
+        for (int i = 0; i < bl.length; i += 1) {
+            assertEquals("boolean", bl[i], bl2[i]);
+        }
+        assertEquals("double", -1.5, mf.readDouble(), 0);
+        assertEquals("length", mf.length(), mf.getFilePointer());
+
+        mf.seek(4 + 8 * 100);
+        assertEquals("seek", db[100], mf.readDouble(), 0);
+
+        mf.seek(mf.length() - 4);
+        int[] tail = new int[3];
+        assertEquals("partial read", 4, mf.read(tail));
+        try {
+            mf.readInt();
+            throw new Exception("EOF not detected");
+        } catch (EOFException e) {
+            // expected
+        }
+        mf.close();
+    }
+
+    @Test
+    public void testWriteMappedFile() throws Exception {
+        int[][] data = new int[50][77];
+        for (int i = 0; i < data.length; i += 1) {
+            for (int j = 0; j < data[i].length; j += 1) {
+                data[i][j] = i * j - 1000;
+            }
+        }
+
+        MappedFile mf = new MappedFile(new File("target/mappedFileTest2.bin"), "rw", MappedFileTest.WINDOW);
+        mf.setLength(0);
+        mf.writeShort(-2);
+        mf.writeArray(data);
+        mf.writeUTF("end");
+        long len = mf.getFilePointer();
+        mf.close();
+        assertEquals("file length", len, new File("target/mappedFileTest2.bin").length());
+
+        BufferedFile bf = new BufferedFile("target/mappedFileTest2.bin", "r");
+        assertEquals("short", -2, bf.readShort());
+        int[][] data2 = new int[50][77];
+        bf.readLArray(data2);
+        for (int i = 0; i < data.length; i += 1) {
+            assertArrayEquals("row " + i, data[i], data2[i]);
+        }
+        assertEquals("utf", "end", bf.readUTF());
+        bf.close();
+    }
+
+    @Test
+    public void testFitsMapped() throws Exception {
+        float[][] img = new float[100][100];
+        for (int i = 0; i < img.length; i += 1) {
+            for (int j = 0; j < img[i].length; j += 1) {
+                img[i][j] = i - j;
+            }
+        }
+        Fits f = new Fits();
+        f.addHDU(Fits.makeHDU(img));
+        BufferedFile bf = new BufferedFile("target/mappedFileTest.fits", "rw");
+        f.write(bf);
+        bf.close();
+
+        FitsFactory.setUseMappedFiles(true);
+        try {
+            f = new Fits(new File("target/mappedFileTest.fits"));
+            BasicHDU hdu = f.readHDU();
+            float[][] img2 = (float[][]) hdu.getKernel();
+            for (int i = 0; i < img.length; i += 1) {
+                assertArrayEquals("row " + i, img[i], img2[i], 0);
+            }
+            f.getStream().close();
+        } finally {
+            FitsFactory.setUseMappedFiles(false);
+        }
+    }
+}